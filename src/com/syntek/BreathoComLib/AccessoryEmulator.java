@@ -0,0 +1,130 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * AccessoryEmulator plays the Breathometer's side of the link: it reads the pulse-width commands produced by
+ * SoundEncoder and answers with FSK replies from ReplyEncoder.
+ * <p/>
+ * Pulses are measured by their length above half scale (either polarity): about 7 samples for a 0, 20 for a 1 and
+ * 89 for a header. A command is a header, 8 bits and a closing header; link commands (see LinkLayer) carry
+ * LinkLayer.COMMAND_BITS bits. Several commands may follow each other in one transmission.
+ */
+public class AccessoryEmulator {
+    private final static int LEVEL = 16384;
+    private final static int HEADER_MIN = 50;
+    private final static int BIT1_MIN = 13;
+    private final static int BIT0_MIN = 3;
+    private final static int COMMAND_BITS = 8;
+    private final static int MAX_COMMAND_BITS = LinkLayer.COMMAND_BITS;
+
+    /**
+     * Firmware behaviour of the emulated accessory.
+     */
+    public interface Responder {
+        /**
+         * @param <b>int</b> received 8-bit command, or 13-bit link command
+         * @return <b>int</b> 9-bit reply, or -1 for no reply
+         */
+        int respond(int command);
+    }
+
+    /**
+     * Responder echoing every command back.
+     */
+    public final static Responder ECHO = new Responder() {
+        @Override
+        public int respond(int command) {
+            return command;
+        }
+    };
+
+    private final ReplyEncoder replyEncoder;
+    private Responder responder;
+
+    // Pulse state kept across calls, a command may span several buffers
+    private int pulseLength;
+    private boolean bInFrame;
+    private int command, commandBits;
+
+    private int commandCnt, badPulseCnt;
+
+    public AccessoryEmulator(ReplyEncoder replyEncoder, Responder responder) {
+        this.replyEncoder = replyEncoder;
+        this.responder = responder;
+    }
+
+    public void setResponder(Responder responder) {
+        this.responder = responder;
+    }
+
+    public ReplyEncoder getReplyEncoder() {
+        return replyEncoder;
+    }
+
+    /**
+     * Parse transmitted samples and collect the replies of every complete command.
+     *
+     * @param <b>short[]</b> transmitted samples
+     * @param <b>int</b>     number of samples
+     * @param <b>int[]</b>   receives the replies
+     * @return <b>int</b> number of replies written, at most replies.length
+     */
+    public int receive(short[] pcm, int length, int[] replies) {
+        int replyCnt = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (pcm[i] > LEVEL || pcm[i] < -LEVEL) {
+                pulseLength++;
+                continue;
+            }
+            if (pulseLength == 0)
+                continue;
+
+            int reply = onPulse(pulseLength);
+            pulseLength = 0;
+
+            if (reply >= 0 && replyCnt < replies.length)
+                replies[replyCnt++] = reply;
+        }
+
+        return replyCnt;
+    }
+
+    private int onPulse(int width) {
+        if (width >= HEADER_MIN) {
+            if (bInFrame && (commandBits == COMMAND_BITS || commandBits == MAX_COMMAND_BITS)) {
+                // Closing header
+                bInFrame = false;
+                commandCnt++;
+                return (responder != null) ? responder.respond(command) : -1;
+            }
+
+            // Opening header, also resynchronises after a broken command
+            bInFrame = true;
+            command = 0;
+            commandBits = 0;
+        } else if (bInFrame && width >= BIT0_MIN && commandBits < MAX_COMMAND_BITS) {
+            if (width >= BIT1_MIN)
+                command |= 0x01 << commandBits;
+            commandBits++;
+        } else {
+            badPulseCnt++;
+            bInFrame = false;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return <b>int</b> number of complete commands received
+     */
+    public int getCommandCount() {
+        return commandCnt;
+    }
+
+    /**
+     * @return <b>int</b> number of pulses that did not fit a command
+     */
+    public int getBadPulseCount() {
+        return badPulseCnt;
+    }
+}
@@ -0,0 +1,191 @@
+package com.syntek.BreathoComLib;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AudioScheduler runs the protocol timers of the library (head window, replays, retries) on one dedicated
+ * high-priority thread, independent of the UI thread and its looper.
+ * <p/>
+ * Deadlines are absolute System.nanoTime() values, so a chain of timers does not accumulate the lateness of each step.
+ * The scheduler records how late every task started against its deadline, see getMaxLatenessNs(). An exception
+ * thrown by a task is printed to System.err (logcat on Android) before it reaches the task's future.
+ * The class has no Android dependency.
+ */
+public class AudioScheduler {
+    /**
+     * Lateness above which a task is counted as late, 2ms.
+     */
+    public final static long LATE_THRESHOLD_NS = 2000000L;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private volatile Thread schedulerThread;
+
+    // Jitter metrics, only written by the scheduler thread
+    private volatile long runCnt;
+    private volatile long lateCnt;
+    private volatile long totalLatenessNs;
+    private volatile long maxLatenessNs;
+    private volatile long lastLatenessNs;
+
+    /**
+     * Constructor for AudioScheduler. The thread is started by the first task or by prestart().
+     *
+     * @param <b>String</b> name of the scheduler thread
+     */
+    public AudioScheduler(final String name) {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setPriority(Thread.MAX_PRIORITY);
+                t.setDaemon(true);
+                schedulerThread = t;
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start the scheduler thread ahead of the first task.
+     */
+    public void prestart() {
+        executor.prestartCoreThread();
+    }
+
+    /**
+     * Run a task as soon as possible on the scheduler thread.
+     */
+    public Future<?> execute(Runnable task) {
+        return scheduleAtNs(task, System.nanoTime());
+    }
+
+    /**
+     * Run a task after a delay.
+     *
+     * @param <b>Runnable</b> task to run on the scheduler thread
+     * @param <b>long</b>     delay in ms from now
+     * @return <b>Future</b> handle to cancel the task
+     */
+    public Future<?> schedule(Runnable task, long delayMs) {
+        return scheduleAtNs(task, System.nanoTime() + delayMs * 1000000L);
+    }
+
+    /**
+     * Run a task at an absolute deadline.
+     *
+     * @param <b>Runnable</b> task to run on the scheduler thread
+     * @param <b>long</b>     deadline as a System.nanoTime() value, a past deadline runs at once
+     * @return <b>Future</b> handle to cancel the task
+     */
+    public Future<?> scheduleAtNs(Runnable task, long deadlineNs) {
+        return executor.schedule(new TimedTask(task, deadlineNs), deadlineNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return <b>boolean</b> true when called from the scheduler thread
+     */
+    public boolean isSchedulerThread() {
+        return Thread.currentThread() == schedulerThread;
+    }
+
+    /**
+     * Cancel every pending task and stop the thread. The scheduler cannot be used afterwards.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return <b>long</b> number of tasks run so far
+     */
+    public long getRunCount() {
+        return runCnt;
+    }
+
+    /**
+     * @return <b>long</b> tasks that started more than LATE_THRESHOLD_NS after their deadline
+     */
+    public long getLateCount() {
+        return lateCnt;
+    }
+
+    /**
+     * @return <b>long</b> mean start lateness in ns, 0 if nothing has run
+     */
+    public long getMeanLatenessNs() {
+        long n = runCnt;
+        return (n == 0) ? 0 : totalLatenessNs / n;
+    }
+
+    /**
+     * @return <b>long</b> worst start lateness in ns
+     */
+    public long getMaxLatenessNs() {
+        return maxLatenessNs;
+    }
+
+    /**
+     * @return <b>long</b> start lateness of the last task in ns
+     */
+    public long getLastLatenessNs() {
+        return lastLatenessNs;
+    }
+
+    /**
+     * Clear the jitter metrics. The reset itself runs on the scheduler thread.
+     */
+    public void resetMetrics() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runCnt = 0;
+                lateCnt = 0;
+                totalLatenessNs = 0;
+                maxLatenessNs = 0;
+                lastLatenessNs = 0;
+            }
+        });
+    }
+
+    private final class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long deadlineNs;
+
+        TimedTask(Runnable task, long deadlineNs) {
+            this.task = task;
+            this.deadlineNs = deadlineNs;
+        }
+
+        @Override
+        public void run() {
+            long lateness = Math.max(0, System.nanoTime() - deadlineNs);
+
+            lastLatenessNs = lateness;
+            totalLatenessNs += lateness;
+            if (lateness > maxLatenessNs)
+                maxLatenessNs = lateness;
+            if (lateness > LATE_THRESHOLD_NS)
+                lateCnt++;
+            runCnt++;
+
+            // The executor keeps a task's exception in its future, which nobody may ever read
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                report(e);
+                throw e;
+            } catch (Error e) {
+                report(e);
+                throw e;
+            }
+        }
+
+        private void report(Throwable t) {
+            System.err.println("AudioScheduler: task " + task + " threw");
+            t.printStackTrace();
+        }
+    }
+}
@@ -14,16 +14,18 @@
 package com.syntek.BreathoComLib;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.media.*;
 import android.media.AudioTrack.OnPlaybackPositionUpdateListener;
 import android.os.Build;
-import android.os.Handler;
-import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * BreathoComLib is an android library to encode/decode data and communicate between the Breathometer and the Android Device.
@@ -32,75 +34,116 @@ import java.nio.ByteOrder;
  * @version v1.0 Build 001 (7 July, 2013)
  */
 public class BreathoComLib {
-    private int bufferSize;
-    private AudioRecord audioRecord;
+    /**
+     * Receiver of transmit completions, called on the library's scheduler thread.
+     */
+    public interface TransmitListener {
+        void onTransmitComplete(TransmitResult result);
+    }
 
-    private RecordPlayThread audioRecThread;
+    private CaptureHub captureHub;
+    private final boolean bSharedHub;
+    private boolean bCaptureRequested;
+    private int capturePeriodFrames;
+    private int captureBufferFrames;
 
-    private volatile int code;
-    private boolean bCode0Log;
-    private int interceptCnt;
-    private int codeBit = 0;
-    private int errorCnt = 0;
-    private int codeCnt = 0;
-    private volatile boolean bRecord, bDecode, bStartAnalyse;
+    // Capture at the handset's native rate; the decoder runs at that rate, or at RESAMPLE_RATE if asked to.
+    // Probing it costs audio HAL calls, so it is resolved with the hub, 0 until then
+    private int captureRate;
+    private boolean bResampleCapture;
+    private volatile Resampler resampler;    // with the decoder, then capture thread only
+    private short[] resampleBuffer;
 
-    /**
-     * bResponse shows whether the decoding side have any valid response.
-     * If bResponse = true, can use fetchResponse() to extract the return data.
-     */
-    private volatile boolean bResponse;
+    // Decoder, created with the capture engine and only used on the capture thread
+    private volatile SignalDecoder signalDecoder;
+    private volatile FailureCapture failureCapture;
+    private volatile SessionLog sessionLog;
+    private volatile CarrierWatch carrierWatch;
+    private SpectrumAnalyzer spectrumAnalyzer;
+
+    private volatile boolean bRecord, bDecode;
+
+    // Decoded frames go to the app threads through here only, see fetchResponse() and openReceiveSession()
+    private final FrameDispatcher frameDispatcher = new FrameDispatcher();
+
+    private volatile int threshold = 1024;
+    private volatile ReceiveCalibration receiveCalibration;
 
-    private int threshold = 1024;
+    // Connected accessory and its reply bit rate, see setConnectedUnit()
+    private String unitId;
+    private float unitBitRate;
 
-    private Handler headHandler = new Handler();
-    private boolean bHead;
+    // Transmit and receive timings, from the latency calibration of the handset if there is one
+    private volatile LatencyCalibration latencyCalibration;
+    private volatile int leaderMs = LatencyCalibration.DEFAULT_LEADER_MS;
+    private volatile long headWindowNs = LatencyCalibration.DEFAULT_HEAD_WINDOW_MS * 1000000L;
+
+    // Head window: the silence lead-in is skipped while it is open, see encodeAndSend()
+    private final Object headLock = new Object();
+    private volatile boolean bHead;
+    private Future<?> headFuture;
+    private int headGeneration;
 
     //private final static int audioSource = MediaRecorder.AudioSource.MIC;
     private final static int audioSource = MediaRecorder.AudioSource.VOICE_RECOGNITION;
-    private final static int frequency = 44100;
+    private final static int[] CAPTURE_RATES = {48000, 44100, 22050, 16000};    // tried when the native rate fails
+    private final static int MIN_CAPTURE_RATE = 16000;       // the 5kHz reply tone needs a margin below Nyquist
+    private final static int RESAMPLE_RATE = 44100;
     private final static int channelConfiguration = AudioFormat.CHANNEL_IN_MONO;
     private final static int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
 
-    private final static int poolSamples = frequency / 40;    // 25ms samples for Analyse
+    private final static int CAPTURE_PERIODS_PER_SECOND = 100;  // 10ms per read
+    private final static int CAPTURE_BUFFER_PERIODS = 4;        // recorder depth
+    private final static int CAPTURE_RING_BLOCKS = 50;                         // 500ms kept for cursors
 
-    private final static int NONCOHERENT_SAMPLES = 16;
-    private final static int TOTALSAMPLES = 5;
     private final static int THRESHOLD_SAMPLES = 32;
-    private final static int COHERENT_THRESHOLD = 4096;
+
+    private final static int PROBE_IDLE_MS = 500;            // output idle before each latency probe
+
+    private final static int CALIBRATION_NOISE_MS = 500;
+    private final static int CALIBRATION_REPLY_MS = 200;     // capture window after each command
+    private final static long CALIBRATION_TIMEOUT_MS = 2000;
+    private final static String PREFS_NAME = "BreathoComLib";
+
+    private final static long PLAY_POLL_NS = 1000000L;           // head position poll while playing
+    private final static long PLAY_STALL_NS = 500 * 1000000L;    // no head movement for this long ends the transmit
 
     private final static int VERSION = 1;
     private final static int DATECODE = 20130707;
 
     private final static String PACKAGENAME = "com.syntek.BreathoComLib";
 
-    // Sound Encoding Parameter
-    @SuppressWarnings("unused")
-    private static final String RIFF_HEADER = "RIFF";
-    @SuppressWarnings("unused")
-    private static final String WAVE_HEADER = "WAVE";
-    @SuppressWarnings("unused")
-    private static final String FMT_HEADER = "fmt ";
-    @SuppressWarnings("unused")
-    private static final String DATA_HEADER = "data";
-    private static final int HEADER_SIZE = 44;
-    @SuppressWarnings("unused")
-    private static final String CHARSET = "ASCII";
-
-    private InputStream inputStream;
-
-    private int format, channels, rate, bits, dataSize;
+    // Sound Encoding Parameter, confined to the scheduler thread: only touched by the TransmitQueue sink
+    private WaveformBank waveformBank;
+    private DeviceProfileRegistry profileRegistry;
+    private volatile DeviceProfile deviceProfile;
+    private FecCodec payloadCodec;
 
     private int newRate;
     private int newDataSize;
     private long iDelay = 0;
-    private ByteBuffer newWavBuffer;
+    private SoundEncoder soundEncoder;
+    private short[] newWavBuffer;
+    private volatile LoopbackTransport loopback;
 
     private AudioTrack audioTrack;
     private volatile boolean bPlaying;
-
-    private Handler myHandler = new Handler();
-    private Handler soundEndHandler = new Handler();
+    private volatile TransmitMonitor transmitMonitor;
+    private volatile TransmitResult lastTransmitResult;
+    private volatile TransmitListener transmitListener;
+    private volatile PhyPort.Receiver phyReceiver;
+    private volatile TelemetryStream telemetry;
+    private long captureTimeNs;    // capture thread only, time of the period being decoded
+    private LinkLayer linkLayer;
+    private BreathometerCommands commands;
+    private final DuplexController duplex;
+
+    // Transmit timing runs on the library's own thread, never on the caller's looper
+    private AudioScheduler scheduler;
+    private Future<?> replayFuture;
+    private TransmitQueue transmitQueue;
+
+    private volatile long warmUpTimeNs = -1;
 
     private AudioManager am;
 
@@ -109,27 +152,36 @@ public class BreathoComLib {
     private boolean bLED1, bLED2, bLED1Flash, bLED2Flash;
     private int LED1FlashInterval, LED2FlashInterval;
 
-    private float f1Value[], f2Value[];
-
     /**
      * Constructor for BreathoComLib.
      *
      * @param <b>Context</b> usually using getBaseContext() in any Activity.
      */
     public BreathoComLib(Context con) {
-        // AudioRecord
-        bufferSize = AudioRecord.getMinBufferSize(frequency, channelConfiguration, audioEncoding);
-        audioRecord = new AudioRecord(audioSource, frequency, channelConfiguration, audioEncoding, bufferSize);
-        audioRecThread = new RecordPlayThread();
+        this(con, null);
+    }
+
+    /**
+     * Constructor for BreathoComLib sharing the mic with other components of the app.
+     *
+     * @param <b>Context</b>    usually using getBaseContext() in any Activity.
+     * @param <b>CaptureHub</b> hub owning the recording, or null for a private one
+     */
+    public BreathoComLib(Context con, CaptureHub hub) {
+        captureHub = hub;
+        bSharedHub = (hub != null);
 
-        // SoundEncoder
-        audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, 8000, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, 16, AudioTrack.MODE_STATIC);
+        // Audio resources, waveform and DSP tables are created on first use or by warmUp()
         newDataSize = 0;
-        soundEndHandler.removeCallbacks(soundEndTimerTask);
 
         // Setup Context
         context = con;
 
+        // The capture rate of a private hub, and what is sized from it, is resolved by getCaptureHub()
+        duplex = new DuplexController(RESAMPLE_RATE, threshold);
+        if (bSharedHub)
+            resolveCaptureRate();
+
         bHead = false;
         bRecord = false;
         bDecode = false;
@@ -165,6 +217,43 @@ public class BreathoComLib {
         return DATECODE;
     }
 
+    /**
+     * Probe the capture rate and prepare the recorder, waveform tables and DSP tables on a background thread, so that
+     * the first startRecording() and encodeAndSend() do not pay for them. Calling it is optional.
+     *
+     * @return <b>Future</b> completed when everything is ready
+     */
+    public Future<Void> warmUp() {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                long startNs = System.nanoTime();
+
+                getDeviceProfile();
+                getWaveformBank().preload();
+                getCaptureHub().prepare();
+                getScheduler().prestart();
+
+                warmUpTimeNs = System.nanoTime() - startNs;
+                return null;
+            }
+        });
+
+        Thread t = new Thread(task, "BreathoComLib-WarmUp");
+        t.start();
+
+        return task;
+    }
+
+    /**
+     * Get the time spent by the last completed warmUp().
+     *
+     * @return <b>long</b> time in ns, -1 if warmUp() has not completed
+     */
+    public long getWarmUpTimeNs() {
+        return warmUpTimeNs;
+    }
+
     /**
      * Check whether any device is plugged into the audio jack.
      *
@@ -175,6 +264,63 @@ public class BreathoComLib {
         return am.isWiredHeadsetOn();
     }
 
+    /**
+     * Get the registry the device profile is picked from, e.g. to add a profile or load a data file for a new handset
+     * before the first use of the library. It is loaded with the library's res/raw/device_profiles.csv.
+     *
+     * @return <b>DeviceProfileRegistry</b> the library's profile registry
+     */
+    public synchronized DeviceProfileRegistry getDeviceProfileRegistry() {
+        if (profileRegistry == null) {
+            profileRegistry = new DeviceProfileRegistry();
+
+            int id = getResourseIdByName(PACKAGENAME, "raw", "device_profiles");
+            if (id != 0) {
+                try {
+                    profileRegistry.load(context.getResources().openRawResource(id));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return profileRegistry;
+    }
+
+    /**
+     * Get the profile of this handset. It is resolved once from Build.MANUFACTURER and Build.MODEL, then kept.
+     *
+     * @return <b>DeviceProfile</b> the profile in use
+     */
+    public synchronized DeviceProfile getDeviceProfile() {
+        if (deviceProfile == null)
+            applyDeviceProfile(getDeviceProfileRegistry().resolve(Build.MANUFACTURER, Build.MODEL));
+
+        return deviceProfile;
+    }
+
+    /**
+     * Use the given profile instead of the resolved one, e.g. while tuning a new handset.
+     *
+     * @param <b>DeviceProfile</b> profile to use, or null to resolve it again from the registry
+     */
+    public synchronized void setDeviceProfile(DeviceProfile profile) {
+        if (profile == null) {
+            deviceProfile = null;
+            getDeviceProfile();
+        } else {
+            applyDeviceProfile(profile);
+        }
+    }
+
+    private void applyDeviceProfile(DeviceProfile profile) {
+        deviceProfile = profile;
+        payloadCodec = null;
+        // A calibration measured on this handset beats the profile's guess
+        if (receiveCalibration == null)
+            setThreshold(profile.getThreshold());
+    }
+
     public static int getResourseIdByName(String packageName, String className, String name) {
         Class r = null;
         int id = 0;
@@ -230,583 +376,935 @@ public class BreathoComLib {
     public void startRecording() {
         if (!bRecord) {
             bRecord = true;
-            //new RecordPlayThread().start();
-
-            if (audioRecThread == null) {
-                audioRecThread = new RecordPlayThread();
-                audioRecThread.setPriority(Thread.MAX_PRIORITY);
-                audioRecThread.start();
-            } else {
-                audioRecord.stop();
-                audioRecThread.interrupt();
-                audioRecThread = new RecordPlayThread();
-                audioRecThread.setPriority(Thread.MAX_PRIORITY);
-                audioRecThread.start();
-            }
+            requestCapture();
         }
     }
 
     /**
-     * Stop reocrding from mic input
+     * Stop reocrding from mic input. The recorder is kept for the next startRecording().
      */
     public void stopRecording() {
         bRecord = false;
-        audioRecord.stop();
-        audioRecThread.interrupt();
+        withdrawCapture();
+    }
+
+    private synchronized void requestCapture() {
+        if (!bCaptureRequested) {
+            bCaptureRequested = true;
+            getCaptureHub().requestCapture();
+        }
+    }
+
+    private synchronized void withdrawCapture() {
+        if (bCaptureRequested) {
+            bCaptureRequested = false;
+            captureHub.releaseCapture();
+        }
     }
 
     /**
-     * Enable decode process
+     * Set the capture read period and the recorder buffer depth, both in frames.
+     * Takes effect the next time the recorder is created, i.e. before the first startRecording() or after release().
+     * Ignored when the recording is owned by a shared CaptureHub.
+     *
+     * @param <b>int</b> frames per read, at least THRESHOLD_SAMPLES (32)
+     * @param <b>int</b> recorder buffer depth, raised to the device minimum if smaller
      */
-    public void enableDecode() {
-        bDecode = true;
+    public void setCaptureBufferFrames(int periodFrames, int bufferFrames) {
+        if (periodFrames < THRESHOLD_SAMPLES)
+            throw new IllegalArgumentException("periodFrames must be at least " + THRESHOLD_SAMPLES);
+
+        synchronized (this) {
+            capturePeriodFrames = periodFrames;
+            captureBufferFrames = bufferFrames;
+
+            // The decoder is sized for the period of the hub, both are created again by getCaptureHub()
+            if (!bSharedHub && captureHub != null && captureHub.getCaptureEngine().getSessionCount() == 0 && !bRecord) {
+                captureHub.removeListener(captureListener);
+                captureHub.release();
+                captureHub = null;
+                storeUnitBitRate();
+                signalDecoder = null;
+                resampler = null;
+            }
+        }
     }
 
     /**
-     * Disable decode process
+     * Resample the capture to 44.1kHz before decoding it, instead of decoding at the capture rate. Decoding at the
+     * capture rate costs less, resampling may decode better on handsets capturing at 16kHz, see
+     * sim/CaptureRateBenchmark. Takes effect the next time the decoder is created, i.e. before the first
+     * startRecording() or after release(); call it before enableLowPowerListening() and enableFailureCapture().
+     *
+     * @param <b>boolean</b> true to resample, false (the default) to decode at the capture rate
      */
-    public void disableDecode() {
-        bDecode = false;
+    public synchronized void setCaptureResampling(boolean bResample) {
+        bResampleCapture = bResample;
     }
 
-    private class RecordPlayThread extends Thread {
-        @Override
-        public void run() {
-            short[] buffer = new short[frequency];
-            short[] tempBuf = new short[frequency];
-            short[] bufferPool = new short[poolSamples * 2];
-            int bufferPoolIndex = 0;
-            int tempBufIndex;
-            int i, j;
-
-            tempBufIndex = 0;
-
-            bufferSize = AudioRecord.getMinBufferSize(frequency, channelConfiguration, audioEncoding);
-            audioRecord = new AudioRecord(audioSource, frequency, channelConfiguration, audioEncoding, bufferSize);
-            audioRecord.startRecording();
-
-            while (bRecord) {
-                int bufferReadSize = audioRecord.read(buffer, 0, bufferSize);
-                int startMarker = 0;
-
-                if (bDecode) {
-                    // Put real time buffer into temp buffer
-                    for (i = 0; i < bufferReadSize; i++) {
-                        tempBuf[tempBufIndex] = buffer[i];
-                        tempBufIndex++;
-                    }
+    /**
+     * @return <b>int</b> rate the mic is captured at in Hz, the handset's native rate if it supports capturing at it
+     */
+    public synchronized int getCaptureSampleRate() {
+        return resolveCaptureRate();
+    }
 
-                    if (tempBufIndex > THRESHOLD_SAMPLES) {
-                        for (i = 0; i < (tempBufIndex - THRESHOLD_SAMPLES); i++) {
-                            if (bStartAnalyse) {
-                                bufferPool[bufferPoolIndex] = tempBuf[i];
-                                if (++bufferPoolIndex >= (poolSamples)) {
-                                    bStartAnalyse = false;
-                                    bufferPoolIndex = 0;
-                                    if (nonCoherentOperation(bufferPool, 2500, 5000)) {
-                                        bResponse = true;
-                                        //i = startMarker + 1;
-                                        //disableDecode();
-                                    } else {
-                                        // reverse the counter of buffer Pool for re-calculation of threshold
-                                        //i = startMarker + 1;
-                                        if (!bResponse)
-                                            bResponse = false;
-                                    }
-                                }
-                            } else {
-                                // Check if first few samples are over threshold, if over threshold then start Analyse
-                                //if (checkThreshold(tempBuf, i)) {
-                                if (checkStartLog(tempBuf, 0, i)) {
-                                    bStartAnalyse = true;
-                                    startMarker = i;
-                                    bufferPoolIndex = 0;
-                                    bufferPool[bufferPoolIndex] = tempBuf[i];
-                                    bufferPoolIndex++;
-                                }
-                            }
-                        }
-
-                        tempBufIndex = 0;
-
-                        for (i = 0; i < THRESHOLD_SAMPLES; i++) {
-                            tempBuf[i] = buffer[bufferReadSize - THRESHOLD_SAMPLES + i];
-                            tempBufIndex++;
-                        }
-                    }
-                }
+    /**
+     * @return <b>int</b> rate the decoder works at in Hz, see setCaptureResampling()
+     */
+    public synchronized int getDecodeSampleRate() {
+        int rate = resolveCaptureRate();
+        return (bResampleCapture && rate != RESAMPLE_RATE) ? RESAMPLE_RATE : rate;
+    }
+
+    // Called with the lock held. Sizes the capture period and buffer, unless set by setCaptureBufferFrames(), and the
+    // duplex gate for the rate
+    private int resolveCaptureRate() {
+        if (captureRate == 0) {
+            captureRate = bSharedHub ? captureHub.getSampleRate() : chooseCaptureRate();
+            if (capturePeriodFrames == 0) {
+                capturePeriodFrames = captureRate / CAPTURE_PERIODS_PER_SECOND;
+                captureBufferFrames = capturePeriodFrames * CAPTURE_BUFFER_PERIODS;
             }
-
-            audioRecord.stop();
-            //audioRecord.release();
+            duplex.setSampleRate(captureRate);
+        }
+        return captureRate;
+    }
+
+    // The mixer runs at the native output rate and the capture path mostly does too: capturing at it spares the OS
+    // a resampler, and some handsets cannot capture at 44.1kHz at all
+    private static int chooseCaptureRate() {
+        int nativeRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        if (nativeRate >= MIN_CAPTURE_RATE && isCaptureRateSupported(nativeRate))
+            return nativeRate;
+        for (int rate : CAPTURE_RATES) {
+            if (isCaptureRateSupported(rate))
+                return rate;
         }
+        return RESAMPLE_RATE;
     }
 
-    private boolean nonCoherentOperation(short[] bufferPool, int freq0, int freq1) {
-        int i, j;
-        float f1CosValue[], f1SinValue[], f2CosValue[], f2SinValue[];
-
-        f1Value = new float[poolSamples];
-        f2Value = new float[poolSamples];
-
-        f1CosValue = new float[poolSamples];
-        f1SinValue = new float[poolSamples];
-        f2CosValue = new float[poolSamples];
-        f2SinValue = new float[poolSamples];
+    private static boolean isCaptureRateSupported(int rate) {
+        return AudioRecord.getMinBufferSize(rate, channelConfiguration, audioEncoding) > 0;
+    }
 
-        // AGC the peak to peak Value
-        boolean bUpTrend, bDownTrend;
-        int upTrendPeak, downTrendPeak;
+    /**
+     * Time from the last startRecording() to the first sample delivered by the recorder.
+     *
+     * @return <b>long</b> latency in ns, -1 if nothing has been recorded yet
+     */
+    public long getCaptureStartLatencyNs() {
+        if (captureHub == null)
+            return -1;
+        return captureHub.getCaptureEngine().getFirstSampleLatencyNs();
+    }
 
-        int startMark;
+    /**
+     * Keep the last seconds of mic input and dump them with the detector traces into the app files directory
+     * whenever a decode fails. Meant for field diagnosis, disabled by default.
+     *
+     * @param <b>int</b>  seconds of audio kept
+     * @param <b>long</b> maximum bytes used by the dumps on storage
+     */
+    public void enableFailureCapture(int seconds, long maxDiskBytes) {
+        File dir = new File(context.getFilesDir(), "breathocomlib-diag");
+        int rate = getDecodeSampleRate();
+        FailureCapture fc = new FailureCapture(dir, rate, seconds, rate / 40, maxDiskBytes, FailureCapture.defaultReasonMask());
 
-        bUpTrend = false;
-        bDownTrend = false;
-        upTrendPeak = 0;
-        downTrendPeak = 0;
+        disableFailureCapture();
+        failureCapture = fc;
+    }
 
-        startMark = 0;
+    /**
+     * Stop capturing failures. Dumps already written are kept.
+     */
+    public void disableFailureCapture() {
+        FailureCapture fc = failureCapture;
 
-        for (i = 1; i < poolSamples; i++) {
-            if (bufferPool[i] > bufferPool[i - 1]) {
-                bUpTrend = true;
-                if (bufferPool[i] > upTrendPeak)
-                    upTrendPeak = bufferPool[i];
-            } else if (bufferPool[i] < bufferPool[i - 1]) {
-                bDownTrend = true;
-                if (bufferPool[i] < downTrendPeak)
-                    downTrendPeak = bufferPool[i];
-            }
+        failureCapture = null;
+        if (fc != null)
+            fc.close();
+    }
 
-            // Check Zero-Crossing
-            if (bufferPool[i] * bufferPool[i - 1] < 0) {
-                if (bUpTrend)
-                    if (bDownTrend) {
-                        if ((upTrendPeak - downTrendPeak) > threshold) {
-                            // Perform AGC
-                            int peak;
-
-                            if (Math.abs(upTrendPeak) > Math.abs(downTrendPeak))
-                                peak = Math.abs(upTrendPeak);
-                            else
-                                peak = Math.abs(downTrendPeak);
-
-                            for (j = startMark; j <= i; j++)
-                                bufferPool[j] *= 32768 / peak;
-                        }
-                        startMark = i + 1;
-                        bUpTrend = false;
-                        bDownTrend = false;
-                        downTrendPeak = 0;
-                        upTrendPeak = 0;
-                    }
-            }
-        }
+    /**
+     * Get the failure capture, e.g. to read its counters or locate the dump directory.
+     *
+     * @return <b>FailureCapture</b> the active failure capture, null if disabled
+     */
+    public FailureCapture getFailureCapture() {
+        return failureCapture;
+    }
 
-        // process the non-coherent operation
-        float sampleT1 = 0;
-        float stepT1 = (float) ((2) * Math.PI * ((float) freq0 / (float) newRate));
-        float sampleT2 = 0;
-        float stepT2 = (float) ((2) * Math.PI * ((float) freq1 / (float) newRate));
+    /**
+     * Record every frame sent, every frame decoded and every rejected trigger into a session log in the app files
+     * directory, for support cases. Disabled by default.
+     *
+     * @param <b>long</b> maximum bytes used by the logs on storage, the oldest segments are deleted beyond it
+     * @throws IOException if the log cannot be created
+     */
+    public void enableSessionLog(long maxDiskBytes) throws IOException {
+        File dir = new File(context.getFilesDir(), "breathocomlib-log");
+        SessionLog log = new SessionLog(dir, SessionLog.DEFAULT_SEGMENT_BYTES, maxDiskBytes);
 
+        disableSessionLog();
+        sessionLog = log;
+    }
 
-        for (i = 0; i < (poolSamples - NONCOHERENT_SAMPLES + 1); i++) {
-            //sampleT = (float) ((2) * Math.PI * (float) i * ((float) freq0 / (float) newRate));
-            sampleT1 += stepT1;
-            f1CosValue[i] = (float) bufferPool[i] * (float) Math.cos(sampleT1);
-            f1SinValue[i] = (float) bufferPool[i] * (float) Math.sin(sampleT1);
+    /**
+     * Stop logging. The log files are kept, read them with SessionLog.Reader.
+     */
+    public void disableSessionLog() {
+        SessionLog log = sessionLog;
 
-            //sampleT = (float) ((2) * Math.PI * (float) i * ((float) freq1 / (float) newRate));
-            sampleT2 += stepT2;
-            f2CosValue[i] = (float) bufferPool[i] * (float) Math.cos(sampleT2);
-            f2SinValue[i] = (float) bufferPool[i] * (float) Math.sin(sampleT2);
-        }
+        sessionLog = null;
+        if (log != null)
+            log.close();
+    }
 
-        // summing all the values to get a non-coherent value
-        for (i = 0; i < (poolSamples - NONCOHERENT_SAMPLES + 1); i++) {
-            float f1SumCosValue, f1SumSinValue;
-            float f2SumCosValue, f2SumSinValue;
-
-            f1SumCosValue = 0;
-            f1SumSinValue = 0;
-            f2SumCosValue = 0;
-            f2SumSinValue = 0;
-
-            for (j = 0; j < NONCOHERENT_SAMPLES; j++) {
-                f1SumCosValue += f1CosValue[i + j];
-                f1SumSinValue += f1SinValue[i + j];
-                f2SumCosValue += f2CosValue[i + j];
-                f2SumSinValue += f2SinValue[i + j];
-            }
+    /**
+     * @return <b>SessionLog</b> the active session log, null if disabled
+     */
+    public SessionLog getSessionLog() {
+        return sessionLog;
+    }
 
-            f1SumCosValue /= NONCOHERENT_SAMPLES;
-            f1SumSinValue /= NONCOHERENT_SAMPLES;
-            f2SumCosValue /= NONCOHERENT_SAMPLES;
-            f2SumSinValue /= NONCOHERENT_SAMPLES;
+    /**
+     * Listen in low power: while no reply is heard the decoder sleeps and a cheap tone detector watches the mic, the
+     * decoder is woken up when the reply carrier appears (without losing the first frame) and whenever a command is
+     * sent. It sleeps again after the quiet period without any analysed pool.
+     *
+     * @param <b>long</b> time without signal before going back to low power, in ms
+     */
+    public void enableLowPowerListening(long quietMs) {
+        int rate = getDecodeSampleRate();
+        CarrierWatch watch = new CarrierWatch(rate, rate / 10);
+        watch.setThreshold(threshold);
+        watch.setQuietPeriod(quietMs);
+        carrierWatch = watch;
+    }
 
-            f1Value[i] = (float) Math.pow(f1SumCosValue, 2) + (float) Math.pow(f1SumSinValue, 2);
-            f2Value[i] = (float) Math.pow(f2SumCosValue, 2) + (float) Math.pow(f2SumSinValue, 2);
+    /**
+     * Decode every capture period at full rate again.
+     */
+    public void disableLowPowerListening() {
+        carrierWatch = null;
+    }
 
-            f1Value[i] = (float) Math.sqrt(f1Value[i]);
-            f2Value[i] = (float) Math.sqrt(f2Value[i]);
-        }
+    /**
+     * Get the carrier watch, e.g. to read the time spent in each mode.
+     *
+     * @return <b>CarrierWatch</b> the active watch, null if low-power listening is disabled
+     */
+    public CarrierWatch getCarrierWatch() {
+        return carrierWatch;
+    }
 
-        // low pass f1Value & f2Value
-        for (i = 0; i < poolSamples - 16; i++) {
-            for (j = 1; j < 16; j++) {
-                f1Value[i] = f1Value[i] + f1Value[i + j];
-                f2Value[i] = f2Value[i] + f2Value[i + j];
+    /**
+     * Learn the receive thresholds of this handset and accessory, then apply them and store them for
+     * loadCalibration(). The accessory must be plugged in and answer the given command. The mic is recorded for the
+     * duration even if startRecording() was not called. Needs the audio hardware, not available in loopback.
+     *
+     * @param <b>String</b> accessory the calibration is stored for, e.g. its serial number
+     * @param <b>int</b>    command the accessory answers
+     * @param <b>int</b>    number of replies to measure, up to ReceiveCalibrator.MAX_REPLIES
+     * @return <b>Future</b> the calibration, failing with an ExecutionException if the replies could not be measured
+     */
+    public Future<ReceiveCalibration> calibrate(final String accessoryId, final int command, final int replies) {
+        FutureTask<ReceiveCalibration> task = new FutureTask<ReceiveCalibration>(new Callable<ReceiveCalibration>() {
+            @Override
+            public ReceiveCalibration call() throws Exception {
+                return runCalibration(accessoryId, command, replies);
             }
-            f1Value[i] = (float) (f1Value[i] / 16);
-            f2Value[i] = (float) (f2Value[i] / 16);
-        }
+        });
 
-        // Decode signal and result is put in code variable
-        if (decodeSignal(54) == true)
-            return true;
+        Thread t = new Thread(task, "BreathoComLib-Calibrate");
+        t.start();
 
-        return false;
+        return task;
     }
 
-    private boolean decodeSignal(int bitIntervalSample) {
-        int diff[];
-        int i, j;
-        int startCnt;
-        int bit1Cnt, bit0Cnt;
+    private ReceiveCalibration runCalibration(String accessoryId, int command, int replies) throws Exception {
+        CaptureHub hub = getCaptureHub();
+        int rate = hub.getSampleRate();
+        int period = hub.getPeriodFrames();
+        ReceiveCalibrator calibrator = new ReceiveCalibrator(rate);
+        short[] window = new short[rate * CALIBRATION_REPLY_MS / 1000 + period];
 
-        // Decoding pre-operation
-        diff = new int[poolSamples * 2];
+        hub.requestCapture();
+        CaptureHub.Cursor cursor = hub.openCursor();
+        try {
+            // Background noise while nothing is sent
+            long noiseSamples = 0;
+            while (noiseSamples < (long) rate * CALIBRATION_NOISE_MS / 1000) {
+                SampleBlock block = nextCalibrationBlock(cursor);
+                calibrator.addNoise(block.getSamples(), 0, block.getLength());
+                noiseSamples += block.getLength();
+                block.release();
+            }
 
-        for (i = 0; i < poolSamples; i++) {
-            if ((f1Value[i] >= COHERENT_THRESHOLD) || (f2Value[i] >= COHERENT_THRESHOLD)) {
-                if (f1Value[i] > f2Value[i])
-                    diff[i] = 0;
-                else
-                    diff[i] = 1;
-            } else
-                diff[i] = 2;
+            for (int i = 0; i < replies * 2 && calibrator.getReplyCount() < replies; i++) {
+                TransmitResult tx = encodeAndSend(command).get(CALIBRATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+                // Reply window starts after our own echo, as the duplex gate sees it
+                long startNs = tx.getLastSampleTimeNs() + duplex.getGuardIntervalMs() * 1000000L;
+                int n = 0;
+                while (n + period <= window.length) {
+                    SampleBlock block = nextCalibrationBlock(cursor);
+                    long blockStartNs = block.getTimeNs() - (long) block.getLength() * 1000000000L / rate;
+                    if (blockStartNs >= startNs) {
+                        System.arraycopy(block.getSamples(), 0, window, n, block.getLength());
+                        n += block.getLength();
+                    }
+                    block.release();
+                }
+                calibrator.addReply(window, 0, n);
+            }
+        } finally {
+            cursor.close();
+            hub.releaseCapture();
         }
 
-        // 44 samples for 1ms
-        code = 0;
-        codeBit = 0x01;
+        ReceiveCalibration cal = calibrator.compute();
+        saveCalibration(accessoryId, cal);
+        applyCalibration(cal);
 
-        startCnt = 0;
-        do {
-            if (diff[startCnt] == 2)
-                startCnt++;
-        } while ((diff[startCnt] == 2) && (startCnt < poolSamples));
-
-        if (startCnt >= poolSamples)
-            return false;
-
-        for (i = 0; i < 15; i++) {
-            bit1Cnt = 0;
-            bit0Cnt = 0;
-
-            for (j = 0; j < bitIntervalSample; j++) {
-                if (diff[(i * bitIntervalSample) + j + startCnt] == 0)
-                    bit0Cnt++;
-                else if (diff[(i * bitIntervalSample) + j + startCnt] == 1)
-                    bit1Cnt++;
-            }
+        return cal;
+    }
 
-            if ((bit0Cnt > (bitIntervalSample / 2) || (bit1Cnt > (bitIntervalSample / 2)))) {
-                if (bit1Cnt > bit0Cnt)
-                    code = code | codeBit;
-            } else
-                return false;
+    private SampleBlock nextCalibrationBlock(CaptureHub.Cursor cursor) throws InterruptedException {
+        SampleBlock block = cursor.next(CALIBRATION_TIMEOUT_MS);
+        if (block == null)
+            throw new IllegalStateException("no audio captured");
+        return block;
+    }
 
-            codeBit = codeBit << 1;
+    /**
+     * Use the receive thresholds of a calibration, e.g. one kept by the app. They replace the device profile threshold.
+     *
+     * @param <b>ReceiveCalibration</b> calibration to apply
+     */
+    public synchronized void applyCalibration(ReceiveCalibration cal) {
+        receiveCalibration = cal;
+        setThreshold(cal.getTriggerThreshold());
+
+        SignalDecoder decoder = signalDecoder;
+        if (decoder != null) {
+            decoder.setCoherentThreshold(cal.getCoherentThreshold());
+            decoder.setAgcTarget(cal.getAgcTarget());
         }
+    }
 
-        // Header bit check
-        if ((code & 0x01) != 0x00)
-            return false;
-
-        if ((code & (0x01 << 14)) == 0x00)
-            return false;
-
-        code = code & ((0x01 << 14) ^ 0xFFFF);
-        code = code >> 1;
-
-        code = HammingDecode(code);
+    /**
+     * Apply the calibration stored by calibrate() for this handset model and the given accessory.
+     *
+     * @param <b>String</b> accessory the calibration was stored for
+     * @return <b>boolean</b> true if a stored calibration was found and applied
+     */
+    public boolean loadCalibration(String accessoryId) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String key = calibrationKey(accessoryId);
 
-        if (code == 0xFFFF)
+        if (!prefs.contains(key + "trigger"))
             return false;
 
+        applyCalibration(new ReceiveCalibration(prefs.getInt(key + "trigger", SignalDecoder.DEFAULT_THRESHOLD),
+                prefs.getInt(key + "coherent", SignalDecoder.COHERENT_THRESHOLD),
+                prefs.getInt(key + "agc", SignalDecoder.DEFAULT_AGC_TARGET),
+                prefs.getFloat(key + "noiseRms", 0), prefs.getInt(key + "noisePeak", 0), prefs.getInt(key + "replyPeak", 0),
+                prefs.getInt(key + "replies", 0), prefs.getLong(key + "time", 0)));
         return true;
     }
 
-    private int HammingDecode(int data) {
-        int i;
-        int dataTemp;
-        int newData;
-
-        newData = 0;
-
-        if (!CalMask(data, 0x5555))
-            return 0xFFFF;
-        if (!CalMask(data, 0x6666))
-            return 0xFFFF;
-        if (!CalMask(data, 0x7878))
-            return 0xFFFF;
-        if (!CalMask(data, 0x7F80))
-            return 0xFFFF;
-
-        // Shift and discard Hamming
-        int j = 0;
-        int Bit = 0x01;
-        for (i = 1; i <= 13; i++) {
-            if (i != Math.pow(2, j)) {
-                if ((data & 0x01) != 0x00) {
-                    newData = newData | Bit;
-                }
-
-                Bit = Bit << 1;
-            } else {
-                j++;
-            }
+    /**
+     * Get the calibration in use.
+     *
+     * @return <b>ReceiveCalibration</b> the applied calibration, null if none
+     */
+    public ReceiveCalibration getReceiveCalibration() {
+        return receiveCalibration;
+    }
 
-            data = data >> 1;
-        }
+    private void saveCalibration(String accessoryId, ReceiveCalibration cal) {
+        String key = calibrationKey(accessoryId);
 
-        return newData;
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(key + "trigger", cal.getTriggerThreshold())
+                .putInt(key + "coherent", cal.getCoherentThreshold())
+                .putInt(key + "agc", cal.getAgcTarget())
+                .putFloat(key + "noiseRms", cal.getNoiseRms())
+                .putInt(key + "noisePeak", cal.getNoisePeak())
+                .putInt(key + "replyPeak", cal.getReplyPeak())
+                .putInt(key + "replies", cal.getReplyCount())
+                .putLong(key + "time", cal.getTimeMs())
+                .commit();
     }
 
-    private boolean CalMask(int data, int Mask) {
-        int OddCnt = 0;
-        int dataTemp = data & Mask;
-        for (int i = 0; i < 13; i++) {
-            if ((dataTemp & 0x01) != 0x00)
-                OddCnt++;
-
-            dataTemp = dataTemp >> 1;
-        }
-        if ((OddCnt & 0x01) == 0x00)
-            return false;
-        return true;
+    private static String calibrationKey(String accessoryId) {
+        return "cal." + Build.MODEL + "." + accessoryId + ".";
     }
 
     /**
-     * Return the response status of the App.
+     * Tell the library which accessory is connected, e.g. after reading its serial. The reply bit rate learned by the
+     * decoder for the previous accessory is stored, and the one stored for this accessory is used from its first
+     * reply, so that units of other firmware or clock tolerance are not re-learned on every connection. The device state
+     * known from acknowledged commands is forgotten, so the next LED and sensor commands are all sent.
      *
-     * @return <b>boolean</b> true if there is response from the App
+     * @param <b>String</b> accessory now connected, null if none
      */
-    public boolean getResponseStatus() {
-        return bResponse;
+    public synchronized void setConnectedUnit(String accessoryId) {
+        if (commands != null)
+            commands.invalidateState();
+        storeUnitBitRate();
+        unitId = accessoryId;
+        unitBitRate = (accessoryId == null) ? 0
+                : context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getFloat(unitKey(accessoryId) + "bitRate", 0);
+
+        SignalDecoder decoder = signalDecoder;
+        if (decoder != null)
+            applyUnitBitRate(decoder);
     }
 
     /**
-     * Return the code information decoded from the mic input. bResponse will be automatically set to "false" after running fetchResponse().
+     * Get the bit period replies are decoded with.
      *
-     * @return <b>int</b> the decoded information from the mic input
+     * @return <b>int</b> samples per reply bit, learned from the connected unit or SignalDecoder.BIT_INTERVAL
      */
-    public int fetchResponse() {
-        bResponse = false;
-        return code;
+    public int getReplyBitInterval() {
+        SignalDecoder decoder = signalDecoder;
+        return (decoder != null) ? decoder.getBitInterval() : SignalDecoder.BIT_INTERVAL;
     }
 
-    private void setThreshold(int v) {
-        threshold = v;
+    // Start the decoder from the stored rate of the unit, or the nominal one; call with the lock held
+    private void applyUnitBitRate(SignalDecoder decoder) {
+        int period = (unitBitRate > 0) ? Math.round(decoder.getSampleRate() / unitBitRate) : decoder.getNominalBitInterval();
+        if (period < decoder.getMinBitInterval() || period > decoder.getMaxBitInterval())
+            period = decoder.getNominalBitInterval();
+        decoder.setBitInterval(period);
     }
 
-    private boolean checkThreshold(short[] tempBuf, int i) {
-        float avg = 0;
-
-        for (int x = 0; x < THRESHOLD_SAMPLES; x++)
-            avg += (float) Math.abs(tempBuf[i + x]);
+    // Keep the rate the decoder learned for the connected unit; call with the lock held
+    private void storeUnitBitRate() {
+        SignalDecoder decoder = signalDecoder;
+        if (unitId == null || decoder == null)
+            return;
 
-        avg /= THRESHOLD_SAMPLES;
+        float rate = (float) decoder.getSampleRate() / decoder.getBitInterval();
+        if (rate == unitBitRate)
+            return;
+        unitBitRate = rate;
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putFloat(unitKey(unitId) + "bitRate", rate)
+                .commit();
+    }
 
-        if (avg >= threshold)
-            return true;
-        else
-            return false;
+    private static String unitKey(String accessoryId) {
+        return "unit." + accessoryId + ".";
     }
 
-    private boolean checkStartLog(short[] tempBuf, int i, int j) {
-        int thresholdCnt = 0;
+    /**
+     * Measure the audio round trip of this handset with a LatencyProbe, then apply it and store it for
+     * loadLatencyCalibration(). The probe plays through the transmit path and is captured by the mic, so the
+     * accessory must be plugged in for its echo to come back, as for calibrate(). Each probe follows an idle output.
+     * Needs the audio hardware, not available in loopback.
+     *
+     * @param <b>int</b> number of probes, up to LatencyProbe.MAX_PROBES
+     * @return <b>Future</b> the calibration, failing with an ExecutionException if no probe was heard
+     */
+    public Future<LatencyCalibration> probeLatency(final int probes) {
+        FutureTask<LatencyCalibration> task = new FutureTask<LatencyCalibration>(new Callable<LatencyCalibration>() {
+            @Override
+            public LatencyCalibration call() throws Exception {
+                return runLatencyProbe(probes);
+            }
+        });
 
-        for (int x = 0; x < TOTALSAMPLES; x++) {
-            if ((tempBuf[(i * 10 + j + x)] > threshold) || (tempBuf[(i * 10 + j + x)] < -threshold))
-                thresholdCnt++;
-        }
+        Thread t = new Thread(task, "BreathoComLib-LatencyProbe");
+        t.start();
 
-        if (thresholdCnt >= (TOTALSAMPLES - (TOTALSAMPLES / 5)))
-            return true;
-        else
-            return false;
+        return task;
     }
 
-    private boolean checkEndLog(short[] tempBuf, int i, int j) {
-        for (int x = 0; x < 10; x++) {
-            if ((tempBuf[(i * 10 + j + x)] < threshold) || (tempBuf[(i * 10 + j + x)] < -threshold))
-                return true;
-        }
-
-        return false;
-    }
+    private LatencyCalibration runLatencyProbe(int probes) throws Exception {
+        CaptureHub hub = getCaptureHub();
+        int rate = hub.getSampleRate();
+        int period = hub.getPeriodFrames();
+        LatencyProbe probe = new LatencyProbe(rate);
+        short[] signal = probe.getSignal();
+        short[] window = new short[probe.getListenSamples() + period];
 
-    private void codeFilling() {
-        if (bCode0Log) {
-            // Code 0 consecutive count
-            if ((interceptCnt >= 12) && (interceptCnt <= 17)) {
-                codeBit++;
-            }
-        } else {
-            // Code 1 consecutive count
-            if ((interceptCnt >= 5) && (interceptCnt <= 11)) {
-                code += (1 << codeBit);
-                codeBit++;
+        hub.requestCapture();
+        CaptureHub.Cursor cursor = hub.openCursor();
+        try {
+            for (int i = 0; i < probes * 2 && probe.getProbeCount() < Math.min(probes, LatencyProbe.MAX_PROBES); i++) {
+                Thread.sleep(PROBE_IDLE_MS);
+                SampleBlock idle;
+                while ((idle = cursor.next(0)) != null)
+                    idle.release();
+
+                TransmitResult tx = getTransmitQueue().submitSamples(System.nanoTime(), signal, signal.length)
+                        .get(CALIBRATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (!tx.isComplete() || tx.getFirstSampleTimeNs() < 0)
+                    continue;
+
+                // Capture from the first played sample on, older blocks are from the idle time
+                long windowStartNs = -1;
+                int n = 0;
+                while (n + period <= window.length) {
+                    SampleBlock block = nextCalibrationBlock(cursor);
+                    long blockStartNs = block.getTimeNs() - (long) block.getLength() * 1000000000L / rate;
+                    if (block.getTimeNs() > tx.getFirstSampleTimeNs()) {
+                        if (windowStartNs < 0)
+                            windowStartNs = blockStartNs;
+                        System.arraycopy(block.getSamples(), 0, window, n, block.getLength());
+                        n += block.getLength();
+                    }
+                    block.release();
+                }
+                probe.addProbe(window, 0, n, windowStartNs, tx.getFirstSampleTimeNs());
             }
+        } finally {
+            cursor.close();
+            hub.releaseCapture();
         }
 
-        interceptCnt = 0;
+        LatencyCalibration cal = probe.compute();
+        saveLatencyCalibration(cal);
+        applyLatencyCalibration(cal);
+
+        return cal;
     }
 
-    private int startAnalyse(short[] logBuffer) {
-        boolean bPosPool;
-        boolean b0Series;
-        int lvCnt = 0;
+    /**
+     * Size the silence leader, the head window, the duplex guard and the link layer's shortest retransmit timeout
+     * from a latency calibration, e.g. one kept by the app.
+     *
+     * @param <b>LatencyCalibration</b> calibration to apply, null to go back to the default timings
+     */
+    public synchronized void applyLatencyCalibration(LatencyCalibration cal) {
+        latencyCalibration = cal;
+        if (cal == null) {
+            leaderMs = LatencyCalibration.DEFAULT_LEADER_MS;
+            headWindowNs = LatencyCalibration.DEFAULT_HEAD_WINDOW_MS * 1000000L;
+            duplex.setGuardIntervalMs(DuplexController.DEFAULT_GUARD_MS);
+            if (linkLayer != null)
+                linkLayer.setRtoBounds(LinkLayer.DEFAULT_MIN_RTO_MS, linkLayer.getMaxRtoMs());
+            return;
+        }
 
-        interceptCnt = 0;
-        code = 0;
-        codeBit = 0;
-        errorCnt = 0;
-        b0Series = false;
+        leaderMs = cal.getSilenceLeaderMs();
+        headWindowNs = cal.getHeadWindowMs() * 1000000L;
+        duplex.setGuardIntervalMs(cal.getGuardIntervalMs());
+        if (linkLayer != null)
+            applyMinRto(linkLayer, cal);
+    }
 
-        for (int i = 0; i < (poolSamples); i++) {
-            if (logBuffer[i] > 0)
-                logBuffer[i] = 1;
-            else if (logBuffer[i] < 0)
-                logBuffer[i] = -1;
-            else
-                logBuffer[i] = 0;
-        }
+    // The retransmit timer starts before the leader is played
+    private void applyMinRto(LinkLayer link, LatencyCalibration cal) {
+        long minMs = Math.max(LinkLayer.DEFAULT_MIN_RTO_MS, cal.getSilenceLeaderMs() + cal.getMinReplyTimeoutMs());
+        link.setRtoBounds(minMs, Math.max(minMs, link.getMaxRtoMs()));
+    }
 
-        if (logBuffer[0] == 1)
-            bPosPool = true;
-        else
-            bPosPool = false;
+    /**
+     * Apply the latency calibration stored by probeLatency() for this handset model.
+     *
+     * @return <b>boolean</b> true if a stored calibration was found and applied
+     */
+    public boolean loadLatencyCalibration() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String key = latencyKey();
 
-        for (int i = 1; i < (poolSamples); i++) {
-            if (codeBit >= 10) {
-                if ((code & 0x01) != 0)
-                    return 0;
+        if (!prefs.contains(key + "roundTrip"))
+            return false;
 
-                if (((code & 0x200)) == 0)
-                    return 0;
+        applyLatencyCalibration(new LatencyCalibration(prefs.getFloat(key + "roundTrip", 0), prefs.getFloat(key + "jitter", 0),
+                prefs.getFloat(key + "ramp", -1), prefs.getInt(key + "probes", 0), prefs.getLong(key + "time", 0)));
+        return true;
+    }
 
-                int code1 = code & 0x01E;
-                code1 = code1 >> 1;
+    /**
+     * Get the latency calibration in use.
+     *
+     * @return <b>LatencyCalibration</b> the applied calibration, null if the default timings are used
+     */
+    public LatencyCalibration getLatencyCalibration() {
+        return latencyCalibration;
+    }
 
-                int code2 = code & 0x1E0;
-                code2 = code2 >> 5;
-                code2 = code2 ^ 0x0F;
+    private void saveLatencyCalibration(LatencyCalibration cal) {
+        String key = latencyKey();
 
-                if (code1 != code2)
-                    return 0;
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putFloat(key + "roundTrip", cal.getRoundTripMs())
+                .putFloat(key + "jitter", cal.getJitterMs())
+                .putFloat(key + "ramp", cal.getRampMs())
+                .putInt(key + "probes", cal.getProbeCount())
+                .putLong(key + "time", cal.getTimeMs())
+                .commit();
+    }
 
-                // create message which will be send to handler
-                codeCnt++;
-        /*
-                Message msg = Message.obtain(uiHandler);
-                msg.obj = Integer.toString(code1);
-                uiHandler.sendMessage(msg);
-                */
+    private static String latencyKey() {
+        return "lat." + Build.MODEL + ".";
+    }
 
-                return i;
+    /**
+     * Get the hub owning the recording, e.g. to attach a level meter to the same mic input.
+     *
+     * @return <b>CaptureHub</b> the shared or private capture hub
+     */
+    public CaptureHub getCaptureHub() {
+        synchronized (this) {
+            if (captureHub == null) {
+                int rate = resolveCaptureRate();
+                captureHub = new CaptureHub(audioSource, rate, capturePeriodFrames, captureBufferFrames, CAPTURE_RING_BLOCKS);
+                if (spectrumAnalyzer != null)
+                    captureHub.addListener(spectrumAnalyzer);
             }
 
-            if (bPosPool) {
-                if ((logBuffer[i] == 1) || (logBuffer[i] == 0)) {
-                    lvCnt++;
+            if (signalDecoder == null) {
+                getDeviceProfile();
+
+                // The decoder is sized for the hub's period before the capture thread can touch it
+                int rate = captureHub.getSampleRate();
+                int frames = captureHub.getPeriodFrames();
+                if (bResampleCapture && rate != RESAMPLE_RATE) {
+                    Resampler rs = new Resampler(rate, RESAMPLE_RATE, frames);
+                    resampleBuffer = new short[rs.getMaxOutput(frames)];
+                    resampler = rs;
+                    rate = RESAMPLE_RATE;
+                    frames = resampleBuffer.length;
                 } else {
-                    checkLvCnt(lvCnt);
-                    bPosPool = false;
-                    lvCnt = 1;
+                    resampler = null;
                 }
-            } else {
-                if ((logBuffer[i] == -1) || (logBuffer[i] == 0)) {
-                    lvCnt++;
-                } else {
-                    checkLvCnt(lvCnt);
-                    bPosPool = true;
-                    lvCnt = 1;
+                signalDecoder = new SignalDecoder(rate, frames, decoderListener);
+                signalDecoder.setThreshold(threshold);
+                ReceiveCalibration cal = receiveCalibration;
+                if (cal != null) {
+                    signalDecoder.setCoherentThreshold(cal.getCoherentThreshold());
+                    signalDecoder.setAgcTarget(cal.getAgcTarget());
                 }
+                applyUnitBitRate(signalDecoder);
+                captureHub.addListener(captureListener);
             }
-        }
-
-        return 0;
-    }
 
-    private double getNonCoherentValue(short[] sample, int numSamples, int freq) {
-        float cosValue, sinValue;
-        float sumCosValue, sumSinValue;
-        float sampleT;
-        double finalValue;
-        int i;
-
-        sumCosValue = 0;
-        sumSinValue = 0;
-
-        for (i = 0; i < numSamples; i++) {
-            sampleT = (float) ((2) * Math.PI * (float) i * ((float) freq / (float) newRate));
-            cosValue = (float) sample[i] * (float) Math.cos(sampleT);
-            sinValue = (float) sample[i] * (float) Math.sin(sampleT);
-
-            sumCosValue += cosValue;
-            sumSinValue += sinValue;
+            return captureHub;
         }
-
-        sumCosValue = sumCosValue / numSamples;
-        sumSinValue = sumSinValue / numSamples;
-
-        sumCosValue = (float) Math.pow(sumCosValue, 2);
-        sumSinValue = (float) Math.pow(sumSinValue, 2);
-
-        finalValue = sumCosValue + sumSinValue;
-        finalValue = Math.sqrt(finalValue);
-        return finalValue;
     }
 
-    private void checkLvCnt(int Cnt) {
-        if ((Cnt >= 6) && (Cnt <= 13)) {
-            if (bCode0Log) {
-                errorCnt = 0;
-                interceptCnt++;
-                if (interceptCnt >= 14) {
-                    codeFilling();
-                    interceptCnt = 0;
+    /**
+     * Release the recorder and the player. The library can be used again afterwards, audio resources are then re-created.
+     * A shared CaptureHub is not released, the library only detaches from it.
+     */
+    public void release() {
+        bRecord = false;
+        synchronized (this) {
+            withdrawCapture();
+            if (captureHub != null) {
+                captureHub.removeListener(captureListener);
+                if (spectrumAnalyzer != null) {
+                    captureHub.removeListener(spectrumAnalyzer);
+                    spectrumAnalyzer = null;
                 }
-            } else {
-                if (++errorCnt > 2) {
-                    codeFilling();
-                    bCode0Log = true;
-                    interceptCnt = errorCnt + 1;
-                    errorCnt = 0;
+                if (!bSharedHub) {
+                    captureHub.release();
+                    captureHub = null;
                 }
             }
+            storeUnitBitRate();
+            signalDecoder = null;
+            resampler = null;
         }
 
-        if ((Cnt >= 14) && (Cnt <= 20)) {
-            if (!bCode0Log) {
-                errorCnt = 0;
-                interceptCnt++;
-                if (interceptCnt >= 8) {
-                    codeFilling();
-                    interceptCnt = 0;
-                }
-            } else {
-                if (++errorCnt > 2) {
-                    codeFilling();
-                    bCode0Log = false;
-                    interceptCnt = errorCnt + 1;
-                    errorCnt = 0;
+        TransmitQueue tq;
+        synchronized (this) {
+            tq = transmitQueue;
+            transmitQueue = null;
+        }
+        if (tq != null) {
+            tq.cancelQueued();
+            tq.runOnOwner(releasePlayer);
+        } else {
+            releasePlayer.run();
+        }
+
+        synchronized (headLock) {
+            cancelHeadTimer();
+            bHead = false;
+        }
+        // Closed outside the lock, the scheduler thread may need it to finish its current task
+        LinkLayer link;
+        BreathometerCommands cmds;
+        synchronized (this) {
+            link = linkLayer;
+            linkLayer = null;
+            cmds = commands;
+            commands = null;
+        }
+        if (cmds != null) {
+            cmds.invalidateState();
+            cmds.close();
+        }
+        if (link != null)
+            link.close();
+
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdown();
+                scheduler = null;
+            }
+        }
+    }
+
+    private final Runnable releasePlayer = new Runnable() {
+        @Override
+        public void run() {
+            stopBuffer();
+            if (audioTrack != null) {
+                audioTrack.release();
+                audioTrack = null;
+            }
+            newDataSize = 0;
+        }
+    };
+
+    /**
+     * Get the scheduler running the transmit timers, e.g. to read its jitter metrics.
+     *
+     * @return <b>AudioScheduler</b> the library's scheduler
+     */
+    public synchronized AudioScheduler getScheduler() {
+        if (scheduler == null)
+            scheduler = new AudioScheduler("BreathoComLib-Scheduler");
+        return scheduler;
+    }
+
+    /**
+     * Enable decode process
+     */
+    public void enableDecode() {
+        bDecode = true;
+    }
+
+    /**
+     * Disable decode process
+     */
+    public void disableDecode() {
+        bDecode = false;
+    }
+
+    private final CaptureEngine.Listener captureListener = new CaptureEngine.Listener() {
+        @Override
+        public void onCaptureStart() {
+            SignalDecoder decoder = signalDecoder;
+            if (decoder != null)
+                decoder.reset();
+            Resampler rs = resampler;
+            if (rs != null)
+                rs.reset();
+        }
+
+        @Override
+        public void onCapture(short[] capture, int captureLength) {
+            // Everything after the resampler runs at the decoder rate, the duplex gate at the capture rate
+            SignalDecoder decoder = signalDecoder;
+            Resampler rs = resampler;
+            short[] buffer = capture;
+            int bufferReadSize = captureLength;
+            if (decoder != null && rs != null) {
+                bufferReadSize = rs.process(capture, 0, captureLength, resampleBuffer);
+                buffer = resampleBuffer;
+            }
+
+            FailureCapture fc = failureCapture;
+            if (fc != null)
+                fc.write(buffer, bufferReadSize);
+
+            if (!bDecode || decoder == null)
+                return;
+
+            captureTimeNs = System.nanoTime();
+
+            // Our own command is playing, only watch for the carrier of its echo
+            int gate = duplex.admit(capture, captureLength, captureTimeNs);
+            if (gate == DuplexController.GATE_CLOSED)
+                return;
+            if (gate == DuplexController.GATE_REOPENED)
+                decoder.reset();
+
+            // Low power: the decoder only runs once the carrier watch hears the reply tones
+            CarrierWatch watch = carrierWatch;
+            if (watch != null) {
+                if (decoder.isCollecting())
+                    watch.onActivity(captureTimeNs);
+                int action = watch.admit(buffer, bufferReadSize, captureTimeNs);
+                if (action == CarrierWatch.SKIP)
+                    return;
+                if (action == CarrierWatch.WAKE) {
+                    decoder.reset();
+                    decoder.process(watch.getHistory(), 0, watch.getHistoryLength());
                 }
             }
+
+            decoder.process(buffer, 0, bufferReadSize);
         }
+    };
+
+    private final SignalDecoder.Listener decoderListener = new SignalDecoder.Listener() {
+        @Override
+        public void onAnalysis(SignalDecoder decoder, boolean bDecoded) {
+            CarrierWatch watch = carrierWatch;
+            if (watch != null)
+                watch.onActivity(captureTimeNs);
+
+            if (bDecoded) {
+                int code = frameDispatcher.publish(decoder.getCode(), captureTimeNs, decoder.getTriggerSample()).getCode();
+
+                if (FrameTracer.bEnabled)
+                    FrameTracer.instant(FrameTracer.DELIVER, code);
+
+                // While streaming the frames are sensor samples, not replies to link commands
+                TelemetryStream ts = telemetry;
+                if (ts != null) {
+                    ts.add(captureTimeNs, code);
+                } else {
+                    PhyPort.Receiver r = phyReceiver;
+                    if (r != null)
+                        r.onFrame(code);
+                }
+            }
+
+            SessionLog log = sessionLog;
+            if (log != null) {
+                if (bDecoded)
+                    log.logReceive(decoder.getCode(), decoder.getDecodedPlan(), decoder.getTriggerSample(), captureTimeNs);
+                else
+                    log.logReject(decoder.getDecodeError(), decoder.getTriggerSample(), captureTimeNs);
+            }
+            reportDecodeOutcome(decoder);
+        }
+    };
+
+    private void reportDecodeOutcome(SignalDecoder decoder) {
+        FailureCapture fc = failureCapture;
+        if (fc == null)
+            return;
+
+        if (decoder.getDecodeError() != 0)
+            fc.onDecodeFailure(decoder.getDecodeError(), decoder.getF1Envelope(), decoder.getF2Envelope(), decoder.getDecisions(), decoder.getPoolSamples());
+        else if (decoder.getWeakestBitCount() < (decoder.getBitInterval() * 2 / 3))
+            fc.onDecodeFailure(FailureCapture.REASON_SUSPICIOUS, decoder.getF1Envelope(), decoder.getF2Envelope(), decoder.getDecisions(), decoder.getPoolSamples());
+    }
+
+    /**
+     * Start streaming: every decoded frame is stored as a sensor sample in a new TelemetryStream, stamped with the
+     * time of the capture period it was decoded in, until stopTelemetry(). Frames are not given to the link layer
+     * meanwhile, so link commands cannot be answered; start the device stream with encodeAndSend() or before.
+     * Recording and decoding must be enabled.
+     *
+     * @param <b>int</b> samples kept by the stream, after downsampling
+     * @return <b>TelemetryStream</b> the stream, to read from and to set downsampling on
+     */
+    public TelemetryStream startTelemetry(int capacity) {
+        TelemetryStream ts = new TelemetryStream(capacity);
+        telemetry = ts;
+        return ts;
+    }
+
+    /**
+     * Stop streaming, decoded frames go to the link layer again. The stream keeps its samples.
+     */
+    public void stopTelemetry() {
+        telemetry = null;
+    }
+
+    /**
+     * @return <b>TelemetryStream</b> the stream while streaming, null otherwise
+     */
+    public TelemetryStream getTelemetryStream() {
+        return telemetry;
+    }
+
+    /**
+     * Attach a SpectrumAnalyzer to the mic input, e.g. behind a debug overlay showing the tones actually received.
+     * It runs while recording, see startRecording(), and replaces an analyser attached before.
+     *
+     * @param <b>int</b> FFT size, a power of two, e.g. SpectrumAnalyzer.DEFAULT_FFT_SIZE
+     * @return <b>SpectrumAnalyzer</b> the analyser, to read spectra and tone SNR from
+     */
+    public SpectrumAnalyzer startSpectrumAnalyzer(int fftSize) {
+        CaptureHub hub = getCaptureHub();
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(hub.getSampleRate(), fftSize);
+        synchronized (this) {
+            if (spectrumAnalyzer != null)
+                hub.removeListener(spectrumAnalyzer);
+            spectrumAnalyzer = analyzer;
+            hub.addListener(analyzer);
+        }
+        return analyzer;
+    }
+
+    /**
+     * Detach the spectrum analyser. It keeps its last results.
+     */
+    public synchronized void stopSpectrumAnalyzer() {
+        if (spectrumAnalyzer != null) {
+            if (captureHub != null)
+                captureHub.removeListener(spectrumAnalyzer);
+            spectrumAnalyzer = null;
+        }
+    }
+
+    /**
+     * @return <b>SpectrumAnalyzer</b> the attached analyser, null if none
+     */
+    public synchronized SpectrumAnalyzer getSpectrumAnalyzer() {
+        return spectrumAnalyzer;
+    }
+
+    /**
+     * Return the response status of the App.
+     *
+     * @return <b>boolean</b> true if there is response from the App
+     */
+    public boolean getResponseStatus() {
+        return frameDispatcher.hasUnfetched();
+    }
+
+    /**
+     * Return the code information decoded from the mic input. getResponseStatus() returns false after fetchResponse()
+     * until the next frame is decoded. Threads that must see every frame should use openReceiveSession() instead.
+     *
+     * @return <b>int</b> the decoded information from the mic input
+     */
+    public int fetchResponse() {
+        // Taken atomically, of two racing callers only one sees the new frame as unfetched
+        DecodedFrame f = frameDispatcher.fetch();
+        if (f == null)
+            f = frameDispatcher.getLatest();
+        int c = (f == null) ? 0 : f.getCode();
+        if (FrameTracer.bEnabled)
+            FrameTracer.instant(FrameTracer.APP_FETCH, c);
+        return c;
+    }
+
+    /**
+     * Open a queue of the frames decoded from now on, for one consumer thread. Each session gets every frame, in
+     * order, as an immutable DecodedFrame; several threads can each have their own.
+     *
+     * @param <b>int</b> frames kept for the consumer, the oldest are dropped beyond it
+     * @return <b>FrameDispatcher.Session</b> the session, to be closed when done
+     */
+    public FrameDispatcher.Session openReceiveSession(int capacity) {
+        return frameDispatcher.openSession(capacity);
+    }
+
+    private void setThreshold(int v) {
+        threshold = v;
+        duplex.setCarrierThreshold(v);
+        CarrierWatch watch = carrierWatch;
+        if (watch != null)
+            watch.setThreshold(v);
+        if (signalDecoder != null)
+            signalDecoder.setThreshold(v);
     }
 
     // =====================================================================================
@@ -815,143 +1313,497 @@ public class BreathoComLib {
 
     /**
      * Encode the parameter data and send to Breathometer through audio output.
+     * Returns at once, the returned future completes when the last sample has been played.
      *
      * @param <b>int</b> 1byte data to be transferred.
+     * @return <b>Future</b> the transmit timing, see TransmitResult
      */
-    public void encodeAndSend(int data) {
-        int i;
-        int newData = 0;
-        int counter = 1;
-        int bitMask[] = {0x555, 0x666, 0x878, 0xF80};
-        int test;
-
-        /*
-        // Bit Stuffing
-        for (i=0; i<4 ; i++)
-        {
-        	test = (int) Math.pow(2, i);
-            while (test != counter)
-            {
-                // shift data to newData
-                if ((data & 0x01) == 0x01)
-                    newData |= 0x01 << (counter-1);
-
-                data >>= 1;
-                counter++;
-            }
-            
-            counter++;
-        }
-        
-        while (counter < 13)
-        {
-        	 // shift data to newData
-            if ((data & 0x01) == 0x01)
-                newData |= 0x01 << (counter-1);
-            data >>= 1;
-            counter++;            
+    public Future<TransmitResult> encodeAndSend(int data) {
+        return encodeAndSend(data, TransmitQueue.PRIORITY_NORMAL, false);
+    }
+
+    /**
+     * Encode the parameter data and send to Breathometer through audio output, queued behind the transmissions of a
+     * higher or the same priority. Nothing playing is cut short, a command sent meanwhile follows it.
+     * Cancel the returned future to take the command out of the queue; once handed to the player it plays to its end
+     * and cancel() returns false.
+     *
+     * @param <b>int</b>     1byte data to be transferred.
+     * @param <b>int</b>     one of TransmitQueue.PRIORITY_*
+     * @param <b>boolean</b> true to share the future of the same command still waiting instead of sending it twice
+     * @return <b>Future</b> the transmit timing, see TransmitResult; failing at once if the queue is full
+     */
+    public Future<TransmitResult> encodeAndSend(int data, int priority, boolean bDedup) {
+        long enqueueNs = System.nanoTime();
+        return getTransmitQueue().submit(enqueueNs, new int[]{data}, 1, 8, priority, bDedup);
+    }
+
+    /**
+     * Send a multi-byte payload in one transmission, one 8-bit frame per byte, protected by the error correction of
+     * the device profile (none by default). The accessory decodes it with the same FecCodec settings.
+     *
+     * @param <b>byte[]</b> payload, up to getPayloadCodec().getMaxPayload() bytes
+     * @return <b>Future</b> the transmit timing, see TransmitResult
+     */
+    public Future<TransmitResult> sendPayload(byte[] data) {
+        long enqueueNs = System.nanoTime();
+        int[] frames = getPayloadCodec().encode(data, 0, data.length);
+        return transmitCodes(enqueueNs, frames, frames.length, 8);
+    }
+
+    /**
+     * Get the codec of sendPayload(), following the device profile. Its encode() may be used from any thread; decode
+     * replies with a codec of your own from DeviceProfile.createFecCodec().
+     *
+     * @return <b>FecCodec</b> the payload codec of the profile in use
+     */
+    public synchronized FecCodec getPayloadCodec() {
+        if (payloadCodec == null)
+            payloadCodec = getDeviceProfile().createFecCodec();
+        return payloadCodec;
+    }
+
+    private Future<TransmitResult> transmitCodes(long enqueueNs, int[] codes, int count, int nBit) {
+        return getTransmitQueue().submit(enqueueNs, codes, count, nBit);
+    }
+
+    /**
+     * Get the queue of transmissions, e.g. to read its depth and wait time.
+     *
+     * @return <b>TransmitQueue</b> the library's transmit queue, created on first use
+     */
+    public synchronized TransmitQueue getTransmitQueue() {
+        if (transmitQueue == null)
+            transmitQueue = new TransmitQueue(getScheduler(), transmitSink);
+        return transmitQueue;
+    }
+
+    // Runs on the scheduler thread, the only one touching the encoder and the player
+    private final TransmitQueue.Sink transmitSink = new TransmitQueue.Sink() {
+        @Override
+        public void transmit(TransmitQueue.Request[] batch, int count, boolean bContinued) {
+            startTransmit(batch, count, bContinued);
         }
+    };
 
-        // Check Parity
-        for (i=0; i<4; i++)
-        {
-        	test = newData & bitMask[i];
-            if (checkOddParity(test) == false)
-                newData = newData | (0x01 << ((int)Math.pow(2, i) - 1));
+    // The requests of a batch are played back to back from one static buffer; ends[] holds where each one stops
+    private void startTransmit(TransmitQueue.Request[] batch, int count, boolean bContinued) {
+        if (FrameTracer.bEnabled) {
+            int frames = 0;
+            for (int r = 0; r < count; r++)
+                frames += batch[r].getFrameCount();
+            FrameTracer.begin(FrameTracer.TX_BUILD, frames);
         }
-        */
 
         stopBuffer();
         initBuffer();
-        if (!bHead) {
-            addSilenceDelay(context, 80);
-            headHandler.removeCallbacks(headTimer);
-            headHandler.postDelayed(headTimer, 100);
-        } else {
-            headHandler.removeCallbacks(headTimer);
-            headHandler.postDelayed(headTimer, 100);
+        if (batch[0].getSamples() == null) {
+            // Played as it is, a samples request gets no leader and leaves the head window alone. A batch that
+            // follows the previous one at once needs no leader either, the output path is still up.
+            synchronized (headLock) {
+                if (!bHead && !bContinued)
+                    soundEncoder.addSilence(leaderMs);
+                armHeadTimer();
+            }
         }
 
-        Code2Wav(context, data, 8);
+        SessionLog log = sessionLog;
+        int[] ends = new int[count];
+        for (int r = 0; r < count; r++) {
+            TransmitQueue.Request request = batch[r];
+            if (request.getSamples() != null) {
+                soundEncoder.addSamples(request.getSamples());
+            } else {
+                for (int i = 0; i < request.getFrameCount(); i++)
+                    Code2Wav(request.getFrame(i), request.getBits());
+                if (log != null) {
+                    for (int i = 0; i < request.getFrameCount(); i++)
+                        log.logTransmit(request.getFrame(i), request.getBits(), request.getEnqueueTimeNs());
+                }
+            }
+            ends[r] = soundEncoder.getLength();
+        }
+        newWavBuffer = soundEncoder.getBuffer();
+        newDataSize = soundEncoder.getLength() * 2;
 
         setplayRate(44100);
-        playBuffer();
+
+        if (FrameTracer.bEnabled)
+            FrameTracer.end(FrameTracer.TX_BUILD);
+
+        // A reply is coming, have the decoder awake for its first frame
+        CarrierWatch watch = carrierWatch;
+        if (watch != null)
+            watch.wake();
+
+        LoopbackTransport lb = loopback;
+        if (lb != null) {
+            // Synchronous, the replies have been delivered when transmit() returns
+            long startNs = System.nanoTime();
+            lb.transmit(newWavBuffer, newDataSize / 2);
+            long endNs = System.nanoTime();
+            for (int r = 0; r < count; r++) {
+                finishTransmit(batch[r], new TransmitResult(batch[r].getEnqueueTimeNs(), startNs, endNs, newDataSize / 2,
+                        newRate, true), r == count - 1);
+            }
+            return;
+        }
+
+        duplex.beginTransmit();
+        try {
+            playBuffer();
+        } catch (RuntimeException e) {
+            // Nothing plays, reopen the decoder; the queue fails the requests with the exception
+            bPlaying = false;
+            duplex.endTransmit(System.nanoTime());
+            throw e;
+        }
         //playBufferStaticLoop(1);
+
+        TransmitMonitor monitor = new TransmitMonitor(audioTrack, batch, count, ends, newRate);
+        transmitMonitor = monitor;
+        monitor.start();
     }
 
-    private Runnable headTimer = new Runnable() {
-        public void run() {
-            if (!bHead) {
-                bHead = true;
-                headHandler.removeCallbacks(headTimer);
-                headHandler.postDelayed(headTimer, 100);
-            } else {
-                bHead = false;
-                headHandler.removeCallbacks(headTimer);
-            }
+    /**
+     * Get the half-duplex gate keeping our own transmissions out of the decoder, e.g. to set its guard interval or
+     * read its counters.
+     *
+     * @return <b>DuplexController</b> the library's duplex controller
+     */
+    public DuplexController getDuplexController() {
+        return duplex;
+    }
+
+    /**
+     * Set the receiver of transmit completions, e.g. to open the receive window. Pass null to remove it.
+     *
+     * @param <b>TransmitListener</b> listener called on the scheduler thread
+     */
+    public void setTransmitListener(TransmitListener listener) {
+        transmitListener = listener;
+    }
+
+    /**
+     * Get the timing of the last finished transmit.
+     *
+     * @return <b>TransmitResult</b> the last result, null if nothing has been sent
+     */
+    public TransmitResult getLastTransmitResult() {
+        return lastTransmitResult;
+    }
+
+    // bLast: the output goes idle after this request
+    private void finishTransmit(TransmitQueue.Request request, TransmitResult result, boolean bLast) {
+        if (bLast) {
+            bPlaying = false;
+            duplex.endTransmit(result.getLastSampleTimeNs());
+        }
+        if (!request.queue.finish(request, result))
+            return;
+
+        lastTransmitResult = result;
+
+        if (FrameTracer.bEnabled && result.getFirstSampleTimeNs() >= 0) {
+            FrameTracer.instantAt(FrameTracer.TX_START, result.getFirstSampleTimeNs(), result.getFrames());
+            FrameTracer.instantAt(FrameTracer.TX_END, result.getLastSampleTimeNs(), result.getFrames());
         }
-    };
 
-    private boolean checkOddParity(int d) {
-        int counter = 12;
-        int parityCnt = 0;
+        TransmitListener l = transmitListener;
+        if (l != null)
+            l.onTransmitComplete(result);
 
-        while (counter != 0) {
-            if ((d & 0x01) != 0x00)
-                parityCnt++;
-            d >>= 1;
+        PhyPort.Receiver r = phyReceiver;
+        if (r != null)
+            r.onTransmitDone();
+    }
 
-            counter--;
+    /**
+     * Get the physical layer of the library, e.g. to run a LinkLayer other than getLinkLayer() over it.
+     *
+     * @return <b>PhyPort</b> commands out through the speaker or loopback, decoded replies in
+     */
+    public PhyPort getPhyPort() {
+        return phyPort;
+    }
+
+    private final PhyPort phyPort = new PhyPort() {
+        @Override
+        public void setReceiver(Receiver receiver) {
+            phyReceiver = receiver;
         }
 
-        if ((parityCnt & 0x01) == 0x00)
-            return false;
-        else
-            return true;
+        @Override
+        public void transmit(int[] frames, int count, int nBit) {
+            transmitCodes(System.nanoTime(), frames, count, nBit);
+        }
+    };
+
+    /**
+     * Get the reliable link over the audio jack: sequence numbers, acknowledgements and retransmission.
+     * Needs accessory firmware answering link commands, see LinkLayer.
+     *
+     * @return <b>LinkLayer</b> the library's link layer, created on first use with the largest window
+     */
+    public synchronized LinkLayer getLinkLayer() {
+        if (linkLayer == null) {
+            linkLayer = new LinkLayer(phyPort, getScheduler(), LinkLayer.MAX_WINDOW);
+            LatencyCalibration cal = latencyCalibration;
+            if (cal != null)
+                applyMinRto(linkLayer, cal);
+        }
+        return linkLayer;
     }
 
-    private void initBuffer() {
-        //myHandler = new Handler();
-        newDataSize = 0;
-        newWavBuffer.allocate(0);
+    /**
+     * Get the typed Breathometer commands, sent over getLinkLayer().
+     *
+     * @return <b>BreathometerCommands</b> the library's command queue
+     */
+    public synchronized BreathometerCommands getCommands() {
+        if (commands == null)
+            commands = new BreathometerCommands(getLinkLayer(), getScheduler());
+        return commands;
     }
 
-    private void addWavResource(InputStream stream) {
-        ByteBuffer tempBuffer;
+    /**
+     * Follows one static track from play() to its last frame on the scheduler thread, finishing each request of the
+     * batch as the head passes its end. The marker callback only wakes it up, the head position decides.
+     */
+    private final class TransmitMonitor implements Runnable, OnPlaybackPositionUpdateListener {
+        private final AudioTrack track;
+        private final TransmitQueue.Request[] batch;
+        private final int count;
+        private final int[] ends;
+        private final int frames;
+        private final int rate;
+        private final AudioScheduler sched;
+
+        private long firstSampleNs = -1;
+        private int lastPosition;
+        private long lastMoveNs;
+        private int next;               // first request not finished
+        private boolean bDone;
+        private Future<?> pendingPoll;
+
+        TransmitMonitor(AudioTrack track, TransmitQueue.Request[] batch, int count, int[] ends, int rate) {
+            this.track = track;
+            this.batch = batch;
+            this.count = count;
+            this.ends = ends;
+            this.rate = rate;
+            frames = ends[count - 1];
+            sched = getScheduler();
+        }
 
-        inputStream = stream;
+        void start() {
+            track.setNotificationMarkerPosition(frames);
+            track.setPlaybackPositionUpdateListener(this);
 
-        try {
-            verifyHeader(stream);
-        } catch (IOException e) {
-            //Log.e("Error", "vertifyHeader Error!");
+            synchronized (this) {
+                lastMoveNs = System.nanoTime();
+                pendingPoll = sched.scheduleAtNs(this, lastMoveNs + PLAY_POLL_NS);
+            }
         }
 
-        tempBuffer = ByteBuffer.allocate(0);
+        synchronized boolean isDone() {
+            return bDone;
+        }
+
+        void cancel() {
+            int from, to;
+
+            synchronized (this) {
+                if (bDone)
+                    return;
+                bDone = true;
+                from = next;
+                to = count;
+                next = count;
+                if (pendingPoll != null)
+                    pendingPoll.cancel(false);
+            }
 
-        // Prepare old Buffer
-        if (newDataSize != 0) {
-            tempBuffer = ByteBuffer.allocate(newWavBuffer.capacity());
-            tempBuffer = newWavBuffer.duplicate();
+            // Stopped before the end, finishTransmit() has not run for these
+            bPlaying = false;
+            duplex.endTransmit(System.nanoTime());
+            for (int r = from; r < to; r++)
+                batch[r].queue.abort(batch[r]);
+
+            PhyPort.Receiver receiver = phyReceiver;
+            if (receiver != null)
+                receiver.onTransmitDone();
         }
 
-        newDataSize += dataSize;
+        @Override
+        public void onMarkerReached(AudioTrack t) {
+            sched.execute(this);
+        }
 
-        newWavBuffer = ByteBuffer.allocate(newDataSize);
-        newWavBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        @Override
+        public void onPeriodicNotification(AudioTrack t) {
+            // nothing to do
+        }
 
-        if ((newDataSize - dataSize) != 0)
-            newWavBuffer.put(tempBuffer.array(), 0, tempBuffer.capacity());
+        @Override
+        public synchronized void run() {
+            if (bDone)
+                return;
+
+            int position;
+            try {
+                position = track.getPlaybackHeadPosition();
+            } catch (IllegalStateException e) {
+                finishRest(System.nanoTime(), false);
+                return;
+            }
+            long now = System.nanoTime();
 
-        try {
-            //stream.skip(44);
-            //stream.read(newWavBuffer.array(), 0, dataSize);
-            stream.read(newWavBuffer.array(), newDataSize - dataSize, dataSize);
-        } catch (IOException e) {
-            //Log.e("Error", "Stream Reading Error");
+            if (position != lastPosition) {
+                lastPosition = position;
+                lastMoveNs = now;
+            }
+
+            // Back-date by the frames already played, so the poll interval does not add to the times
+            if (firstSampleNs < 0 && position > 0)
+                firstSampleNs = now - framesToNs(position);
+
+            while (next < count && position >= ends[next]) {
+                finishOne(now - framesToNs(position - ends[next]), true);
+                if (bDone)
+                    return;
+            }
+            if (now - lastMoveNs > PLAY_STALL_NS) {
+                finishRest(now, false);
+                return;
+            }
+
+            // Sleep through most of the current request once playing, then poll up to its end
+            long nextNs = now + PLAY_POLL_NS;
+            if (firstSampleNs >= 0) {
+                long endNs = firstSampleNs + framesToNs(ends[next]) - PLAY_POLL_NS;
+                if (endNs > nextNs)
+                    nextNs = endNs;
+            }
+            pendingPoll = sched.scheduleAtNs(this, nextNs);
+        }
+
+        private void finishRest(long lastSampleNs, boolean bComplete) {
+            while (!bDone)
+                finishOne(lastSampleNs, bComplete);
+        }
+
+        private void finishOne(long lastSampleNs, boolean bComplete) {
+            int r = next++;
+            int start = (r == 0) ? 0 : ends[r - 1];
+            long firstNs = (firstSampleNs < 0) ? -1 : firstSampleNs + framesToNs(start);
+            boolean bLast = next == count;
+            if (bLast) {
+                bDone = true;
+                pendingPoll = null;
+            }
+            TransmitQueue.Request request = batch[r];
+            finishTransmit(request, new TransmitResult(request.getEnqueueTimeNs(), firstNs, lastSampleNs, ends[r] - start,
+                    rate, bComplete), bLast);
+        }
+
+        private long framesToNs(int n) {
+            return n * 1000000000L / rate;
         }
     }
 
+    /**
+     * Route every encodeAndSend() into a loopback transport instead of the speaker, and its replies into the decoder
+     * instead of the mic. Recording is stopped while loopback is active. Pass null to return to audio hardware.
+     *
+     * @param <b>LoopbackTransport</b> transport created with getLoopbackReceiver() as its receiver, or null
+     */
+    public void setLoopback(LoopbackTransport transport) {
+        if (transport != null) {
+            stopRecording();
+            getCaptureHub();
+        }
+        loopback = transport;
+    }
+
+    /**
+     * Receive path to pass to a LoopbackTransport, i.e. the same listener the mic capture feeds.
+     *
+     * @return <b>CaptureEngine.Listener</b> the decoder input
+     */
+    public CaptureEngine.Listener getLoopbackReceiver() {
+        return captureListener;
+    }
+
+    // Called with headLock held
+    private void armHeadTimer() {
+        cancelHeadTimer();
+
+        long deadlineNs = System.nanoTime() + headWindowNs;
+        headFuture = getScheduler().scheduleAtNs(new HeadTimer(headGeneration, deadlineNs), deadlineNs);
+    }
+
+    // Called with headLock held
+    private void cancelHeadTimer() {
+        // A timer already running when cancelled sees the new generation and does nothing
+        headGeneration++;
+        if (headFuture != null) {
+            headFuture.cancel(false);
+            headFuture = null;
+        }
+    }
+
+    /**
+     * Opens the head window one period after the last command and closes it one period later.
+     */
+    private final class HeadTimer implements Runnable {
+        private final int generation;
+        private long deadlineNs;
+
+        HeadTimer(int generation, long deadlineNs) {
+            this.generation = generation;
+            this.deadlineNs = deadlineNs;
+        }
+
+        @Override
+        public void run() {
+            synchronized (headLock) {
+                if (generation != headGeneration)
+                    return;
+
+                if (!bHead) {
+                    bHead = true;
+                    // Relative to the previous deadline, not to when this run started
+                    deadlineNs += headWindowNs;
+                    headFuture = getScheduler().scheduleAtNs(this, deadlineNs);
+                } else {
+                    bHead = false;
+                    headFuture = null;
+                }
+            }
+        }
+    }
+
+    private synchronized WaveformBank getWaveformBank() {
+        if (waveformBank == null) {
+            waveformBank = new WaveformBank(new WaveformBank.Source() {
+                @Override
+                public InputStream open(String name) throws IOException {
+                    return context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", name));
+                }
+            });
+        }
+
+        return waveformBank;
+    }
+
+    private void initBuffer() {
+        if (soundEncoder == null)
+            soundEncoder = new SoundEncoder(getWaveformBank());
+        soundEncoder.reset();
+        newDataSize = 0;
+    }
+
     private Runnable mPlayAudioCodec = new Runnable() {
         @Override
         public void run() {
@@ -974,11 +1826,15 @@ public class BreathoComLib {
             audioTrack.release();
             audioTrack = null;
         }
-        audioTrack = new AudioTrack(AudioManager.STREAM_SYSTEM, newRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, tempDataSize, AudioTrack.MODE_STATIC);
+        DeviceProfile profile = getDeviceProfile();
+        audioTrack = new AudioTrack(profile.getStreamType(), newRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, tempDataSize, AudioTrack.MODE_STATIC);
 
         do {
-            writeBufferSize += audioTrack.write(newWavBuffer.array(), 0, newDataSize);
-        } while (writeBufferSize != newDataSize);
+            writeBufferSize += audioTrack.write(newWavBuffer, writeBufferSize, (newDataSize / 2) - writeBufferSize);
+        } while (writeBufferSize != newDataSize / 2);
+
+        float volume = AudioTrack.getMaxVolume() * profile.getGain();
+        audioTrack.setStereoVolume(volume, volume);
 
         audioTrack.play();
 
@@ -1010,20 +1866,14 @@ public class BreathoComLib {
 
     /**
      * Return the playing state of the Android Device.
+     * Prefer the future returned by encodeAndSend() or a TransmitListener over polling this.
      *
-     * @return <b>boolean</b> true if the channel is still playing, else false.
+     * @return <b>boolean</b> true if the last transmit has not finished playing, else false.
      */
     public boolean getPlayState() {
-        int x;
-
-        x = audioTrack.getPlaybackHeadPosition();
-        if (x < newDataSize / 2) {
-            audioTrack.play();
-            return true;
-        } else
-            return false;
+        TransmitMonitor monitor = transmitMonitor;
 
-        //return this.bPlaying;
+        return (monitor != null) && !monitor.isDone();
     }
 
     private void playBufferAgain() {
@@ -1042,11 +1892,7 @@ public class BreathoComLib {
                 messageHandler.sendMessage(messageHandler.obtainMessage(PLAYBACK_END_REACHED));
                 */
                 //stopBuffer();
-                audioTrack.stop();
-                myHandler.removeCallbacks(mPlayAudioCodec);
-
-                //myHandler.postDelayed(mPlayAudioCodec, 0);//Message will be delivered in 1 second
-                myHandler.postDelayed(mPlayAudioCodec, iDelay);
+                scheduleReplay();
             }
         });
 
@@ -1063,7 +1909,7 @@ public class BreathoComLib {
         else
             iBufferSize = newDataSize;
         audioTrack = new AudioTrack(AudioManager.STREAM_SYSTEM, newRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, iBufferSize, AudioTrack.MODE_STATIC);
-        audioTrack.write(newWavBuffer.array(), 0, iBufferSize);
+        audioTrack.write(newWavBuffer, 0, newDataSize / 2);
         audioTrack.setStereoVolume(AudioTrack.getMaxVolume(), AudioTrack.getMaxVolume());
 
         audioTrack.setLoopPoints(0, iBufferSize / 2, LoopCnt);
@@ -1080,7 +1926,7 @@ public class BreathoComLib {
         else
             iBufferSize = newDataSize;
         audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, newRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, iBufferSize, AudioTrack.MODE_STREAM);
-        audioTrack.write(newWavBuffer.array(), 0, newDataSize);
+        audioTrack.write(newWavBuffer, 0, newDataSize / 2);
         audioTrack.setStereoVolume(AudioTrack.getMaxVolume(), AudioTrack.getMaxVolume());
 
         audioTrack.setNotificationMarkerPosition(newDataSize / 2); // Divided by Channel and 16-bit Encoding/8-bit Encoding in byte form
@@ -1092,21 +1938,34 @@ public class BreathoComLib {
 
             @Override
             public void onMarkerReached(AudioTrack track) {
-                audioTrack.stop();
-                myHandler.removeCallbacks(mPlayAudioCodec);
-
-                //myHandler.postDelayed(mPlayAudioCodec, 0);//Message will be delivered in 1 second
-                myHandler.postDelayed(mPlayAudioCodec, iDelay);
+                scheduleReplay();
             }
         });
 
         audioTrack.play();
     }
 
+    private synchronized void scheduleReplay() {
+        if (replayFuture != null)
+            replayFuture.cancel(false);
+        replayFuture = getScheduler().schedule(mPlayAudioCodec, iDelay);
+    }
+
     private void stopBuffer() {
-        myHandler.removeCallbacks(mPlayAudioCodec);
+        TransmitMonitor monitor = transmitMonitor;
+        if (monitor != null) {
+            transmitMonitor = null;
+            monitor.cancel();
+        }
+
+        synchronized (this) {
+            if (replayFuture != null) {
+                replayFuture.cancel(false);
+                replayFuture = null;
+            }
+        }
 
-        if (newDataSize != 0) {
+        if (newDataSize != 0 && audioTrack != null) {
             bPlaying = false;
             audioTrack.stop();
             audioTrack.flush();
@@ -1119,238 +1978,251 @@ public class BreathoComLib {
         audioTrack.flush();
     }
 
-    private void verifyHeader(InputStream wavStream)
-            throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-        wavStream.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
-
-        buffer.rewind();
-        buffer.position(buffer.position() + 20);
-        format = buffer.getShort();
-        checkFormat(format == 1, "Unsupported encoding: " + format); // 1 means Linear PCM
-        channels = buffer.getShort();
-        checkFormat(channels == 1 || channels == 2, "Unsupported channels: " + channels);
-        rate = buffer.getInt();
-        checkFormat(rate <= 48000 && rate >= 11025, "Unsupported rate: " + rate);
-        buffer.position(buffer.position() + 6);
-        bits = buffer.getShort();
-        checkFormat(bits == 16, "Unsupported bits: " + bits);
-        dataSize = 0;
-        while (buffer.getInt() != 0x61746164) { // "data" marker
-            Log.e("Msg", "Skipping non-data chunk");
-            int size = buffer.getInt();
-            /*
-			wavStream.skip(size);
-			buffer.rewind();
-			wavStream.read(buffer.array(), buffer.arrayOffset(), 8);
-			buffer.rewind();
-			*/
-        }
+    private void Code2Wav(int Code, int nBit) {
+        DeviceProfile profile = getDeviceProfile();
+        soundEncoder.setWaveforms(profile.getHeaderWaveform(), profile.getBit0Waveform(), profile.getBit1Waveform());
 
-        dataSize = buffer.getInt();
-        checkFormat(dataSize > 0, "wrong datasize: " + dataSize);
+        soundEncoder.addCode(Code, nBit);
 
-        //return new WavInfo(new FormatSpec(rate, channels == 2), dataSize);
+        newWavBuffer = soundEncoder.getBuffer();
+        newDataSize = soundEncoder.getLength() * 2;    // in bytes
     }
 
-    private void Code2Wav(Context context, int Code, int nBit) {
-        addWavHeader(context);
-
-        int bit = 0;
-        int CodeTemp;
-
-        while ((nBit > 0) && (bit < nBit)) {
-            //CodeTemp = Code >> (nBit-bit-1);
-            CodeTemp = Code >> bit;
-            if ((CodeTemp & 0x01) != 0x00)
-                addWavBit1(context);
-            else
-                addWavBit0(context);
-            bit++;
-        }
-
-        addWavHeader(context);
-    }
-
-    private void addSilenceDelay(Context context, int D) {
-        for (int i = 0; i < (D / 10); i++)
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "wav_silence10ms")));
-    }
-
-    private void addWavHeader(Context context) {
-        if ((Build.MODEL == "Kindle Fire") && (Build.MANUFACTURER == "Amazon"))
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "kindle_header")));
-        else if (Build.MANUFACTURER.toLowerCase().contains("htc"))
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "kindle_header")));
-        else
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "wav_header")));
-    }
-
-    private void addWavBit1(Context context) {
-        if ((Build.MODEL == "Kindle Fire") && (Build.MANUFACTURER == "Amazon"))
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "kindle_bit1")));
-        else if (Build.MANUFACTURER.toLowerCase().contains("htc"))
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "kindle_bit1")));
-        else
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "bit1")));
-    }
-
-    private void addWavBit0(Context context) {
-        if ((Build.MODEL == "Kindle Fire") && (Build.MANUFACTURER == "Amazon"))
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "kindle_bit0")));
-        else if (Build.MANUFACTURER.toLowerCase().contains("htc"))
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "kindle_bit0")));
-        else
-            addWavResource(context.getResources().openRawResource(getResourseIdByName(PACKAGENAME, "raw", "bit0")));
-    }
-
-    private static void checkFormat(boolean b, String T) {
-        if (!b) {
-            //Log.e("Error", T);
-        }
-    }
-
-    private final Runnable soundEndTimerTask = new Runnable() {
-        public void run() {
-
-        }
-    };
-
 // =====================================================================================
 // 			***** Method Specified for BresthoMeter *****
 // =====================================================================================
-    /*
-    public void checkConnect()
-    {
+    // Commands are queued, coalesced and batched by getCommands(); every call returns at once
 
+    /**
+     * Check that the Breathometer answers.
+     *
+     * @return <b>Future</b> true if it answered, false if it did not answer in time
+     */
+    public Future<Boolean> checkConnect() {
+        return getCommands().checkConnect();
     }
 
-    public void lED1On()
-    {
-
+    /**
+     * Turn LED 1 on.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> lED1On() {
+        return getCommands().set(BreathometerCommands.Command.LED1_ON);
     }
 
-    public void lED2On()
-    {
-
+    /**
+     * Turn LED 2 on.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> lED2On() {
+        return getCommands().set(BreathometerCommands.Command.LED2_ON);
     }
 
-    public void lED1Off()
-    {
-
+    /**
+     * Turn LED 1 off.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> lED1Off() {
+        return getCommands().set(BreathometerCommands.Command.LED1_OFF);
     }
 
-    public void lED2Off()
-    {
-
+    /**
+     * Turn LED 2 off.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> lED2Off() {
+        return getCommands().set(BreathometerCommands.Command.LED2_OFF);
     }
 
-    public void lED1Flash()
-    {
-
+    /**
+     * Flash LED 1.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> lED1Flash() {
+        return getCommands().set(BreathometerCommands.Command.LED1_FLASH);
     }
 
-    public void lED2Flash()
-    {
-
+    /**
+     * Flash LED 2.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> lED2Flash() {
+        return getCommands().set(BreathometerCommands.Command.LED2_FLASH);
     }
 
-    public void setLED1FlashInterval()
-    {
-
+    /**
+     * Set the flash interval of LED 1.
+     *
+     * @param <b>byte</b> interval in firmware units
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setLED1FlashInterval(byte Num) {
+        return getCommands().set(BreathometerCommands.Command.SET_LED1_FLASH_INTERVAL, Num & 0xFF);
     }
 
-    public void setLED2FlashInterval()
-    {
-
+    /**
+     * Set the flash interval of LED 2.
+     *
+     * @param <b>byte</b> interval in firmware units
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setLED2FlashInterval(byte Num) {
+        return getCommands().set(BreathometerCommands.Command.SET_LED2_FLASH_INTERVAL, Num & 0xFF);
     }
 
-    public void sensorOn()
-    {
-
+    /**
+     * Power the sensor on.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> sensorOn() {
+        return getCommands().set(BreathometerCommands.Command.SENSOR_ON);
     }
 
-    public void sensorOff()
-    {
-
+    /**
+     * Power the sensor off.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> sensorOff() {
+        return getCommands().set(BreathometerCommands.Command.SENSOR_OFF);
     }
 
-    public void getSerial0()
-    {
-
+    /**
+     * Read serial number word 0.
+     *
+     * @return <b>Future</b> the value, 16 bits read in BreathometerCommands.QUERY_FRAMES replies: 0 to 65535
+     */
+    public Future<Integer> getSerial0() {
+        return getCommands().get(BreathometerCommands.Command.GET_SERIAL0);
     }
 
-    public void getSerial1()
-    {
-
+    /**
+     * Read serial number word 1.
+     *
+     * @return <b>Future</b> the value, 16 bits read in BreathometerCommands.QUERY_FRAMES replies: 0 to 65535
+     */
+    public Future<Integer> getSerial1() {
+        return getCommands().get(BreathometerCommands.Command.GET_SERIAL1);
     }
 
-    public void getSerial2()
-    {
-
+    /**
+     * Read serial number word 2.
+     *
+     * @return <b>Future</b> the value, 16 bits read in BreathometerCommands.QUERY_FRAMES replies: 0 to 65535
+     */
+    public Future<Integer> getSerial2() {
+        return getCommands().get(BreathometerCommands.Command.GET_SERIAL2);
     }
 
-    public void setSerial0L(byte Num)
-    {
-
+    /**
+     * Write the low byte of serial number word 0.
+     *
+     * @param <b>byte</b> byte to write
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setSerial0L(byte Num) {
+        return getCommands().set(BreathometerCommands.Command.SET_SERIAL0L, Num & 0xFF);
     }
 
-    public void setSerial0H(byte Num)
-    {
-
+    /**
+     * Write the high byte of serial number word 0.
+     *
+     * @param <b>byte</b> byte to write
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setSerial0H(byte Num) {
+        return getCommands().set(BreathometerCommands.Command.SET_SERIAL0H, Num & 0xFF);
     }
 
-    public void setSerial1L(byte Num)
-    {
-
+    /**
+     * Write the low byte of serial number word 1.
+     *
+     * @param <b>byte</b> byte to write
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setSerial1L(byte Num) {
+        return getCommands().set(BreathometerCommands.Command.SET_SERIAL1L, Num & 0xFF);
     }
 
-    public void setSerial1H(byte Num)
-    {
-
+    /**
+     * Write the high byte of serial number word 1.
+     *
+     * @param <b>byte</b> byte to write
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setSerial1H(byte Num) {
+        return getCommands().set(BreathometerCommands.Command.SET_SERIAL1H, Num & 0xFF);
     }
 
-    public void setSerial2L(byte Num)
-    {
-
+    /**
+     * Write the low byte of serial number word 2.
+     *
+     * @param <b>byte</b> byte to write
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setSerial2L(byte Num) {
+        return getCommands().set(BreathometerCommands.Command.SET_SERIAL2L, Num & 0xFF);
     }
 
-    public void setSerial2H(byte Num)
-    {
-
+    /**
+     * Write the high byte of serial number word 2.
+     *
+     * @param <b>byte</b> byte to write
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setSerial2H(byte Num) {
+        return getCommands().set(BreathometerCommands.Command.SET_SERIAL2H, Num & 0xFF);
     }
 
-    public void setCalPt1()
-    {
-
+    /**
+     * Take calibration point 1 from the current reading.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setCalPt1() {
+        return getCommands().set(BreathometerCommands.Command.SET_CAL_PT1);
     }
 
-    public void setCalPt2()
-    {
-
+    /**
+     * Take calibration point 2 from the current reading.
+     *
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> setCalPt2() {
+        return getCommands().set(BreathometerCommands.Command.SET_CAL_PT2);
     }
 
-    public void getCalPt1()
-    {
-
+    /**
+     * Read calibration point 1.
+     *
+     * @return <b>Future</b> the value, 16 bits read in BreathometerCommands.QUERY_FRAMES replies: 0 to 65535
+     */
+    public Future<Integer> getCalPt1() {
+        return getCommands().get(BreathometerCommands.Command.GET_CAL_PT1);
     }
 
-    public void getCalPt2()
-    {
-
+    /**
+     * Read calibration point 2.
+     *
+     * @return <b>Future</b> the value, 16 bits read in BreathometerCommands.QUERY_FRAMES replies: 0 to 65535
+     */
+    public Future<Integer> getCalPt2() {
+        return getCommands().get(BreathometerCommands.Command.GET_CAL_PT2);
     }
 
-    public void getICVoltage()
-    {
-
+    /**
+     * Read the supply voltage of the sensor IC.
+     *
+     * @return <b>Future</b> the value, 16 bits read in BreathometerCommands.QUERY_FRAMES replies: 0 to 65535
+     */
+    public Future<Integer> getICVoltage() {
+        return getCommands().get(BreathometerCommands.Command.GET_IC_VOLTAGE);
     }
-
-    private final Runnable waitICReply = new Runnable() {
-        public void run() {
-
-        }
-    };
-    */
-}
\ No newline at end of file
+}
@@ -0,0 +1,709 @@
+package com.syntek.BreathoComLib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * BreathometerCommands is the typed command set of the Breathometer, sent over a LinkLayer.
+ * <p/>
+ * Commands are queued and sent in batches of up to one link window, so a burst of calls from the UI costs a few round
+ * trips instead of one per call. While a command waits in the queue it can still be coalesced:
+ * <ul>
+ * <li>a state command (LED, sensor, flash interval, serial byte) replaces the queued command of the same state, e.g.
+ * LED1 on, off, on sends a single LED1 on; the replaced command completes together with the one that replaced it,</li>
+ * <li>a state command that asks for the state the device has already acknowledged, with nothing else queued for it,
+ * completes at once without being sent,</li>
+ * <li>a query queued twice is sent once and both callers get its reply.</li>
+ * </ul>
+ * A command is an 8-bit link payload holding its opcode. A command with an argument is sent as its opcode followed by
+ * the argument in a second link command, alone and after everything queued before it, so the accessory always gets
+ * the two back to back. If either of the two fails, the accessory may still be waiting for the argument: before the
+ * next command, a CHECK_CONNECT is sent to resynchronise it. It is harmless as an opcode and is taken as the missing
+ * argument otherwise, so the state of the failed command is unknown afterwards.
+ * <p/>
+ * A reply carries only LinkLayer.REPLY_PAYLOAD_BITS bits, so a query reads its QUERY_BITS value in QUERY_FRAMES
+ * replies: the reply to its opcode holds the lowest bits and makes the accessory keep the value, the chunk reads
+ * sent in one burst after it return the next bits each. A chunk read names its chunk and changes nothing on the
+ * device, so the order the accessory gets them in does not matter.
+ * <p/>
+ * All state is handled on the AudioScheduler thread; the public methods can be called from any thread.
+ */
+public class BreathometerCommands {
+    /**
+     * Commands of the Breathometer firmware, with their opcodes.
+     */
+    public enum Command {
+        CHECK_CONNECT(0x01, KIND_CONNECT, NO_STATE, false),
+        LED1_ON(0x02, KIND_ACTION, STATE_LED1, false),
+        LED2_ON(0x03, KIND_ACTION, STATE_LED2, false),
+        LED1_OFF(0x04, KIND_ACTION, STATE_LED1, false),
+        LED2_OFF(0x05, KIND_ACTION, STATE_LED2, false),
+        LED1_FLASH(0x06, KIND_ACTION, STATE_LED1, false),
+        LED2_FLASH(0x07, KIND_ACTION, STATE_LED2, false),
+        SET_LED1_FLASH_INTERVAL(0x08, KIND_ACTION, STATE_LED1_INTERVAL, true),
+        SET_LED2_FLASH_INTERVAL(0x09, KIND_ACTION, STATE_LED2_INTERVAL, true),
+        SENSOR_ON(0x0A, KIND_ACTION, STATE_SENSOR, false),
+        SENSOR_OFF(0x0B, KIND_ACTION, STATE_SENSOR, false),
+        GET_SERIAL0(0x0C, KIND_QUERY, NO_STATE, false),
+        GET_SERIAL1(0x0D, KIND_QUERY, NO_STATE, false),
+        GET_SERIAL2(0x0E, KIND_QUERY, NO_STATE, false),
+        SET_SERIAL0L(0x0F, KIND_ACTION, STATE_SERIAL0L, true),
+        SET_SERIAL0H(0x10, KIND_ACTION, STATE_SERIAL0H, true),
+        SET_SERIAL1L(0x11, KIND_ACTION, STATE_SERIAL1L, true),
+        SET_SERIAL1H(0x12, KIND_ACTION, STATE_SERIAL1H, true),
+        SET_SERIAL2L(0x13, KIND_ACTION, STATE_SERIAL2L, true),
+        SET_SERIAL2H(0x14, KIND_ACTION, STATE_SERIAL2H, true),
+        SET_CAL_PT1(0x15, KIND_ACTION, NO_STATE, false),
+        SET_CAL_PT2(0x16, KIND_ACTION, NO_STATE, false),
+        GET_CAL_PT1(0x17, KIND_QUERY, NO_STATE, false),
+        GET_CAL_PT2(0x18, KIND_QUERY, NO_STATE, false),
+        GET_IC_VOLTAGE(0x19, KIND_QUERY, NO_STATE, false);
+
+        private final int opcode;
+        private final int kind;
+        private final int state;
+        private final boolean bArgument;
+
+        Command(int opcode, int kind, int state, boolean bArgument) {
+            this.opcode = opcode;
+            this.kind = kind;
+            this.state = state;
+            this.bArgument = bArgument;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        /**
+         * @return <b>boolean</b> true if the command takes an 8-bit argument
+         */
+        public boolean hasArgument() {
+            return bArgument;
+        }
+
+        /**
+         * @return <b>boolean</b> true if the command reads a value from the device
+         */
+        public boolean isQuery() {
+            return kind == KIND_QUERY;
+        }
+    }
+
+    public final static long DEFAULT_BATCH_DELAY_MS = 10;
+
+    /**
+     * Bits of a query value, e.g. a serial number word.
+     */
+    public final static int QUERY_BITS = 16;
+    /**
+     * Link commands reading a query value: its opcode and a chunk read per further REPLY_PAYLOAD_BITS bits.
+     */
+    public final static int QUERY_FRAMES = (QUERY_BITS + LinkLayer.REPLY_PAYLOAD_BITS - 1) / LinkLayer.REPLY_PAYLOAD_BITS;
+    /**
+     * Opcode of the read of chunk 1 of the value kept by the last query, chunk k is read by READ_CHUNK_OPCODE + k - 1.
+     */
+    public final static int READ_CHUNK_OPCODE = 0x1A;
+
+    private final static int KIND_ACTION = 0;
+    private final static int KIND_QUERY = 1;
+    private final static int KIND_CONNECT = 2;
+
+    // Device state a command sets; commands of the same state replace each other
+    private final static int NO_STATE = -1;
+    private final static int STATE_LED1 = 0;
+    private final static int STATE_LED2 = 1;
+    private final static int STATE_LED1_INTERVAL = 2;
+    private final static int STATE_LED2_INTERVAL = 3;
+    private final static int STATE_SENSOR = 4;
+    private final static int STATE_SERIAL0L = 5;
+    private final static int STATE_SERIAL0H = 6;
+    private final static int STATE_SERIAL1L = 7;
+    private final static int STATE_SERIAL1H = 8;
+    private final static int STATE_SERIAL2L = 9;
+    private final static int STATE_SERIAL2H = 10;
+    private final static int STATES = 11;
+
+    private final static int UNKNOWN = -1;
+
+    private final static int[] CHUNK_READS = new int[QUERY_FRAMES - 1];
+
+    static {
+        for (int k = 0; k < CHUNK_READS.length; k++)
+            CHUNK_READS[k] = READ_CHUNK_OPCODE + k;
+    }
+
+    private final LinkLayer link;
+    private final AudioScheduler scheduler;
+    private volatile long batchDelayMs = DEFAULT_BATCH_DELAY_MS;
+
+    // Scheduler thread state
+    private final LinkedList<Op> queue = new LinkedList<Op>();
+    private final Op[] stateOps = new Op[STATES];   // last queued or sent command per state, until it finishes
+    private final int[] knownState = new int[STATES];  // acknowledged state key, or UNKNOWN
+    private int inFlight;
+    private boolean bFlushScheduled;
+    private boolean bClosed;
+    private boolean bResync;                           // an argument may be missing on the accessory
+
+    private volatile long requestCnt, sentCnt, batchCnt, coalescedCnt, skippedCnt, failedCnt;
+
+    /**
+     * Result delivered to one caller, converted to the type of its future.
+     */
+    private interface Completion {
+        void complete(int reply);
+
+        void fail(Throwable t);
+
+        void cancel();
+
+        boolean isCancelled();
+    }
+
+    private final static class ActionCompletion implements Completion {
+        final ResultFuture<Void> future = new ResultFuture<Void>();
+
+        @Override
+        public void complete(int reply) {
+            future.complete(null);
+        }
+
+        @Override
+        public void fail(Throwable t) {
+            future.fail(t);
+        }
+
+        @Override
+        public void cancel() {
+            future.cancel(false);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+    }
+
+    private final static class QueryCompletion implements Completion {
+        final ResultFuture<Integer> future = new ResultFuture<Integer>();
+
+        @Override
+        public void complete(int reply) {
+            future.complete(reply);
+        }
+
+        @Override
+        public void fail(Throwable t) {
+            future.fail(t);
+        }
+
+        @Override
+        public void cancel() {
+            future.cancel(false);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+    }
+
+    private final static class ConnectCompletion implements Completion {
+        final ResultFuture<Boolean> future = new ResultFuture<Boolean>();
+
+        @Override
+        public void complete(int reply) {
+            future.complete(Boolean.TRUE);
+        }
+
+        // No reply in time only means the device is not connected
+        @Override
+        public void fail(Throwable t) {
+            if (t instanceof TimeoutException)
+                future.complete(Boolean.FALSE);
+            else
+                future.fail(t);
+        }
+
+        @Override
+        public void cancel() {
+            future.cancel(false);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+    }
+
+    /**
+     * A command in the queue or on the link, with every caller waiting for it.
+     */
+    private final static class Op {
+        final Command command;
+        final int argument;
+        final List<Completion> completions = new ArrayList<Completion>(1);
+
+        Op(Command command, int argument) {
+            this.command = command;
+            this.argument = argument;
+        }
+
+        int key() {
+            return (command.opcode << 8) | argument;
+        }
+
+        boolean isAbandoned() {
+            for (Completion c : completions) {
+                if (!c.isCancelled())
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Constructor for BreathometerCommands.
+     *
+     * @param <b>LinkLayer</b>      link to the accessory
+     * @param <b>AudioScheduler</b> the scheduler running the link
+     */
+    public BreathometerCommands(LinkLayer link, AudioScheduler scheduler) {
+        this.link = link;
+        this.scheduler = scheduler;
+
+        for (int i = 0; i < STATES; i++)
+            knownState[i] = UNKNOWN;
+    }
+
+    // =====================================================================================
+    // 			*** Public interface ***
+    // =====================================================================================
+
+    /**
+     * @return <b>Future</b> true once the device answers, false if it does not answer in time
+     */
+    public Future<Boolean> checkConnect() {
+        ConnectCompletion c = new ConnectCompletion();
+        submit(Command.CHECK_CONNECT, 0, c);
+        return c.future;
+    }
+
+    /**
+     * Send a command without argument that changes the device.
+     *
+     * @param <b>Command</b> an action command
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> set(Command command) {
+        if (command.bArgument)
+            throw new IllegalArgumentException(command + " takes an argument");
+        return set(command, 0);
+    }
+
+    /**
+     * Send a command that changes the device.
+     *
+     * @param <b>Command</b> an action command
+     * @param <b>int</b>     8-bit argument, ignored by commands without one
+     * @return <b>Future</b> done when the device acknowledged it
+     */
+    public Future<Void> set(Command command, int argument) {
+        if (command.kind != KIND_ACTION)
+            throw new IllegalArgumentException(command + " is not an action");
+        if (argument < 0 || argument > 0xFF)
+            throw new IllegalArgumentException("argument must fit 8 bits: " + argument);
+
+        ActionCompletion c = new ActionCompletion();
+        submit(command, command.bArgument ? argument : 0, c);
+        return c.future;
+    }
+
+    /**
+     * Read a value from the device.
+     *
+     * @param <b>Command</b> a query command
+     * @return <b>Future</b> the value, QUERY_BITS wide: 0 to 65535
+     */
+    public Future<Integer> get(Command command) {
+        if (command.kind != KIND_QUERY)
+            throw new IllegalArgumentException(command + " is not a query");
+
+        QueryCompletion c = new QueryCompletion();
+        submit(command, 0, c);
+        return c.future;
+    }
+
+    /**
+     * Forget the device state learned from acknowledged commands, e.g. after the accessory was replugged, so the next
+     * state commands are all sent.
+     */
+    public void invalidateState() {
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < STATES; i++)
+                        knownState[i] = UNKNOWN;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Scheduler already stopped, no command is sent any more
+        }
+    }
+
+    /**
+     * @param <b>long</b> time to gather commands before sending them when the link is idle, in ms
+     */
+    public void setBatchDelay(long ms) {
+        batchDelayMs = ms;
+    }
+
+    /**
+     * Cancel every queued command. Commands already on the link are left to the link.
+     */
+    public void close() {
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    bClosed = true;
+                    for (Op op : queue)
+                        cancel(op);
+                    queue.clear();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Scheduler already stopped, nothing can be queued on it
+        }
+    }
+
+    // =====================================================================================
+    // 			*** Queue, scheduler thread only ***
+    // =====================================================================================
+
+    private void submit(final Command command, final int argument, final Completion c) {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(command, argument, c);
+            }
+        });
+    }
+
+    private void enqueue(Command command, int argument, Completion c) {
+        requestCnt++;
+        if (bClosed) {
+            c.cancel();
+            return;
+        }
+
+        Op op = new Op(command, argument);
+        op.completions.add(c);
+
+        if (command.state != NO_STATE) {
+            Op last = stateOps[command.state];
+            if (last == null && knownState[command.state] == op.key()) {
+                // The device is known to be there already
+                skippedCnt++;
+                c.complete(0);
+                return;
+            }
+            if (last != null && last.key() == op.key()) {
+                coalescedCnt++;
+                last.completions.add(c);
+                return;
+            }
+            if (last != null && queue.remove(last)) {
+                // Not sent yet, the new command replaces it
+                coalescedCnt++;
+                op.completions.addAll(last.completions);
+            }
+            stateOps[command.state] = op;
+        } else if (command.kind != KIND_ACTION) {
+            for (Op q : queue) {
+                if (q.command == command) {
+                    coalescedCnt++;
+                    q.completions.add(c);
+                    return;
+                }
+            }
+        }
+
+        queue.add(op);
+        if (inFlight == 0 && !bFlushScheduled) {
+            bFlushScheduled = true;
+            scheduler.schedule(flushTask, batchDelayMs);
+        }
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            bFlushScheduled = false;
+            flush();
+        }
+    };
+
+    // Send the head of the queue: up to a window of plain commands, or one command with its argument or its chunk reads
+    private void flush() {
+        if (inFlight > 0 || bClosed)
+            return;
+        if (bResync) {
+            if (!queue.isEmpty())
+                resync();
+            return;
+        }
+
+        List<Op> batch = new ArrayList<Op>();
+        int max = link.getWindow();
+        Iterator<Op> it = queue.iterator();
+        while (it.hasNext() && batch.size() < max) {
+            Op op = it.next();
+            if (op.isAbandoned()) {
+                it.remove();
+                forget(op);
+                continue;
+            }
+            if (op.command.bArgument || op.command.kind == KIND_QUERY) {
+                if (batch.isEmpty()) {
+                    it.remove();
+                    sendOpcodeFirst(op);
+                    return;
+                }
+                break;
+            }
+            it.remove();
+            batch.add(op);
+        }
+        if (batch.isEmpty())
+            return;
+
+        int[] payloads = new int[batch.size()];
+        for (int i = 0; i < payloads.length; i++)
+            payloads[i] = batch.get(i).command.opcode;
+
+        batchCnt++;
+        sentCnt += payloads.length;
+        inFlight = payloads.length;
+        List<Future<Integer>> futures = link.sendBatch(payloads);
+        for (int i = 0; i < payloads.length; i++)
+            onLinkDone(futures.get(i), batch.get(i), false);
+    }
+
+    private void sendOpcodeFirst(final Op op) {
+        batchCnt++;
+        sentCnt += op.command.bArgument ? 2 : QUERY_FRAMES;
+        inFlight = 1;
+        onLinkDone(link.send(op.command.opcode), op, true);
+    }
+
+    // Read the rest of a query value, its lowest bits came with the reply to the opcode
+    private Future<Integer> readChunks(final int low) {
+        final Future<int[]> chunks = link.exchange(CHUNK_READS);
+        final ResultFuture<Integer> value = new ResultFuture<Integer>();
+        ((ResultFuture<int[]>) chunks).whenDone(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int[] replies = chunks.get();
+                    int v = low;
+                    for (int k = 0; k < replies.length; k++)
+                        v |= replies[k] << ((k + 1) * LinkLayer.REPLY_PAYLOAD_BITS);
+                    value.complete(v & ((1 << QUERY_BITS) - 1));
+                } catch (CancellationException e) {
+                    value.cancel(false);
+                } catch (ExecutionException e) {
+                    value.fail(e.getCause());
+                } catch (InterruptedException e) {
+                    // Cannot happen, the future is done
+                    value.fail(e);
+                }
+            }
+        });
+        return value;
+    }
+
+    // Pass the link result back to the scheduler thread once the link future is done
+    private void onLinkDone(final Future<Integer> future, final Op op, final boolean bOpcodeOnly) {
+        ((ResultFuture<Integer>) future).whenDone(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            finish(future, op, bOpcodeOnly);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    cancel(op);
+                }
+            }
+        });
+    }
+
+    private void finish(Future<Integer> future, Op op, boolean bOpcodeOnly) {
+        int reply;
+        try {
+            reply = future.get();
+        } catch (CancellationException e) {
+            inFlight--;
+            forget(op);
+            cancel(op);
+            next();
+            return;
+        } catch (ExecutionException e) {
+            inFlight--;
+            failedCnt++;
+            forget(op);
+            if (op.command.state != NO_STATE)
+                knownState[op.command.state] = UNKNOWN;
+            if (op.command.bArgument)
+                bResync = true;
+            for (Completion c : op.completions)
+                c.fail(e.getCause());
+            next();
+            return;
+        } catch (InterruptedException e) {
+            // Cannot happen, the future is done
+            return;
+        }
+
+        if (bOpcodeOnly) {
+            // The opcode is acknowledged, its argument or the rest of its value follows right away
+            if (op.command.kind == KIND_QUERY)
+                onLinkDone(readChunks(reply), op, false);
+            else
+                onLinkDone(link.send(op.argument), op, false);
+            return;
+        }
+
+        inFlight--;
+        forget(op);
+        if (op.command.state != NO_STATE)
+            knownState[op.command.state] = op.key();
+        for (Completion c : op.completions)
+            c.complete(reply);
+        next();
+    }
+
+    // Send CHECK_CONNECT alone, nothing queued goes out until the accessory answered it
+    private void resync() {
+        sentCnt++;
+        inFlight = 1;
+        final Future<Integer> future = link.send(Command.CHECK_CONNECT.opcode);
+        ((ResultFuture<Integer>) future).whenDone(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            finishResync(future);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Scheduler stopped, nothing is sent any more
+                }
+            }
+        });
+    }
+
+    private void finishResync(Future<Integer> future) {
+        inFlight--;
+        try {
+            future.get();
+            bResync = false;
+        } catch (CancellationException e) {
+            // Link closed
+            return;
+        } catch (ExecutionException e) {
+            // Still no answer: the commands held back fail as well, the next one tries again
+            for (Op op : queue) {
+                failedCnt++;
+                forget(op);
+                if (op.command.state != NO_STATE)
+                    knownState[op.command.state] = UNKNOWN;
+                for (Completion c : op.completions)
+                    c.fail(e.getCause());
+            }
+            queue.clear();
+            return;
+        } catch (InterruptedException e) {
+            // Cannot happen, the future is done
+            return;
+        }
+        next();
+    }
+
+    // Commands queued while the link was busy go out at once, they had their chance to coalesce
+    private void next() {
+        if (inFlight == 0)
+            flush();
+    }
+
+    private void forget(Op op) {
+        if (op.command.state != NO_STATE && stateOps[op.command.state] == op)
+            stateOps[op.command.state] = null;
+    }
+
+    private static void cancel(Op op) {
+        for (Completion c : op.completions)
+            c.cancel();
+    }
+
+    // =====================================================================================
+    // 			*** Metrics ***
+    // =====================================================================================
+
+    /**
+     * @return <b>long</b> commands requested by callers
+     */
+    public long getRequestCount() {
+        return requestCnt;
+    }
+
+    /**
+     * @return <b>long</b> link commands sent, arguments included
+     */
+    public long getSentCount() {
+        return sentCnt;
+    }
+
+    /**
+     * @return <b>long</b> batches handed to the link
+     */
+    public long getBatchCount() {
+        return batchCnt;
+    }
+
+    /**
+     * @return <b>long</b> commands merged into another queued command
+     */
+    public long getCoalescedCount() {
+        return coalescedCnt;
+    }
+
+    /**
+     * @return <b>long</b> commands not sent because the device already had the state they set
+     */
+    public long getSkippedCount() {
+        return skippedCnt;
+    }
+
+    /**
+     * @return <b>long</b> commands that failed on the link
+     */
+    public long getFailedCount() {
+        return failedCnt;
+    }
+}
@@ -0,0 +1,295 @@
+package com.syntek.BreathoComLib;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.util.Log;
+
+/**
+ * CaptureEngine owns one AudioRecord across recording sessions and delivers the mic input to a listener in fixed periods.
+ * <p/>
+ * The recorder is created on the first resume(), stopped (not released) on pause() and only released by release(),
+ * so reconnecting does not pay the AudioRecord construction cost again and never leaks native recorders.
+ */
+public class CaptureEngine {
+    private static final String TAG = "CaptureEngine";
+
+    private final static int channelConfiguration = AudioFormat.CHANNEL_IN_MONO;
+    private final static int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
+    private final static int BYTES_PER_FRAME = 2;
+
+    /**
+     * Callback of the capture thread.
+     */
+    public interface Listener {
+        /**
+         * Called on the capture thread each time a session starts, before the first onCapture().
+         */
+        void onCaptureStart();
+
+        /**
+         * Called on the capture thread for every period read from the recorder.
+         * The buffer is reused for the next read and must not be kept.
+         *
+         * @param <b>short[]</b> buffer holding the samples
+         * @param <b>int</b>     number of valid samples in buffer
+         */
+        void onCapture(short[] buffer, int length);
+    }
+
+    private final int audioSource;
+    private final int sampleRate;
+    private final int periodFrames;
+    private final int bufferFrames;
+    private final Listener listener;
+
+    private final Object lock = new Object();
+    private final short[] periodBuffer;
+
+    private AudioRecord audioRecord;
+    private CaptureThread captureThread;
+    private boolean bResumed, bReleased;
+
+    private volatile long resumeTimeNs;
+    private volatile long firstSampleLatencyNs = -1;
+    private volatile int sessionCnt;
+
+    /**
+     * Constructor for CaptureEngine. No audio resource is allocated until resume().
+     *
+     * @param <b>int</b>      MediaRecorder.AudioSource used for the recorder
+     * @param <b>int</b>      sample rate in Hz
+     * @param <b>int</b>      frames delivered per read (the period)
+     * @param <b>int</b>      requested recorder buffer depth in frames, raised to the device minimum if smaller
+     * @param <b>Listener</b> receiver of the captured periods
+     */
+    public CaptureEngine(int audioSource, int sampleRate, int periodFrames, int bufferFrames, Listener listener) {
+        if (periodFrames <= 0)
+            throw new IllegalArgumentException("periodFrames must be positive: " + periodFrames);
+
+        this.audioSource = audioSource;
+        this.sampleRate = sampleRate;
+        this.periodFrames = periodFrames;
+        this.bufferFrames = bufferFrames;
+        this.listener = listener;
+
+        periodBuffer = new short[periodFrames];
+    }
+
+    /**
+     * Start or continue delivering samples. The recorder is created on the first call only.
+     */
+    public void resume() {
+        synchronized (lock) {
+            if (bReleased)
+                throw new IllegalStateException("CaptureEngine already released");
+            if (bResumed)
+                return;
+
+            bResumed = true;
+            resumeTimeNs = System.nanoTime();
+
+            if (captureThread == null) {
+                captureThread = new CaptureThread();
+                captureThread.setPriority(Thread.MAX_PRIORITY);
+                captureThread.start();
+            } else {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Create the recorder ahead of the first resume(), e.g. from a background thread during app startup.
+     *
+     * @return <b>boolean</b> true if the recorder is ready
+     */
+    public boolean prepare() {
+        synchronized (lock) {
+            if (bReleased)
+                return false;
+            if (captureThread == null && audioRecord == null)
+                audioRecord = createRecorder();
+            return (audioRecord != null) || (captureThread != null);
+        }
+    }
+
+    /**
+     * Stop delivering samples. The recorder is stopped but kept for the next resume().
+     */
+    public void pause() {
+        synchronized (lock) {
+            bResumed = false;
+        }
+    }
+
+    /**
+     * Stop capturing and release the recorder. Blocks until the capture thread has finished.
+     */
+    public void release() {
+        Thread t;
+
+        synchronized (lock) {
+            if (bReleased)
+                return;
+
+            bReleased = true;
+            bResumed = false;
+            t = captureThread;
+            lock.notifyAll();
+
+            // Prepared but never started, the recorder is not owned by a thread yet
+            if (t == null && audioRecord != null) {
+                audioRecord.release();
+                audioRecord = null;
+            }
+        }
+
+        if (t == null)
+            return;
+
+        boolean bInterrupted = false;
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                bInterrupted = true;
+            }
+        }
+        if (bInterrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return <b>boolean</b> true if samples are being delivered
+     */
+    public boolean isCapturing() {
+        synchronized (lock) {
+            return bResumed;
+        }
+    }
+
+    /**
+     * @return <b>int</b> capture sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return <b>int</b> frames delivered per read
+     */
+    public int getPeriodFrames() {
+        return periodFrames;
+    }
+
+    /**
+     * Time between the last resume() and the first sample returned by the recorder.
+     *
+     * @return <b>long</b> latency in ns, -1 if no session has produced samples yet
+     */
+    public long getFirstSampleLatencyNs() {
+        return firstSampleLatencyNs;
+    }
+
+    /**
+     * @return <b>int</b> number of sessions started since construction
+     */
+    public int getSessionCount() {
+        return sessionCnt;
+    }
+
+    private AudioRecord createRecorder() {
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfiguration, audioEncoding);
+        if (minBufferSize <= 0) {
+            Log.e(TAG, "Unsupported capture format, rate " + sampleRate);
+            return null;
+        }
+
+        // getMinBufferSize is in bytes, the buffer depth is in frames
+        int frames = Math.max(bufferFrames, minBufferSize / BYTES_PER_FRAME);
+        frames = ((frames + periodFrames - 1) / periodFrames) * periodFrames;
+
+        AudioRecord record = new AudioRecord(audioSource, sampleRate, channelConfiguration, audioEncoding, frames * BYTES_PER_FRAME);
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(TAG, "AudioRecord initialisation failed");
+            record.release();
+            return null;
+        }
+
+        return record;
+    }
+
+    private class CaptureThread extends Thread {
+        CaptureThread() {
+            super("BreathoComLib-Capture");
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (waitForResume()) {
+                    if (audioRecord == null)
+                        audioRecord = createRecorder();
+                    if (audioRecord == null) {
+                        synchronized (lock) {
+                            bResumed = false;
+                        }
+                        continue;
+                    }
+
+                    captureSession();
+                }
+            } finally {
+                if (audioRecord != null) {
+                    audioRecord.release();
+                    audioRecord = null;
+                }
+            }
+        }
+
+        private boolean waitForResume() {
+            synchronized (lock) {
+                while (!bResumed && !bReleased) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // only release() ends the thread
+                    }
+                }
+                return !bReleased;
+            }
+        }
+
+        private void captureSession() {
+            boolean bFirstSample = true;
+
+            sessionCnt++;
+            listener.onCaptureStart();
+            audioRecord.startRecording();
+
+            while (isCapturing()) {
+                int bufferReadSize = audioRecord.read(periodBuffer, 0, periodFrames);
+                if (bufferReadSize <= 0) {
+                    if (bufferReadSize < 0) {
+                        Log.e(TAG, "AudioRecord read error " + bufferReadSize);
+                        pause();
+                        break;
+                    }
+                    continue;
+                }
+
+                if (FrameTracer.bEnabled)
+                    FrameTracer.instant(FrameTracer.CAPTURE_READ, bufferReadSize);
+
+                if (bFirstSample) {
+                    firstSampleLatencyNs = System.nanoTime() - resumeTimeNs;
+                    bFirstSample = false;
+                }
+
+                listener.onCapture(periodBuffer, bufferReadSize);
+            }
+
+            audioRecord.stop();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.syntek.BreathoComLib;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * CaptureHub owns the single mic recording of the app and shares it between any number of consumers.
+ * <p/>
+ * Every captured period is copied once into a pooled SampleBlock and published into a ring. Consumers either
+ * <ul>
+ * <li>register a CaptureEngine.Listener, called inline on the capture thread (lowest latency, e.g. the decoder), or</li>
+ * <li>open a Cursor and pull blocks from their own thread (e.g. level meters, recorders).</li>
+ * </ul>
+ * Blocks are reference counted and shared, never copied per consumer. A cursor that falls further behind than the
+ * ring skips to the oldest block still available and counts what it lost.
+ * <p/>
+ * Recording runs while at least one client holds a capture request, see requestCapture().
+ */
+public class CaptureHub {
+    private final CaptureEngine captureEngine;
+    private final int periodFrames;
+
+    private final SampleBlock[] ring;
+    private final SampleBlock[] pool;
+    private int poolIndex;
+    private volatile long publishedSeq = -1;
+    private long streamSample;
+
+    private final CopyOnWriteArrayList<CaptureEngine.Listener> listeners = new CopyOnWriteArrayList<CaptureEngine.Listener>();
+
+    private final Object lock = new Object();
+    private volatile int waiterCnt;
+    private int captureRequests;
+    private volatile int droppedBlocks;
+
+    /**
+     * Consumer's view of the published blocks.
+     */
+    public final class Cursor {
+        private long nextSeq;
+        private volatile long lostBlocks;
+        private boolean bClosed;
+
+        Cursor(long nextSeq) {
+            this.nextSeq = nextSeq;
+        }
+
+        /**
+         * Get the next block, waiting for it if necessary.
+         *
+         * @param <b>long</b> maximum wait in ms, 0 to return at once
+         * @return <b>SampleBlock</b> retained block to be released by the caller, null on timeout or when closed
+         */
+        public SampleBlock next(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+
+            while (!bClosed) {
+                SampleBlock block = poll();
+                if (block != null)
+                    return block;
+
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    return null;
+
+                synchronized (lock) {
+                    if (nextSeq > publishedSeq) {
+                        waiterCnt++;
+                        try {
+                            lock.wait(wait);
+                        } finally {
+                            waiterCnt--;
+                        }
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Get the next block if one is available.
+         *
+         * @return <b>SampleBlock</b> retained block to be released by the caller, or null
+         */
+        public SampleBlock poll() {
+            while (true) {
+                long published = publishedSeq;
+                if (nextSeq > published)
+                    return null;
+
+                // Lagging further than the ring: skip to the oldest block still kept
+                long oldest = published - ring.length + 1;
+                if (nextSeq < oldest) {
+                    lostBlocks += oldest - nextSeq;
+                    nextSeq = oldest;
+                }
+
+                SampleBlock block = ring[(int) (nextSeq % ring.length)];
+                if (block != null && block.tryRetain()) {
+                    if (block.sequence == nextSeq) {
+                        nextSeq++;
+                        return block;
+                    }
+                    block.release();
+                }
+
+                // Overwritten while reading, count it and retry from the new oldest block
+                if (publishedSeq - ring.length + 1 <= nextSeq)
+                    return null;
+            }
+        }
+
+        /**
+         * @return <b>long</b> blocks published but not yet read by this cursor
+         */
+        public long getLag() {
+            return Math.max(0, publishedSeq + 1 - nextSeq);
+        }
+
+        /**
+         * @return <b>long</b> blocks skipped because this cursor fell behind the ring
+         */
+        public long getLostBlocks() {
+            return lostBlocks;
+        }
+
+        /**
+         * Stop using the cursor. A thread waiting in next() returns null.
+         */
+        public void close() {
+            synchronized (lock) {
+                bClosed = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Constructor for CaptureHub. No audio resource is allocated until the first capture request.
+     *
+     * @param <b>int</b> MediaRecorder.AudioSource used for the recorder
+     * @param <b>int</b> sample rate in Hz
+     * @param <b>int</b> frames per period
+     * @param <b>int</b> recorder buffer depth in frames
+     * @param <b>int</b> number of periods kept for cursors
+     */
+    public CaptureHub(int audioSource, int sampleRate, int periodFrames, int bufferFrames, int ringBlocks) {
+        this.periodFrames = periodFrames;
+
+        ring = new SampleBlock[ringBlocks];
+        // Spare blocks for those still held by slow cursors
+        pool = new SampleBlock[ringBlocks * 2];
+        for (int i = 0; i < pool.length; i++)
+            pool[i] = new SampleBlock(periodFrames);
+
+        captureEngine = new CaptureEngine(audioSource, sampleRate, periodFrames, bufferFrames, engineListener);
+    }
+
+    /**
+     * Register a consumer called inline on the capture thread. It must return quickly.
+     */
+    public void addListener(CaptureEngine.Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(CaptureEngine.Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Open a cursor starting at the next published block.
+     */
+    public Cursor openCursor() {
+        return new Cursor(publishedSeq + 1);
+    }
+
+    /**
+     * Ask for the recording to run. Every call must be balanced by releaseCapture().
+     */
+    public void requestCapture() {
+        synchronized (lock) {
+            if (captureRequests++ == 0)
+                captureEngine.resume();
+        }
+    }
+
+    /**
+     * Withdraw a capture request. The recording pauses when no request is left.
+     */
+    public void releaseCapture() {
+        synchronized (lock) {
+            if (captureRequests == 0)
+                return;
+            if (--captureRequests == 0)
+                captureEngine.pause();
+        }
+    }
+
+    /**
+     * Create the recorder ahead of the first capture request.
+     */
+    public boolean prepare() {
+        return captureEngine.prepare();
+    }
+
+    /**
+     * Stop capturing and release the recorder.
+     */
+    public void release() {
+        captureEngine.release();
+        synchronized (lock) {
+            captureRequests = 0;
+            lock.notifyAll();
+        }
+    }
+
+    public CaptureEngine getCaptureEngine() {
+        return captureEngine;
+    }
+
+    public int getSampleRate() {
+        return captureEngine.getSampleRate();
+    }
+
+    public int getPeriodFrames() {
+        return periodFrames;
+    }
+
+    /**
+     * @return <b>int</b> periods not published to cursors because every pooled block was still held
+     */
+    public int getDroppedBlocks() {
+        return droppedBlocks;
+    }
+
+    private final CaptureEngine.Listener engineListener = new CaptureEngine.Listener() {
+        @Override
+        public void onCaptureStart() {
+            for (CaptureEngine.Listener l : listeners)
+                l.onCaptureStart();
+        }
+
+        @Override
+        public void onCapture(short[] buffer, int length) {
+            publish(buffer, length);
+
+            for (CaptureEngine.Listener l : listeners)
+                l.onCapture(buffer, length);
+
+            streamSample += length;
+        }
+    };
+
+    private void publish(short[] buffer, int length) {
+        SampleBlock block = obtainBlock();
+        if (block == null) {
+            droppedBlocks++;
+            return;
+        }
+
+        long seq = publishedSeq + 1;
+        System.arraycopy(buffer, 0, block.samples, 0, length);
+        block.length = length;
+        block.sequence = seq;
+        block.startSample = streamSample;
+        block.timeNs = System.nanoTime();
+
+        // The hub's reference, set last so cursors only see complete blocks
+        block.refCnt.set(1);
+
+        int slot = (int) (seq % ring.length);
+        SampleBlock old = ring[slot];
+        ring[slot] = block;
+        publishedSeq = seq;
+        if (old != null)
+            old.release();
+
+        if (waiterCnt > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private SampleBlock obtainBlock() {
+        for (int i = 0; i < pool.length; i++) {
+            SampleBlock block = pool[poolIndex];
+            poolIndex = (poolIndex + 1) % pool.length;
+            if (block.refCnt.get() == 0)
+                return block;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,279 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * CarrierWatch keeps the decoder asleep while the accessory is silent.
+ * <p/>
+ * In low-power mode the full-rate trigger scan of SignalDecoder is skipped. Instead the samples, decimated to about
+ * 11kHz, are compared with the trigger threshold; only a period holding a loud sample is run through two Goertzel
+ * filters tuned to the reply tones (FREQ0 and FREQ1) over windows of about 7ms. When the tones hold most of the
+ * window energy and their amplitude is near the trigger threshold, the watch wakes up: the samples before the period,
+ * kept as a copy, are handed to the decoder ahead of it so the start of the first frame is not lost. The watch goes
+ * back to low power once the decoder has neither analysed nor collected a pool for the quiet period.
+ * <p/>
+ * The class has no Android dependency and is not thread-safe; admit() and onActivity() must come from the capture
+ * thread. wake() and the metrics can be called from any thread.
+ */
+public class CarrierWatch {
+    public final static int SKIP = 0;      // low power, do not decode the period
+    public final static int WAKE = 1;      // woken up by this period, decode getHistory() and then the period
+    public final static int DECODE = 2;    // awake, decode the period
+
+    public final static long DEFAULT_QUIET_MS = 500;
+
+    private final static int TARGET_RATE = 11025;    // both reply tones stay below its Nyquist frequency
+    private final static float TONE_FRACTION = 0.4f;
+
+    private final int sampleRate;
+    private final int decimation;
+    private final int window;
+    private final float coeff0, coeff1;
+
+    private final short[] history;
+    private int historyLength;
+
+    private volatile int threshold = SignalDecoder.DEFAULT_THRESHOLD;
+    private volatile long quietNs = DEFAULT_QUIET_MS * 1000000L;
+
+    private boolean bStarted;
+    private volatile boolean bAwake;
+    private volatile boolean bWakeRequest;
+    private long lastActivityNs;
+
+    private volatile long modeSinceNs, lastAdmitNs;
+    private volatile long lowPowerNs, awakeNs;
+    private volatile long wakeCnt, sleepCnt, watchedSamples, decodedSamples;
+
+    /**
+     * Constructor for CarrierWatch.
+     *
+     * @param <b>int</b> capture sample rate in Hz
+     * @param <b>int</b> largest capture period handed to admit()
+     */
+    public CarrierWatch(int sampleRate, int maxBlockFrames) {
+        this.sampleRate = sampleRate;
+        decimation = Math.max(1, sampleRate / TARGET_RATE);
+        float rate = (float) sampleRate / decimation;
+
+        // Window length putting both tones closest to a Goertzel bin, about 4 to 9ms
+        int best = 0;
+        double bestError = Double.MAX_VALUE;
+        for (int n = (int) (rate / 250); n <= (int) (rate / 110); n++) {
+            double b0 = SignalDecoder.FREQ0 * n / rate, b1 = SignalDecoder.FREQ1 * n / rate;
+            double error = Math.abs(b0 - Math.rint(b0)) + Math.abs(b1 - Math.rint(b1));
+            if (error < bestError) {
+                bestError = error;
+                best = n;
+            }
+        }
+        window = best;
+        coeff0 = (float) (2 * Math.cos(2 * Math.PI * SignalDecoder.FREQ0 / rate));
+        coeff1 = (float) (2 * Math.cos(2 * Math.PI * SignalDecoder.FREQ1 / rate));
+
+        // The carrier can start up to a period and a window before it is noticed
+        history = new short[maxBlockFrames + 2 * window * decimation];
+    }
+
+    /**
+     * Look at one capture period.
+     *
+     * @param <b>short[]</b> samples
+     * @param <b>int</b>     number of samples
+     * @param <b>long</b>    System.nanoTime() of the period
+     * @return <b>int</b> SKIP, WAKE or DECODE
+     */
+    public int admit(short[] buffer, int length, long nowNs) {
+        if (!bStarted) {
+            bStarted = true;
+            modeSinceNs = nowNs;
+        }
+        lastAdmitNs = nowNs;
+
+        if (bAwake) {
+            if (nowNs - lastActivityNs < quietNs) {
+                decodedSamples += length;
+                keep(buffer, length);
+                return DECODE;
+            }
+            sleep(nowNs);
+        }
+
+        boolean bCarrier = bWakeRequest || watch(buffer, length);
+        if (bCarrier) {
+            bWakeRequest = false;
+            bAwake = true;
+            lastActivityNs = nowNs;
+            wakeCnt++;
+            switchMode(nowNs);
+            decodedSamples += length + historyLength;
+            return WAKE;
+        }
+
+        keep(buffer, length);
+        return SKIP;
+    }
+
+    // Slide the period into the history, the carrier may have started in it. Kept while awake too: the decoder may
+    // have triggered in the last period before going to sleep, and gets the whole frame again after waking.
+    private void keep(short[] buffer, int length) {
+        int n = Math.min(length, history.length);
+        int old = Math.min(historyLength, history.length - n);
+        System.arraycopy(history, historyLength - old, history, 0, old);
+        System.arraycopy(buffer, length - n, history, old, n);
+        historyLength = old + n;
+    }
+
+    /**
+     * The decoder saw signal, e.g. it analysed a pool or is collecting one; postpones going back to low power.
+     */
+    public void onActivity(long nowNs) {
+        lastActivityNs = nowNs;
+    }
+
+    /**
+     * Wake up at the next period whatever it holds, e.g. because a command was just sent and its reply is expected.
+     */
+    public void wake() {
+        bWakeRequest = true;
+    }
+
+    /**
+     * @return <b>short[]</b> the samples before the period that woke the watch, valid up to getHistoryLength()
+     */
+    public short[] getHistory() {
+        return history;
+    }
+
+    public int getHistoryLength() {
+        return historyLength;
+    }
+
+    /**
+     * @param <b>int</b> trigger threshold of the decoder, the watch wakes on tones from half of it
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param <b>long</b> time without decoder activity before going back to low power, in ms
+     */
+    public void setQuietPeriod(long ms) {
+        quietNs = ms * 1000000L;
+    }
+
+    public boolean isAwake() {
+        return bAwake;
+    }
+
+    // True if the period holds the reply tones. Only periods with a decimated sample above the trigger threshold
+    // are run through the Goertzel filters, quiet periods cost one comparison per decimated sample.
+    private boolean watch(short[] buffer, int length) {
+        int level = threshold;
+        int step = decimation;
+        watchedSamples += (length + step - 1) / step;
+
+        int i = 0;
+        while (i < length && buffer[i] <= level && buffer[i] >= -level)
+            i += step;
+        if (i >= length)
+            return false;
+
+        // Windows from a little before the loud sample, a last partial window counts from half its length
+        int span = window * step;
+        for (int start = Math.max(0, i - span / 2); start + span / 2 <= length; start += span) {
+            if (toneDetected(buffer, start, Math.min(length, start + span)))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean toneDetected(short[] buffer, int from, int to) {
+        float c0 = coeff0, c1 = coeff1;
+        float s01 = 0, s02 = 0, s11 = 0, s12 = 0, energy = 0;
+        int n = 0;
+
+        for (int i = from; i < to; i += decimation) {
+            float x = buffer[i];
+            float t0 = x + c0 * s01 - s02;
+            s02 = s01;
+            s01 = t0;
+            float t1 = x + c1 * s11 - s12;
+            s12 = s11;
+            s11 = t1;
+            energy += x * x;
+            n++;
+        }
+
+        float p0 = s01 * s01 + s02 * s02 - c0 * s01 * s02;
+        float p1 = s11 * s11 + s12 * s12 - c1 * s11 * s12;
+
+        // A pure tone of amplitude A over n samples gives a power of (n * A / 2)^2 and an energy of n * A^2 / 2
+        float half = n / 2f;
+        float amplitude = (float) Math.sqrt(Math.max(p0, p1)) / half;
+        if (amplitude < threshold / 2)
+            return false;
+        return (p0 + p1) / half >= TONE_FRACTION * energy;
+    }
+
+    private void sleep(long nowNs) {
+        bAwake = false;
+        sleepCnt++;
+        switchMode(nowNs);
+    }
+
+    private void switchMode(long nowNs) {
+        long spent = nowNs - modeSinceNs;
+        if (bAwake)
+            lowPowerNs += spent;    // was in low power until now
+        else
+            awakeNs += spent;
+        modeSinceNs = nowNs;
+    }
+
+    // =====================================================================================
+    // 			*** Metrics ***
+    // =====================================================================================
+
+    /**
+     * @return <b>long</b> time spent in low power, up to the last period
+     */
+    public long getLowPowerTimeNs() {
+        return lowPowerNs + (bAwake ? 0 : lastAdmitNs - modeSinceNs);
+    }
+
+    /**
+     * @return <b>long</b> time spent awake and decoding at full rate, up to the last period
+     */
+    public long getAwakeTimeNs() {
+        return awakeNs + (bAwake ? lastAdmitNs - modeSinceNs : 0);
+    }
+
+    public long getWakeCount() {
+        return wakeCnt;
+    }
+
+    public long getSleepCount() {
+        return sleepCnt;
+    }
+
+    /**
+     * @return <b>long</b> decimated samples run through the tone filters
+     */
+    public long getWatchedSamples() {
+        return watchedSamples;
+    }
+
+    /**
+     * @return <b>long</b> samples handed to the decoder at full rate
+     */
+    public long getDecodedSamples() {
+        return decodedSamples;
+    }
+
+    /**
+     * Time window of the tone filters, the delay before a carrier is noticed.
+     */
+    public long getWindowNs() {
+        return window * decimation * 1000000000L / sampleRate;
+    }
+}
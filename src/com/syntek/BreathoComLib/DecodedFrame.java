@@ -0,0 +1,59 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * DecodedFrame is one reply decoded from the mic input. Immutable, it can be handed to any thread as it is.
+ */
+public final class DecodedFrame {
+    private final long sequence;
+    private final int code;
+    private final long timeNs;
+    private final long triggerSample;
+
+    /**
+     * Constructor for DecodedFrame.
+     *
+     * @param <b>long</b> publish sequence number, set by FrameDispatcher
+     * @param <b>int</b>  decoded code
+     * @param <b>long</b> System.nanoTime() of the capture period the frame was decoded in
+     * @param <b>long</b> stream position of the decoder trigger
+     */
+    DecodedFrame(long sequence, int code, long timeNs, long triggerSample) {
+        this.sequence = sequence;
+        this.code = code;
+        this.timeNs = timeNs;
+        this.triggerSample = triggerSample;
+    }
+
+    /**
+     * @return <b>long</b> publish sequence number, consecutive frames have consecutive numbers
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return <b>int</b> the decoded code, as returned by fetchResponse()
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return <b>long</b> System.nanoTime() of the capture period the frame was decoded in
+     */
+    public long getTimeNs() {
+        return timeNs;
+    }
+
+    /**
+     * @return <b>long</b> stream position of the first sample of the frame
+     */
+    public long getTriggerSample() {
+        return triggerSample;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodedFrame #" + sequence + " code=" + code;
+    }
+}
@@ -0,0 +1,158 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * DeviceProfile holds the audio settings tuned for one family of handsets: the transmit waveform set, the output
+ * stream and gain, and the receive threshold.
+ * <p/>
+ * A profile may also ask for forward error correction of multi-byte payloads, for handsets whose audio path drops
+ * or clips bursts of frames; see FecCodec.
+ * <p/>
+ * A profile applies to the handsets whose Build.MANUFACTURER and Build.MODEL match its patterns. Patterns are
+ * compared case-insensitively; "*" matches anything and a leading or trailing "*" matches a suffix or prefix,
+ * e.g. "*htc*" matches every manufacturer containing "htc". Profiles are immutable.
+ */
+public final class DeviceProfile {
+    /**
+     * Settings used when no profile matches, the original library behaviour.
+     */
+    public final static DeviceProfile DEFAULT = new DeviceProfile("default", "*", "*", "wav_header", "bit0", "bit1",
+            1 /* AudioManager.STREAM_SYSTEM */, 1.0f, 1024);
+
+    private final String name;
+    private final String manufacturerPattern;
+    private final String modelPattern;
+    private final String headerWaveform;
+    private final String bit0Waveform;
+    private final String bit1Waveform;
+    private final int streamType;
+    private final float gain;
+    private final int threshold;
+    private final int fecParity;
+    private final int fecDepth;
+
+    /**
+     * Constructor for DeviceProfile.
+     *
+     * @param <b>String</b> profile name, for logs
+     * @param <b>String</b> Build.MANUFACTURER pattern
+     * @param <b>String</b> Build.MODEL pattern
+     * @param <b>String</b> name of the header waveform in res/raw
+     * @param <b>String</b> name of the 0 bit waveform
+     * @param <b>String</b> name of the 1 bit waveform
+     * @param <b>int</b>    AudioManager stream type used for transmit
+     * @param <b>float</b>  transmit gain, 0.0 to 1.0 of AudioTrack.getMaxVolume()
+     * @param <b>int</b>    receive threshold of the decoder
+     */
+    public DeviceProfile(String name, String manufacturerPattern, String modelPattern, String headerWaveform,
+                         String bit0Waveform, String bit1Waveform, int streamType, float gain, int threshold) {
+        this(name, manufacturerPattern, modelPattern, headerWaveform, bit0Waveform, bit1Waveform, streamType, gain, threshold, 0, 1);
+    }
+
+    /**
+     * Constructor for DeviceProfile with payload error correction.
+     *
+     * @param <b>int</b> Reed-Solomon parity bytes per codeword of a payload, 0 for none
+     * @param <b>int</b> interleaving depth of a payload, 1 to FecCodec.MAX_DEPTH
+     * @see #DeviceProfile(String, String, String, String, String, String, int, float, int)
+     */
+    public DeviceProfile(String name, String manufacturerPattern, String modelPattern, String headerWaveform,
+                         String bit0Waveform, String bit1Waveform, int streamType, float gain, int threshold,
+                         int fecParity, int fecDepth) {
+        if (gain < 0.0f || gain > 1.0f)
+            throw new IllegalArgumentException("gain must be within 0.0 and 1.0: " + gain);
+        // Checked the way FecCodec does
+        new FecCodec(fecParity, fecDepth);
+
+        this.name = name;
+        this.manufacturerPattern = manufacturerPattern.toLowerCase();
+        this.modelPattern = modelPattern.toLowerCase();
+        this.headerWaveform = headerWaveform;
+        this.bit0Waveform = bit0Waveform;
+        this.bit1Waveform = bit1Waveform;
+        this.streamType = streamType;
+        this.gain = gain;
+        this.threshold = threshold;
+        this.fecParity = fecParity;
+        this.fecDepth = fecDepth;
+    }
+
+    /**
+     * @return <b>boolean</b> true if the profile applies to the handset
+     */
+    public boolean matches(String manufacturer, String model) {
+        return matchPattern(manufacturerPattern, manufacturer) && matchPattern(modelPattern, model);
+    }
+
+    static boolean matchPattern(String pattern, String value) {
+        if (pattern.equals("*"))
+            return true;
+        if (value == null)
+            return false;
+
+        value = value.toLowerCase();
+        boolean bPrefix = pattern.endsWith("*");
+        boolean bSuffix = pattern.startsWith("*");
+        String core = pattern.substring(bSuffix ? 1 : 0, pattern.length() - (bPrefix ? 1 : 0));
+
+        if (bPrefix && bSuffix)
+            return value.contains(core);
+        if (bPrefix)
+            return value.startsWith(core);
+        if (bSuffix)
+            return value.endsWith(core);
+        return value.equals(core);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHeaderWaveform() {
+        return headerWaveform;
+    }
+
+    public String getBit0Waveform() {
+        return bit0Waveform;
+    }
+
+    public String getBit1Waveform() {
+        return bit1Waveform;
+    }
+
+    public int getStreamType() {
+        return streamType;
+    }
+
+    public float getGain() {
+        return gain;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return <b>int</b> parity bytes per payload codeword, 0 when payloads are sent uncoded
+     */
+    public int getFecParity() {
+        return fecParity;
+    }
+
+    public int getFecDepth() {
+        return fecDepth;
+    }
+
+    /**
+     * @return <b>FecCodec</b> a new codec with the profile's settings, each decoding thread needs its own
+     */
+    public FecCodec createFecCodec() {
+        return new FecCodec(fecParity, fecDepth);
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceProfile[" + name + " " + manufacturerPattern + "/" + modelPattern + " " + headerWaveform + ","
+                + bit0Waveform + "," + bit1Waveform + " stream=" + streamType + " gain=" + gain + " threshold=" + threshold
+                + " fec=" + fecParity + "/" + fecDepth + "]";
+    }
+}
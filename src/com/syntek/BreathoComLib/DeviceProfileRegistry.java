@@ -0,0 +1,113 @@
+package com.syntek.BreathoComLib;
+
+import android.media.AudioManager;
+import au.com.bytecode.opencsv.CSVReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * DeviceProfileRegistry picks the DeviceProfile of the running handset.
+ * <p/>
+ * Profiles come from CSV data files (the library ships res/raw/device_profiles.csv) or are added by the app.
+ * Profiles added later take precedence, so an app can load its own file or add a profile to tune a new handset
+ * without a library release. When nothing matches, DeviceProfile.DEFAULT is used.
+ * <p/>
+ * CSV columns: name, manufacturer, model, header, bit0, bit1, stream, gain, threshold, and optionally fec parity and
+ * fec depth (default 0 and 1, no payload error correction). The stream is an AudioManager stream name without the
+ * STREAM_ prefix (SYSTEM, MUSIC, VOICE_CALL, RING, ALARM, NOTIFICATION). Lines starting with # and a header line
+ * starting with "name" are skipped.
+ */
+public class DeviceProfileRegistry {
+    private final ArrayList<DeviceProfile> profiles = new ArrayList<DeviceProfile>();
+
+    /**
+     * Add a profile ahead of every profile already registered.
+     */
+    public synchronized void add(DeviceProfile profile) {
+        profiles.add(0, profile);
+    }
+
+    /**
+     * Add every profile of a CSV data file, ahead of those already registered. The stream is closed.
+     *
+     * @param <b>InputStream</b> CSV data
+     * @return <b>int</b> number of profiles read
+     */
+    public int load(InputStream in) throws IOException {
+        ArrayList<DeviceProfile> loaded = new ArrayList<DeviceProfile>();
+        CSVReader reader = new CSVReader(new InputStreamReader(in, "UTF-8"));
+
+        try {
+            String[] row;
+            int line = 0;
+            while ((row = reader.readNext()) != null) {
+                line++;
+                if (row.length == 0 || row[0].trim().length() == 0 || row[0].trim().startsWith("#") || row[0].trim().equals("name"))
+                    continue;
+                loaded.add(parse(row, line));
+            }
+        } finally {
+            reader.close();
+        }
+
+        synchronized (this) {
+            // Within a file the first matching line wins, as it reads
+            profiles.addAll(0, loaded);
+        }
+
+        return loaded.size();
+    }
+
+    /**
+     * Find the profile of a handset.
+     *
+     * @param <b>String</b> Build.MANUFACTURER
+     * @param <b>String</b> Build.MODEL
+     * @return <b>DeviceProfile</b> the first matching profile, DeviceProfile.DEFAULT if none matches
+     */
+    public synchronized DeviceProfile resolve(String manufacturer, String model) {
+        for (DeviceProfile p : profiles) {
+            if (p.matches(manufacturer, model))
+                return p;
+        }
+
+        return DeviceProfile.DEFAULT;
+    }
+
+    public synchronized int size() {
+        return profiles.size();
+    }
+
+    private static DeviceProfile parse(String[] row, int line) throws IOException {
+        if (row.length < 9)
+            throw new IOException("device profile line " + line + ": 9 columns expected, found " + row.length);
+
+        try {
+            return new DeviceProfile(row[0].trim(), row[1].trim(), row[2].trim(), row[3].trim(), row[4].trim(), row[5].trim(),
+                    parseStream(row[6].trim()), Float.parseFloat(row[7].trim()), Integer.parseInt(row[8].trim()),
+                    (row.length > 9) ? Integer.parseInt(row[9].trim()) : 0, (row.length > 10) ? Integer.parseInt(row[10].trim()) : 1);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("device profile line " + line + ": " + e.getMessage());
+        }
+    }
+
+    static int parseStream(String s) {
+        if (s.equals("SYSTEM"))
+            return AudioManager.STREAM_SYSTEM;
+        if (s.equals("MUSIC"))
+            return AudioManager.STREAM_MUSIC;
+        if (s.equals("VOICE_CALL"))
+            return AudioManager.STREAM_VOICE_CALL;
+        if (s.equals("RING"))
+            return AudioManager.STREAM_RING;
+        if (s.equals("ALARM"))
+            return AudioManager.STREAM_ALARM;
+        if (s.equals("NOTIFICATION"))
+            return AudioManager.STREAM_NOTIFICATION;
+
+        throw new IllegalArgumentException("unknown stream " + s);
+    }
+}
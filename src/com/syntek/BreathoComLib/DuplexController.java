@@ -0,0 +1,269 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * DuplexController keeps the receive path half-duplex: while our own command is playing, and for a guard interval
+ * after its last sample, captured periods are not given to the decoder.
+ * <p/>
+ * Gated periods are only scanned for a carrier, which is much cheaper than the correlation, so that self-echo on
+ * headsets with crosstalk is counted instead of being decoded as a reply. The transmit window comes from the playback
+ * engine: it opens with beginTransmit() and closes guard ns after the measured last sample, see endTransmit().
+ * <p/>
+ * Our own echo reaches the capture one audio round trip after the last played sample, the accessory's reply that
+ * round trip plus its reply delay later. A fixed guard longer than the round trip gates out the first replies, a
+ * shorter one lets the echo tail through, where it triggers the decoder just before the reply. So the gate follows
+ * the echo: past the guard, a period stays gated while the carrier runs on from the end of the previous gated period
+ * into its first samples. The reply starts after a silence of at least the reply delay and reopens the gate. A period
+ * running past the guard end is only gated if the echo reaches into it, so that a calibrated guard does not swallow a
+ * reply starting in the same period. An echo starting after the guard, on handsets slower than the default, reaches
+ * the decoder until a LatencyCalibration is applied.
+ * The class has no Android dependency.
+ */
+public class DuplexController {
+    /**
+     * Give the period to the decoder.
+     */
+    public final static int GATE_OPEN = 0;
+    /**
+     * Skip the period, it overlaps our own transmission.
+     */
+    public final static int GATE_CLOSED = 1;
+    /**
+     * First period after a transmit window: reset the decoder, then give it the period.
+     */
+    public final static int GATE_REOPENED = 2;
+
+    /**
+     * Guard without a latency calibration. A reply reaches the capture one round trip plus the reply delay after the
+     * last played sample, at least 35ms plus 10ms on Android handsets: the default leaves a 10ms capture period of
+     * margin. The echo of longer round trips is followed, and a LatencyCalibration sizes the guard for the handset,
+     * see LatencyCalibration.getGuardIntervalMs().
+     */
+    public final static int DEFAULT_GUARD_MS = 30;
+
+    // Samples above the threshold within a period for the carrier to count as present
+    private final static int CARRIER_MIN_SAMPLES = 4;
+    // Edges of a period checked for the echo running on, well below the shortest reply delay
+    private final static int ECHO_EDGE_MS = 2;
+    // The echo is followed this long after the guard at most, beyond the slowest round trip
+    private final static long MAX_ECHO_NS = 400 * 1000000L;
+
+    private int sampleRate;            // set before the capture thread starts
+    private int edgeSamples;
+    private volatile int carrierThreshold;
+    private volatile long guardNs = DEFAULT_GUARD_MS * 1000000L;
+    private volatile boolean bEnabled = true;
+
+    // Transmit window in System.nanoTime(), end is Long.MAX_VALUE while the command is still playing
+    private volatile long windowStartNs = Long.MAX_VALUE;
+    private volatile long windowEndNs = Long.MIN_VALUE;
+    private volatile boolean bWindowOpen;
+
+    // Capture thread state
+    private boolean bGated;
+    private boolean bCarrier;
+    private boolean bEchoTail;         // carrier up to the end of the last gated period
+
+    private volatile long transmitWindows;
+    private volatile long gatedPeriods;
+    private volatile long gatedSamples;
+    private volatile long followedPeriods;
+    private volatile long suppressedFrames;
+
+    /**
+     * Constructor for DuplexController.
+     *
+     * @param <b>int</b> capture sample rate in Hz
+     * @param <b>int</b> amplitude above which a sample counts as carrier, usually the decoder threshold
+     */
+    public DuplexController(int sampleRate, int carrierThreshold) {
+        this.carrierThreshold = carrierThreshold;
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * Set the capture sample rate, once it is known. Call it before the capture thread admits its first period.
+     *
+     * @param <b>int</b> capture sample rate in Hz
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+        edgeSamples = Math.max(CARRIER_MIN_SAMPLES, sampleRate * ECHO_EDGE_MS / 1000);
+    }
+
+    /**
+     * @param <b>boolean</b> false to let every period through to the decoder
+     */
+    public void setEnabled(boolean bEnabled) {
+        this.bEnabled = bEnabled;
+    }
+
+    public boolean isEnabled() {
+        return bEnabled;
+    }
+
+    /**
+     * Set how long the decoder stays gated after the last transmitted sample, before the echo is followed. It must
+     * stay shorter than the round trip plus the device's reply delay, less a capture period.
+     *
+     * @param <b>int</b> guard interval in ms
+     */
+    public void setGuardIntervalMs(int ms) {
+        guardNs = ms * 1000000L;
+    }
+
+    public int getGuardIntervalMs() {
+        return (int) (guardNs / 1000000L);
+    }
+
+    public void setCarrierThreshold(int threshold) {
+        carrierThreshold = threshold;
+    }
+
+    /**
+     * A transmit is starting: gate the decoder from now until endTransmit().
+     */
+    public void beginTransmit() {
+        windowEndNs = Long.MAX_VALUE;
+        windowStartNs = System.nanoTime();
+        bWindowOpen = true;
+        transmitWindows++;
+    }
+
+    /**
+     * The transmit finished or was stopped. The gate stays closed for the guard interval.
+     *
+     * @param <b>long</b> System.nanoTime() of the last played sample
+     */
+    public void endTransmit(long lastSampleNs) {
+        if (!bWindowOpen)
+            return;
+
+        bWindowOpen = false;
+        windowEndNs = lastSampleNs + guardNs;
+    }
+
+    /**
+     * Decide what to do with a captured period. Called on the capture thread.
+     *
+     * @param <b>short[]</b> captured samples
+     * @param <b>int</b>     number of samples
+     * @param <b>long</b>    System.nanoTime() when the period was read
+     * @return <b>int</b> GATE_OPEN, GATE_CLOSED or GATE_REOPENED
+     */
+    public int admit(short[] buffer, int length, long readNs) {
+        // The period covers the length samples before it was read
+        long periodStartNs = readNs - (long) length * 1000000000L / sampleRate;
+        boolean bInWindow = bEnabled && readNs >= windowStartNs && periodStartNs < windowEndNs;
+        boolean bEchoAtEnd = true;
+
+        // A period running past the guard may hold the start of a reply: it is gated for echo before the guard end
+        if (bInWindow && readNs > windowEndNs) {
+            int head = (int) ((windowEndNs - periodStartNs) * sampleRate / 1000000000L);
+            int end = Math.min(length, head + edgeSamples);
+            bInWindow = hasCarrier(buffer, 0, end);
+            bEchoAtEnd = hasCarrier(buffer, Math.max(0, Math.min(head, length - edgeSamples)), end);
+        }
+
+        // Past the guard, the echo of a longer round trip still runs on from the last gated period
+        boolean bFollowed = !bInWindow && bGated && bEchoTail && bEnabled && periodStartNs - MAX_ECHO_NS < windowEndNs
+                && hasCarrier(buffer, 0, Math.min(edgeSamples, length));
+
+        if (bInWindow || bFollowed) {
+            bGated = true;
+            gatedPeriods++;
+            gatedSamples += length;
+            if (bFollowed)
+                followedPeriods++;
+            watchCarrier(buffer, length);
+            // Only an echo still running at the guard end is followed, not one that stopped before a reply
+            bEchoTail = (bFollowed || bEchoAtEnd) && hasCarrier(buffer, Math.max(0, length - edgeSamples), length);
+            return GATE_CLOSED;
+        }
+
+        if (bGated) {
+            bGated = false;
+            bCarrier = false;
+            return GATE_REOPENED;
+        }
+
+        return GATE_OPEN;
+    }
+
+    private void watchCarrier(short[] buffer, int length) {
+        int th = carrierThreshold;
+        int cnt = 0;
+
+        for (int i = 0; i < length && cnt < CARRIER_MIN_SAMPLES; i++) {
+            if (buffer[i] > th || buffer[i] < -th)
+                cnt++;
+        }
+
+        boolean bPresent = (cnt >= CARRIER_MIN_SAMPLES);
+        if (bPresent && !bCarrier)
+            suppressedFrames++;
+        bCarrier = bPresent;
+    }
+
+    // The echo holds the carrier throughout, noise only crosses the threshold now and then
+    private boolean hasCarrier(short[] buffer, int from, int to) {
+        int th = carrierThreshold;
+        int need = (to - from) / 4;
+        int cnt = 0;
+
+        for (int i = from; i < to && cnt < need; i++) {
+            if (buffer[i] > th || buffer[i] < -th)
+                cnt++;
+        }
+        return cnt >= need;
+    }
+
+    /**
+     * @return <b>long</b> number of transmit windows opened
+     */
+    public long getTransmitWindows() {
+        return transmitWindows;
+    }
+
+    /**
+     * @return <b>long</b> periods kept from the decoder
+     */
+    public long getGatedPeriods() {
+        return gatedPeriods;
+    }
+
+    /**
+     * @return <b>long</b> periods gated past the guard interval because our own echo was still running
+     */
+    public long getFollowedPeriods() {
+        return followedPeriods;
+    }
+
+    /**
+     * @return <b>long</b> samples not analysed by the decoder, i.e. the analysis work saved
+     */
+    public long getGatedSamples() {
+        return gatedSamples;
+    }
+
+    /**
+     * @return <b>long</b> carrier bursts seen while gated, i.e. self-echo that could have been decoded as a reply
+     */
+    public long getSuppressedFrames() {
+        return suppressedFrames;
+    }
+
+    /**
+     * @return <b>boolean</b> true while the last admitted period was gated
+     */
+    public boolean isGated() {
+        return bGated;
+    }
+
+    public void resetCounters() {
+        transmitWindows = 0;
+        gatedPeriods = 0;
+        gatedSamples = 0;
+        followedPeriods = 0;
+        suppressedFrames = 0;
+    }
+}
@@ -0,0 +1,294 @@
+package com.syntek.BreathoComLib;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * FailureCapture keeps the last seconds of mic input and, when a decode fails, dumps them as a wav file together with
+ * a binary trace of the detector envelopes and bit decisions.
+ * <p/>
+ * All buffers are allocated up front. The capture thread only copies into them; files are written by a background
+ * thread. While a dump is being written further failures are counted but not captured. The dump directory is kept
+ * under a byte cap by deleting the oldest dumps.
+ * <p/>
+ * Trace file layout (big endian): "BCTR", version, reason, sample rate, timestamp (ms), envelope length,
+ * f1 envelope (float[]), f2 envelope (float[]), diff decisions (byte[]).
+ */
+public class FailureCapture {
+    public final static int REASON_NO_CARRIER = 1;
+    public final static int REASON_BIT_AMBIGUOUS = 2;
+    public final static int REASON_FRAMING = 3;
+    public final static int REASON_HAMMING = 4;
+    public final static int REASON_SUSPICIOUS = 5;
+
+    private final static int TRACE_VERSION = 1;
+    private final static String FILE_PREFIX = "fail_";
+
+    private final File dir;
+    private final int sampleRate;
+    private final long maxDiskBytes;
+    private final int reasonMask;
+
+    // PCM ring of the live capture
+    private final short[] ring;
+    private int ringPos;
+    private boolean bRingFull;
+
+    // Snapshot handed to the writer thread
+    private final short[] snapPcm;
+    private final float[] snapF1, snapF2;
+    private final byte[] snapDiff;
+    private int snapPcmLength, snapTraceLength, snapReason;
+    private long snapTime;
+    private boolean bSnapPending;
+
+    private final Object lock = new Object();
+    private final Thread writerThread;
+    private volatile boolean bClosed;
+
+    private volatile int captureCnt, droppedCnt;
+
+    /**
+     * Constructor for FailureCapture. Starts the writer thread.
+     *
+     * @param <b>File</b> directory of the dumps, created if missing
+     * @param <b>int</b>  capture sample rate in Hz
+     * @param <b>int</b>  seconds of audio kept in the ring
+     * @param <b>int</b>  maximum length of the envelope traces
+     * @param <b>long</b> maximum bytes used by all dumps in the directory
+     * @param <b>int</b>  bit mask of (1 &lt;&lt; REASON_*) that trigger a dump
+     */
+    public FailureCapture(File dir, int sampleRate, int seconds, int traceLength, long maxDiskBytes, int reasonMask) {
+        this.dir = dir;
+        this.sampleRate = sampleRate;
+        this.maxDiskBytes = maxDiskBytes;
+        this.reasonMask = reasonMask;
+
+        ring = new short[sampleRate * seconds];
+        snapPcm = new short[ring.length];
+        snapF1 = new float[traceLength];
+        snapF2 = new float[traceLength];
+        snapDiff = new byte[traceLength];
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "BreathoComLib-FailureCapture");
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Default reason mask: everything except triggers that never reached the coherent threshold, which are mostly noise.
+     */
+    public static int defaultReasonMask() {
+        return (1 << REASON_BIT_AMBIGUOUS) | (1 << REASON_FRAMING) | (1 << REASON_HAMMING) | (1 << REASON_SUSPICIOUS);
+    }
+
+    /**
+     * Append captured samples to the ring. Called on the capture thread.
+     */
+    public void write(short[] buffer, int length) {
+        int off = 0;
+
+        // Only the tail fits if the period is longer than the ring
+        if (length > ring.length) {
+            off = length - ring.length;
+            length = ring.length;
+        }
+
+        int first = Math.min(length, ring.length - ringPos);
+        System.arraycopy(buffer, off, ring, ringPos, first);
+        System.arraycopy(buffer, off + first, ring, 0, length - first);
+
+        ringPos += length;
+        if (ringPos >= ring.length) {
+            ringPos -= ring.length;
+            bRingFull = true;
+        }
+    }
+
+    /**
+     * Report a failed or suspicious decode. Called on the capture thread right after the analysis.
+     *
+     * @param <b>int</b>     one of REASON_*
+     * @param <b>float[]</b> f1 envelope of the analysed pool
+     * @param <b>float[]</b> f2 envelope of the analysed pool
+     * @param <b>int[]</b>   bit decisions of the analysed pool
+     * @param <b>int</b>     number of valid entries in the envelopes
+     */
+    public void onDecodeFailure(int reason, float[] f1Value, float[] f2Value, int[] diff, int length) {
+        if ((reasonMask & (1 << reason)) == 0)
+            return;
+
+        synchronized (lock) {
+            if (bSnapPending || bClosed) {
+                droppedCnt++;
+                return;
+            }
+
+            // Unroll the ring, oldest sample first
+            if (bRingFull) {
+                System.arraycopy(ring, ringPos, snapPcm, 0, ring.length - ringPos);
+                System.arraycopy(ring, 0, snapPcm, ring.length - ringPos, ringPos);
+                snapPcmLength = ring.length;
+            } else {
+                System.arraycopy(ring, 0, snapPcm, 0, ringPos);
+                snapPcmLength = ringPos;
+            }
+
+            snapTraceLength = Math.min(length, snapF1.length);
+            System.arraycopy(f1Value, 0, snapF1, 0, snapTraceLength);
+            System.arraycopy(f2Value, 0, snapF2, 0, snapTraceLength);
+            for (int i = 0; i < snapTraceLength; i++)
+                snapDiff[i] = (byte) diff[i];
+
+            snapReason = reason;
+            snapTime = System.currentTimeMillis();
+            bSnapPending = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the writer thread. A dump in progress is completed.
+     */
+    public void close() {
+        synchronized (lock) {
+            bClosed = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return <b>int</b> number of dumps written
+     */
+    public int getCaptureCount() {
+        return captureCnt;
+    }
+
+    /**
+     * @return <b>int</b> number of failures not captured because a dump was still being written
+     */
+    public int getDroppedCount() {
+        return droppedCnt;
+    }
+
+    /**
+     * @return <b>File</b> directory holding the dumps
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    private void writerLoop() {
+        while (true) {
+            synchronized (lock) {
+                while (!bSnapPending && !bClosed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!bSnapPending)
+                    return;
+            }
+
+            // The snapshot is not touched by the capture thread while bSnapPending is set
+            try {
+                writeDump();
+                captureCnt++;
+            } catch (IOException e) {
+                // Storage errors must not affect decoding, the dump is lost
+            }
+            trimDirectory();
+
+            synchronized (lock) {
+                bSnapPending = false;
+            }
+        }
+    }
+
+    private void writeDump() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+
+        String name = FILE_PREFIX + snapTime + "_" + snapReason;
+
+        DataOutputStream wav = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, name + ".wav"))));
+        try {
+            int dataSize = snapPcmLength * 2;
+
+            wav.writeBytes("RIFF");
+            wav.writeInt(Integer.reverseBytes(36 + dataSize));
+            wav.writeBytes("WAVEfmt ");
+            wav.writeInt(Integer.reverseBytes(16));
+            wav.writeShort(Short.reverseBytes((short) 1));      // Linear PCM
+            wav.writeShort(Short.reverseBytes((short) 1));      // Mono
+            wav.writeInt(Integer.reverseBytes(sampleRate));
+            wav.writeInt(Integer.reverseBytes(sampleRate * 2));
+            wav.writeShort(Short.reverseBytes((short) 2));
+            wav.writeShort(Short.reverseBytes((short) 16));
+            wav.writeBytes("data");
+            wav.writeInt(Integer.reverseBytes(dataSize));
+            for (int i = 0; i < snapPcmLength; i++)
+                wav.writeShort(Short.reverseBytes(snapPcm[i]));
+        } finally {
+            wav.close();
+        }
+
+        DataOutputStream trace = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, name + ".trace"))));
+        try {
+            trace.writeBytes("BCTR");
+            trace.writeShort(TRACE_VERSION);
+            trace.writeShort(snapReason);
+            trace.writeInt(sampleRate);
+            trace.writeLong(snapTime);
+            trace.writeInt(snapTraceLength);
+            for (int i = 0; i < snapTraceLength; i++)
+                trace.writeFloat(snapF1[i]);
+            for (int i = 0; i < snapTraceLength; i++)
+                trace.writeFloat(snapF2[i]);
+            trace.write(snapDiff, 0, snapTraceLength);
+        } finally {
+            trace.close();
+        }
+    }
+
+    private void trimDirectory() {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        long total = 0;
+        for (int i = 0; i < files.length; i++)
+            total += files[i].length();
+        if (total <= maxDiskBytes)
+            return;
+
+        // Dump names start with their timestamp, so the oldest sort first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        for (int i = 0; (i < files.length) && (total > maxDiskBytes); i++) {
+            if (!files[i].getName().startsWith(FILE_PREFIX))
+                continue;
+            long size = files[i].length();
+            if (files[i].delete())
+                total -= size;
+        }
+    }
+}
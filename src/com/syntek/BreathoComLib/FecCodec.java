@@ -0,0 +1,437 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * FecCodec protects a multi-byte payload against the burst errors of the audio path, e.g. a clipping phone or a
+ * moving cable, with a shortened Reed-Solomon code over GF(256) and block interleaving.
+ * <p/>
+ * The payload is split into depth codewords, each of its data bytes followed by parity bytes, and the codewords are
+ * sent column by column, one byte per 8-bit frame. A burst of lost frames thus hits every codeword with at most
+ * ceil(burst / depth) bytes. A codeword corrects e wrong bytes and f erased bytes as long as 2e + f does not exceed
+ * its parity bytes; a frame the receiver knows to be broken (Hamming error, missing in its slot) should be passed as
+ * an erasure, which costs half as much parity as an unknown error.
+ * <p/>
+ * With parity, a CRC-16 (CCITT) is appended to the payload before coding: a codeword hit beyond its capability can
+ * be "corrected" into another valid codeword, and little parity is left to notice it once many bytes are erased.
+ * Such a payload fails the CRC and is rejected instead of being delivered wrong. Without parity the payload is sent
+ * as it is.
+ * <p/>
+ * The code is generated by (x - a^0)...(x - a^(parity-1)) over GF(2^8) with polynomial 0x11D. Decoding is
+ * Berlekamp-Massey started from the erasure locator, Chien search and Forney. A codeword holds 255 bytes at most,
+ * so a payload holds depth * (255 - parity) - 2 bytes at most. Payloads shorter than depth use one codeword per byte.
+ * <p/>
+ * The codec settings are immutable; encode() may be called from any thread, decode() uses scratch buffers and is not
+ * thread-safe.
+ */
+public class FecCodec {
+    public final static int MAX_CODEWORD = 255;
+    public final static int MAX_DEPTH = 16;
+    public final static int CRC_BYTES = 2;
+
+    private final static int PRIMITIVE = 0x11D;
+    private final static int[] EXP = new int[2 * MAX_CODEWORD];
+    private final static int[] LOG = new int[MAX_CODEWORD + 1];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < MAX_CODEWORD; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x > 0xFF)
+                x ^= PRIMITIVE;
+        }
+        for (int i = MAX_CODEWORD; i < EXP.length; i++)
+            EXP[i] = EXP[i - MAX_CODEWORD];
+    }
+
+    private final int parity;
+    private final int depth;
+    private final int[] generator;    // highest degree first, generator[0] = 1
+
+    // Decoder scratch, sized for the longest codeword
+    private final int[] word = new int[MAX_CODEWORD];
+    private final int[] erasures = new int[MAX_CODEWORD];
+    private final int[] syndromes;
+    private final int[] lambda, prev, temp, omega;
+
+    private int correctedCnt, failedCnt;
+
+    /**
+     * Constructor for FecCodec.
+     *
+     * @param <b>int</b> parity bytes per codeword, 0 for none
+     * @param <b>int</b> interleaving depth, codewords per payload, 1 to MAX_DEPTH
+     */
+    public FecCodec(int parity, int depth) {
+        if (parity < 0 || parity >= MAX_CODEWORD)
+            throw new IllegalArgumentException("parity must be within 0 and " + (MAX_CODEWORD - 1) + ": " + parity);
+        if (depth < 1 || depth > MAX_DEPTH)
+            throw new IllegalArgumentException("depth must be within 1 and " + MAX_DEPTH + ": " + depth);
+
+        this.parity = parity;
+        this.depth = depth;
+
+        generator = new int[parity + 1];
+        generator[0] = 1;
+        for (int j = 0; j < parity; j++) {
+            // Multiply by (x + a^j), from the lowest coefficient up so each one is still the old value when read
+            for (int i = j + 1; i > 0; i--)
+                generator[i] ^= mul(generator[i - 1], EXP[j]);
+        }
+
+        syndromes = new int[parity];
+        lambda = new int[parity + 1];
+        prev = new int[parity + 1];
+        temp = new int[parity + 1];
+        omega = new int[parity];
+    }
+
+    // =====================================================================================
+    // 			*** Layout ***
+    // =====================================================================================
+
+    public int getParityBytes() {
+        return parity;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return <b>int</b> largest payload in bytes
+     */
+    public int getMaxPayload() {
+        return depth * (MAX_CODEWORD - parity) - checkBytes();
+    }
+
+    /**
+     * @param <b>int</b> payload bytes
+     * @return <b>int</b> frames sent for the payload
+     */
+    public int getFrameCount(int length) {
+        int block = length + checkBytes();
+        return block + codewords(block) * parity;
+    }
+
+    /**
+     * @param <b>int</b> payload bytes
+     * @return <b>double</b> payload bytes per frame sent
+     */
+    public double getCodeRate(int length) {
+        return (length == 0) ? 1.0 : (double) length / getFrameCount(length);
+    }
+
+    private int checkBytes() {
+        return (parity > 0) ? CRC_BYTES : 0;
+    }
+
+    private int codewords(int length) {
+        return Math.max(1, Math.min(depth, length));
+    }
+
+    // Data bytes of codeword d
+    private static int dataBytes(int length, int cw, int d) {
+        return length / cw + ((d < length % cw) ? 1 : 0);
+    }
+
+    private void checkLength(int length) {
+        if (length < 0 || length > getMaxPayload())
+            throw new IllegalArgumentException("payload must be within 0 and " + getMaxPayload() + " bytes: " + length);
+    }
+
+    // =====================================================================================
+    // 			*** Encoder ***
+    // =====================================================================================
+
+    /**
+     * Encode a payload into frames, in sending order.
+     *
+     * @param <b>byte[]</b> payload
+     * @param <b>int</b>    offset of the first byte
+     * @param <b>int</b>    payload bytes
+     * @return <b>int[]</b> 8-bit frames, getFrameCount(length) of them
+     */
+    public int[] encode(byte[] data, int offset, int length) {
+        checkLength(length);
+        if (parity > 0) {
+            byte[] block = new byte[length + CRC_BYTES];
+            System.arraycopy(data, offset, block, 0, length);
+            int crc = crc16(block, length);
+            block[length] = (byte) (crc >> 8);
+            block[length + 1] = (byte) crc;
+            data = block;
+            offset = 0;
+            length = block.length;
+        }
+
+        int cw = codewords(length);
+        int[] frames = new int[getFrameCount(length)];
+        int[] reg = new int[parity];
+
+        // Byte j of codeword d is sent as frame framePosition(d, j)
+        int src = offset;
+        for (int d = 0; d < cw; d++) {
+            int k = dataBytes(length, cw, d);
+            for (int i = 0; i < parity; i++)
+                reg[i] = 0;
+
+            for (int j = 0; j < k; j++) {
+                int b = data[src + j] & 0xFF;
+                frames[framePosition(length, cw, d, j)] = b;
+
+                // Systematic division by the generator
+                int fb = b ^ ((parity > 0) ? reg[0] : 0);
+                for (int i = 0; i < parity - 1; i++)
+                    reg[i] = reg[i + 1] ^ mul(fb, generator[i + 1]);
+                if (parity > 0)
+                    reg[parity - 1] = mul(fb, generator[parity]);
+            }
+            for (int i = 0; i < parity; i++)
+                frames[framePosition(length, cw, d, k + i)] = reg[i];
+            src += k;
+        }
+
+        return frames;
+    }
+
+    // Column by column: every codeword has its column j sent before any column j + 1
+    private int framePosition(int length, int cw, int d, int j) {
+        int shortLength = length / cw + parity;
+
+        if (j < shortLength)
+            return j * cw + d;
+        // Only the longer codewords have a byte in the last column
+        return shortLength * cw + d;
+    }
+
+    // =====================================================================================
+    // 			*** Decoder ***
+    // =====================================================================================
+
+    /**
+     * Decode frames received for a payload.
+     *
+     * @param <b>int[]</b>     frames in sending order, getFrameCount(length) of them, the low 8 bits are used
+     * @param <b>boolean[]</b> true for the frames known to be broken or missing, null if none are
+     * @param <b>int</b>       payload bytes
+     * @return <b>byte[]</b> the payload, null if a codeword could not be corrected or the payload fails its CRC
+     */
+    public byte[] decode(int[] frames, boolean[] erased, int payloadLength) {
+        checkLength(payloadLength);
+        int length = payloadLength + checkBytes();
+        int cw = codewords(length);
+        byte[] data = new byte[length];
+
+        int dst = 0;
+        for (int d = 0; d < cw; d++) {
+            int k = dataBytes(length, cw, d);
+            int n = k + parity;
+            int f = 0;
+            for (int j = 0; j < n; j++) {
+                int pos = framePosition(length, cw, d, j);
+                word[j] = frames[pos] & 0xFF;
+                if (erased != null && erased[pos])
+                    erasures[f++] = j;
+            }
+
+            int fixed = correct(n, f);
+            if (fixed < 0) {
+                failedCnt++;
+                return null;
+            }
+            correctedCnt += fixed;
+
+            for (int j = 0; j < k; j++)
+                data[dst + j] = (byte) word[j];
+            dst += k;
+        }
+
+        if (parity == 0)
+            return data;
+        int crc = ((data[payloadLength] & 0xFF) << 8) | (data[payloadLength + 1] & 0xFF);
+        if (crc != crc16(data, payloadLength)) {
+            failedCnt++;
+            return null;
+        }
+        byte[] payload = new byte[payloadLength];
+        System.arraycopy(data, 0, payload, 0, payloadLength);
+        return payload;
+    }
+
+    // CRC-16/CCITT-FALSE
+    static int crc16(byte[] data, int length) {
+        int crc = 0xFFFF;
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int b = 0; b < 8; b++)
+                crc = ((crc & 0x8000) != 0) ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+        return crc & 0xFFFF;
+    }
+
+    // Correct word[0..n-1] in place given f erasure positions; returns the bytes changed, -1 if uncorrectable
+    private int correct(int n, int f) {
+        if (f > parity)
+            return -1;
+
+        boolean bClean = true;
+        for (int j = 0; j < parity; j++) {
+            syndromes[j] = evaluate(n, EXP[j]);
+            bClean &= syndromes[j] == 0;
+        }
+        if (bClean)
+            return 0;
+
+        // Erasure locator: product of (1 + X x) over the erased positions, X = a^(n - 1 - position)
+        clear(lambda);
+        lambda[0] = 1;
+        for (int e = 0; e < f; e++) {
+            int x = EXP[n - 1 - erasures[e]];
+            for (int i = e + 1; i > 0; i--)
+                lambda[i] ^= mul(lambda[i - 1], x);
+        }
+        System.arraycopy(lambda, 0, prev, 0, parity + 1);
+
+        // Berlekamp-Massey, carrying on from the erasures
+        int l = f;
+        for (int r = f; r < parity; r++) {
+            int delta = 0;
+            for (int i = 0; i <= Math.min(l, r); i++)
+                delta ^= mul(lambda[i], syndromes[r - i]);
+
+            // prev = x * prev
+            System.arraycopy(prev, 0, prev, 1, parity);
+            prev[0] = 0;
+
+            if (delta != 0) {
+                for (int i = 0; i <= parity; i++)
+                    temp[i] = lambda[i] ^ mul(delta, prev[i]);
+                if (2 * l <= r + f) {
+                    int inv = inverse(delta);
+                    for (int i = 0; i <= parity; i++)
+                        prev[i] = mul(lambda[i], inv);
+                    l = r + 1 + f - l;
+                }
+                System.arraycopy(temp, 0, lambda, 0, parity + 1);
+            }
+        }
+
+        int degree = parity;
+        while (degree > 0 && lambda[degree] == 0)
+            degree--;
+        if (degree != l || 2 * (l - f) + f > parity)
+            return -1;
+
+        // Error evaluator: syndromes * lambda mod x^parity
+        for (int i = 0; i < parity; i++) {
+            int v = 0;
+            for (int j = 0; j <= Math.min(i, degree); j++)
+                v ^= mul(syndromes[i - j], lambda[j]);
+            omega[i] = v;
+        }
+
+        // Chien search over the positions of the shortened codeword, Forney for the values
+        int roots = 0, changed = 0;
+        for (int j = 0; j < n; j++) {
+            int power = n - 1 - j;
+            int xInv = EXP[(MAX_CODEWORD - power) % MAX_CODEWORD];
+            if (poly(lambda, degree, xInv) != 0)
+                continue;
+            roots++;
+
+            int num = poly(omega, parity - 1, xInv);
+            int den = 0;
+            for (int i = 1; i <= degree; i += 2)
+                den ^= mul(lambda[i], power(xInv, i - 1));
+            if (den == 0)
+                return -1;
+            int value = mul(EXP[power], div(num, den));
+            if (value != 0) {
+                word[j] ^= value;
+                changed++;
+            }
+        }
+        if (roots != degree)
+            return -1;
+
+        // A word beyond the capability may still give a consistent locator; only a valid codeword is accepted
+        for (int j = 0; j < parity; j++) {
+            if (evaluate(n, EXP[j]) != 0)
+                return -1;
+        }
+        return changed;
+    }
+
+    // word(x) at x, word[0] being the highest degree
+    private int evaluate(int n, int x) {
+        int s = 0;
+        for (int j = 0; j < n; j++)
+            s = mul(s, x) ^ word[j];
+        return s;
+    }
+
+    // p(x) for p with the lowest degree first
+    private static int poly(int[] p, int degree, int x) {
+        int s = 0;
+        for (int i = degree; i >= 0; i--)
+            s = mul(s, x) ^ p[i];
+        return s;
+    }
+
+    private static void clear(int[] a) {
+        for (int i = 0; i < a.length; i++)
+            a[i] = 0;
+    }
+
+    // =====================================================================================
+    // 			*** GF(256) ***
+    // =====================================================================================
+
+    static int mul(int a, int b) {
+        if (a == 0 || b == 0)
+            return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    static int div(int a, int b) {
+        if (a == 0)
+            return 0;
+        return EXP[LOG[a] + MAX_CODEWORD - LOG[b]];
+    }
+
+    static int inverse(int a) {
+        return EXP[MAX_CODEWORD - LOG[a]];
+    }
+
+    static int power(int a, int e) {
+        if (e == 0)
+            return 1;
+        if (a == 0)
+            return 0;
+        return EXP[(LOG[a] * e) % MAX_CODEWORD];
+    }
+
+    // =====================================================================================
+    // 			*** Metrics ***
+    // =====================================================================================
+
+    /**
+     * @return <b>int</b> bytes corrected by decode() so far, erasures included
+     */
+    public int getCorrectedCount() {
+        return correctedCnt;
+    }
+
+    /**
+     * @return <b>int</b> decode() calls that failed, uncorrectable or failing the CRC
+     */
+    public int getFailedCount() {
+        return failedCnt;
+    }
+
+    @Override
+    public String toString() {
+        return "FecCodec[parity=" + parity + " depth=" + depth + "]";
+    }
+}
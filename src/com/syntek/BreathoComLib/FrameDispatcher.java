@@ -0,0 +1,188 @@
+package com.syntek.BreathoComLib;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * FrameDispatcher hands the decoded frames from the capture thread to the app threads.
+ * <p/>
+ * Every frame is published once as an immutable DecodedFrame into the lock-free queue of each open Session, so every
+ * consumer thread has its own queue and sees every frame in order; a session that falls behind its capacity drops its
+ * oldest frames and counts them. The latest frame is also kept for the polling API of BreathoComLib, see fetch().
+ * Publishing never blocks and takes a lock only to wake up a consumer waiting in Session.next().
+ */
+public class FrameDispatcher {
+    private final CopyOnWriteArrayList<Session> sessions = new CopyOnWriteArrayList<Session>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicReference<DecodedFrame> latest = new AtomicReference<DecodedFrame>();
+    private final AtomicReference<DecodedFrame> unfetched = new AtomicReference<DecodedFrame>();
+
+    /**
+     * Queue of decoded frames owned by one consumer.
+     */
+    public final class Session {
+        private final int capacity;
+        private final ConcurrentLinkedQueue<DecodedFrame> queue = new ConcurrentLinkedQueue<DecodedFrame>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong lost = new AtomicLong();
+        private volatile int waiterCnt;
+        private volatile boolean bClosed;
+
+        Session(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void offer(DecodedFrame frame) {
+            queue.offer(frame);
+            if (size.incrementAndGet() > capacity && queue.poll() != null) {
+                size.decrementAndGet();
+                lost.incrementAndGet();
+            }
+
+            if (waiterCnt > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Get the next frame if one is available.
+         *
+         * @return <b>DecodedFrame</b> the oldest frame not read yet, or null
+         */
+        public DecodedFrame poll() {
+            DecodedFrame frame = queue.poll();
+            if (frame != null)
+                size.decrementAndGet();
+            return frame;
+        }
+
+        /**
+         * Get the next frame, waiting for it if necessary.
+         *
+         * @param <b>long</b> maximum wait in ms, 0 to return at once
+         * @return <b>DecodedFrame</b> the oldest frame not read yet, null on timeout or when closed
+         */
+        public DecodedFrame next(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+
+            while (!bClosed) {
+                DecodedFrame frame = poll();
+                if (frame != null)
+                    return frame;
+
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    return null;
+
+                synchronized (this) {
+                    waiterCnt++;
+                    try {
+                        // Checked after announcing the wait, a frame offered meanwhile notifies
+                        if (queue.isEmpty() && !bClosed)
+                            wait(wait);
+                    } finally {
+                        waiterCnt--;
+                    }
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * @return <b>int</b> frames waiting to be read
+         */
+        public int available() {
+            return Math.max(0, size.get());
+        }
+
+        /**
+         * @return <b>long</b> frames dropped because the session was full
+         */
+        public long getLostCount() {
+            return lost.get();
+        }
+
+        /**
+         * Stop receiving frames. A thread waiting in next() returns null.
+         */
+        public void close() {
+            sessions.remove(this);
+            synchronized (this) {
+                bClosed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Open a session receiving the frames published from now on.
+     *
+     * @param <b>int</b> frames kept for the consumer, the oldest are dropped beyond it
+     * @return <b>Session</b> the new session, to be closed when done
+     */
+    public Session openSession(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        Session s = new Session(capacity);
+        sessions.add(s);
+        return s;
+    }
+
+    /**
+     * Publish a decoded frame to every open session. May be called from any thread, usually the capture thread;
+     * frames published by one thread reach every session in order.
+     *
+     * @param <b>int</b>  decoded code
+     * @param <b>long</b> System.nanoTime() of the capture period
+     * @param <b>long</b> stream position of the decoder trigger
+     * @return <b>DecodedFrame</b> the published frame
+     */
+    public DecodedFrame publish(int code, long timeNs, long triggerSample) {
+        DecodedFrame frame = new DecodedFrame(published.getAndIncrement(), code, timeNs, triggerSample);
+        latest.set(frame);
+        unfetched.set(frame);
+        for (Session s : sessions)
+            s.offer(frame);
+        return frame;
+    }
+
+    /**
+     * Take the latest frame if it has not been fetched yet. Only one of several racing callers gets it.
+     *
+     * @return <b>DecodedFrame</b> the latest frame, null if there is none or it was already fetched
+     */
+    public DecodedFrame fetch() {
+        return unfetched.getAndSet(null);
+    }
+
+    /**
+     * @return <b>boolean</b> true if a frame was published since the last fetch()
+     */
+    public boolean hasUnfetched() {
+        return unfetched.get() != null;
+    }
+
+    /**
+     * @return <b>DecodedFrame</b> the latest frame, fetched or not, null if none was published
+     */
+    public DecodedFrame getLatest() {
+        return latest.get();
+    }
+
+    /**
+     * @return <b>long</b> frames published so far
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,232 @@
+package com.syntek.BreathoComLib;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * FrameTracer timestamps the stages a frame goes through, on receive and on transmit, for end-to-end latency
+ * analysis. The events can be written as Chrome trace JSON, which chrome://tracing and Perfetto open.
+ * <p/>
+ * Every trace point is guarded by a test of the static flag bEnabled, so a disabled tracer costs one field read.
+ * When enabled, each thread writes into its own preallocated ring (the newest events are kept), found through a
+ * ThreadLocal; there is no lock and no allocation per event. Export may run on any thread while tracing goes on.
+ */
+public final class FrameTracer {
+    // Receive stages
+    public final static int CAPTURE_READ = 0;   // a capture period was read, arg: frames
+    public final static int TRIGGER = 1;        // the decoder triggered, arg: stream position of the trigger
+    public final static int ANALYSIS = 2;       // span of nonCoherentOperation()
+    public final static int DECODE = 3;         // analysis result, arg: the code, or -decode error
+    public final static int DELIVER = 4;        // a code was handed to the app side, arg: the code
+    public final static int APP_FETCH = 5;      // the app fetched a code with fetchResponse(), arg: the code
+    // Transmit stages
+    public final static int TX_BUILD = 6;       // span of building the command waveform, arg: commands
+    public final static int TX_START = 7;       // first sample played, arg: frames
+    public final static int TX_END = 8;         // last sample played, arg: frames
+
+    public final static int DEFAULT_EVENTS_PER_THREAD = 16384;
+
+    private final static String[] STAGE_NAMES = {
+            "capture read", "trigger", "analysis", "decode", "deliver", "app fetch",
+            "tx build", "tx start", "tx end"
+    };
+
+    private final static int PHASE_INSTANT = 0;
+    private final static int PHASE_BEGIN = 1;
+    private final static int PHASE_END = 2;
+    private final static char[] PHASE_CODES = {'i', 'B', 'E'};
+
+    /**
+     * Tested by every trace point; not volatile, a thread may see a change a little late.
+     */
+    static boolean bEnabled;
+
+    private static volatile int eventsPerThread = DEFAULT_EVENTS_PER_THREAD;
+    private static volatile int generation;
+    private static volatile long baseNs;
+
+    private final static CopyOnWriteArrayList<Buffer> buffers = new CopyOnWriteArrayList<Buffer>();
+
+    private final static ThreadLocal<Buffer> local = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return register();
+        }
+    };
+
+    /**
+     * Events of one thread. Written by that thread only.
+     */
+    private final static class Buffer {
+        final String threadName;
+        final long threadId;
+        final int generation;
+        final long[] times;
+        final long[] args;
+        final int[] kinds;    // phase << 8 | stage
+
+        // Events written so far, the volatile write publishes the event before it
+        volatile long written;
+
+        Buffer(Thread thread, int generation, int capacity) {
+            this.threadName = thread.getName();
+            this.threadId = thread.getId();
+            this.generation = generation;
+            times = new long[capacity];
+            args = new long[capacity];
+            kinds = new int[capacity];
+        }
+
+        void add(int kind, long timeNs, long arg) {
+            long w = written;
+            int slot = (int) (w % times.length);
+            times[slot] = timeNs;
+            args[slot] = arg;
+            kinds[slot] = kind;
+            written = w + 1;
+        }
+    }
+
+    private FrameTracer() {
+    }
+
+    /**
+     * Start tracing, dropping the events of a previous run.
+     *
+     * @param <b>int</b> events kept per thread, the oldest are overwritten
+     */
+    public static synchronized void enable(int eventsPerThread) {
+        if (eventsPerThread < 2)
+            throw new IllegalArgumentException("eventsPerThread must be at least 2: " + eventsPerThread);
+        FrameTracer.eventsPerThread = eventsPerThread;
+        baseNs = System.nanoTime();
+        generation++;
+        buffers.clear();
+        bEnabled = true;
+    }
+
+    public static void enable() {
+        enable(DEFAULT_EVENTS_PER_THREAD);
+    }
+
+    /**
+     * Stop tracing. The events stay available for export.
+     */
+    public static void disable() {
+        bEnabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return bEnabled;
+    }
+
+    // =====================================================================================
+    // 			*** Trace points, call only when bEnabled ***
+    // =====================================================================================
+
+    public static void instant(int stage, long arg) {
+        buffer().add(PHASE_INSTANT << 8 | stage, System.nanoTime(), arg);
+    }
+
+    /**
+     * Instant event with a timestamp measured elsewhere, e.g. a back-dated playback position.
+     */
+    public static void instantAt(int stage, long timeNs, long arg) {
+        buffer().add(PHASE_INSTANT << 8 | stage, timeNs, arg);
+    }
+
+    public static void begin(int stage, long arg) {
+        buffer().add(PHASE_BEGIN << 8 | stage, System.nanoTime(), arg);
+    }
+
+    public static void end(int stage) {
+        buffer().add(PHASE_END << 8 | stage, System.nanoTime(), 0);
+    }
+
+    private static Buffer buffer() {
+        Buffer b = local.get();
+        if (b.generation != generation) {
+            // Tracing was restarted since this thread last traced
+            b = register();
+            local.set(b);
+        }
+        return b;
+    }
+
+    private static Buffer register() {
+        Buffer b = new Buffer(Thread.currentThread(), generation, eventsPerThread);
+        buffers.add(b);
+        return b;
+    }
+
+    // =====================================================================================
+    // 			*** Export ***
+    // =====================================================================================
+
+    /**
+     * Write the events of every thread as Chrome trace JSON. Timestamps are in us since enable().
+     */
+    public static void writeJson(Writer out) throws IOException {
+        long base = baseNs;
+
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean bFirst = true;
+        for (Buffer b : buffers) {
+            if (!bFirst)
+                out.write(',');
+            bFirst = false;
+            out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + b.threadId
+                    + ",\"args\":{\"name\":\"" + escape(b.threadName) + "\"}}");
+
+            int capacity = b.times.length;
+            long end = b.written;
+            long start = Math.max(0, end - capacity + 1);
+            StringBuilder sb = new StringBuilder(96);
+            for (long i = start; i < end; i++) {
+                int slot = (int) (i % capacity);
+                long t = b.times[slot];
+                long arg = b.args[slot];
+                int kind = b.kinds[slot];
+
+                // Lapped by the writer while exporting, the rest is newer than what was written out
+                if (i < b.written - capacity + 1)
+                    continue;
+
+                int phase = kind >> 8;
+                int stage = kind & 0xFF;
+                sb.setLength(0);
+                sb.append(",{\"name\":\"").append(STAGE_NAMES[stage]).append("\",\"cat\":\"")
+                        .append(stage >= TX_BUILD ? "tx" : "rx").append("\",\"ph\":\"").append(PHASE_CODES[phase])
+                        .append("\",\"pid\":1,\"tid\":").append(b.threadId).append(",\"ts\":")
+                        .append((t - base) / 1000.0);
+                if (phase == PHASE_INSTANT)
+                    sb.append(",\"s\":\"t\"");
+                if (phase != PHASE_END)
+                    sb.append(",\"args\":{\"v\":").append(arg).append('}');
+                sb.append('}');
+                out.write(sb.toString());
+            }
+        }
+        out.write("]}\n");
+    }
+
+    /**
+     * @param <b>File</b> trace file to write, e.g. trace.json
+     */
+    public static void writeJson(File file) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            writeJson(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,102 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * LatencyCalibration holds the audio round trip measured on one handset by a LatencyProbe, and the transmit and
+ * receive timings sized from it. Calibrations are immutable.
+ * <p/>
+ * Without one the library uses the DEFAULT_* timings, which were chosen to be safe on slow handsets.
+ */
+public final class LatencyCalibration {
+    public final static int DEFAULT_LEADER_MS = 80;
+    public final static int DEFAULT_HEAD_WINDOW_MS = 100;
+
+    private final static int LEADER_STEP_MS = 10;       // SoundEncoder silence granularity
+    private final static int MIN_HEAD_WINDOW_MS = 20;
+    private final static int ECHO_TAIL_MS = 2;
+
+    private final float roundTripMs;
+    private final float jitterMs;
+    private final float rampMs;
+    private final int probeCount;
+    private final long timeMs;
+
+    /**
+     * Constructor for LatencyCalibration.
+     *
+     * @param <b>float</b> median round trip from player to capture in ms
+     * @param <b>float</b> largest round trip above the median in ms
+     * @param <b>float</b> time the output path takes to reach full level in ms, -1 if longer than the probe tone
+     * @param <b>int</b>   number of probes measured
+     * @param <b>long</b>  System.currentTimeMillis() of the calibration
+     */
+    public LatencyCalibration(float roundTripMs, float jitterMs, float rampMs, int probeCount, long timeMs) {
+        this.roundTripMs = roundTripMs;
+        this.jitterMs = jitterMs;
+        this.rampMs = rampMs;
+        this.probeCount = probeCount;
+        this.timeMs = timeMs;
+    }
+
+    public float getRoundTripMs() {
+        return roundTripMs;
+    }
+
+    public float getJitterMs() {
+        return jitterMs;
+    }
+
+    /**
+     * @return <b>float</b> ramp-up of the output path in ms, -1 if longer than LatencyProbe.TONE_MS
+     */
+    public float getRampMs() {
+        return rampMs;
+    }
+
+    public int getProbeCount() {
+        return probeCount;
+    }
+
+    public long getTimeMs() {
+        return timeMs;
+    }
+
+    /**
+     * @return <b>int</b> silence before a command so that the ramp-up does not eat into it, one step above the
+     * measured ramp and at most DEFAULT_LEADER_MS
+     */
+    public int getSilenceLeaderMs() {
+        if (rampMs < 0)
+            return DEFAULT_LEADER_MS;
+        int leader = ((int) Math.ceil(rampMs / LEADER_STEP_MS) + 1) * LEADER_STEP_MS;
+        return Math.min(DEFAULT_LEADER_MS, leader);
+    }
+
+    /**
+     * @return <b>int</b> head window: the reply to a command cannot start earlier than one round trip after it
+     */
+    public int getHeadWindowMs() {
+        return Math.max(MIN_HEAD_WINDOW_MS, (int) Math.ceil(roundTripMs + 2 * jitterMs));
+    }
+
+    /**
+     * @return <b>int</b> duplex guard after the last played sample: our own echo arrives one round trip later
+     */
+    public int getGuardIntervalMs() {
+        return (int) Math.ceil(roundTripMs + jitterMs) + ECHO_TAIL_MS;
+    }
+
+    /**
+     * @return <b>int</b> shortest wait for a reply after the last played sample of a command, to which the time the
+     * accessory takes to answer must be added
+     */
+    public int getMinReplyTimeoutMs() {
+        return (int) Math.ceil(roundTripMs + 2 * jitterMs);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyCalibration[roundTrip=" + roundTripMs + "ms jitter=" + jitterMs + "ms ramp=" + rampMs + "ms leader="
+                + getSilenceLeaderMs() + "ms headWindow=" + getHeadWindowMs() + "ms guard=" + getGuardIntervalMs() + "ms probes="
+                + probeCount + "]";
+    }
+}
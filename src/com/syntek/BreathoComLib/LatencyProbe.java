@@ -0,0 +1,241 @@
+package com.syntek.BreathoComLib;
+
+import java.util.Arrays;
+
+/**
+ * LatencyProbe measures the audio round trip of a handset: how long a sample takes from the player to the mic
+ * capture, and how long the output path takes to reach full level after it starts playing.
+ * <p/>
+ * The probe signal is played without a silence leader: a steady tone, a gap, a linear chirp, a gap and a short
+ * reference burst of the same tone. The chirp is found in the capture by a matched filter, which gives its arrival to
+ * the sample; the round trip is the time from its first played sample (TransmitResult.getFirstSampleTimeNs() plus its
+ * offset in the signal) to its first captured sample. The tones lie known distances from the chirp. The envelope of
+ * the first one in 1ms steps, against the level of the reference burst, shows how long the output path needed to
+ * ramp up: that is the part of a command a silence leader must protect.
+ * <p/>
+ * Feed each capture with addProbe(), then compute() the calibration from the median round trip, its spread and the
+ * longest ramp. The class has no Android dependency and is not thread-safe.
+ */
+public class LatencyProbe {
+    public final static int MAX_PROBES = 16;
+    /**
+     * Longest round trip looked for.
+     */
+    public final static int MAX_ROUND_TRIP_MS = 500;
+    /**
+     * Ramp-ups longer than the tone cannot be measured, see LatencyCalibration.getRampMs().
+     */
+    public final static int TONE_MS = 100;
+
+    private final static int GAP_MS = 20;
+    private final static int CHIRP_MS = 20;
+    private final static int TONE_HZ = 3000;
+    private final static int CHIRP_LOW_HZ = 1000;
+    private final static int CHIRP_HIGH_HZ = 7000;
+    private final static int AMPLITUDE = 16000;
+    private final static int EDGE_MS = 2;               // raised-cosine edges of the tone and the chirp
+    private final static int MIN_PEAK_RATIO = 8;        // matched filter peak over its RMS for the chirp to count
+    private final static int SEARCH_STEP = 2;           // coarse matched filter step, well inside its main lobe
+    private final static float RAMP_LEVEL = 0.9f;       // -1dB of the steady tone level
+    private final static int REFERENCE_MS = 20;         // reference burst, played when the output has settled
+
+    private final int sampleRate;
+    private final short[] signal;
+    private final float[] chirp;
+    private final int chirpOffset;
+    private final int referenceOffset;
+    private final int msSamples;
+
+    private final long[] roundTripNs = new long[MAX_PROBES];
+    private final float[] rampMs = new float[MAX_PROBES];
+    private int probeCnt;
+
+    /**
+     * Constructor for LatencyProbe.
+     *
+     * @param <b>int</b> sample rate of the player and the capture in Hz
+     */
+    public LatencyProbe(int sampleRate) {
+        this.sampleRate = sampleRate;
+        msSamples = sampleRate / 1000;
+
+        int toneSamples = TONE_MS * msSamples;
+        int chirpSamples = CHIRP_MS * msSamples;
+        int referenceSamples = REFERENCE_MS * msSamples;
+        chirpOffset = toneSamples + GAP_MS * msSamples;
+        referenceOffset = chirpOffset + chirpSamples + GAP_MS * msSamples;
+        signal = new short[referenceOffset + referenceSamples];
+        chirp = new float[chirpSamples];
+
+        for (int i = 0; i < toneSamples; i++)
+            signal[i] = (short) (AMPLITUDE * edge(i, toneSamples) * Math.sin(2 * Math.PI * TONE_HZ * i / sampleRate));
+        for (int i = 0; i < referenceSamples; i++)
+            signal[referenceOffset + i] = (short) (AMPLITUDE * edge(i, referenceSamples)
+                    * Math.sin(2 * Math.PI * TONE_HZ * i / sampleRate));
+
+        // Phase of a linear sweep: 2pi (f0 t + (f1 - f0) t^2 / 2T)
+        double duration = (double) chirpSamples / sampleRate;
+        for (int i = 0; i < chirpSamples; i++) {
+            double t = (double) i / sampleRate;
+            double phase = 2 * Math.PI * (CHIRP_LOW_HZ * t + (CHIRP_HIGH_HZ - CHIRP_LOW_HZ) * t * t / (2 * duration));
+            chirp[i] = (float) (edge(i, chirpSamples) * Math.sin(phase));
+            signal[chirpOffset + i] = (short) (AMPLITUDE * chirp[i]);
+        }
+    }
+
+    private double edge(int i, int n) {
+        int edge = EDGE_MS * msSamples;
+        if (i < edge)
+            return 0.5 - 0.5 * Math.cos(Math.PI * i / edge);
+        if (i >= n - edge)
+            return 0.5 - 0.5 * Math.cos(Math.PI * (n - 1 - i) / edge);
+        return 1;
+    }
+
+    /**
+     * @return <b>short[]</b> the probe signal to play, not to be modified
+     */
+    public short[] getSignal() {
+        return signal;
+    }
+
+    /**
+     * @return <b>int</b> samples to capture from the first played sample on for the probe to be found
+     */
+    public int getListenSamples() {
+        return signal.length + MAX_ROUND_TRIP_MS * msSamples;
+    }
+
+    /**
+     * Find the probe signal in a capture.
+     *
+     * @param <b>short[]</b> captured samples
+     * @param <b>int</b>     offset of the first sample
+     * @param <b>int</b>     number of samples
+     * @param <b>long</b>    System.nanoTime() when the first sample was captured
+     * @param <b>long</b>    System.nanoTime() when the first sample of the signal was played
+     * @return <b>boolean</b> true if the probe was found and measured
+     */
+    public boolean addProbe(short[] buffer, int offset, int length, long captureStartNs, long playStartNs) {
+        if (probeCnt >= MAX_PROBES)
+            return false;
+
+        // The chirp cannot arrive before it was played, nor after the longest round trip
+        long chirpPlayNs = playStartNs + samplesToNs(chirpOffset);
+        int from = Math.max(0, nsToSamples(chirpPlayNs - captureStartNs));
+        int to = Math.min(length - (signal.length - chirpOffset), from + MAX_ROUND_TRIP_MS * msSamples);
+        if (to <= from)
+            return false;
+
+        // Matched filter of the chirp, either polarity, every SEARCH_STEP samples then around the best one
+        int peak = -1;
+        float peakValue = 0;
+        double sumSq = 0;
+        int steps = 0;
+        for (int k = from; k < to; k += SEARCH_STEP) {
+            float c = correlate(buffer, offset + k);
+            sumSq += (double) c * c;
+            steps++;
+            if (c > peakValue) {
+                peakValue = c;
+                peak = k;
+            }
+        }
+        double rms = Math.sqrt(sumSq / steps);
+        if (peak < 0 || peakValue < MIN_PEAK_RATIO * rms)
+            return false;
+
+        int coarse = peak;
+        for (int k = Math.max(from, coarse - SEARCH_STEP + 1); k < Math.min(to, coarse + SEARCH_STEP); k++) {
+            float c = correlate(buffer, offset + k);
+            if (c > peakValue) {
+                peakValue = c;
+                peak = k;
+            }
+        }
+
+        int toneStart = peak - chirpOffset;
+        if (toneStart < 0)
+            return false;
+
+        roundTripNs[probeCnt] = captureStartNs + samplesToNs(peak) - chirpPlayNs;
+        rampMs[probeCnt] = measureRamp(buffer, offset + toneStart);
+        probeCnt++;
+        return true;
+    }
+
+    private float correlate(short[] buffer, int start) {
+        float c = 0;
+        for (int j = 0; j < chirp.length; j++)
+            c += chirp[j] * buffer[start + j];
+        return Math.abs(c);
+    }
+
+    // Time until the tone envelope stays above RAMP_LEVEL of the reference burst, -1 if it never does
+    private float measureRamp(short[] buffer, int signalStart) {
+        double reference = 0;
+        for (int w = EDGE_MS; w < REFERENCE_MS - EDGE_MS; w++)
+            reference += windowRms(buffer, signalStart + referenceOffset + w * msSamples);
+        reference /= REFERENCE_MS - 2 * EDGE_MS;
+
+        int windows = TONE_MS - EDGE_MS;
+        int lastLow = -1;
+        for (int w = EDGE_MS; w < windows; w++) {
+            if (windowRms(buffer, signalStart + w * msSamples) < RAMP_LEVEL * reference)
+                lastLow = w;
+        }
+        if (lastLow == windows - 1)
+            return -1;
+        return Math.max(0, lastLow + 1);
+    }
+
+    private double windowRms(short[] buffer, int start) {
+        double sumSq = 0;
+        for (int i = start; i < start + msSamples; i++)
+            sumSq += (double) buffer[i] * buffer[i];
+        return Math.sqrt(sumSq / msSamples);
+    }
+
+    /**
+     * @return <b>int</b> probes found so far
+     */
+    public int getProbeCount() {
+        return probeCnt;
+    }
+
+    /**
+     * Derive the latency calibration from the probes found.
+     *
+     * @return <b>LatencyCalibration</b> median round trip, its spread above the median and the longest ramp
+     * @throws <b>IllegalStateException</b> if no probe was found
+     */
+    public LatencyCalibration compute() {
+        if (probeCnt == 0)
+            throw new IllegalStateException("no probe found");
+
+        long[] sorted = new long[probeCnt];
+        System.arraycopy(roundTripNs, 0, sorted, 0, probeCnt);
+        Arrays.sort(sorted);
+        long median = sorted[probeCnt / 2];
+
+        float ramp = 0;
+        for (int i = 0; i < probeCnt; i++) {
+            if (rampMs[i] < 0) {
+                ramp = -1;
+                break;
+            }
+            ramp = Math.max(ramp, rampMs[i]);
+        }
+
+        return new LatencyCalibration(median / 1e6f, (sorted[probeCnt - 1] - median) / 1e6f, ramp, probeCnt,
+                System.currentTimeMillis());
+    }
+
+    private long samplesToNs(long samples) {
+        return samples * 1000000000L / sampleRate;
+    }
+
+    private int nsToSamples(long ns) {
+        return (int) (ns * sampleRate / 1000000000L);
+    }
+}
@@ -0,0 +1,576 @@
+package com.syntek.BreathoComLib;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * LinkLayer adds sequence numbers, acknowledgements and selective retransmission on top of a PhyPort.
+ * <p/>
+ * A link command is a 13-bit frame: 8 payload bits, a 3-bit sequence number, a link marker bit (so it can never be
+ * taken for a plain 8-bit command) and an even parity bit. The accessory answers every command with a 9-bit reply:
+ * the sequence number it answers, a NAK bit, and 5 payload bits. A NAK asks for the frame again, e.g. after a parity
+ * error; the accessory keeps its last reply per sequence number so a repeated command is answered, not re-executed.
+ * <p/>
+ * The audio link is half-duplex, so the window is used as a burst: every frame waiting when the PHY is free is sent
+ * in one transmission (up to the window) and the accessory answers them in order afterwards. An exchange of n commands
+ * therefore takes ceil(n / window) round trips when nothing is lost. Only frames that were NAKed or timed out are
+ * sent again. The retransmit timeout follows the measured round trip time (Jacobson/Karels smoothing, Karn's rule:
+ * retransmitted frames give no sample, timeouts back off exponentially).
+ * <p/>
+ * All state is handled on the AudioScheduler thread; the public methods can be called from any thread.
+ */
+public class LinkLayer {
+    public final static int SEQ_BITS = 3;
+    public final static int SEQ_SPACE = 1 << SEQ_BITS;
+    /**
+     * Largest window allowed by selective repeat with SEQ_BITS sequence numbers.
+     */
+    public final static int MAX_WINDOW = SEQ_SPACE / 2;
+    public final static int COMMAND_BITS = 13;
+    public final static int REPLY_PAYLOAD_BITS = 5;
+    public final static long DEFAULT_MIN_RTO_MS = 50;
+
+    private final static int LINK_MARK = 0x800;
+    private final static long INITIAL_RTO_NS = 1000 * 1000000L;
+    private final static long CLOCK_GRANULARITY_NS = 1000000L;
+
+    private final PhyPort phy;
+    private final AudioScheduler scheduler;
+
+    private volatile int window;
+    private volatile int maxRetries = 5;
+    private volatile long minRtoNs = DEFAULT_MIN_RTO_MS * 1000000L;
+    private volatile long maxRtoNs = 5000 * 1000000L;
+
+    // Scheduler thread state
+    private final LinkedList<Pending> waiting = new LinkedList<Pending>();
+    private final LinkedList<Pending> txQueue = new LinkedList<Pending>();
+    private final Pending[] slots = new Pending[SEQ_SPACE];
+    private final int[] burst = new int[MAX_WINDOW];
+    private int baseSeq, nextSeq;
+    private boolean bTransmitting;
+    private boolean bClosed;
+
+    private long srttNs = -1, rttVarNs;
+    private volatile long rtoNs = INITIAL_RTO_NS;
+
+    private volatile long commandCnt, framesSent, bursts, retransmissions, naks, timeouts, duplicates, failures;
+
+    /**
+     * A command waiting for its reply.
+     */
+    private final class Pending implements Runnable {
+        final int payload;
+        final ResultFuture<Integer> future = new ResultFuture<Integer>();
+        final Exchange exchange;
+        final int index;
+        int seq = -1;
+        int tries;
+        long txStartNs;
+        boolean bQueued;
+        boolean bRetransmitted;
+        Future<?> timer;
+
+        Pending(int payload, Exchange exchange, int index) {
+            this.payload = payload;
+            this.exchange = exchange;
+            this.index = index;
+        }
+
+        // Retransmit timeout
+        @Override
+        public void run() {
+            onTimeout(this);
+        }
+    }
+
+    /**
+     * Commands sent together by exchange().
+     */
+    private final static class Exchange {
+        final ResultFuture<int[]> result = new ResultFuture<int[]>();
+        final int[] replies;
+        int remaining;
+
+        Exchange(int n) {
+            replies = new int[n];
+            remaining = n;
+        }
+    }
+
+    /**
+     * Constructor for LinkLayer.
+     *
+     * @param <b>PhyPort</b>        physical layer, its receiver is taken over by the link layer
+     * @param <b>AudioScheduler</b> scheduler running the link state and timers
+     * @param <b>int</b>            window, 1 to MAX_WINDOW
+     */
+    public LinkLayer(PhyPort phy, AudioScheduler scheduler, int window) {
+        this.phy = phy;
+        this.scheduler = scheduler;
+        setWindow(window);
+
+        phy.setReceiver(new PhyPort.Receiver() {
+            @Override
+            public void onFrame(final int frame) {
+                LinkLayer.this.scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onReply(frame);
+                    }
+                });
+            }
+
+            @Override
+            public void onTransmitDone() {
+                LinkLayer.this.scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        bTransmitting = false;
+                        pump();
+                    }
+                });
+            }
+        });
+    }
+
+    // =====================================================================================
+    // 			*** Frame format ***
+    // =====================================================================================
+
+    /**
+     * @param <b>int</b> sequence number
+     * @param <b>int</b> 8-bit payload
+     * @return <b>int</b> 13-bit command frame
+     */
+    public static int encodeCommand(int seq, int payload) {
+        int frame = (payload & 0xFF) | ((seq & (SEQ_SPACE - 1)) << 8) | LINK_MARK;
+        return frame | (Integer.bitCount(frame) & 0x01) << 12;
+    }
+
+    /**
+     * @return <b>boolean</b> true if the frame carries the link marker
+     */
+    public static boolean isLinkCommand(int frame) {
+        return (frame & LINK_MARK) != 0;
+    }
+
+    /**
+     * @return <b>boolean</b> true if the frame has even parity
+     */
+    public static boolean checkCommand(int frame) {
+        return (Integer.bitCount(frame & 0x1FFF) & 0x01) == 0;
+    }
+
+    public static int commandSeq(int frame) {
+        return (frame >> 8) & (SEQ_SPACE - 1);
+    }
+
+    public static int commandPayload(int frame) {
+        return frame & 0xFF;
+    }
+
+    /**
+     * @param <b>int</b>     sequence number answered
+     * @param <b>boolean</b> true to ask for the command again
+     * @param <b>int</b>     5-bit payload
+     * @return <b>int</b> 9-bit reply frame
+     */
+    public static int encodeReply(int seq, boolean bNak, int payload) {
+        return (seq & (SEQ_SPACE - 1)) | (bNak ? 0x08 : 0) | ((payload & 0x1F) << 4);
+    }
+
+    public static int replySeq(int frame) {
+        return frame & (SEQ_SPACE - 1);
+    }
+
+    public static boolean isNak(int frame) {
+        return (frame & 0x08) != 0;
+    }
+
+    public static int replyPayload(int frame) {
+        return (frame >> 4) & 0x1F;
+    }
+
+    // =====================================================================================
+    // 			*** Public interface ***
+    // =====================================================================================
+
+    /**
+     * Send one command reliably.
+     *
+     * @param <b>int</b> 8-bit payload
+     * @return <b>Future</b> the 5-bit reply payload, failing with a TimeoutException after maxRetries retransmissions
+     */
+    public Future<Integer> send(int payload) {
+        final Pending p = new Pending(payload, null, 0);
+
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                enqueue(p);
+                fill();
+            }
+        });
+
+        return p.future;
+    }
+
+    /**
+     * Send several commands together, in as few round trips as the window allows, each with its own result.
+     *
+     * @param <b>int[]</b> 8-bit payloads
+     * @return <b>List</b> one future per payload, in the same order, as send() returns them
+     */
+    public List<Future<Integer>> sendBatch(int[] payloads) {
+        final Pending[] pending = new Pending[payloads.length];
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(payloads.length);
+
+        for (int i = 0; i < payloads.length; i++) {
+            pending[i] = new Pending(payloads[i], null, i);
+            futures.add(pending[i].future);
+        }
+
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Pending p : pending)
+                    enqueue(p);
+                fill();
+            }
+        });
+
+        return futures;
+    }
+
+    /**
+     * Send a sequence of commands, in as few round trips as the window allows.
+     *
+     * @param <b>int[]</b> 8-bit payloads
+     * @return <b>Future</b> the reply payloads in command order, failing if any command fails
+     */
+    public Future<int[]> exchange(int[] payloads) {
+        Exchange exchange = new Exchange(payloads.length);
+        final Pending[] pending = new Pending[payloads.length];
+
+        for (int i = 0; i < payloads.length; i++)
+            pending[i] = new Pending(payloads[i], exchange, i);
+        if (payloads.length == 0)
+            exchange.result.complete(exchange.replies);
+
+        // Queued together, so the first burst carries as many of them as the window allows
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Pending p : pending)
+                    enqueue(p);
+                fill();
+            }
+        });
+
+        return exchange.result;
+    }
+
+    /**
+     * @param <b>int</b> frames sent per burst at most, 1 to MAX_WINDOW
+     */
+    public void setWindow(int window) {
+        if (window < 1 || window > MAX_WINDOW)
+            throw new IllegalArgumentException("window must be within 1 and " + MAX_WINDOW + ": " + window);
+        this.window = window;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @param <b>int</b> retransmissions of a command before its future fails
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param <b>long</b> lower bound of the retransmit timeout in ms
+     * @param <b>long</b> upper bound of the retransmit timeout in ms
+     */
+    public void setRtoBounds(long minMs, long maxMs) {
+        minRtoNs = minMs * 1000000L;
+        maxRtoNs = maxMs * 1000000L;
+    }
+
+    public long getMinRtoMs() {
+        return minRtoNs / 1000000L;
+    }
+
+    public long getMaxRtoMs() {
+        return maxRtoNs / 1000000L;
+    }
+
+    /**
+     * Cancel every pending command and stop using the PHY. Waits for the scheduler thread unless called from it.
+     */
+    public void close() {
+        Future<?> f;
+        try {
+            f = scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeNow();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Scheduler already stopped, nothing can be pending on it
+            return;
+        }
+
+        if (!scheduler.isSchedulerThread()) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                // Scheduler stopped meanwhile, nothing left to cancel on it
+            }
+        }
+    }
+
+    // =====================================================================================
+    // 			*** State machine, scheduler thread only ***
+    // =====================================================================================
+
+    private void closeNow() {
+        bClosed = true;
+
+        for (Pending p : waiting) {
+            p.future.cancel(false);
+            if (p.exchange != null)
+                p.exchange.result.cancel(false);
+        }
+        waiting.clear();
+        txQueue.clear();
+
+        for (int i = 0; i < SEQ_SPACE; i++) {
+            Pending p = slots[i];
+            if (p != null) {
+                cancelTimer(p);
+                p.future.cancel(false);
+                if (p.exchange != null)
+                    p.exchange.result.cancel(false);
+                slots[i] = null;
+            }
+        }
+
+        phy.setReceiver(null);
+    }
+
+    private void enqueue(Pending p) {
+        if (bClosed) {
+            p.future.cancel(false);
+            if (p.exchange != null)
+                p.exchange.result.cancel(false);
+            return;
+        }
+
+        commandCnt++;
+        waiting.add(p);
+    }
+
+    // Give sequence numbers to waiting commands while the window has room
+    private void fill() {
+        while (!waiting.isEmpty() && outstanding() < window) {
+            Pending p = waiting.removeFirst();
+            p.seq = nextSeq;
+            nextSeq = (nextSeq + 1) % SEQ_SPACE;
+            slots[p.seq] = p;
+            queue(p);
+        }
+        pump();
+    }
+
+    private int outstanding() {
+        return (nextSeq - baseSeq + SEQ_SPACE) % SEQ_SPACE;
+    }
+
+    private void queue(Pending p) {
+        if (!p.bQueued) {
+            p.bQueued = true;
+            txQueue.add(p);
+        }
+    }
+
+    // Send everything queued as one burst when the PHY is free
+    private void pump() {
+        if (bTransmitting || bClosed || txQueue.isEmpty())
+            return;
+
+        int n = 0;
+        long now = System.nanoTime();
+        while (!txQueue.isEmpty() && n < burst.length) {
+            Pending p = txQueue.removeFirst();
+            p.bQueued = false;
+            if (p.tries++ > 0) {
+                p.bRetransmitted = true;
+                retransmissions++;
+            }
+
+            p.txStartNs = now;
+            cancelTimer(p);
+            p.timer = scheduler.scheduleAtNs(p, now + rtoNs);
+
+            burst[n++] = encodeCommand(p.seq, p.payload);
+        }
+
+        bTransmitting = true;
+        bursts++;
+        framesSent += n;
+        phy.transmit(burst, n, COMMAND_BITS);
+    }
+
+    private void onReply(int frame) {
+        Pending p = slots[replySeq(frame)];
+        if (p == null) {
+            duplicates++;
+            return;
+        }
+
+        if (isNak(frame)) {
+            naks++;
+            queue(p);
+            pump();
+            return;
+        }
+
+        // Karn: only frames sent once give a round trip sample
+        if (!p.bRetransmitted)
+            updateRto(System.nanoTime() - p.txStartNs);
+
+        cancelTimer(p);
+        if (p.bQueued) {
+            txQueue.remove(p);
+            p.bQueued = false;
+        }
+        retire(p);
+        int payload = replyPayload(frame);
+        p.future.complete(payload);
+        if (p.exchange != null) {
+            p.exchange.replies[p.index] = payload;
+            if (--p.exchange.remaining == 0)
+                p.exchange.result.complete(p.exchange.replies);
+        }
+
+        fill();
+    }
+
+    private void onTimeout(Pending p) {
+        if (slots[p.seq] != p)
+            return;
+
+        if (p.tries > maxRetries) {
+            failures++;
+            retire(p);
+            TimeoutException e = new TimeoutException("no reply to link command " + p.payload + " after " + p.tries + " tries");
+            p.future.fail(e);
+            if (p.exchange != null)
+                p.exchange.result.fail(e);
+            fill();
+            return;
+        }
+
+        timeouts++;
+        rtoNs = Math.min(maxRtoNs, rtoNs * 2);
+        queue(p);
+        pump();
+    }
+
+    private void retire(Pending p) {
+        slots[p.seq] = null;
+        p.timer = null;
+
+        // Slide the window over every finished sequence number
+        while (baseSeq != nextSeq && slots[baseSeq] == null)
+            baseSeq = (baseSeq + 1) % SEQ_SPACE;
+    }
+
+    private void cancelTimer(Pending p) {
+        if (p.timer != null) {
+            p.timer.cancel(false);
+            p.timer = null;
+        }
+    }
+
+    private void updateRto(long rttNs) {
+        if (srttNs < 0) {
+            srttNs = rttNs;
+            rttVarNs = rttNs / 2;
+        } else {
+            rttVarNs = (3 * rttVarNs + Math.abs(srttNs - rttNs)) / 4;
+            srttNs = (7 * srttNs + rttNs) / 8;
+        }
+
+        long rto = srttNs + Math.max(CLOCK_GRANULARITY_NS, 4 * rttVarNs);
+        rtoNs = Math.max(minRtoNs, Math.min(maxRtoNs, rto));
+    }
+
+    // =====================================================================================
+    // 			*** Metrics ***
+    // =====================================================================================
+
+    /**
+     * @return <b>long</b> smoothed round trip time in ns, -1 before the first sample
+     */
+    public long getSmoothedRttNs() {
+        return srttNs;
+    }
+
+    /**
+     * @return <b>long</b> current retransmit timeout in ns
+     */
+    public long getRtoNs() {
+        return rtoNs;
+    }
+
+    public long getCommandCount() {
+        return commandCnt;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * @return <b>long</b> transmissions, i.e. round trips started
+     */
+    public long getBurstCount() {
+        return bursts;
+    }
+
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    public long getNakCount() {
+        return naks;
+    }
+
+    public long getTimeoutCount() {
+        return timeouts;
+    }
+
+    /**
+     * @return <b>long</b> replies for sequence numbers not outstanding, e.g. late answers to a retransmitted command
+     */
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * @return <b>long</b> commands given up after maxRetries
+     */
+    public long getFailureCount() {
+        return failures;
+    }
+}
@@ -0,0 +1,68 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * LinkResponder is the accessory side of the LinkLayer, for an AccessoryEmulator.
+ * <p/>
+ * Link commands are checked for parity and NAKed when broken. A command whose sequence number was just answered is a
+ * retransmission: the stored reply is sent again and the firmware is not run twice. The stored reply of a sequence
+ * number is dropped once a new command half the sequence space ahead of it arrives: the sender can only use that
+ * number after retiring the old command, so the next command with the old number is new even if it is identical.
+ * Plain 8-bit commands are passed to the firmware responder unchanged.
+ */
+public class LinkResponder implements AccessoryEmulator.Responder {
+    private final AccessoryEmulator.Responder firmware;
+    private final int[] lastCommand = new int[LinkLayer.SEQ_SPACE];
+    private final int[] lastReply = new int[LinkLayer.SEQ_SPACE];
+
+    private int nakCnt, repeatCnt;
+
+    /**
+     * @param <b>AccessoryEmulator.Responder</b> firmware behaviour, its replies are cut to LinkLayer.REPLY_PAYLOAD_BITS
+     */
+    public LinkResponder(AccessoryEmulator.Responder firmware) {
+        this.firmware = firmware;
+
+        for (int i = 0; i < LinkLayer.SEQ_SPACE; i++)
+            lastCommand[i] = -1;
+    }
+
+    @Override
+    public int respond(int command) {
+        if (!LinkLayer.isLinkCommand(command))
+            return firmware.respond(command);
+
+        int seq = LinkLayer.commandSeq(command);
+        if (!LinkLayer.checkCommand(command)) {
+            nakCnt++;
+            return LinkLayer.encodeReply(seq, true, 0);
+        }
+
+        if (lastCommand[seq] == command) {
+            repeatCnt++;
+            return lastReply[seq];
+        }
+
+        int reply = firmware.respond(LinkLayer.commandPayload(command));
+        if (reply < 0)
+            return -1;
+
+        lastCommand[seq] = command;
+        lastReply[seq] = LinkLayer.encodeReply(seq, false, reply);
+        lastCommand[(seq + LinkLayer.MAX_WINDOW) % LinkLayer.SEQ_SPACE] = -1;
+        return lastReply[seq];
+    }
+
+    /**
+     * @return <b>int</b> commands NAKed for a parity error
+     */
+    public int getNakCount() {
+        return nakCnt;
+    }
+
+    /**
+     * @return <b>int</b> retransmitted commands answered from the stored reply
+     */
+    public int getRepeatCount() {
+        return repeatCnt;
+    }
+}
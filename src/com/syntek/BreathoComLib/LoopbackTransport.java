@@ -0,0 +1,208 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * LoopbackTransport connects the transmit path to the receive path without audio hardware.
+ * <p/>
+ * Every transmitted buffer is read by an AccessoryEmulator, whose replies are modulated, optionally stretched by a
+ * rate mismatch and impaired, then delivered to a CaptureEngine.Listener in capture-sized periods exactly as the mic
+ * capture would deliver them. Everything runs synchronously on the calling thread at full CPU speed.
+ * The transport has no Android dependency.
+ */
+public class LoopbackTransport {
+    /**
+     * Channel impairment applied to the received samples, e.g. sim.ChannelSimulator.
+     */
+    public interface Impairment {
+        /**
+         * @param <b>short[]</b> clean samples
+         * @param <b>int</b>     number of samples
+         * @return <b>short[]</b> impaired samples, the whole array is delivered
+         */
+        short[] apply(short[] pcm, int length);
+    }
+
+    private final static int MAX_REPLIES = 64;
+
+    private final AccessoryEmulator emulator;
+    private final CaptureEngine.Listener receiver;
+    private final int sampleRate;
+    private final int periodFrames;
+    private final int[] replies = new int[MAX_REPLIES];
+    private final short[] period;
+
+    private int replyDelaySamples;
+    private double rateRatio = 1.0;
+    private boolean bEchoTransmit;
+    private Impairment impairment;
+    private Impairment transmitImpairment;
+
+    private short[] rx = new short[4096];
+    private boolean bStarted;
+    private long deliveredSamples;
+
+    /**
+     * Constructor for LoopbackTransport.
+     *
+     * @param <b>AccessoryEmulator</b>      emulated accessory answering the transmitted commands
+     * @param <b>CaptureEngine.Listener</b> receive path, e.g. a listener feeding a SignalDecoder
+     * @param <b>int</b>                    sample rate of the receive path in Hz
+     * @param <b>int</b>                    frames per delivered period
+     */
+    public LoopbackTransport(AccessoryEmulator emulator, CaptureEngine.Listener receiver, int sampleRate, int periodFrames) {
+        this.emulator = emulator;
+        this.receiver = receiver;
+        this.sampleRate = sampleRate;
+        this.periodFrames = periodFrames;
+
+        period = new short[periodFrames];
+        replyDelaySamples = sampleRate / 100;
+    }
+
+    /**
+     * @param <b>int</b> delay between the end of a command and the start of its reply, in ms
+     */
+    public void setReplyDelayMs(int ms) {
+        replyDelaySamples = sampleRate * ms / 1000;
+    }
+
+    /**
+     * Simulate a sample clock mismatch between accessory and phone.
+     *
+     * @param <b>double</b> receiver clock error in ppm, positive when the phone runs fast
+     */
+    public void setRateMismatchPpm(double ppm) {
+        rateRatio = 1.0 + ppm / 1e6;
+    }
+
+    /**
+     * @param <b>boolean</b> true to also feed the transmitted samples into the receive path, like headset crosstalk
+     */
+    public void setEchoTransmit(boolean bEcho) {
+        bEchoTransmit = bEcho;
+    }
+
+    public void setImpairment(Impairment impairment) {
+        this.impairment = impairment;
+    }
+
+    /**
+     * @param <b>Impairment</b> impairment of the path to the accessory, applied before the emulator reads the commands
+     */
+    public void setTransmitImpairment(Impairment impairment) {
+        transmitImpairment = impairment;
+    }
+
+    public AccessoryEmulator getEmulator() {
+        return emulator;
+    }
+
+    /**
+     * @return <b>long</b> samples delivered to the receive path so far, i.e. the loopback's simulated time
+     */
+    public long getDeliveredSamples() {
+        return deliveredSamples;
+    }
+
+    /**
+     * Send transmitted samples through the loopback. Returns after the replies have been delivered.
+     *
+     * @param <b>short[]</b> transmitted samples
+     * @param <b>int</b>     number of samples
+     * @return <b>int</b> number of replies produced by the emulated accessory
+     */
+    public int transmit(short[] pcm, int length) {
+        int replyCnt;
+        if (transmitImpairment != null) {
+            short[] heard = transmitImpairment.apply(pcm, length);
+            replyCnt = emulator.receive(heard, heard.length, replies);
+        } else {
+            replyCnt = emulator.receive(pcm, length, replies);
+        }
+        ReplyEncoder replyEncoder = emulator.getReplyEncoder();
+
+        // Received stream: transmit echo or silence, then each reply, then one pool of silence to flush the decoder
+        int flushSamples = sampleRate / 40;
+        int rxLength = length + replyCnt * (replyDelaySamples + replyEncoder.getFrameSamples()) + flushSamples;
+        ensureCapacity(rxLength);
+
+        int pos = 0;
+        if (bEchoTransmit)
+            System.arraycopy(pcm, 0, rx, 0, length);
+        else
+            fillSilence(0, length);
+        pos += length;
+
+        for (int i = 0; i < replyCnt; i++) {
+            fillSilence(pos, replyDelaySamples);
+            pos += replyDelaySamples;
+            pos = replyEncoder.encode(replies[i], rx, pos);
+        }
+        fillSilence(pos, flushSamples);
+        pos += flushSamples;
+
+        short[] out = rx;
+        int outLength = pos;
+        if (rateRatio != 1.0) {
+            out = resample(rx, pos, rateRatio);
+            outLength = out.length;
+        }
+        if (impairment != null) {
+            out = impairment.apply(out, outLength);
+            outLength = out.length;
+        }
+
+        deliver(out, outLength);
+
+        return replyCnt;
+    }
+
+    /**
+     * Deliver silence to the receive path, e.g. to let a decoder time out.
+     *
+     * @param <b>int</b> number of silent samples
+     */
+    public void idle(int samples) {
+        ensureCapacity(samples);
+        fillSilence(0, samples);
+        deliver(rx, samples);
+    }
+
+    private void deliver(short[] samples, int length) {
+        if (!bStarted) {
+            receiver.onCaptureStart();
+            bStarted = true;
+        }
+
+        for (int off = 0; off < length; off += periodFrames) {
+            int n = Math.min(periodFrames, length - off);
+            System.arraycopy(samples, off, period, 0, n);
+            receiver.onCapture(period, n);
+        }
+
+        deliveredSamples += length;
+    }
+
+    private void ensureCapacity(int n) {
+        if (rx.length < n)
+            rx = new short[Math.max(n, rx.length * 2)];
+    }
+
+    private void fillSilence(int off, int n) {
+        for (int i = 0; i < n; i++)
+            rx[off + i] = 0;
+    }
+
+    static short[] resample(short[] in, int length, double ratio) {
+        int outLength = (int) ((length - 1) * ratio);
+        short[] out = new short[outLength];
+
+        for (int i = 0; i < outLength; i++) {
+            double t = i / ratio;
+            int k = (int) t;
+            double frac = t - k;
+            out[i] = (short) Math.round(in[k] * (1 - frac) + in[Math.min(k + 1, length - 1)] * frac);
+        }
+
+        return out;
+    }
+}
@@ -0,0 +1,34 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * PhyPort is the physical layer seen by the LinkLayer: pulse-width command frames out, 9-bit FSK replies in.
+ * <p/>
+ * BreathoComLib.getPhyPort() drives the audio hardware, or its loopback when one is set.
+ */
+public interface PhyPort {
+    /**
+     * Receiver of the physical layer events. Calls may come from any thread.
+     */
+    interface Receiver {
+        /**
+         * @param <b>int</b> decoded 9-bit reply
+         */
+        void onFrame(int frame);
+
+        /**
+         * The last transmit has finished playing or was stopped.
+         */
+        void onTransmitDone();
+    }
+
+    void setReceiver(Receiver receiver);
+
+    /**
+     * Send frames back to back in one transmission. Returns at once, onTransmitDone() follows.
+     *
+     * @param <b>int[]</b> frames to send
+     * @param <b>int</b>   number of frames
+     * @param <b>int</b>   bits per frame
+     */
+    void transmit(int[] frames, int count, int nBit);
+}
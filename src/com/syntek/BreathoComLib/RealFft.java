@@ -0,0 +1,109 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * RealFft is a radix-2 FFT plan for real input of one power-of-two size.
+ * <p/>
+ * The N real samples are packed into N/2 complex values, transformed by an iterative radix-2 FFT and split into the
+ * N/2 + 1 bins of the real spectrum. The bit reversal permutation and every twiddle factor are computed once in the
+ * constructor; forward() does not allocate. A plan keeps its work arrays, so one instance must not be used by two
+ * threads at once.
+ */
+public final class RealFft {
+    private final int size;
+    private final int half;
+
+    private final int[] bitReverse;
+    private final float[] cos, sin;            // exp(-2 pi i m / half), m < half / 2
+    private final float[] splitCos, splitSin; // exp(-2 pi i k / size), k <= half
+    private final float[] zr, zi;
+
+    /**
+     * Constructor for RealFft.
+     *
+     * @param <b>int</b> transform size, a power of two of at least 4
+     */
+    public RealFft(int size) {
+        if (size < 4 || (size & (size - 1)) != 0)
+            throw new IllegalArgumentException("size must be a power of two of at least 4: " + size);
+        this.size = size;
+        half = size / 2;
+
+        int bits = Integer.numberOfTrailingZeros(half);
+        bitReverse = new int[half];
+        for (int i = 0; i < half; i++)
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+
+        cos = new float[half / 2];
+        sin = new float[half / 2];
+        for (int m = 0; m < half / 2; m++) {
+            cos[m] = (float) Math.cos(2 * Math.PI * m / half);
+            sin[m] = (float) Math.sin(2 * Math.PI * m / half);
+        }
+
+        splitCos = new float[half + 1];
+        splitSin = new float[half + 1];
+        for (int k = 0; k <= half; k++) {
+            splitCos[k] = (float) Math.cos(2 * Math.PI * k / size);
+            splitSin[k] = (float) Math.sin(2 * Math.PI * k / size);
+        }
+
+        zr = new float[half];
+        zi = new float[half];
+    }
+
+    /**
+     * Transform size samples into size / 2 + 1 bins, bin k being at k * sampleRate / size Hz.
+     *
+     * @param <b>float[]</b> input, at least getSize() samples, not modified
+     * @param <b>float[]</b> real parts out, at least getBins()
+     * @param <b>float[]</b> imaginary parts out, at least getBins()
+     */
+    public void forward(float[] input, float[] re, float[] im) {
+        // Even samples as real parts, odd samples as imaginary parts, in bit reversed order
+        for (int i = 0; i < half; i++) {
+            int j = bitReverse[i];
+            zr[j] = input[2 * i];
+            zi[j] = input[2 * i + 1];
+        }
+
+        for (int len = 2; len <= half; len <<= 1) {
+            int span = len >> 1;
+            int step = half / len;
+            for (int start = 0; start < half; start += len) {
+                for (int j = 0; j < span; j++) {
+                    float wr = cos[j * step], wi = -sin[j * step];
+                    int a = start + j, b = a + span;
+                    float tr = zr[b] * wr - zi[b] * wi;
+                    float ti = zr[b] * wi + zi[b] * wr;
+                    zr[b] = zr[a] - tr;
+                    zi[b] = zi[a] - ti;
+                    zr[a] += tr;
+                    zi[a] += ti;
+                }
+            }
+        }
+
+        // Split: X[k] = E[k] + exp(-2 pi i k / size) O[k], E and O being the spectra of the even and odd samples
+        for (int k = 0; k <= half; k++) {
+            int p = (k == half) ? 0 : k;
+            int q = (k == 0) ? 0 : half - k;
+            float a = zr[p], b = zi[p], c = zr[q], d = zi[q];
+            float er = (a + c) / 2, ei = (b - d) / 2;
+            float or = (b + d) / 2, oi = (c - a) / 2;
+            float wr = splitCos[k], wi = -splitSin[k];
+            re[k] = er + wr * or - wi * oi;
+            im[k] = ei + wr * oi + wi * or;
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return <b>int</b> bins produced by forward(), size / 2 + 1
+     */
+    public int getBins() {
+        return half + 1;
+    }
+}
@@ -0,0 +1,85 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * ReceiveCalibration holds the receive settings learned for one handset and accessory by a ReceiveCalibrator,
+ * together with the levels they were derived from. Calibrations are immutable.
+ */
+public final class ReceiveCalibration {
+    private final int triggerThreshold;
+    private final int coherentThreshold;
+    private final int agcTarget;
+    private final float noiseRms;
+    private final int noisePeak;
+    private final int replyPeak;
+    private final int replyCount;
+    private final long timeMs;
+
+    /**
+     * Constructor for ReceiveCalibration.
+     *
+     * @param <b>int</b>   trigger threshold of the decoder
+     * @param <b>int</b>   coherent threshold of the decoder
+     * @param <b>int</b>   AGC target of the decoder
+     * @param <b>float</b> RMS of the background noise
+     * @param <b>int</b>   peak level of the background noise
+     * @param <b>int</b>   peak level of the device replies
+     * @param <b>int</b>   number of replies measured
+     * @param <b>long</b>  System.currentTimeMillis() of the calibration
+     */
+    public ReceiveCalibration(int triggerThreshold, int coherentThreshold, int agcTarget, float noiseRms, int noisePeak,
+                              int replyPeak, int replyCount, long timeMs) {
+        this.triggerThreshold = triggerThreshold;
+        this.coherentThreshold = coherentThreshold;
+        this.agcTarget = agcTarget;
+        this.noiseRms = noiseRms;
+        this.noisePeak = noisePeak;
+        this.replyPeak = replyPeak;
+        this.replyCount = replyCount;
+        this.timeMs = timeMs;
+    }
+
+    public int getTriggerThreshold() {
+        return triggerThreshold;
+    }
+
+    public int getCoherentThreshold() {
+        return coherentThreshold;
+    }
+
+    public int getAgcTarget() {
+        return agcTarget;
+    }
+
+    public float getNoiseRms() {
+        return noiseRms;
+    }
+
+    public int getNoisePeak() {
+        return noisePeak;
+    }
+
+    public int getReplyPeak() {
+        return replyPeak;
+    }
+
+    public int getReplyCount() {
+        return replyCount;
+    }
+
+    public long getTimeMs() {
+        return timeMs;
+    }
+
+    /**
+     * @return <b>double</b> reply peak over noise peak in dB
+     */
+    public double getMarginDb() {
+        return 20 * Math.log10((double) replyPeak / Math.max(1, noisePeak));
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiveCalibration[trigger=" + triggerThreshold + " coherent=" + coherentThreshold + " agc=" + agcTarget
+                + " noiseRms=" + noiseRms + " noisePeak=" + noisePeak + " replyPeak=" + replyPeak + " replies=" + replyCount + "]";
+    }
+}
@@ -0,0 +1,211 @@
+package com.syntek.BreathoComLib;
+
+import java.util.Arrays;
+
+/**
+ * ReceiveCalibrator derives the decoder settings of a handset from what its mic actually delivers.
+ * <p/>
+ * It is fed background noise first (addNoise), then capture windows each holding one reply of the device
+ * (addReply). compute() then places
+ * <ul>
+ * <li>the trigger threshold between the noise peak and the reply peak (geometric mean, at least 1.5x the noise
+ * peak and at most half the reply peak),</li>
+ * <li>the AGC target below full scale by the noise riding on the reply, so the integer AGC gain cannot wrap,</li>
+ * <li>the coherent threshold between the tone envelope of the replies and the envelope of the noise, both measured
+ * with a SignalDecoder using the new trigger threshold and AGC target.</li>
+ * </ul>
+ * Levels are taken from histograms (99.9th percentile of the noise, 99th of each reply) so single clicks do not
+ * move them. The class has no Android dependency and is not thread-safe.
+ */
+public class ReceiveCalibrator {
+    /**
+     * Smallest reply peak over noise peak ratio that can be calibrated, about 10dB.
+     */
+    public final static int MIN_MARGIN = 3;
+    public final static int MAX_REPLIES = 16;
+
+    private final static int NOISE_POOLS = 8;
+    private final static int MIN_THRESHOLD = 64;
+    private final static int HIST_SHIFT = 5;    // 32 levels per histogram bin
+    private final static int ENVELOPE_TAIL = 32; // envelope samples at the end of a pool not covered by the smoothing
+
+    private final int sampleRate;
+    private final int poolSamples;
+    private final int frameSamples;
+
+    private final int[] noiseHist = new int[(32768 >> HIST_SHIFT) + 1];
+    private final int[] replyHist = new int[(32768 >> HIST_SHIFT) + 1];
+    private long noiseCnt;
+    private double noiseSumSq;
+
+    private final short[][] noisePools = new short[NOISE_POOLS][];
+    private int noisePoolCnt, noisePoolFill;
+    private final short[][] replyPools = new short[MAX_REPLIES][];
+    private final int[] replyPeaks = new int[MAX_REPLIES];
+    private int replyCnt;
+
+    /**
+     * Constructor for ReceiveCalibrator.
+     *
+     * @param <b>int</b> capture sample rate in Hz
+     */
+    public ReceiveCalibrator(int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.poolSamples = sampleRate / 40;
+        this.frameSamples = SignalDecoder.BIT_INTERVAL * SignalDecoder.FRAME_BITS;
+    }
+
+    /**
+     * Feed background noise, captured while the device is silent.
+     */
+    public void addNoise(short[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int v = buffer[i];
+            noiseHist[Math.abs(v) >> HIST_SHIFT]++;
+            noiseSumSq += (double) v * v;
+
+            // Keep a few whole pools to measure the noise envelope
+            if (noisePoolCnt < NOISE_POOLS) {
+                if (noisePools[noisePoolCnt] == null)
+                    noisePools[noisePoolCnt] = new short[poolSamples];
+                noisePools[noisePoolCnt][noisePoolFill++] = (short) v;
+                if (noisePoolFill == poolSamples) {
+                    noisePoolCnt++;
+                    noisePoolFill = 0;
+                }
+            }
+        }
+        noiseCnt += length;
+    }
+
+    /**
+     * Feed a capture window holding one reply of the device. Noise must have been fed first.
+     *
+     * @return <b>boolean</b> true if a reply was found, false if the window holds no burst or ends too early
+     */
+    public boolean addReply(short[] buffer, int offset, int length) {
+        if (noisePoolCnt == 0)
+            throw new IllegalStateException("addNoise() must come first");
+        if (replyCnt == MAX_REPLIES)
+            return false;
+
+        int level = Math.max(MIN_THRESHOLD, noisePeak() * 2);
+        int start = -1;
+        for (int i = offset; i < offset + length; i++) {
+            if (buffer[i] > level || buffer[i] < -level) {
+                start = i;
+                break;
+            }
+        }
+        if (start < 0 || start + poolSamples > offset + length)
+            return false;
+
+        short[] pool = new short[poolSamples];
+        System.arraycopy(buffer, start, pool, 0, poolSamples);
+
+        Arrays.fill(replyHist, 0);
+        for (int i = 0; i < frameSamples && i < poolSamples; i++)
+            replyHist[Math.abs(pool[i]) >> HIST_SHIFT]++;
+
+        replyPools[replyCnt] = pool;
+        replyPeaks[replyCnt] = percentile(replyHist, Math.min(frameSamples, poolSamples), 0.99);
+        replyCnt++;
+        return true;
+    }
+
+    public int getReplyCount() {
+        return replyCnt;
+    }
+
+    /**
+     * @return <b>int</b> 99.9th percentile of the noise amplitude
+     */
+    public int noisePeak() {
+        return percentile(noiseHist, noiseCnt, 0.999);
+    }
+
+    /**
+     * Derive the decoder settings.
+     *
+     * @return <b>ReceiveCalibration</b> the learned settings
+     * @throws <b>IllegalStateException</b> if too little was fed or the replies are too close to the noise
+     */
+    public ReceiveCalibration compute() {
+        if (noisePoolCnt == 0 || replyCnt == 0)
+            throw new IllegalStateException("no noise or no reply measured");
+
+        int noiseP = Math.max(1, noisePeak());
+        int[] peaks = new int[replyCnt];
+        System.arraycopy(replyPeaks, 0, peaks, 0, replyCnt);
+        Arrays.sort(peaks);
+        int replyP = peaks[replyCnt / 2];
+
+        if (replyP < noiseP * MIN_MARGIN)
+            throw new IllegalStateException("reply level " + replyP + " too close to noise level " + noiseP);
+
+        int trigger = clamp((int) Math.sqrt((double) noiseP * replyP), noiseP * 3 / 2, replyP / 2);
+        trigger = Math.max(MIN_THRESHOLD, trigger);
+        int agc = (int) (32768L * replyP / (replyP + noiseP));
+
+        // Envelopes as the decoder will see them with the new settings
+        SignalDecoder decoder = new SignalDecoder(sampleRate, poolSamples, new SignalDecoder.Listener() {
+            @Override
+            public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+            }
+        });
+        decoder.setThreshold(trigger);
+        decoder.setAgcTarget(agc);
+
+        short[] scratch = new short[poolSamples];
+        int envLength = Math.min(frameSamples, poolSamples - ENVELOPE_TAIL);
+        float[] signalEnv = new float[replyCnt * envLength];
+        for (int r = 0; r < replyCnt; r++) {
+            System.arraycopy(replyPools[r], 0, scratch, 0, poolSamples);
+            decoder.nonCoherentOperation(scratch);
+            float[] f1 = decoder.getF1Envelope(), f2 = decoder.getF2Envelope();
+            for (int i = 0; i < envLength; i++)
+                signalEnv[r * envLength + i] = Math.max(f1[i], f2[i]);
+        }
+        Arrays.sort(signalEnv);
+        float signal = signalEnv[signalEnv.length / 2];
+
+        float noise = 0;
+        for (int p = 0; p < noisePoolCnt; p++) {
+            System.arraycopy(noisePools[p], 0, scratch, 0, poolSamples);
+            decoder.nonCoherentOperation(scratch);
+            float[] f1 = decoder.getF1Envelope(), f2 = decoder.getF2Envelope();
+            for (int i = 0; i < poolSamples - ENVELOPE_TAIL; i++)
+                noise = Math.max(noise, Math.max(f1[i], f2[i]));
+        }
+
+        int coherent = clamp((int) Math.sqrt((double) signal * Math.max(1, noise)), (int) (noise * 2), (int) (signal / 2));
+        coherent = Math.max(MIN_THRESHOLD, coherent);
+
+        float noiseRms = (float) Math.sqrt(noiseSumSq / Math.max(1, noiseCnt));
+
+        return new ReceiveCalibration(trigger, coherent, agc, noiseRms, noiseP, replyP, replyCnt, System.currentTimeMillis());
+    }
+
+    // Upper edge of the bin holding the given fraction of the samples
+    private static int percentile(int[] hist, long total, double fraction) {
+        long want = (long) Math.ceil(total * fraction);
+        long cnt = 0;
+
+        for (int i = 0; i < hist.length; i++) {
+            cnt += hist[i];
+            if (cnt >= want)
+                return Math.min(32767, ((i + 1) << HIST_SHIFT) - 1);
+        }
+
+        return 32767;
+    }
+
+    private static int clamp(int v, int min, int max) {
+        // An empty range means the margin is small, the upper bound then wins
+        if (v < min)
+            v = min;
+        if (v > max)
+            v = max;
+        return v;
+    }
+}
@@ -0,0 +1,106 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * ReplyEncoder synthesises the FSK frames the Breathometer sends back to the phone, as expected by SignalDecoder.
+ * <p/>
+ * It is the counterpart of SignalDecoder for simulation and loopback use: 9 data bits are Hamming encoded into 13 bits
+ * with odd parity, framed by a 0 start bit and a 1 stop bit and sent LSB first, one tone per bit, phase continuous.
+ */
+public class ReplyEncoder {
+    private final int sampleRate;
+    private final int bitInterval;
+    private final int amplitude;
+    private final double step0, step1;
+
+    /**
+     * Constructor for ReplyEncoder.
+     *
+     * @param <b>int</b> output sample rate in Hz
+     * @param <b>int</b> samples per bit, SignalDecoder.BIT_INTERVAL at 44.1kHz
+     * @param <b>int</b> peak amplitude of the tones, up to 32767
+     */
+    public ReplyEncoder(int sampleRate, int bitInterval, int amplitude) {
+        this.sampleRate = sampleRate;
+        this.bitInterval = bitInterval;
+        this.amplitude = amplitude;
+
+        step0 = 2 * Math.PI * ((double) SignalDecoder.FREQ0 / (double) sampleRate);
+        step1 = 2 * Math.PI * ((double) SignalDecoder.FREQ1 / (double) sampleRate);
+    }
+
+    /**
+     * @return <b>int</b> number of samples produced by encode()
+     */
+    public int getFrameSamples() {
+        return SignalDecoder.FRAME_BITS * bitInterval;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Write the FSK frame of a reply.
+     *
+     * @param <b>int</b>     9-bit reply
+     * @param <b>short[]</b> output buffer
+     * @param <b>int</b>     offset of the first sample, getFrameSamples() samples are written
+     * @return <b>int</b> offset after the frame
+     */
+    public int encode(int data, short[] out, int offset) {
+        int frame = buildFrame(data);
+        double phase = 0;
+
+        for (int i = 0; i < SignalDecoder.FRAME_BITS; i++) {
+            double step = ((frame >> i) & 0x01) != 0 ? step1 : step0;
+
+            for (int j = 0; j < bitInterval; j++) {
+                out[offset++] = (short) Math.round(amplitude * Math.sin(phase));
+                phase += step;
+            }
+        }
+
+        return offset;
+    }
+
+    /**
+     * Build the 15-bit frame of a reply: start bit, Hamming code, stop bit.
+     *
+     * @param <b>int</b> 9-bit reply
+     * @return <b>int</b> frame, bit 0 sent first
+     */
+    public static int buildFrame(int data) {
+        return (HammingEncode(data) << 1) | (0x01 << 14);
+    }
+
+    /**
+     * Encode 9 data bits into the 13-bit Hamming code accepted by SignalDecoder.HammingDecode().
+     *
+     * @param <b>int</b> 9-bit data
+     * @return <b>int</b> 13-bit code word
+     */
+    public static int HammingEncode(int data) {
+        int masks[] = {0x5555, 0x6666, 0x7878, 0x7F80};
+        int newData = 0;
+        int j = 0;
+
+        // Data bits fill every position that is not a power of 2
+        for (int i = 1; i <= 13; i++) {
+            if (i != (1 << j)) {
+                if ((data & 0x01) != 0x00)
+                    newData |= 0x01 << (i - 1);
+                data >>= 1;
+            } else {
+                j++;
+            }
+        }
+
+        // Parity bits make every mask odd
+        for (int i = 0; i < masks.length; i++) {
+            if ((Integer.bitCount(newData & masks[i]) & 0x01) == 0x00)
+                newData |= 0x01 << ((1 << i) - 1);
+        }
+
+        return newData;
+    }
+}
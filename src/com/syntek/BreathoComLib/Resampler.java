@@ -0,0 +1,149 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * Resampler converts a stream of 16-bit samples from one rate to another, e.g. the capture of a handset running at a
+ * rate the decoder is not tuned for.
+ * <p/>
+ * The ratio is reduced to up / down by their greatest common divisor and the stream is filtered by a polyphase
+ * windowed-sinc low-pass: every output sample costs TAPS multiply-adds, whatever the ratio. The cutoff lies below the
+ * lower of the two Nyquist frequencies, the reply tones are far inside the pass band of every supported rate. The
+ * filter delays the stream by about TAPS / 2 input samples, see getDelayNs().
+ * <p/>
+ * Like SignalDecoder, the resampler has no Android dependency, allocates nothing in process() for blocks up to the
+ * size given to the constructor, and is not thread-safe.
+ */
+public class Resampler {
+    public final static int TAPS = 32;
+
+    private final static double CUTOFF = 0.9;     // of the lower Nyquist frequency
+    private final static double BLACKMAN_A = 0.42, BLACKMAN_B = 0.5, BLACKMAN_C = 0.08;
+
+    private final int inRate, outRate;
+    private final int up, down;
+    private final float[][] phases;    // phases[p][k] weighs the input sample k steps before the current one
+
+    // Input history, the last TAPS - 1 samples of the previous block first
+    private short[] history;
+    private int phase;                 // position of the next output between two inputs, in 1 / up steps
+    private int next;                  // input sample of the next output, relative to the current block
+
+    /**
+     * Constructor for Resampler.
+     *
+     * @param <b>int</b> input sample rate in Hz
+     * @param <b>int</b> output sample rate in Hz
+     * @param <b>int</b> largest block passed to process() without allocating
+     */
+    public Resampler(int inRate, int outRate, int maxBlockFrames) {
+        if (inRate <= 0 || outRate <= 0)
+            throw new IllegalArgumentException("rates must be positive: " + inRate + " to " + outRate);
+
+        this.inRate = inRate;
+        this.outRate = outRate;
+        int g = gcd(inRate, outRate);
+        up = outRate / g;
+        down = inRate / g;
+
+        // Prototype at up * inRate, cut off below the lower Nyquist frequency, gain up for the zeros stuffed in
+        int length = up * TAPS;
+        double fc = CUTOFF * 0.5 / Math.max(up, down);
+        double center = (length - 1) / 2.0;
+        phases = new float[up][TAPS];
+        for (int n = 0; n < length; n++) {
+            double x = n - center;
+            double sinc = (x == 0) ? 2 * fc : Math.sin(2 * Math.PI * fc * x) / (Math.PI * x);
+            double w = BLACKMAN_A - BLACKMAN_B * Math.cos(2 * Math.PI * n / (length - 1))
+                    + BLACKMAN_C * Math.cos(4 * Math.PI * n / (length - 1));
+            phases[n % up][n / up] = (float) (sinc * w * up);
+        }
+
+        history = new short[TAPS - 1 + maxBlockFrames];
+        reset();
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Forget the stream, e.g. when a new capture session starts.
+     */
+    public void reset() {
+        for (int i = 0; i < TAPS - 1; i++)
+            history[i] = 0;
+        phase = 0;
+        next = 0;
+    }
+
+    /**
+     * @return <b>int</b> most output samples process() produces for a block of the given length
+     */
+    public int getMaxOutput(int inLength) {
+        return (int) (((long) inLength * up + down - 1) / down) + 1;
+    }
+
+    public int getInputRate() {
+        return inRate;
+    }
+
+    public int getOutputRate() {
+        return outRate;
+    }
+
+    /**
+     * @return <b>long</b> delay of the stream through the filter in ns
+     */
+    public long getDelayNs() {
+        return (long) ((up * TAPS - 1) / 2.0 / up * 1e9 / inRate);
+    }
+
+    /**
+     * Resample the next block of the stream.
+     *
+     * @param <b>short[]</b> input samples
+     * @param <b>int</b>     offset of the first sample
+     * @param <b>int</b>     number of samples
+     * @param <b>short[]</b> output, at least getMaxOutput(length) long
+     * @return <b>int</b> number of output samples
+     */
+    public int process(short[] in, int offset, int length, short[] out) {
+        if (history.length < TAPS - 1 + length) {
+            short[] larger = new short[TAPS - 1 + length];
+            System.arraycopy(history, 0, larger, 0, TAPS - 1);
+            history = larger;
+        }
+        System.arraycopy(in, offset, history, TAPS - 1, length);
+
+        int n = 0;
+        while (next < length) {
+            // history[next + TAPS - 1] is the current input sample
+            float[] h = phases[phase];
+            int base = next + TAPS - 1;
+            float acc = 0;
+            for (int k = 0; k < TAPS; k++)
+                acc += h[k] * history[base - k];
+            out[n++] = clip(acc);
+
+            phase += down;
+            next += phase / up;
+            phase %= up;
+        }
+
+        next -= length;
+        System.arraycopy(history, length, history, 0, TAPS - 1);
+        return n;
+    }
+
+    private static short clip(float v) {
+        if (v > 32767)
+            return 32767;
+        if (v < -32768)
+            return -32768;
+        return (short) Math.round(v);
+    }
+}
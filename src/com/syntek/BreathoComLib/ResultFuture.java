@@ -0,0 +1,107 @@
+package com.syntek.BreathoComLib;
+
+import java.util.concurrent.FutureTask;
+
+/**
+ * ResultFuture is a Future completed by the library when an asynchronous operation finishes, e.g. a transmit.
+ * <p/>
+ * Callers can wait on it, poll isDone() or cancel it; only the library sets its value. Once the library has started
+ * the operation for good, e.g. handed a transmit to the player, it may refuse the callers' cancel().
+ */
+public final class ResultFuture<V> extends FutureTask<V> {
+    private final static Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private Runnable doneAction;
+    private boolean bCommitted;    // guarded by this
+
+    ResultFuture() {
+        super(NOTHING, null);
+    }
+
+    /**
+     * Does nothing, the value is set by the library and not computed by the future.
+     */
+    @Override
+    public void run() {
+    }
+
+    /**
+     * Run an action once the future is completed, failed or cancelled; at once if it already is.
+     * Only one action is kept, it runs on the thread finishing the future.
+     */
+    void whenDone(Runnable action) {
+        synchronized (this) {
+            if (!isDone()) {
+                doneAction = action;
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * @return <b>boolean</b> false, with the operation running on, once the library has committed to it
+     */
+    @Override
+    public boolean cancel(boolean bInterrupt) {
+        synchronized (this) {
+            if (bCommitted)
+                return false;
+            return super.cancel(bInterrupt);
+        }
+    }
+
+    /**
+     * The operation can no longer be called off by the callers, only aborted by the library.
+     *
+     * @return <b>boolean</b> false if the future was already completed or cancelled
+     */
+    synchronized boolean commit() {
+        bCommitted = true;
+        return !isDone();
+    }
+
+    /**
+     * Cancel the future even once committed, e.g. when the library stops the operation.
+     *
+     * @return <b>boolean</b> false if the future was already completed or cancelled
+     */
+    boolean abort() {
+        return super.cancel(false);
+    }
+
+    @Override
+    protected void done() {
+        Runnable action;
+        synchronized (this) {
+            action = doneAction;
+            doneAction = null;
+        }
+        if (action != null)
+            action.run();
+    }
+
+    /**
+     * @return <b>boolean</b> false if the future was already completed or cancelled
+     */
+    boolean complete(V value) {
+        if (isDone())
+            return false;
+        set(value);
+        return true;
+    }
+
+    /**
+     * @return <b>boolean</b> false if the future was already completed or cancelled
+     */
+    boolean fail(Throwable t) {
+        if (isDone())
+            return false;
+        setException(t);
+        return true;
+    }
+}
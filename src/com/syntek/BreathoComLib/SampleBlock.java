@@ -0,0 +1,74 @@
+package com.syntek.BreathoComLib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SampleBlock is one captured period published by a CaptureHub.
+ * <p/>
+ * Blocks are shared by every consumer and recycled by the hub, so the samples must be treated as read-only and every
+ * block obtained from a CaptureHub.Cursor must be given back with release().
+ */
+public final class SampleBlock {
+    final short[] samples;
+    int length;
+    long sequence;
+    long startSample;
+    long timeNs;
+
+    // 0 means free, the hub holds one reference while the block is in its ring
+    final AtomicInteger refCnt = new AtomicInteger();
+
+    SampleBlock(int capacity) {
+        samples = new short[capacity];
+    }
+
+    /**
+     * @return <b>short[]</b> samples of the block, valid up to getLength(), must not be modified
+     */
+    public short[] getSamples() {
+        return samples;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return <b>long</b> publish sequence number, consecutive blocks have consecutive numbers
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return <b>long</b> stream position of the first sample since the hub was created
+     */
+    public long getStartSample() {
+        return startSample;
+    }
+
+    /**
+     * @return <b>long</b> System.nanoTime() when the block was read from the recorder
+     */
+    public long getTimeNs() {
+        return timeNs;
+    }
+
+    /**
+     * Give the block back to the hub. Must be called exactly once for every block returned by a cursor.
+     */
+    public void release() {
+        if (refCnt.decrementAndGet() < 0)
+            throw new IllegalStateException("SampleBlock released too often");
+    }
+
+    boolean tryRetain() {
+        while (true) {
+            int n = refCnt.get();
+            if (n <= 0)
+                return false;
+            if (refCnt.compareAndSet(n, n + 1))
+                return true;
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package com.syntek.BreathoComLib;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SessionLog keeps a binary record of a session's traffic: every frame transmitted, every frame decoded and every
+ * rejected trigger with its reason, with timestamps, for support cases.
+ * <p/>
+ * The log is a series of fixed-size segment files, each memory-mapped while it is written. Records have a fixed size,
+ * so a writer reserves its slot with one atomic increment and fills it with absolute puts: the capture and transmit
+ * threads log without a lock, a system call or an allocation. A background thread maps the next segment before it
+ * is needed, flushes the full ones and deletes the oldest segment files once the directory exceeds its byte cap. A
+ * record whose segment is not mapped yet is dropped and counted rather than waited for.
+ * <p/>
+ * Segment layout (big endian): header of HEADER_BYTES, "BCLG", version, record size, segment index, session start
+ * (System.currentTimeMillis()), System.nanoTime() at the same instant; then RECORD_BYTES records of time (ns), aux,
+ * value, extra, reason, type. A record of type 0 was never written. Read the files back with Reader.
+ */
+public class SessionLog {
+    public final static int TYPE_TX = 1;        // a frame was transmitted, value: frame, extra: bits, aux: enqueue time (ns)
+    public final static int TYPE_RX = 2;        // a frame was decoded, value: code, reason: tone plan, aux: trigger sample
+    public final static int TYPE_REJECT = 3;    // an analysis did not decode, reason: FailureCapture.REASON_*, aux: trigger sample
+    public final static int TYPE_MARK = 4;      // set by the app with mark(), value and aux are its own
+
+    public final static int HEADER_BYTES = 32;
+    public final static int RECORD_BYTES = 24;
+    public final static int DEFAULT_SEGMENT_BYTES = 256 * 1024;
+
+    private final static int MAGIC = 0x42434C47;    // "BCLG"
+    private final static int VERSION = 1;
+    private final static String FILE_PREFIX = "log_";
+    private final static String FILE_SUFFIX = ".blog";
+    private final static int MAPPED_SEGMENTS = 4;    // segments a late writer may still be filling
+    private final static int PAGE_BYTES = 4096;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int recordsPerSegment;
+    private final long maxDiskBytes;
+    private final long startMs, startNs;
+
+    // Slot of the next record, over all segments
+    private final AtomicLong nextSlot = new AtomicLong();
+    private final AtomicReferenceArray<Segment> segments = new AtomicReferenceArray<Segment>(MAPPED_SEGMENTS);
+    private volatile int activeSegment;
+    private volatile boolean bClosed;
+
+    private final AtomicLong droppedCnt = new AtomicLong();
+    private volatile int segmentCnt;
+    private volatile IOException lastError;
+
+    private final Thread mapperThread;
+
+    private final static class Segment {
+        final int index;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(int index, File file, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Constructor for SessionLog. Maps the first segments and starts the mapper thread.
+     *
+     * @param <b>File</b> directory of the segment files, created if missing
+     * @param <b>int</b>  bytes per segment file
+     * @param <b>long</b> maximum bytes used by all segment files in the directory, at least two segments
+     * @throws IOException if the first segment cannot be created
+     */
+    public SessionLog(File dir, int segmentBytes, long maxDiskBytes) throws IOException {
+        if (segmentBytes < HEADER_BYTES + RECORD_BYTES)
+            throw new IllegalArgumentException("segment too small: " + segmentBytes);
+        if (maxDiskBytes < 2L * segmentBytes)
+            throw new IllegalArgumentException("cap below two segments: " + maxDiskBytes);
+
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.recordsPerSegment = (segmentBytes - HEADER_BYTES) / RECORD_BYTES;
+        this.maxDiskBytes = maxDiskBytes;
+        startMs = System.currentTimeMillis();
+        startNs = System.nanoTime();
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        mapSegment(0);
+        mapSegment(1);
+        trimDirectory();
+
+        mapperThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mapperLoop();
+            }
+        }, "BreathoComLib-SessionLog");
+        mapperThread.setPriority(Thread.MIN_PRIORITY);
+        mapperThread.setDaemon(true);
+        mapperThread.start();
+    }
+
+    /**
+     * Log a transmitted frame. Any thread.
+     */
+    public void logTransmit(int frame, int nBit, long enqueueNs) {
+        append(TYPE_TX, 0, nBit, frame, enqueueNs, System.nanoTime());
+    }
+
+    /**
+     * Log a decoded frame. Any thread, usually the capture thread.
+     */
+    public void logReceive(int code, int plan, long triggerSample, long timeNs) {
+        append(TYPE_RX, plan, 0, code, triggerSample, timeNs);
+    }
+
+    /**
+     * Log an analysis that did not decode. Any thread, usually the capture thread.
+     *
+     * @param <b>int</b>  one of FailureCapture.REASON_*
+     * @param <b>long</b> stream position of the decoder trigger
+     * @param <b>long</b> System.nanoTime() of the capture period
+     */
+    public void logReject(int reason, long triggerSample, long timeNs) {
+        append(TYPE_REJECT, reason, 0, 0, triggerSample, timeNs);
+    }
+
+    /**
+     * Log an event of the app, e.g. the start of a test. Any thread.
+     */
+    public void mark(int value, long aux) {
+        append(TYPE_MARK, 0, 0, value, aux, System.nanoTime());
+    }
+
+    private void append(int type, int reason, int extra, int value, long aux, long timeNs) {
+        long slot = nextSlot.getAndIncrement();
+        if (bClosed) {
+            droppedCnt.incrementAndGet();
+            return;
+        }
+
+        int index = (int) (slot / recordsPerSegment);
+        int record = (int) (slot % recordsPerSegment);
+
+        // The first record of a segment moves the mapper on to the one after
+        if (record == 0 && index > 0) {
+            activeSegment = index;
+            LockSupport.unpark(mapperThread);
+        }
+
+        Segment s = segments.get(index % MAPPED_SEGMENTS);
+        if (s == null || s.index != index) {
+            droppedCnt.incrementAndGet();
+            return;
+        }
+
+        // Absolute puts only: writers of other slots do not disturb each other. The type goes last, so a record cut
+        // short by a crash reads as never written.
+        MappedByteBuffer b = s.buffer;
+        int pos = HEADER_BYTES + record * RECORD_BYTES;
+        b.putLong(pos, timeNs);
+        b.putLong(pos + 8, aux);
+        b.putInt(pos + 16, value);
+        b.putShort(pos + 20, (short) extra);
+        b.put(pos + 22, (byte) reason);
+        b.put(pos + 23, (byte) type);
+    }
+
+    /**
+     * Stop logging and flush the mapped segments. Records logged afterwards are dropped.
+     */
+    public void close() {
+        bClosed = true;
+        LockSupport.unpark(mapperThread);
+        try {
+            mapperThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void mapperLoop() {
+        int mapped = 1;
+        while (!bClosed) {
+            int next = activeSegment + 1;
+            if (next > mapped) {
+                try {
+                    // The segment before the active one is full, or being finished by a late writer
+                    Segment done = segments.get((next - 2) % MAPPED_SEGMENTS);
+                    if (done != null)
+                        done.buffer.force();
+                    mapSegment(next);
+                    mapped = next;
+                } catch (IOException e) {
+                    // Retried at the next segment; meanwhile the records are dropped
+                    lastError = e;
+                }
+                trimDirectory();
+                continue;
+            }
+            LockSupport.park(this);
+        }
+
+        for (int i = 0; i < MAPPED_SEGMENTS; i++) {
+            Segment s = segments.get(i);
+            if (s != null)
+                s.buffer.force();
+        }
+    }
+
+    private void mapSegment(int index) throws IOException {
+        File file = new File(dir, String.format("%s%013d_%05d%s", FILE_PREFIX, startMs, index, FILE_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(segmentBytes);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } finally {
+            // The mapping stays valid once the file is closed
+            raf.close();
+        }
+
+        // Touch every page now, so that the writers do not take the page faults
+        for (int i = PAGE_BYTES; i < segmentBytes; i += PAGE_BYTES)
+            buffer.put(i, (byte) 0);
+
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, (short) VERSION);
+        buffer.putShort(6, (short) RECORD_BYTES);
+        buffer.putInt(8, index);
+        buffer.putLong(12, startMs);
+        buffer.putLong(20, startNs);
+
+        segments.set(index % MAPPED_SEGMENTS, new Segment(index, file, buffer));
+        segmentCnt++;
+    }
+
+    private void trimDirectory() {
+        File[] files = listSegments(dir);
+        long total = 0;
+        for (int i = 0; i < files.length; i++)
+            total += files[i].length();
+
+        // Oldest first; the segments of this session still mapped are kept
+        for (int i = 0; (i < files.length) && (total > maxDiskBytes); i++) {
+            if (isMapped(files[i]))
+                continue;
+            long size = files[i].length();
+            if (files[i].delete())
+                total -= size;
+        }
+    }
+
+    private boolean isMapped(File file) {
+        for (int i = 0; i < MAPPED_SEGMENTS; i++) {
+            Segment s = segments.get(i);
+            if (s != null && s.file.equals(file))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return <b>File[]</b> the segment files of a log directory, oldest first
+     */
+    public static File[] listSegments(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }
+        });
+        if (files == null)
+            return new File[0];
+
+        // Names start with the session start and the segment index, zero padded, so the oldest sort first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return <b>long</b> records logged
+     */
+    public long getWrittenCount() {
+        return nextSlot.get() - droppedCnt.get();
+    }
+
+    /**
+     * @return <b>long</b> records dropped because their segment was not mapped in time or the log was closed
+     */
+    public long getDroppedCount() {
+        return droppedCnt.get();
+    }
+
+    /**
+     * @return <b>int</b> segment files created by this log, some may have been deleted by the cap since
+     */
+    public int getSegmentCount() {
+        return segmentCnt;
+    }
+
+    /**
+     * @return <b>IOException</b> the last error of the mapper thread, null if none
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    public long getSessionStartMs() {
+        return startMs;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    // =====================================================================================
+    // 			*** Reading ***
+    // =====================================================================================
+
+    /**
+     * One record read back from a log.
+     */
+    public static final class Record {
+        private final int type, reason, extra, value;
+        private final long timeNs, aux;
+        private final long sessionStartMs, sessionStartNs;
+
+        Record(int type, int reason, int extra, int value, long timeNs, long aux, long sessionStartMs, long sessionStartNs) {
+            this.type = type;
+            this.reason = reason;
+            this.extra = extra;
+            this.value = value;
+            this.timeNs = timeNs;
+            this.aux = aux;
+            this.sessionStartMs = sessionStartMs;
+            this.sessionStartNs = sessionStartNs;
+        }
+
+        /**
+         * @return <b>int</b> one of TYPE_*
+         */
+        public int getType() {
+            return type;
+        }
+
+        public int getReason() {
+            return reason;
+        }
+
+        public int getExtra() {
+            return extra;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public long getAux() {
+            return aux;
+        }
+
+        /**
+         * @return <b>long</b> System.nanoTime() of the record on the device
+         */
+        public long getTimeNs() {
+            return timeNs;
+        }
+
+        /**
+         * @return <b>long</b> wall clock time of the record in ms
+         */
+        public long getTimeMs() {
+            return sessionStartMs + (timeNs - sessionStartNs) / 1000000;
+        }
+
+        /**
+         * @return <b>long</b> start of the session the record belongs to, identifies the session
+         */
+        public long getSessionStartMs() {
+            return sessionStartMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d %d type=%d reason=%d extra=%d value=0x%X aux=%d",
+                    sessionStartMs, getTimeMs(), type, reason, extra, value, aux);
+        }
+    }
+
+    /**
+     * Reader of the segment files of a log directory, for offline analysis. Iterates over the records of every
+     * segment, oldest segment first and in slot order within a segment, skipping the slots never written. A
+     * segment being written may be read; its records written after being passed are missed.
+     */
+    public static class Reader implements Iterable<Record> {
+        private final File[] files;
+
+        /**
+         * @param <b>File</b> directory of the segment files
+         */
+        public Reader(File dir) {
+            files = listSegments(dir);
+        }
+
+        /**
+         * @param <b>File[]</b> segment files, read in this order
+         */
+        public Reader(File[] files) {
+            this.files = files.clone();
+        }
+
+        public int getSegmentCount() {
+            return files.length;
+        }
+
+        @Override
+        public Iterator<Record> iterator() {
+            return new Iterator<Record>() {
+                private int fileIndex = -1;
+                private DataInputStream in;
+                private long sessionMs, sessionNs;
+                private Record next;
+
+                @Override
+                public boolean hasNext() {
+                    if (next == null)
+                        next = advance();
+                    return next != null;
+                }
+
+                @Override
+                public Record next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    Record r = next;
+                    next = null;
+                    return r;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                private Record advance() {
+                    while (true) {
+                        try {
+                            if (in == null) {
+                                if (++fileIndex >= files.length)
+                                    return null;
+                                in = openSegment(files[fileIndex]);
+                                continue;
+                            }
+
+                            long timeNs = in.readLong();
+                            long aux = in.readLong();
+                            int value = in.readInt();
+                            int extra = in.readShort();
+                            int reason = in.readByte() & 0xFF;
+                            int type = in.readByte() & 0xFF;
+                            if (type != 0)
+                                return new Record(type, reason, extra, value, timeNs, aux, sessionMs, sessionNs);
+                        } catch (EOFException e) {
+                            closeSegment();
+                        } catch (IOException e) {
+                            // A damaged or deleted segment, go on with the next one
+                            closeSegment();
+                        }
+                    }
+                }
+
+                private DataInputStream openSegment(File file) throws IOException {
+                    DataInputStream s = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                    try {
+                        if (s.readInt() != MAGIC)
+                            throw new IOException("Not a session log: " + file);
+                        s.readShort();
+                        if (s.readShort() != RECORD_BYTES)
+                            throw new IOException("Unknown record size: " + file);
+                        s.readInt();
+                        sessionMs = s.readLong();
+                        sessionNs = s.readLong();
+                        s.skipBytes(HEADER_BYTES - 28);
+                        return s;
+                    } catch (IOException e) {
+                        s.close();
+                        throw e;
+                    }
+                }
+
+                private void closeSegment() {
+                    if (in != null) {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            // Read only, nothing lost
+                        }
+                        in = null;
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,710 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * SignalDecoder turns a stream of mic samples into the 9-bit replies sent by the Breathometer.
+ * <p/>
+ * A reply is a 15-bit FSK frame (start bit 0, 13-bit Hamming code, stop bit 1, LSB first) using FREQ0 for 0 and
+ * FREQ1 for 1. When a few samples exceed the threshold a 25ms pool is collected and analysed with a non-coherent
+ * correlation against both tones.
+ * <p/>
+ * Accessories of other hardware revisions use other tone pairs; each pair is a tone plan, see addTonePlan(). The
+ * envelopes of every plan come from one ToneFilterBank pass over the pool, and the plans are tried in the order they
+ * were added until one decodes.
+ * <p/>
+ * Units of other firmware or oscillator tolerance send at other bit rates. Frames are first decoded with the bit
+ * period learned so far, BIT_INTERVAL scaled to the sample rate at first. When that fails, the period is estimated
+ * from the frame itself: the carrier of a reply lasts FRAME_BITS periods and is followed by silence, and its 0/1
+ * transitions fall on period boundaries. The frame is decoded again with the estimate and its neighbours, framing and
+ * Hamming checks telling which one is right, and the period that decoded is kept for the next frames. See
+ * setBitInterval() to restore the period of a known unit and setRateDetection() to turn it off.
+ * <p/>
+ * The decoder has no Android dependency and allocates nothing after construction. It is not thread-safe, all calls
+ * must come from the thread feeding it, except the setters of the thresholds, the AGC target, the bit interval and
+ * rate detection, which any thread may call.
+ */
+public class SignalDecoder {
+    public final static int FREQ0 = 2500;
+    public final static int FREQ1 = 5000;
+    public final static int DEFAULT_THRESHOLD = 1024;
+    public final static int COHERENT_THRESHOLD = 4096;
+    public final static int DEFAULT_AGC_TARGET = 32768;
+    public final static int BIT_INTERVAL = 54;    // samples per received bit at 44.1kHz
+    public final static int FRAME_BITS = 15;
+
+    private final static int NONCOHERENT_SAMPLES = 16;
+    private final static int LOWPASS_SAMPLES = 16;
+    private final static int MIN_WINDOW_SAMPLES = 4;
+    private final static int TOTALSAMPLES = 5;
+    private final static int THRESHOLD_SAMPLES = 32;
+    private final static int RATE_DETECT_RANGE = 3;    // bit periods from nominal * 2/3 to nominal * 4/3
+
+    /**
+     * Callback of the decoder, called on the thread calling process().
+     */
+    public interface Listener {
+        /**
+         * Called after every analysed pool. On success getCode() holds the reply, otherwise getDecodeError() tells why.
+         * The envelopes and decisions of the pool can be read until the next call to process().
+         *
+         * @param <b>SignalDecoder</b> the decoder
+         * @param <b>boolean</b>       true if a valid reply was decoded
+         */
+        void onAnalysis(SignalDecoder decoder, boolean bDecoded);
+    }
+
+    private final int sampleRate;
+    private final int poolSamples;
+    private final int maxBlockFrames;
+    private final Listener listener;
+
+    private final short[] tempBuf;
+    private final short[] bufferPool;
+    private final int diff[];
+    private final ToneFilterBank filterBank;
+
+    // Tone plans, bins of the 0 and 1 tones in the filter bank
+    private int planCnt;
+    private int[] planBin0 = new int[0], planBin1 = new int[0];
+    private int decodedPlan = -1;
+    private float[] f1Value, f2Value;    // envelopes of the plan reported by getF1Envelope()
+
+    private int tempBufIndex, bufferPoolIndex;
+    private boolean bStartAnalyse;
+    private long tempBufStartSample, triggerSample, sampleCnt;
+
+    // Set by the app threads, read once per block or pool by the feeding thread
+    private volatile int threshold = DEFAULT_THRESHOLD;
+    private volatile int coherentThreshold = COHERENT_THRESHOLD;
+    private volatile int agcTarget = DEFAULT_AGC_TARGET;
+    private int code;
+    private int decodeError;
+    private int weakestBitCnt;
+
+    // Bit period of the unit, learned from the frames
+    private final int nominalBitInterval;
+    private final int minBitInterval, maxBitInterval;
+    private volatile int bitInterval;
+    private volatile boolean bRateDetection = true;
+    private volatile int rateChangeCnt;
+    private int frameStart;
+
+    /**
+     * Constructor for SignalDecoder.
+     *
+     * @param <b>int</b>      capture sample rate in Hz
+     * @param <b>int</b>      largest block handled in one step, longer blocks passed to process() are split
+     * @param <b>Listener</b> receiver of the analysis results
+     */
+    public SignalDecoder(int sampleRate, int maxBlockFrames, Listener listener) {
+        this.sampleRate = sampleRate;
+        this.poolSamples = sampleRate / 40;    // 25ms samples for Analyse
+        this.maxBlockFrames = maxBlockFrames;
+        this.listener = listener;
+
+        tempBuf = new short[maxBlockFrames + THRESHOLD_SAMPLES];
+        bufferPool = new short[poolSamples * 2];
+        diff = new int[poolSamples * 2];
+        filterBank = new ToneFilterBank(sampleRate, poolSamples, scaleToRate(NONCOHERENT_SAMPLES), scaleToRate(LOWPASS_SAMPLES));
+        addTonePlan(FREQ0, FREQ1);
+
+        // The whole frame and some silence after it must fit in the pool for the period to be measured
+        nominalBitInterval = Math.round(BIT_INTERVAL * sampleRate / 44100f);
+        bitInterval = nominalBitInterval;
+        minBitInterval = nominalBitInterval * (RATE_DETECT_RANGE - 1) / RATE_DETECT_RANGE;
+        maxBitInterval = Math.min(nominalBitInterval * (RATE_DETECT_RANGE + 1) / RATE_DETECT_RANGE,
+                (poolSamples - nominalBitInterval / 2) / FRAME_BITS);
+    }
+
+    // Windows are tuned in samples at 44.1kHz, the same time span at the capture rate keeps the detector's response
+    private int scaleToRate(int samples) {
+        return Math.max(MIN_WINDOW_SAMPLES, Math.round(samples * sampleRate / 44100f));
+    }
+
+    /**
+     * Also decode replies sent with another tone pair, e.g. by another hardware revision. Plan 0 is FREQ0/FREQ1.
+     * Must be called before feeding samples, or from the feeding thread.
+     *
+     * @param <b>int</b> tone of the 0 bits in Hz
+     * @param <b>int</b> tone of the 1 bits in Hz
+     * @return <b>int</b> index of the plan, see getDecodedPlan()
+     */
+    public int addTonePlan(int freq0, int freq1) {
+        int plan = planCnt++;
+        int[] b0 = new int[planCnt], b1 = new int[planCnt];
+        System.arraycopy(planBin0, 0, b0, 0, plan);
+        System.arraycopy(planBin1, 0, b1, 0, plan);
+        b0[plan] = filterBank.subscribe(freq0);
+        b1[plan] = filterBank.subscribe(freq1);
+        planBin0 = b0;
+        planBin1 = b1;
+
+        if (plan == 0) {
+            f1Value = filterBank.getEnvelope(b0[0]);
+            f2Value = filterBank.getEnvelope(b1[0]);
+        }
+        return plan;
+    }
+
+    /**
+     * @return <b>int</b> tone plans decoded, 1 unless addTonePlan() was called
+     */
+    public int getTonePlanCount() {
+        return planCnt;
+    }
+
+    /**
+     * Forget any partial pool, e.g. when a new recording session starts.
+     */
+    public void reset() {
+        tempBufIndex = 0;
+        bufferPoolIndex = 0;
+        bStartAnalyse = false;
+        tempBufStartSample = sampleCnt;
+    }
+
+    /**
+     * Feed captured samples.
+     *
+     * @param <b>short[]</b> buffer holding the samples
+     * @param <b>int</b>     offset of the first sample
+     * @param <b>int</b>     number of samples
+     */
+    public void process(short[] buffer, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, maxBlockFrames);
+            processBlock(buffer, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void processBlock(short[] buffer, int offset, int bufferReadSize) {
+        int i;
+        int level = threshold;
+
+        // Put real time buffer into temp buffer
+        System.arraycopy(buffer, offset, tempBuf, tempBufIndex, bufferReadSize);
+        tempBufIndex += bufferReadSize;
+        sampleCnt += bufferReadSize;
+
+        if (tempBufIndex > THRESHOLD_SAMPLES) {
+            for (i = 0; i < (tempBufIndex - THRESHOLD_SAMPLES); i++) {
+                if (bStartAnalyse) {
+                    bufferPool[bufferPoolIndex] = tempBuf[i];
+                    if (++bufferPoolIndex >= (poolSamples)) {
+                        bStartAnalyse = false;
+                        bufferPoolIndex = 0;
+                        boolean bDecoded = nonCoherentOperation(bufferPool);
+                        if (FrameTracer.bEnabled)
+                            FrameTracer.instant(FrameTracer.DECODE, bDecoded ? code : -decodeError);
+                        if (listener != null)
+                            listener.onAnalysis(this, bDecoded);
+                    }
+                } else {
+                    // Check if first few samples are over threshold, if over threshold then start Analyse
+                    if (checkStartLog(tempBuf, i, level)) {
+                        bStartAnalyse = true;
+                        triggerSample = tempBufStartSample + i;
+                        if (FrameTracer.bEnabled)
+                            FrameTracer.instant(FrameTracer.TRIGGER, triggerSample);
+                        bufferPoolIndex = 0;
+                        bufferPool[bufferPoolIndex] = tempBuf[i];
+                        bufferPoolIndex++;
+                    }
+                }
+            }
+
+            // Keep the last THRESHOLD_SAMPLES for the next period
+            System.arraycopy(tempBuf, tempBufIndex - THRESHOLD_SAMPLES, tempBuf, 0, THRESHOLD_SAMPLES);
+            tempBufStartSample += tempBufIndex - THRESHOLD_SAMPLES;
+            tempBufIndex = THRESHOLD_SAMPLES;
+        }
+    }
+
+    /**
+     * Analyse one pool of samples starting at a trigger. The pool is modified by the AGC.
+     *
+     * @param <b>short[]</b> at least getPoolSamples() samples
+     * @return <b>boolean</b> true if a valid reply was decoded
+     */
+    public boolean nonCoherentOperation(short[] bufferPool) {
+        if (!FrameTracer.bEnabled)
+            return analyse(bufferPool);
+
+        FrameTracer.begin(FrameTracer.ANALYSIS, triggerSample);
+        boolean bDecoded = analyse(bufferPool);
+        FrameTracer.end(FrameTracer.ANALYSIS);
+        return bDecoded;
+    }
+
+    private boolean analyse(short[] bufferPool) {
+        int i, j;
+        int level = threshold;
+        int target = agcTarget;
+
+        // AGC the peak to peak Value
+        boolean bUpTrend, bDownTrend;
+        int upTrendPeak, downTrendPeak;
+
+        int startMark;
+
+        bUpTrend = false;
+        bDownTrend = false;
+        upTrendPeak = 0;
+        downTrendPeak = 0;
+
+        startMark = 0;
+
+        for (i = 1; i < poolSamples; i++) {
+            if (bufferPool[i] > bufferPool[i - 1]) {
+                bUpTrend = true;
+                if (bufferPool[i] > upTrendPeak)
+                    upTrendPeak = bufferPool[i];
+            } else if (bufferPool[i] < bufferPool[i - 1]) {
+                bDownTrend = true;
+                if (bufferPool[i] < downTrendPeak)
+                    downTrendPeak = bufferPool[i];
+            }
+
+            // Check Zero-Crossing
+            if (bufferPool[i] * bufferPool[i - 1] < 0) {
+                if (bUpTrend)
+                    if (bDownTrend) {
+                        if ((upTrendPeak - downTrendPeak) > level) {
+                            // Perform AGC
+                            int peak;
+
+                            if (Math.abs(upTrendPeak) > Math.abs(downTrendPeak))
+                                peak = Math.abs(upTrendPeak);
+                            else
+                                peak = Math.abs(downTrendPeak);
+
+                            for (j = startMark; j <= i; j++)
+                                bufferPool[j] *= target / peak;
+                        }
+                        startMark = i + 1;
+                        bUpTrend = false;
+                        bDownTrend = false;
+                        downTrendPeak = 0;
+                        upTrendPeak = 0;
+                    }
+            }
+        }
+
+        // Envelopes of every tone of every plan in one pass
+        filterBank.process(bufferPool);
+
+        // Decode signal and result is put in code variable, the first plan decoding wins
+        for (int p = 0; p < planCnt; p++) {
+            if (decodeSignal(filterBank.getEnvelope(planBin0[p]), filterBank.getEnvelope(planBin1[p]))) {
+                decodedPlan = p;
+                f1Value = filterBank.getEnvelope(planBin0[p]);
+                f2Value = filterBank.getEnvelope(planBin1[p]);
+                return true;
+            }
+        }
+
+        // Nothing decoded, report the decisions and error of the default plan
+        decodedPlan = -1;
+        f1Value = filterBank.getEnvelope(planBin0[0]);
+        f2Value = filterBank.getEnvelope(planBin1[0]);
+        if (planCnt > 1)
+            decodeSignal(f1Value, f2Value);
+        return false;
+    }
+
+    private boolean decodeSignal(float[] f1Value, float[] f2Value) {
+        int period = bitInterval;
+        if (decodeFrame(f1Value, f2Value, period))
+            return true;
+        if (!bRateDetection || decodeError == FailureCapture.REASON_NO_CARRIER)
+            return false;
+
+        // Off-rate unit? A period close to the current one would have decoded anyway, or the failure is noise
+        int estimate = estimateBitInterval();
+        if (estimate < 0 || Math.abs(estimate - period) < 2)
+            return false;
+
+        int error = decodeError, weakest = weakestBitCnt;
+        for (int k = 0; k < 3; k++) {
+            int candidate = estimate + ((k == 0) ? 0 : (k == 1) ? -1 : 1);
+            if (candidate < minBitInterval || candidate > maxBitInterval)
+                continue;
+            if (decodeBits(candidate)) {
+                bitInterval = candidate;
+                rateChangeCnt++;
+                return true;
+            }
+        }
+
+        // Report the failure with the period in use
+        decodeError = error;
+        weakestBitCnt = weakest;
+        return false;
+    }
+
+    /**
+     * Bit period of the frame in the decisions: the carrier from frameStart up to the silence after the stop bit
+     * lasts FRAME_BITS periods, and every 0/1 transition is near a period boundary.
+     *
+     * @return <b>int</b> samples per bit, -1 if the frame gives no usable estimate
+     */
+    private int estimateBitInterval() {
+        int i;
+        int end = -1;
+        int silent = 0;
+        int minSilence = minBitInterval / 2;
+
+        for (i = frameStart; i < poolSamples && silent < minSilence; i++) {
+            if (diff[i] == 2) {
+                silent++;
+            } else {
+                silent = 0;
+                end = i;
+            }
+        }
+
+        // The frame runs past the pool, or is followed by another one
+        if (silent < minSilence)
+            return -1;
+
+        int period = (end - frameStart + 1 + FRAME_BITS / 2) / FRAME_BITS;
+        if (period < minBitInterval - 1 || period > maxBitInterval + 1)
+            return -1;
+
+        // Most transitions must fall within a quarter period of a bit boundary
+        int transitions = 0, aligned = 0;
+        int last = diff[frameStart];
+        for (i = frameStart + 1; i <= end; i++) {
+            if (diff[i] == 2 || diff[i] == last)
+                continue;
+            last = diff[i];
+            int phase = (i - frameStart) % period;
+            transitions++;
+            if (Math.min(phase, period - phase) <= period / 4)
+                aligned++;
+        }
+        if (aligned * 4 < transitions * 3)
+            return -1;
+
+        return period;
+    }
+
+    private boolean decodeFrame(float[] f1Value, float[] f2Value, int bitIntervalSample) {
+        int i;
+        int startCnt;
+        int level = coherentThreshold;
+
+        // Decoding pre-operation
+
+        for (i = 0; i < poolSamples; i++) {
+            if ((f1Value[i] >= level) || (f2Value[i] >= level)) {
+                if (f1Value[i] > f2Value[i])
+                    diff[i] = 0;
+                else
+                    diff[i] = 1;
+            } else
+                diff[i] = 2;
+        }
+
+        startCnt = 0;
+        do {
+            if (diff[startCnt] == 2)
+                startCnt++;
+        } while ((diff[startCnt] == 2) && (startCnt < poolSamples));
+
+        frameStart = startCnt;
+        if (startCnt >= poolSamples) {
+            code = 0;
+            decodeError = FailureCapture.REASON_NO_CARRIER;
+            weakestBitCnt = bitIntervalSample;
+            return false;
+        }
+
+        return decodeBits(bitIntervalSample);
+    }
+
+    // Majority of every bit of the frame starting at frameStart, then framing and Hamming checks
+    private boolean decodeBits(int bitIntervalSample) {
+        int i, j;
+        int startCnt = frameStart;
+        int bit1Cnt, bit0Cnt;
+        int codeBit;
+
+        // 44 samples for 1ms
+        code = 0;
+        codeBit = 0x01;
+        decodeError = 0;
+        weakestBitCnt = bitIntervalSample;
+
+        for (i = 0; i < FRAME_BITS; i++) {
+            bit1Cnt = 0;
+            bit0Cnt = 0;
+
+            for (j = 0; j < bitIntervalSample; j++) {
+                if (diff[(i * bitIntervalSample) + j + startCnt] == 0)
+                    bit0Cnt++;
+                else if (diff[(i * bitIntervalSample) + j + startCnt] == 1)
+                    bit1Cnt++;
+            }
+
+            if ((bit0Cnt > (bitIntervalSample / 2) || (bit1Cnt > (bitIntervalSample / 2)))) {
+                if (bit1Cnt > bit0Cnt)
+                    code = code | codeBit;
+                weakestBitCnt = Math.min(weakestBitCnt, Math.max(bit0Cnt, bit1Cnt));
+            } else {
+                decodeError = FailureCapture.REASON_BIT_AMBIGUOUS;
+                return false;
+            }
+
+            codeBit = codeBit << 1;
+        }
+
+        // Header bit check
+        if (((code & 0x01) != 0x00) || ((code & (0x01 << 14)) == 0x00)) {
+            decodeError = FailureCapture.REASON_FRAMING;
+            return false;
+        }
+
+        code = code & ((0x01 << 14) ^ 0xFFFF);
+        code = code >> 1;
+
+        code = HammingDecode(code);
+
+        if (code == 0xFFFF) {
+            decodeError = FailureCapture.REASON_HAMMING;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Decode a 13-bit Hamming code word into its 9 data bits.
+     *
+     * @param <b>int</b> code word
+     * @return <b>int</b> data bits, 0xFFFF if a parity check fails
+     */
+    public static int HammingDecode(int data) {
+        int i;
+        int newData;
+
+        newData = 0;
+
+        if (!CalMask(data, 0x5555))
+            return 0xFFFF;
+        if (!CalMask(data, 0x6666))
+            return 0xFFFF;
+        if (!CalMask(data, 0x7878))
+            return 0xFFFF;
+        if (!CalMask(data, 0x7F80))
+            return 0xFFFF;
+
+        // Shift and discard Hamming
+        int j = 0;
+        int Bit = 0x01;
+        for (i = 1; i <= 13; i++) {
+            if (i != (1 << j)) {
+                if ((data & 0x01) != 0x00) {
+                    newData = newData | Bit;
+                }
+
+                Bit = Bit << 1;
+            } else {
+                j++;
+            }
+
+            data = data >> 1;
+        }
+
+        return newData;
+    }
+
+    private static boolean CalMask(int data, int Mask) {
+        int OddCnt = 0;
+        int dataTemp = data & Mask;
+        for (int i = 0; i < 13; i++) {
+            if ((dataTemp & 0x01) != 0x00)
+                OddCnt++;
+
+            dataTemp = dataTemp >> 1;
+        }
+        if ((OddCnt & 0x01) == 0x00)
+            return false;
+        return true;
+    }
+
+    private boolean checkStartLog(short[] tempBuf, int j, int level) {
+        int thresholdCnt = 0;
+
+        for (int x = 0; x < TOTALSAMPLES; x++) {
+            if ((tempBuf[j + x] > level) || (tempBuf[j + x] < -level))
+                thresholdCnt++;
+        }
+
+        if (thresholdCnt >= (TOTALSAMPLES - (TOTALSAMPLES / 5)))
+            return true;
+        else
+            return false;
+    }
+
+    /**
+     * @return <b>int</b> samples per bit of the replies, as last learned or set
+     */
+    public int getBitInterval() {
+        return bitInterval;
+    }
+
+    /**
+     * Start from a known bit period, e.g. the one stored for the connected unit. May be called from any thread.
+     *
+     * @param <b>int</b> samples per bit, getNominalBitInterval() to forget the learned one
+     */
+    public void setBitInterval(int v) {
+        if (v < minBitInterval || v > maxBitInterval)
+            throw new IllegalArgumentException("bit interval " + v + " outside " + minBitInterval + ".." + maxBitInterval);
+        bitInterval = v;
+    }
+
+    /**
+     * @return <b>int</b> samples per bit at the standard rate, BIT_INTERVAL at 44.1kHz
+     */
+    public int getNominalBitInterval() {
+        return nominalBitInterval;
+    }
+
+    public int getMinBitInterval() {
+        return minBitInterval;
+    }
+
+    public int getMaxBitInterval() {
+        return maxBitInterval;
+    }
+
+    /**
+     * @param <b>boolean</b> true to learn the bit period from the frames (default), false to keep the one set
+     */
+    public void setRateDetection(boolean bEnable) {
+        bRateDetection = bEnable;
+    }
+
+    public boolean isRateDetection() {
+        return bRateDetection;
+    }
+
+    /**
+     * @return <b>int</b> times a frame decoded only with a new bit period, which was then kept
+     */
+    public int getRateChangeCount() {
+        return rateChangeCnt;
+    }
+
+    /**
+     * @return <b>boolean</b> true while a pool is being collected after a trigger
+     */
+    public boolean isCollecting() {
+        return bStartAnalyse;
+    }
+
+    public void setThreshold(int v) {
+        threshold = v;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param <b>int</b> envelope level above which a tone counts as present, COHERENT_THRESHOLD by default
+     */
+    public void setCoherentThreshold(int v) {
+        coherentThreshold = v;
+    }
+
+    public int getCoherentThreshold() {
+        return coherentThreshold;
+    }
+
+    /**
+     * @param <b>int</b> level the AGC scales each half-cycle peak towards, DEFAULT_AGC_TARGET by default
+     */
+    public void setAgcTarget(int v) {
+        agcTarget = v;
+    }
+
+    public int getAgcTarget() {
+        return agcTarget;
+    }
+
+    /**
+     * @return <b>int</b> reply of the last successful analysis
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return <b>int</b> tone plan of the last successful analysis, -1 if it failed
+     */
+    public int getDecodedPlan() {
+        return decodedPlan;
+    }
+
+    /**
+     * @return <b>int</b> 0 if the last analysis succeeded, else one of FailureCapture.REASON_*
+     */
+    public int getDecodeError() {
+        return decodeError;
+    }
+
+    /**
+     * @return <b>int</b> smallest majority count among the bits of the last analysis, a measure of decode margin
+     */
+    public int getWeakestBitCount() {
+        return weakestBitCnt;
+    }
+
+    /**
+     * @return <b>float[]</b> f1 envelope of the last analysed pool, valid up to getPoolSamples(), of the decoded plan
+     * or of plan 0
+     */
+    public float[] getF1Envelope() {
+        return f1Value;
+    }
+
+    /**
+     * @return <b>float[]</b> f2 envelope of the last analysed pool, valid up to getPoolSamples()
+     */
+    public float[] getF2Envelope() {
+        return f2Value;
+    }
+
+    /**
+     * @return <b>int[]</b> per-sample decisions of the last analysed pool: 0, 1 or 2 for no carrier
+     */
+    public int[] getDecisions() {
+        return diff;
+    }
+
+    public int getPoolSamples() {
+        return poolSamples;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return <b>long</b> stream position of the first sample of the last analysed pool
+     */
+    public long getTriggerSample() {
+        return triggerSample;
+    }
+
+    /**
+     * @return <b>long</b> number of samples fed since construction
+     */
+    public long getSampleCount() {
+        return sampleCnt;
+    }
+}
@@ -0,0 +1,108 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * SoundEncoder assembles the PCM sent to the Breathometer from the waveforms of a WaveformBank.
+ * <p/>
+ * A command is a header pulse, nBit bit pulses (LSB first) and a closing header pulse. The output buffer is kept
+ * between commands and only grows, so encoding does not allocate once it has reached its working size.
+ * The encoder has no Android dependency and is not thread-safe.
+ */
+public class SoundEncoder {
+    private final WaveformBank waveformBank;
+
+    private String headerName = "wav_header";
+    private String bit0Name = "bit0";
+    private String bit1Name = "bit1";
+    private String silenceName = "wav_silence10ms";
+
+    private short[] buffer = new short[2048];
+    private int length;
+
+    public SoundEncoder(WaveformBank waveformBank) {
+        this.waveformBank = waveformBank;
+    }
+
+    /**
+     * Select the waveform set, e.g. the inverted set needed by some handsets.
+     *
+     * @param <b>String</b> name of the header waveform
+     * @param <b>String</b> name of the 0 bit waveform
+     * @param <b>String</b> name of the 1 bit waveform
+     */
+    public void setWaveforms(String header, String bit0, String bit1) {
+        headerName = header;
+        bit0Name = bit0;
+        bit1Name = bit1;
+    }
+
+    /**
+     * Empty the output buffer.
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * Append silence, rounded down to 10ms steps.
+     *
+     * @param <b>int</b> silence in ms
+     */
+    public void addSilence(int ms) {
+        for (int i = 0; i < (ms / 10); i++)
+            append(waveformBank.get(silenceName));
+    }
+
+    /**
+     * Append one command.
+     *
+     * @param <b>int</b> command bits
+     * @param <b>int</b> number of bits to send
+     */
+    public void addCode(int code, int nBit) {
+        short[] bit0 = waveformBank.get(bit0Name);
+        short[] bit1 = waveformBank.get(bit1Name);
+
+        append(waveformBank.get(headerName));
+        for (int bit = 0; bit < nBit; bit++) {
+            if (((code >> bit) & 0x01) != 0x00)
+                append(bit1);
+            else
+                append(bit0);
+        }
+        append(waveformBank.get(headerName));
+    }
+
+    /**
+     * Append PCM as it is, e.g. a probe signal.
+     *
+     * @param <b>short[]</b> samples
+     */
+    public void addSamples(short[] samples) {
+        append(samples);
+    }
+
+    /**
+     * @return <b>short[]</b> output buffer, valid up to getLength() and until the next call
+     */
+    public short[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return <b>int</b> number of samples in the output buffer
+     */
+    public int getLength() {
+        return length;
+    }
+
+    private void append(short[] samples) {
+        if (length + samples.length > buffer.length) {
+            short[] tempBuffer = new short[Math.max(buffer.length * 2, length + samples.length)];
+            System.arraycopy(buffer, 0, tempBuffer, 0, length);
+            buffer = tempBuffer;
+        }
+
+        System.arraycopy(samples, 0, buffer, length, samples.length);
+        length += samples.length;
+    }
+}
@@ -0,0 +1,309 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * SpectrumAnalyzer shows what the mic actually receives: an averaged magnitude spectrum of the capture input and
+ * the SNR of the reply tones, for tuning tone plans and diagnosing handsets.
+ * <p/>
+ * It is a CaptureEngine.Listener, registered with a CaptureHub to be fed inline on the capture thread. The input is
+ * kept in a ring of one FFT size; at every update interval the latest samples are Hann windowed, transformed by a
+ * RealFft plan and averaged exponentially into the spectrum. Between updates a period costs one copy, so it can be
+ * left on behind a debug overlay. Nothing is allocated after construction: the results are copied under a lock into
+ * arrays owned by the analyser and from there into arrays given by the reader, on any thread.
+ * <p/>
+ * Power is relative to a full-scale sine, which reads 0dB in its bin. The SNR of a tone compares the power around its
+ * bin with the mean noise floor next to it, over the same number of bins.
+ */
+public class SpectrumAnalyzer implements CaptureEngine.Listener {
+    public final static int DEFAULT_FFT_SIZE = 2048;    // 21.5Hz bins at 44.1kHz
+    public final static long DEFAULT_UPDATE_MS = 100;
+    public final static int DEFAULT_AVERAGES = 4;
+    public final static int MAX_TONES = 8;              // most tones setTones() accepts
+
+    private final static int TONE_BINS = 2;        // main lobe of the Hann window, each side of the tone bin
+    private final static int NOISE_GUARD = 4;      // bins next to a tone left out of the noise floor
+    private final static int NOISE_HZ = 500;       // noise floor measured up to this far each side of a tone
+    private final static float MIN_POWER = 1e-20f;
+
+    private final int sampleRate;
+    private final int fftSize;
+    private final int bins;
+    private final RealFft fft;
+    private final float[] window;
+    private final float scale;
+
+    // Capture thread only
+    private final short[] input;
+    private int inputPos, inputFill;
+    private long sinceUpdate;
+    private final float[] frame, re, im;
+    private final float[] average;
+    private int averaged;
+    private final float[] snrWork;
+
+    private volatile int[] toneBins;
+    private volatile int[] tones;
+    private volatile int updateSamples;
+    private volatile int averages = DEFAULT_AVERAGES;
+    private volatile boolean bResetAverage;
+
+    // Published results, guarded by lock
+    private final Object lock = new Object();
+    private final float[] published;
+    private final float[] publishedSnr;
+    private int publishedTones;
+    private long publishedTimeNs;
+
+    private volatile long updateCnt, updateTimeNs;
+
+    /**
+     * Constructor for SpectrumAnalyzer, analysing FREQ0 and FREQ1 every DEFAULT_UPDATE_MS.
+     *
+     * @param <b>int</b> capture sample rate in Hz
+     * @param <b>int</b> FFT size, a power of two, e.g. DEFAULT_FFT_SIZE
+     */
+    public SpectrumAnalyzer(int sampleRate, int fftSize) {
+        this.sampleRate = sampleRate;
+        this.fftSize = fftSize;
+        fft = new RealFft(fftSize);
+        bins = fft.getBins();
+
+        // Hann window, coherent gain 1/2: a sine of amplitude A gives a bin magnitude of A * size / 4
+        window = new float[fftSize];
+        for (int i = 0; i < fftSize; i++)
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+        float fullScale = 32768f * fftSize / 4;
+        scale = 1 / (fullScale * fullScale);
+
+        input = new short[fftSize];
+        frame = new float[fftSize];
+        re = new float[bins];
+        im = new float[bins];
+        average = new float[bins];
+        published = new float[bins];
+        publishedSnr = new float[MAX_TONES];
+        snrWork = new float[MAX_TONES];
+
+        setTones(new int[]{SignalDecoder.FREQ0, SignalDecoder.FREQ1});
+        setUpdateInterval(DEFAULT_UPDATE_MS);
+    }
+
+    /**
+     * @param <b>int[]</b> tone frequencies in Hz whose SNR is estimated, at most MAX_TONES
+     */
+    public void setTones(int[] freqs) {
+        if (freqs.length > MAX_TONES)
+            throw new IllegalArgumentException("at most " + MAX_TONES + " tones: " + freqs.length);
+        int[] b = new int[freqs.length];
+        for (int i = 0; i < freqs.length; i++) {
+            if (freqs[i] <= 0 || freqs[i] >= sampleRate / 2)
+                throw new IllegalArgumentException("tone out of range: " + freqs[i]);
+            b[i] = Math.round((float) freqs[i] * fftSize / sampleRate);
+        }
+        tones = freqs.clone();
+        toneBins = b;
+    }
+
+    /**
+     * @param <b>long</b> time between two spectra in ms, at most one per capture period
+     */
+    public void setUpdateInterval(long ms) {
+        if (ms <= 0)
+            throw new IllegalArgumentException("interval must be positive: " + ms);
+        updateSamples = (int) Math.min(Integer.MAX_VALUE, ms * sampleRate / 1000);
+    }
+
+    /**
+     * @param <b>int</b> time constant of the exponential average in updates, 1 shows the latest spectrum only
+     */
+    public void setAverages(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("averages must be positive: " + n);
+        averages = n;
+    }
+
+    /**
+     * Start the average again from the next update, e.g. after moving the handset.
+     */
+    public void resetAverage() {
+        bResetAverage = true;
+    }
+
+    // =====================================================================================
+    // 			*** Capture thread ***
+    // =====================================================================================
+
+    @Override
+    public void onCaptureStart() {
+        // The samples before a pause do not join those after it
+        inputFill = 0;
+        sinceUpdate = 0;
+    }
+
+    @Override
+    public void onCapture(short[] buffer, int length) {
+        int from = Math.max(0, length - fftSize);
+        int n = length - from;
+        int first = Math.min(n, fftSize - inputPos);
+        System.arraycopy(buffer, from, input, inputPos, first);
+        System.arraycopy(buffer, from + first, input, 0, n - first);
+        inputPos = (inputPos + n) % fftSize;
+        inputFill = Math.min(fftSize, inputFill + n);
+
+        sinceUpdate += length;
+        if (inputFill == fftSize && sinceUpdate >= updateSamples) {
+            sinceUpdate = 0;
+            update();
+        }
+    }
+
+    private void update() {
+        long t = System.nanoTime();
+
+        // Oldest sample first
+        for (int i = 0, j = inputPos; i < fftSize; i++) {
+            frame[i] = input[j] * window[i];
+            if (++j == fftSize)
+                j = 0;
+        }
+        fft.forward(frame, re, im);
+
+        if (bResetAverage) {
+            bResetAverage = false;
+            averaged = 0;
+        }
+        // Plain mean until the average has filled, then exponential
+        averaged = Math.min(averaged + 1, averages);
+        float k = 1f / averaged;
+        for (int i = 0; i < bins; i++) {
+            float p = (re[i] * re[i] + im[i] * im[i]) * scale;
+            average[i] += (p - average[i]) * k;
+        }
+
+        int[] tb = toneBins;
+        for (int i = 0; i < tb.length; i++)
+            snrWork[i] = toneSnr(tb, i);
+
+        synchronized (lock) {
+            System.arraycopy(average, 0, published, 0, bins);
+            System.arraycopy(snrWork, 0, publishedSnr, 0, tb.length);
+            publishedTones = tb.length;
+            publishedTimeNs = t;
+        }
+
+        updateTimeNs += System.nanoTime() - t;
+        updateCnt++;
+    }
+
+    private float toneSnr(int[] tb, int index) {
+        int c = tb[index];
+        float signal = 0;
+        int signalBins = 0;
+        for (int i = Math.max(1, c - TONE_BINS); i <= Math.min(bins - 1, c + TONE_BINS); i++) {
+            signal += average[i];
+            signalBins++;
+        }
+
+        int span = Math.max(NOISE_GUARD + 2, NOISE_HZ * fftSize / sampleRate);
+        float noise = 0;
+        int noiseBins = 0;
+        for (int i = Math.max(1, c - span); i <= Math.min(bins - 1, c + span); i++) {
+            if (nearTone(tb, i))
+                continue;
+            noise += average[i];
+            noiseBins++;
+        }
+        if (noiseBins == 0 || signalBins == 0)
+            return 0;
+
+        float noiseInBand = noise / noiseBins * signalBins;
+        return (float) (10 * Math.log10(Math.max(signal, MIN_POWER) / Math.max(noiseInBand, MIN_POWER)));
+    }
+
+    private static boolean nearTone(int[] tb, int bin) {
+        for (int i = 0; i < tb.length; i++) {
+            if (Math.abs(bin - tb[i]) <= NOISE_GUARD)
+                return true;
+        }
+        return false;
+    }
+
+    // =====================================================================================
+    // 			*** Results, any thread ***
+    // =====================================================================================
+
+    /**
+     * Copy the averaged power spectrum.
+     *
+     * @param <b>float[]</b> power per bin out, relative to a full-scale sine, at least getBins()
+     * @return <b>long</b> System.nanoTime() of the update, 0 if there was none yet
+     */
+    public long getSpectrum(float[] out) {
+        synchronized (lock) {
+            System.arraycopy(published, 0, out, 0, bins);
+            return publishedTimeNs;
+        }
+    }
+
+    /**
+     * Copy the averaged spectrum in dB, e.g. for a debug overlay.
+     *
+     * @param <b>float[]</b> dB per bin out, 0 for a full-scale sine, at least getBins()
+     * @return <b>long</b> System.nanoTime() of the update, 0 if there was none yet
+     */
+    public long getSpectrumDb(float[] out) {
+        long t = getSpectrum(out);
+        for (int i = 0; i < bins; i++)
+            out[i] = (float) (10 * Math.log10(Math.max(out[i], MIN_POWER)));
+        return t;
+    }
+
+    /**
+     * Copy the SNR estimates of the tones, in the order given to setTones().
+     *
+     * @param <b>float[]</b> SNR in dB out, at least the number of tones
+     * @return <b>int</b> number of estimates copied, 0 before the first update
+     */
+    public int getToneSnrDb(float[] out) {
+        synchronized (lock) {
+            System.arraycopy(publishedSnr, 0, out, 0, publishedTones);
+            return publishedTones;
+        }
+    }
+
+    /**
+     * @return <b>int[]</b> a copy of the tone frequencies
+     */
+    public int[] getTones() {
+        return tones.clone();
+    }
+
+    public int getFftSize() {
+        return fftSize;
+    }
+
+    /**
+     * @return <b>int</b> bins of the spectrum, fftSize / 2 + 1
+     */
+    public int getBins() {
+        return bins;
+    }
+
+    /**
+     * @return <b>float</b> frequency of a bin in Hz
+     */
+    public float getBinFrequency(int bin) {
+        return (float) bin * sampleRate / fftSize;
+    }
+
+    public long getUpdateCount() {
+        return updateCnt;
+    }
+
+    /**
+     * @return <b>long</b> mean capture thread time of one update in ns
+     */
+    public long getMeanUpdateTimeNs() {
+        long n = updateCnt;
+        return (n == 0) ? 0 : updateTimeNs / n;
+    }
+}
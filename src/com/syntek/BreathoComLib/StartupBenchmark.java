@@ -0,0 +1,103 @@
+package com.syntek.BreathoComLib;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * StartupBenchmark measures what BreathoComLib costs an app at startup.
+ * <p/>
+ * Run it from an instrumentation test or a debug menu, on a device with record permission:
+ * <pre>
+ *     StartupBenchmark.Result r = StartupBenchmark.run(getBaseContext(), 20);
+ * </pre>
+ */
+public final class StartupBenchmark {
+    private static final String TAG = "StartupBenchmark";
+
+    /**
+     * Averaged timings of one benchmark run, all in ns.
+     */
+    public static final class Result {
+        public final int rounds;
+        public final long constructNs;
+        public final long warmUpNs;
+        public final long coldCaptureStartNs;
+        public final long warmCaptureStartNs;
+
+        Result(int rounds, long constructNs, long warmUpNs, long coldCaptureStartNs, long warmCaptureStartNs) {
+            this.rounds = rounds;
+            this.constructNs = constructNs;
+            this.warmUpNs = warmUpNs;
+            this.coldCaptureStartNs = coldCaptureStartNs;
+            this.warmCaptureStartNs = warmCaptureStartNs;
+        }
+
+        @Override
+        public String toString() {
+            return "rounds=" + rounds
+                    + " construct=" + (constructNs / 1000) + "us"
+                    + " warmUp=" + (warmUpNs / 1000) + "us"
+                    + " coldCaptureStart=" + (coldCaptureStartNs / 1000) + "us"
+                    + " warmCaptureStart=" + (warmCaptureStartNs / 1000) + "us";
+        }
+    }
+
+    private StartupBenchmark() {
+    }
+
+    /**
+     * Measure construction, warmUp() and time to first captured sample with and without warmUp().
+     * Must not be called on the main thread.
+     *
+     * @param <b>Context</b> context passed to BreathoComLib
+     * @param <b>int</b>     number of rounds to average
+     * @return <b>Result</b> averaged timings
+     */
+    public static Result run(Context con, int rounds) throws InterruptedException {
+        long constructNs = 0, warmUpNs = 0, coldNs = 0, warmNs = 0;
+
+        for (int i = 0; i < rounds; i++) {
+            // Construction only
+            long startNs = System.nanoTime();
+            BreathoComLib lib = new BreathoComLib(con);
+            constructNs += System.nanoTime() - startNs;
+
+            // Cold start of the recorder
+            coldNs += captureStart(lib);
+            lib.release();
+
+            // Warm start of the recorder
+            lib = new BreathoComLib(con);
+            startNs = System.nanoTime();
+            try {
+                lib.warmUp().get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "warmUp failed", e);
+            }
+            warmUpNs += System.nanoTime() - startNs;
+
+            warmNs += captureStart(lib);
+            lib.release();
+        }
+
+        Result result = new Result(rounds, constructNs / rounds, warmUpNs / rounds, coldNs / rounds, warmNs / rounds);
+        Log.i(TAG, result.toString());
+
+        return result;
+    }
+
+    private static long captureStart(BreathoComLib lib) throws InterruptedException {
+        long startNs = System.nanoTime();
+
+        lib.startRecording();
+        // Give up after about 2s if the recorder cannot start
+        for (int t = 0; (lib.getCaptureStartLatencyNs() < 0) && (t < 2000); t++)
+            Thread.sleep(1);
+        long latencyNs = System.nanoTime() - startNs;
+        lib.stopRecording();
+
+        return latencyNs;
+    }
+}
@@ -0,0 +1,306 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * TelemetryStream keeps the latest device samples as (timestamp, value) pairs in a preallocated ring.
+ * <p/>
+ * One thread writes (the capture thread in BreathoComLib): add() optionally downsamples by a factor that can be
+ * changed at any time, taking the mean, min, max or last value of each group. Any number of threads read, each
+ * through its own Reader, or ask for min/max/mean over the last span of time into a reused Window. Nothing is
+ * allocated and nothing is boxed per sample; when a reader falls a whole ring behind, the overwritten samples are
+ * counted as lost.
+ */
+public class TelemetryStream {
+    public final static int MODE_MEAN = 0;
+    public final static int MODE_MIN = 1;
+    public final static int MODE_MAX = 2;
+    public final static int MODE_LAST = 3;
+
+    private final static int WINDOW_RETRIES = 3;
+
+    private final int capacity;
+    private final long[] times;
+    private final int[] values;
+
+    // Number of samples stored so far; the volatile write publishes the sample before it. The slot of sample
+    // written - capacity is being overwritten by the next add(), so readers never rely on it.
+    private volatile long written;
+    private volatile long received;
+
+    private volatile int factor = 1;
+    private volatile int mode = MODE_MEAN;
+
+    // Group being downsampled, writer thread only
+    private int groupFactor, groupMode, groupCnt;
+    private long groupSum;
+    private int groupMin, groupMax;
+
+    /**
+     * Aggregates over a span of time, filled by window().
+     */
+    public static final class Window {
+        int count;
+        int min, max;
+        double mean;
+        long startNs, endNs;
+
+        /**
+         * @return <b>int</b> samples in the window, the other values are meaningless when it is 0
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public int getMin() {
+            return min;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @return <b>long</b> timestamp of the oldest sample in the window
+         */
+        public long getStartNs() {
+            return startNs;
+        }
+
+        /**
+         * @return <b>long</b> timestamp of the newest sample in the window
+         */
+        public long getEndNs() {
+            return endNs;
+        }
+    }
+
+    /**
+     * Position of one consumer in the stream. Not thread-safe, use one per consuming thread.
+     */
+    public final class Reader {
+        private long next;
+        private long lost;
+
+        private Reader(long next) {
+            this.next = next;
+        }
+
+        /**
+         * Copy the samples stored since the last read, oldest first.
+         *
+         * @param <b>long[]</b> timestamps out, System.nanoTime()
+         * @param <b>int[]</b>  values out
+         * @return <b>int</b> number of samples copied, at most the length of the arrays
+         */
+        public int read(long[] outTimes, int[] outValues) {
+            int max = Math.min(outTimes.length, outValues.length);
+            long end = written;
+            if (next < oldestSafe(end)) {
+                lost += oldestSafe(end) - next;
+                next = oldestSafe(end);
+            }
+
+            int n = (int) Math.min(max, end - next);
+            for (int i = 0; i < n; i++) {
+                int slot = (int) ((next + i) % capacity);
+                outTimes[i] = times[slot];
+                outValues[i] = values[slot];
+            }
+
+            // The writer may have lapped the oldest copied samples meanwhile, drop them
+            int skip = (int) Math.max(0, Math.min(n, oldestSafe(written) - next));
+            if (skip > 0) {
+                System.arraycopy(outTimes, skip, outTimes, 0, n - skip);
+                System.arraycopy(outValues, skip, outValues, 0, n - skip);
+                lost += skip;
+            }
+
+            next += n;
+            return n - skip;
+        }
+
+        /**
+         * @return <b>int</b> samples stored and not read yet, up to the capacity
+         */
+        public int available() {
+            long end = written;
+            return (int) (end - Math.max(next, oldestSafe(end)));
+        }
+
+        /**
+         * @return <b>long</b> samples overwritten before this reader got them
+         */
+        public long getLostCount() {
+            return lost;
+        }
+    }
+
+    /**
+     * Constructor for TelemetryStream.
+     *
+     * @param <b>int</b> samples kept after downsampling, at least 2, one slot is always being written
+     */
+    public TelemetryStream(int capacity) {
+        if (capacity < 2)
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        this.capacity = capacity;
+        times = new long[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * Add a sample. Writer thread only.
+     *
+     * @param <b>long</b> timestamp, System.nanoTime()
+     * @param <b>int</b>  value
+     */
+    public void add(long timeNs, int value) {
+        received++;
+
+        // A new factor or mode takes effect at the next group
+        if (groupCnt == 0) {
+            groupFactor = factor;
+            groupMode = mode;
+            groupSum = 0;
+            groupMin = Integer.MAX_VALUE;
+            groupMax = Integer.MIN_VALUE;
+        }
+
+        groupCnt++;
+        groupSum += value;
+        if (value < groupMin)
+            groupMin = value;
+        if (value > groupMax)
+            groupMax = value;
+        if (groupCnt < groupFactor)
+            return;
+
+        int v;
+        switch (groupMode) {
+            case MODE_MIN:
+                v = groupMin;
+                break;
+            case MODE_MAX:
+                v = groupMax;
+                break;
+            case MODE_LAST:
+                v = value;
+                break;
+            default:
+                v = (int) Math.round((double) groupSum / groupCnt);
+                break;
+        }
+        groupCnt = 0;
+
+        long w = written;
+        int slot = (int) (w % capacity);
+        times[slot] = timeNs;
+        values[slot] = v;
+        written = w + 1;
+    }
+
+    /**
+     * @param <b>int</b> samples per stored sample, 1 keeps every sample
+     * @param <b>int</b> MODE_MEAN, MODE_MIN, MODE_MAX or MODE_LAST
+     */
+    public void setDownsampling(int factor, int mode) {
+        if (factor < 1)
+            throw new IllegalArgumentException("factor must be positive: " + factor);
+        if (mode < MODE_MEAN || mode > MODE_LAST)
+            throw new IllegalArgumentException("unknown mode: " + mode);
+        this.mode = mode;
+        this.factor = factor;
+    }
+
+    public int getDownsamplingFactor() {
+        return factor;
+    }
+
+    /**
+     * @return <b>Reader</b> a new reader starting at the oldest stored sample
+     */
+    public Reader newReader() {
+        return new Reader(oldestSafe(written));
+    }
+
+    /**
+     * Aggregate the samples of the last span of time, ending at the newest sample.
+     *
+     * @param <b>long</b>   span in ns
+     * @param <b>Window</b> filled with the result
+     * @return <b>boolean</b> false if there is no sample, or the writer kept overwriting the span
+     */
+    public boolean window(long spanNs, Window out) {
+        for (int attempt = 0; attempt < WINDOW_RETRIES; attempt++) {
+            long end = written;
+            if (end == 0) {
+                out.count = 0;
+                return false;
+            }
+
+            long first = oldestSafe(end);
+            int newest = (int) ((end - 1) % capacity);
+            long endNs = times[newest];
+            long cutoff = endNs - spanNs;
+
+            int cnt = 0, min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            long sum = 0, startNs = endNs;
+            long i = end - 1;
+            for (; i >= first; i--) {
+                int slot = (int) (i % capacity);
+                long t = times[slot];
+                if (t < cutoff)
+                    break;
+                int v = values[slot];
+                cnt++;
+                sum += v;
+                if (v < min)
+                    min = v;
+                if (v > max)
+                    max = v;
+                startNs = t;
+            }
+
+            // Retry if the oldest slot looked at may have been overwritten meanwhile
+            if (Math.max(i, first) < oldestSafe(written))
+                continue;
+
+            out.count = cnt;
+            out.min = min;
+            out.max = max;
+            out.mean = (double) sum / cnt;
+            out.startNs = startNs;
+            out.endNs = endNs;
+            return true;
+        }
+
+        out.count = 0;
+        return false;
+    }
+
+    // Oldest sample that cannot be overwritten while it is read
+    private long oldestSafe(long end) {
+        return Math.max(0, end - capacity + 1);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return <b>long</b> samples given to add()
+     */
+    public long getReceivedCount() {
+        return received;
+    }
+
+    /**
+     * @return <b>long</b> samples stored after downsampling, including those overwritten since
+     */
+    public long getStoredCount() {
+        return written;
+    }
+}
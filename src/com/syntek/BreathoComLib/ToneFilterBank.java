@@ -0,0 +1,207 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * ToneFilterBank computes the tone envelopes of an analyse pool for any number of tone frequencies at once.
+ * <p/>
+ * For every subscribed bin, the envelope at sample i is the magnitude of the non-coherent correlation of the window
+ * of samples starting at i with the bin's tone, averaged over the following smoothing window: the same envelopes the
+ * decoder computed for its two tones one after the other. The pool is converted once for all bins, and the
+ * correlation and the smoothing are running sums, so a bin costs a few operations per sample instead of a window's
+ * worth. The cos/sin references of every bin are precomputed for the pool (entry i holds the reference at sample
+ * i + 1); a bin is shared by every subscriber of its frequency, e.g. two tone plans using the same tone.
+ * <p/>
+ * Like SignalDecoder, the bank has no Android dependency and is not thread-safe. subscribe() allocates the tables
+ * of a new frequency, process() allocates nothing.
+ */
+public class ToneFilterBank {
+    private final int sampleRate;
+    private final int poolSamples;
+    private final int window;
+    private final int smoothing;
+
+    private int binCnt;
+    private int[] freqs = new int[0];
+    private int[] subscribers = new int[0];
+    private float[][] cos = new float[0][];
+    private float[][] sin = new float[0][];
+    private float[][] envelope = new float[0][];
+
+    // Bins with subscribers and the scratch of process()
+    private int[] active = new int[0];
+    private int activeCnt;
+    private final float[] samples, productCos, productSin, magnitude;
+
+    /**
+     * Constructor for ToneFilterBank.
+     *
+     * @param <b>int</b> sample rate in Hz
+     * @param <b>int</b> samples per pool
+     * @param <b>int</b> correlation window in samples
+     * @param <b>int</b> smoothing window of the magnitudes in samples
+     */
+    public ToneFilterBank(int sampleRate, int poolSamples, int window, int smoothing) {
+        this.sampleRate = sampleRate;
+        this.poolSamples = poolSamples;
+        this.window = window;
+        this.smoothing = smoothing;
+        samples = new float[poolSamples];
+        productCos = new float[poolSamples];
+        productSin = new float[poolSamples];
+        magnitude = new float[poolSamples];
+    }
+
+    /**
+     * Subscribe to the bin of a frequency, creating it if needed.
+     *
+     * @param <b>int</b> tone frequency in Hz
+     * @return <b>int</b> bin index, the same for every subscriber of the frequency
+     */
+    public int subscribe(int freq) {
+        if (freq <= 0 || freq >= sampleRate / 2)
+            throw new IllegalArgumentException("tone out of range: " + freq);
+
+        for (int b = 0; b < binCnt; b++) {
+            if (freqs[b] == freq) {
+                if (subscribers[b]++ == 0)
+                    updateActive();
+                return b;
+            }
+        }
+
+        int b = binCnt++;
+        freqs = grow(freqs, binCnt);
+        subscribers = grow(subscribers, binCnt);
+        cos = grow(cos, binCnt);
+        sin = grow(sin, binCnt);
+        envelope = grow(envelope, binCnt);
+
+        freqs[b] = freq;
+        subscribers[b] = 1;
+        cos[b] = new float[poolSamples];
+        sin[b] = new float[poolSamples];
+        envelope[b] = new float[poolSamples];
+        double step = 2 * Math.PI * ((double) freq / (double) sampleRate);
+        for (int i = 0; i < poolSamples; i++) {
+            cos[b][i] = (float) Math.cos(step * (i + 1));
+            sin[b][i] = (float) Math.sin(step * (i + 1));
+        }
+
+        updateActive();
+        return b;
+    }
+
+    /**
+     * Drop a subscription. A bin nobody subscribes to any more is no longer computed, its tables are kept.
+     *
+     * @param <b>int</b> bin returned by subscribe()
+     */
+    public void unsubscribe(int bin) {
+        if (subscribers[bin] > 0 && --subscribers[bin] == 0)
+            updateActive();
+    }
+
+    private void updateActive() {
+        activeCnt = 0;
+        active = new int[binCnt];
+        for (int b = 0; b < binCnt; b++) {
+            if (subscribers[b] > 0)
+                active[activeCnt++] = b;
+        }
+    }
+
+    /**
+     * Compute the envelopes of every subscribed bin.
+     *
+     * @param <b>short[]</b> at least the pool samples
+     */
+    public void process(short[] pool) {
+        int n = poolSamples;
+        int outputs = n - window + 1;
+        float[] x = samples;
+        float[] pc = productCos, ps = productSin, mag = magnitude;
+
+        // The samples are converted once for all bins
+        for (int i = 0; i < n; i++)
+            x[i] = pool[i];
+
+        for (int a = 0; a < activeCnt; a++) {
+            int b = active[a];
+            float[] c = cos[b], s = sin[b], env = envelope[b];
+
+            for (int i = 0; i < n; i++) {
+                pc[i] = x[i] * c[i];
+                ps[i] = x[i] * s[i];
+            }
+
+            // Correlation: each window sum is the previous one plus the newest product minus the oldest
+            double sumCos = 0, sumSin = 0;
+            for (int i = 0; i < window - 1; i++) {
+                sumCos += pc[i];
+                sumSin += ps[i];
+            }
+            for (int k = 0; k < outputs; k++) {
+                sumCos += pc[k + window - 1];
+                sumSin += ps[k + window - 1];
+                float mc = (float) (sumCos / window), ms = (float) (sumSin / window);
+                mag[k] = (float) Math.sqrt(mc * mc + ms * ms);
+                sumCos -= pc[k];
+                sumSin -= ps[k];
+            }
+
+            // Smoothing, near the end of the pool the mean is over the magnitudes left
+            double sum = 0;
+            int head = Math.min(smoothing, outputs);
+            for (int i = 0; i < head; i++)
+                sum += mag[i];
+            int full = outputs - smoothing;
+            for (int k = 0; k < full; k++) {
+                env[k] = (float) (sum / smoothing);
+                sum += mag[k + smoothing] - mag[k];
+            }
+            for (int k = Math.max(full, 0); k < outputs; k++) {
+                env[k] = (float) (sum / (outputs - k));
+                sum -= mag[k];
+            }
+            for (int k = outputs; k < n; k++)
+                env[k] = 0;
+        }
+    }
+
+    /**
+     * @param <b>int</b> bin returned by subscribe()
+     * @return <b>float[]</b> envelope of the bin from the last process(), valid up to the pool samples
+     */
+    public float[] getEnvelope(int bin) {
+        return envelope[bin];
+    }
+
+    /**
+     * @return <b>int</b> tone frequency of a bin in Hz
+     */
+    public int getFrequency(int bin) {
+        return freqs[bin];
+    }
+
+    /**
+     * @return <b>int</b> bins computed by process(), i.e. with at least one subscriber
+     */
+    public int getActiveBinCount() {
+        return activeCnt;
+    }
+
+    public int getPoolSamples() {
+        return poolSamples;
+    }
+
+    private static int[] grow(int[] a, int n) {
+        int[] b = new int[n];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+
+    private static float[][] grow(float[][] a, int n) {
+        float[][] b = new float[n][];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+}
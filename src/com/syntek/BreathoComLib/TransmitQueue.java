@@ -0,0 +1,559 @@
+package com.syntek.BreathoComLib;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TransmitQueue hands transmit requests from any thread to the one thread owning the encoder and the player.
+ * <p/>
+ * submit() copies the frames into an immutable Request, adds it to the lock-free queue of its priority and returns
+ * its future; the queue is drained on the AudioScheduler thread, which passes the requests to the Sink. The encoder
+ * buffers, the AudioTrack and whatever else the sink touches are thus confined to that thread and need no lock.
+ * <p/>
+ * A transmission is never cut short by the next one. The sink is given a batch of requests only once every request
+ * of the batch before has been finished: all requests waiting by then, highest priority first and in submission
+ * order within a priority, up to maxBatchFrames frames, which it plays back to back in one transmission. A batch
+ * whose requests were waiting when the previous one ended is marked as continued, the output is still running and
+ * needs no leader. A request submitted on the scheduler thread itself (e.g. by the LinkLayer) is handed over before
+ * submit() returns if the sink is idle, unless it comes from within the sink.
+ * <p/>
+ * The queue holds at most capacity requests, a request beyond is rejected with a future failing at once. Its future
+ * is the cancellation handle: cancelling it takes a waiting request out of the queue, once handed to the sink the
+ * request plays to its end and cancel() returns false. A request may ask to be
+ * deduplicated, it then shares the future of an identical request still waiting instead of being queued again.
+ * The class has no Android dependency.
+ */
+public class TransmitQueue {
+    public final static int PRIORITY_HIGH = 0;
+    public final static int PRIORITY_NORMAL = 1;
+    public final static int PRIORITY_LOW = 2;
+
+    public final static int DEFAULT_CAPACITY = 64;
+    public final static int DEFAULT_MAX_BATCH_FRAMES = 16;
+
+    private final static int PRIORITIES = 3;
+
+    /**
+     * Owner of the transmit state, called on the scheduler thread only.
+     */
+    public interface Sink {
+        /**
+         * Start sending requests back to back in one transmission. Nothing is playing: every request handed over
+         * before has been finished. Each request is finished later with TransmitQueue.finish() or abort(), or at once
+         * for a synchronous sink. If it throws, the requests not finished yet fail with the exception.
+         *
+         * @param <b>Request[]</b> requests in the order to play, at least one
+         * @param <b>int</b>       number of requests
+         * @param <b>boolean</b>   true if the requests were waiting when the previous transmission ended
+         */
+        void transmit(Request[] batch, int count, boolean bContinued);
+    }
+
+    /**
+     * One transmit asked for by submit() or submitSamples(). Immutable apart from its future.
+     */
+    public static final class Request {
+        private final int[] frames;
+        private final int nBit;
+        private final short[] samples;
+        private final long enqueueNs;
+        private final int priority;
+        final ResultFuture<TransmitResult> future = new ResultFuture<TransmitResult>();
+        final TransmitQueue queue;
+
+        // Handed to the sink, and finished or aborted since
+        private volatile boolean bSent;
+        private final AtomicBoolean bSettled = new AtomicBoolean();
+
+        Request(TransmitQueue queue, int[] frames, int nBit, short[] samples, long enqueueNs, int priority) {
+            this.queue = queue;
+            this.frames = frames;
+            this.nBit = nBit;
+            this.samples = samples;
+            this.enqueueNs = enqueueNs;
+            this.priority = priority;
+        }
+
+        public int getFrameCount() {
+            return frames.length;
+        }
+
+        public int getFrame(int index) {
+            return frames[index];
+        }
+
+        /**
+         * @return <b>int</b> bits per frame
+         */
+        public int getBits() {
+            return nBit;
+        }
+
+        /**
+         * @return <b>short[]</b> PCM to play as it is instead of frames, null for a frame request
+         */
+        public short[] getSamples() {
+            return samples;
+        }
+
+        /**
+         * @return <b>long</b> System.nanoTime() when the transmit was asked for
+         */
+        public long getEnqueueTimeNs() {
+            return enqueueNs;
+        }
+
+        /**
+         * @return <b>int</b> one of PRIORITY_*
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return <b>Future</b> completed when the request has been played, or cancelled when stopped before; it can
+         * only be cancelled by the caller while still waiting
+         */
+        public Future<TransmitResult> getFuture() {
+            return future;
+        }
+    }
+
+    private final AudioScheduler scheduler;
+    private final Sink sink;
+    private final int capacity;
+    private final int maxBatchFrames;
+
+    private final ConcurrentLinkedQueue<Request>[] queues;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicBoolean bDrainScheduled = new AtomicBoolean();
+    private volatile long idleSinceNs = Long.MIN_VALUE;
+    private boolean bDraining;    // scheduler thread only
+
+    private final AtomicLong submitCnt = new AtomicLong();
+    private final AtomicLong dedupCnt = new AtomicLong();
+    private final AtomicLong rejectCnt = new AtomicLong();
+    private final AtomicLong cancelCnt = new AtomicLong();
+    private volatile int maxDepth;
+    private volatile long transmitCnt;
+    private volatile long batchCnt;
+    private volatile long continuedCnt;
+    private volatile long totalWaitNs;
+    private volatile long maxWaitNs;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            bDrainScheduled.set(false);
+            drain();
+        }
+    };
+
+    /**
+     * Constructor for TransmitQueue, holding DEFAULT_CAPACITY requests and batching up to DEFAULT_MAX_BATCH_FRAMES.
+     *
+     * @param <b>AudioScheduler</b> scheduler whose thread owns the transmit state
+     * @param <b>Sink</b>           owner of the transmit state
+     */
+    public TransmitQueue(AudioScheduler scheduler, Sink sink) {
+        this(scheduler, sink, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_FRAMES);
+    }
+
+    /**
+     * Constructor for TransmitQueue.
+     *
+     * @param <b>AudioScheduler</b> scheduler whose thread owns the transmit state
+     * @param <b>Sink</b>           owner of the transmit state
+     * @param <b>int</b>            most requests waiting at once
+     * @param <b>int</b>            most frames in one transmission, a longer request is still sent whole
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TransmitQueue(AudioScheduler scheduler, Sink sink, int capacity, int maxBatchFrames) {
+        if (capacity < 1 || maxBatchFrames < 1)
+            throw new IllegalArgumentException("capacity and batch must be at least 1");
+        this.scheduler = scheduler;
+        this.sink = sink;
+        this.capacity = capacity;
+        this.maxBatchFrames = maxBatchFrames;
+
+        queues = new ConcurrentLinkedQueue[PRIORITIES];
+        for (int p = 0; p < PRIORITIES; p++)
+            queues[p] = new ConcurrentLinkedQueue<Request>();
+    }
+
+    /**
+     * Ask for frames to be sent back to back in one transmission, at normal priority. Returns at once unless called
+     * on the scheduler thread.
+     *
+     * @param <b>long</b>  System.nanoTime() of the request
+     * @param <b>int[]</b> frames, copied
+     * @param <b>int</b>   number of frames
+     * @param <b>int</b>   bits per frame
+     * @return <b>Future</b> the transmit timing, see TransmitResult
+     */
+    public Future<TransmitResult> submit(long enqueueNs, int[] frames, int count, int nBit) {
+        return submit(enqueueNs, frames, count, nBit, PRIORITY_NORMAL, false);
+    }
+
+    /**
+     * Ask for frames to be sent back to back in one transmission.
+     *
+     * @param <b>long</b>    System.nanoTime() of the request
+     * @param <b>int[]</b>   frames, copied
+     * @param <b>int</b>     number of frames
+     * @param <b>int</b>     bits per frame
+     * @param <b>int</b>     one of PRIORITY_*
+     * @param <b>boolean</b> true to share the future of an identical request still waiting instead of queueing again;
+     *                       cancelling the shared future cancels it for every caller
+     * @return <b>Future</b> the transmit timing, see TransmitResult; failing at once if the queue is full
+     */
+    public Future<TransmitResult> submit(long enqueueNs, int[] frames, int count, int nBit, int priority, boolean bDedup) {
+        if (priority < PRIORITY_HIGH || priority > PRIORITY_LOW)
+            throw new IllegalArgumentException("priority " + priority);
+
+        if (bDedup) {
+            for (Request r : queues[priority]) {
+                if (r.samples == null && r.nBit == nBit && r.frames.length == count && !r.future.isDone()
+                        && equalFrames(r.frames, frames, count)) {
+                    dedupCnt.incrementAndGet();
+                    return r.future;
+                }
+            }
+        }
+
+        int[] copy = new int[count];
+        System.arraycopy(frames, 0, copy, 0, count);
+        return enqueue(new Request(this, copy, nBit, null, enqueueNs, priority));
+    }
+
+    private static boolean equalFrames(int[] a, int[] b, int count) {
+        for (int i = 0; i < count; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ask for PCM to be played as it is, at normal priority, e.g. a probe signal.
+     *
+     * @param <b>long</b>    System.nanoTime() of the request
+     * @param <b>short[]</b> samples at the player rate, copied
+     * @param <b>int</b>     number of samples
+     * @return <b>Future</b> the transmit timing, see TransmitResult; failing at once if the queue is full
+     */
+    public Future<TransmitResult> submitSamples(long enqueueNs, short[] samples, int length) {
+        short[] copy = new short[length];
+        System.arraycopy(samples, 0, copy, 0, length);
+        return enqueue(new Request(this, new int[0], 0, copy, enqueueNs, PRIORITY_NORMAL));
+    }
+
+    private Future<TransmitResult> enqueue(final Request r) {
+        submitCnt.incrementAndGet();
+
+        int d = depth.incrementAndGet();
+        if (d > capacity) {
+            depth.decrementAndGet();
+            rejectCnt.incrementAndGet();
+            r.future.fail(new IllegalStateException("transmit queue full, " + capacity + " requests waiting"));
+            return r.future;
+        }
+        if (d > maxDepth)
+            maxDepth = d;
+
+        // A request cancelled while waiting leaves the queue at once
+        r.future.whenDone(new Runnable() {
+            @Override
+            public void run() {
+                if (r.future.isCancelled() && queues[r.priority].remove(r)) {
+                    depth.decrementAndGet();
+                    cancelCnt.incrementAndGet();
+                }
+            }
+        });
+        queues[r.priority].offer(r);
+
+        kick();
+        return r.future;
+    }
+
+    private void kick() {
+        if (scheduler.isSchedulerThread()) {
+            // Requests queued before by other threads go first, the order of the queue is kept
+            drain();
+        } else if (bDrainScheduled.compareAndSet(false, true)) {
+            scheduler.execute(drainTask);
+        }
+    }
+
+    // Scheduler thread only
+    private void drain() {
+        // A sink submitting or finishing from its own callbacks only queues, the running loop picks it up
+        if (bDraining)
+            return;
+        bDraining = true;
+        try {
+            while (inFlight.get() == 0) {
+                Request[] batch = takeBatch();
+                if (batch == null)
+                    break;
+
+                // Continued if the first request was already waiting when the output went idle
+                long now = System.nanoTime();
+                boolean bContinued = batchCnt > 0 && batch[0].enqueueNs <= idleSinceNs;
+                for (Request r : batch) {
+                    long waitNs = now - r.enqueueNs;
+                    totalWaitNs += waitNs;
+                    if (waitNs > maxWaitNs)
+                        maxWaitNs = waitNs;
+                    r.bSent = true;
+                }
+                inFlight.set(batch.length);
+                transmitCnt += batch.length;
+                batchCnt++;
+                if (bContinued)
+                    continuedCnt++;
+                try {
+                    sink.transmit(batch, batch.length, bContinued);
+                } catch (RuntimeException e) {
+                    failBatch(batch, e);
+                }
+            }
+        } finally {
+            bDraining = false;
+        }
+    }
+
+    // The sink threw: nothing is playing, the callers get the error and the next batch may go
+    private void failBatch(Request[] batch, RuntimeException e) {
+        System.err.println("TransmitQueue: transmit of " + batch.length + " requests failed");
+        e.printStackTrace();
+
+        for (Request r : batch) {
+            if (r.bSettled.compareAndSet(false, true))
+                r.future.fail(e);
+        }
+        inFlight.set(0);
+        idleSinceNs = System.nanoTime();
+    }
+
+    // Waiting requests by priority up to maxBatchFrames, at least one; null if none
+    private Request[] takeBatch() {
+        Request[] batch = new Request[4];
+        int n = 0, frames = 0;
+        for (int p = 0; p < PRIORITIES; p++) {
+            Request r;
+            while ((r = queues[p].peek()) != null) {
+                int size = Math.max(1, r.frames.length);
+                if (n > 0 && frames + size > maxBatchFrames)
+                    break;
+                if (!queues[p].remove(r))
+                    continue;    // cancelled meanwhile, already counted
+                depth.decrementAndGet();
+                // Taken for the sink: the caller can no longer call it off
+                if (!r.future.commit()) {
+                    cancelCnt.incrementAndGet();
+                    continue;
+                }
+                if (n == batch.length) {
+                    Request[] larger = new Request[n * 2];
+                    System.arraycopy(batch, 0, larger, 0, n);
+                    batch = larger;
+                }
+                batch[n++] = r;
+                frames += size;
+            }
+            // Lower priorities do not overtake a higher one that did not fit
+            if (r != null)
+                break;
+        }
+        if (n == 0)
+            return null;
+        if (n < batch.length) {
+            Request[] exact = new Request[n];
+            System.arraycopy(batch, 0, exact, 0, n);
+            batch = exact;
+        }
+        return batch;
+    }
+
+    /**
+     * Finish a request with the timing measured by the sink. Any thread.
+     *
+     * @return <b>boolean</b> false if the request was already finished or cancelled
+     */
+    public boolean finish(Request request, long firstSampleNs, long lastSampleNs, int frames, int sampleRate, boolean bComplete) {
+        return finish(request, new TransmitResult(request.enqueueNs, firstSampleNs, lastSampleNs, frames, sampleRate, bComplete));
+    }
+
+    /**
+     * Finish a request with its result. Any thread.
+     *
+     * @return <b>boolean</b> false if the request was already finished or cancelled
+     */
+    public boolean finish(Request request, TransmitResult result) {
+        boolean bFinished = request.future.complete(result);
+        settle(request);
+        return bFinished;
+    }
+
+    /**
+     * Give up a request handed to the sink, e.g. when the player is released while it is playing. Its future is
+     * cancelled. Any thread.
+     *
+     * @return <b>boolean</b> false if the request was already finished or cancelled
+     */
+    public boolean abort(Request request) {
+        boolean bCancelled = request.future.abort();
+        settle(request);
+        return bCancelled;
+    }
+
+    // The next batch goes out once every request of this one is settled
+    private void settle(Request request) {
+        if (!request.bSent || !request.bSettled.compareAndSet(false, true))
+            return;
+        if (inFlight.decrementAndGet() == 0) {
+            idleSinceNs = System.nanoTime();
+            kick();
+        }
+    }
+
+    /**
+     * Run a task on the thread owning the transmit state and wait for it, e.g. to release the player.
+     * Runs at once when called on that thread.
+     */
+    public void runOnOwner(Runnable task) {
+        if (scheduler.isSchedulerThread()) {
+            task.run();
+            return;
+        }
+
+        Future<?> f = scheduler.execute(task);
+        boolean bInterrupted = false;
+        while (true) {
+            try {
+                f.get();
+                break;
+            } catch (InterruptedException e) {
+                bInterrupted = true;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (CancellationException e) {
+                break;
+            }
+        }
+        if (bInterrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Cancel the requests not handed to the sink yet, e.g. before shutting the scheduler down.
+     *
+     * @return <b>int</b> requests cancelled
+     */
+    public int cancelQueued() {
+        int n = 0;
+        for (int p = 0; p < PRIORITIES; p++) {
+            Request r;
+            while ((r = queues[p].poll()) != null) {
+                depth.decrementAndGet();
+                if (r.future.cancel(false))
+                    n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return <b>int</b> requests waiting to be transmitted
+     */
+    public int getQueuedCount() {
+        return depth.get();
+    }
+
+    /**
+     * @return <b>int</b> most requests waiting at once since construction
+     */
+    public int getMaxQueuedCount() {
+        return maxDepth;
+    }
+
+    /**
+     * @return <b>int</b> requests handed to the sink and not finished yet
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getSubmittedCount() {
+        return submitCnt.get();
+    }
+
+    /**
+     * @return <b>long</b> requests handed to the sink
+     */
+    public long getTransmittedCount() {
+        return transmitCnt;
+    }
+
+    /**
+     * @return <b>long</b> transmissions started, each holding one or more requests
+     */
+    public long getBatchCount() {
+        return batchCnt;
+    }
+
+    /**
+     * @return <b>long</b> transmissions that followed the previous one without the output going idle
+     */
+    public long getContinuedCount() {
+        return continuedCnt;
+    }
+
+    /**
+     * @return <b>long</b> submits that shared the future of an identical waiting request
+     */
+    public long getDeduplicatedCount() {
+        return dedupCnt.get();
+    }
+
+    /**
+     * @return <b>long</b> submits rejected because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectCnt.get();
+    }
+
+    /**
+     * @return <b>long</b> waiting requests taken out of the queue by their cancellation
+     */
+    public long getCancelledCount() {
+        return cancelCnt.get();
+    }
+
+    /**
+     * @return <b>long</b> mean time from submit to the sink in ns
+     */
+    public long getMeanWaitNs() {
+        long n = transmitCnt;
+        return (n == 0) ? 0 : totalWaitNs / n;
+    }
+
+    /**
+     * @return <b>long</b> longest time from submit to the sink in ns
+     */
+    public long getMaxWaitNs() {
+        return maxWaitNs;
+    }
+}
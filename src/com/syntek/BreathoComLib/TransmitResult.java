@@ -0,0 +1,85 @@
+package com.syntek.BreathoComLib;
+
+/**
+ * TransmitResult describes one finished transmit: when it was asked for and when its first and last samples left the
+ * player, all as System.nanoTime() values.
+ * <p/>
+ * The sample times are measured from the playback head position and back-dated by the frames the head had already
+ * passed when it was read, so they do not depend on how often the position is polled.
+ */
+public final class TransmitResult {
+    private final long enqueueNs;
+    private final long firstSampleNs;
+    private final long lastSampleNs;
+    private final int frames;
+    private final int sampleRate;
+    private final boolean bComplete;
+
+    TransmitResult(long enqueueNs, long firstSampleNs, long lastSampleNs, int frames, int sampleRate, boolean bComplete) {
+        this.enqueueNs = enqueueNs;
+        this.firstSampleNs = firstSampleNs;
+        this.lastSampleNs = lastSampleNs;
+        this.frames = frames;
+        this.sampleRate = sampleRate;
+        this.bComplete = bComplete;
+    }
+
+    /**
+     * @return <b>boolean</b> true if every frame was played, false if playback stalled before the end
+     */
+    public boolean isComplete() {
+        return bComplete;
+    }
+
+    /**
+     * @return <b>long</b> System.nanoTime() when encodeAndSend() was called
+     */
+    public long getEnqueueTimeNs() {
+        return enqueueNs;
+    }
+
+    /**
+     * @return <b>long</b> System.nanoTime() when the first sample was played, -1 if playback never started
+     */
+    public long getFirstSampleTimeNs() {
+        return firstSampleNs;
+    }
+
+    /**
+     * @return <b>long</b> System.nanoTime() when the last sample was played, i.e. when the device can start to reply
+     */
+    public long getLastSampleTimeNs() {
+        return lastSampleNs;
+    }
+
+    /**
+     * @return <b>long</b> time from encodeAndSend() to the first played sample in ns, -1 if playback never started
+     */
+    public long getFirstSampleLatencyNs() {
+        return (firstSampleNs < 0) ? -1 : firstSampleNs - enqueueNs;
+    }
+
+    /**
+     * @return <b>long</b> time from encodeAndSend() to the last played sample in ns
+     */
+    public long getLastSampleLatencyNs() {
+        return lastSampleNs - enqueueNs;
+    }
+
+    /**
+     * @return <b>int</b> frames in the transmitted buffer
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return "TransmitResult[frames=" + frames + " complete=" + bComplete + " first=" + getFirstSampleLatencyNs() / 1000
+                + "us last=" + getLastSampleLatencyNs() / 1000 + "us]";
+    }
+}
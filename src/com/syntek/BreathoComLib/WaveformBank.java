@@ -0,0 +1,129 @@
+package com.syntek.BreathoComLib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+
+/**
+ * WaveformBank decodes the raw wav resources used by the encoder once and keeps their PCM samples in memory.
+ * <p/>
+ * Tables are loaded on first use, or all at once by preload() so that the first encodeAndSend() does not pay for
+ * resource lookup and wav parsing on every bit.
+ */
+public class WaveformBank {
+    /**
+     * Names of every waveform the encoder can use.
+     */
+    public static final String[] WAVEFORMS = {
+            "wav_header", "bit0", "bit1", "kindle_header", "kindle_bit0", "kindle_bit1", "wav_silence10ms"
+    };
+
+    private static final int HEADER_SIZE = 44;
+    private static final int DATA_MARKER = 0x61746164; // "data"
+
+    /**
+     * Opens the wav stream of a waveform by name.
+     */
+    public interface Source {
+        InputStream open(String name) throws IOException;
+    }
+
+    private final Source source;
+    private final HashMap<String, short[]> tables = new HashMap<String, short[]>();
+
+    public WaveformBank(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Return the PCM samples of a waveform, loading it on first use.
+     *
+     * @param <b>String</b> waveform name, one of WAVEFORMS
+     * @return <b>short[]</b> mono 16-bit samples, shared and must not be modified
+     */
+    public synchronized short[] get(String name) {
+        short[] table = tables.get(name);
+
+        if (table == null) {
+            table = load(name);
+            tables.put(name, table);
+        }
+
+        return table;
+    }
+
+    /**
+     * Load every waveform in WAVEFORMS.
+     */
+    public void preload() {
+        for (int i = 0; i < WAVEFORMS.length; i++)
+            get(WAVEFORMS[i]);
+    }
+
+    private short[] load(String name) {
+        InputStream stream = null;
+
+        try {
+            stream = source.open(name);
+            return readWav(stream);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot load waveform " + name, e);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the samples of a mono 16-bit PCM wav stream.
+     *
+     * @param <b>InputStream</b> wav stream positioned at the RIFF header
+     * @return <b>short[]</b> samples of the data chunk
+     */
+    public static short[] readWav(InputStream stream) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        readFully(stream, header.array(), 0, HEADER_SIZE);
+
+        header.position(20);
+        int format = header.getShort();
+        int channels = header.getShort();
+        header.position(34);
+        int bits = header.getShort();
+        if (format != 1 || channels != 1 || bits != 16)
+            throw new IOException("Unsupported wav format: " + format + "/" + channels + "/" + bits);
+
+        if (header.getInt() != DATA_MARKER)
+            throw new IOException("Missing data chunk");
+
+        int dataSize = header.getInt();
+        if (dataSize <= 0)
+            throw new IOException("wrong datasize: " + dataSize);
+
+        ByteBuffer data = ByteBuffer.allocate(dataSize);
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        readFully(stream, data.array(), 0, dataSize);
+
+        short[] samples = new short[dataSize / 2];
+        data.asShortBuffer().get(samples);
+
+        return samples;
+    }
+
+    private static void readFully(InputStream stream, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = stream.read(b, off, len);
+            if (n < 0)
+                throw new IOException("Unexpected end of wav stream");
+            off += n;
+            len -= n;
+        }
+    }
+}
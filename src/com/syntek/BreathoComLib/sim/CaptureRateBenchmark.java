@@ -0,0 +1,137 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.Resampler;
+import com.syntek.BreathoComLib.SignalDecoder;
+
+import java.util.Random;
+
+/**
+ * CaptureRateBenchmark decodes replies captured at the rates handsets run at natively, once with the decoder tuned
+ * to the capture rate and once resampled to 44.1kHz first, and reports the capture-to-decision latency of both.
+ * <p/>
+ * For every rate, random replies are modulated by ReplyEncoder at that rate (the bit period rounded to whole
+ * samples), one per slot with silence around it, and passed through a ChannelSimulator with noise. The capture is
+ * fed in 10ms periods. The latency of a reply runs from its last sample to the end of the period after which the
+ * decoder delivered it, plus the CPU time of a period: what the app waits once the accessory stopped sending. The
+ * time the OS would have spent resampling a 44.1kHz capture on such a handset is not modelled.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.CaptureRateBenchmark [frames] [snr dB]
+ */
+public class CaptureRateBenchmark {
+    private final static int AMPLITUDE = LinkBenchmark.AMPLITUDE;
+    private final static int DECODER_RATE = 44100;
+    private final static int[] RATES = {16000, 22050, 32000, 44100, 48000, 96000};
+
+    private static int delivered, wrong;
+    private static long latencySamples, maxLatencySamples;
+
+    // Decoded replies are matched to the slot they were triggered in
+    private static int slotSamples, period;
+    private static double scale;                    // capture samples per decoder sample
+    private static long periodEnd;                  // capture sample after the period being decoded
+    private static int[] received, sent;
+    private static boolean[] bReceived;
+    private static long[] replyEnd;
+    private final static SignalDecoder.Listener slotListener = new SignalDecoder.Listener() {
+        @Override
+        public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+            int i = (int) (d.getTriggerSample() * scale / slotSamples);
+            if (bDecoded && i < received.length && !bReceived[i]) {
+                bReceived[i] = true;
+                received[i] = d.getCode();
+                long l = periodEnd - replyEnd[i];
+                latencySamples += l;
+                if (l > maxLatencySamples)
+                    maxLatencySamples = l;
+            }
+        }
+    };
+
+    public static void main(String[] args) {
+        int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 300;
+        double snr = (args.length > 1) ? Double.parseDouble(args[1]) : 30;
+
+        // Warm up the JIT so the first row is not penalised
+        run(48000, false, 50, snr);
+        run(48000, true, 50, snr);
+
+        System.out.println(String.format("# %d replies at %.0fdB SNR, 10ms periods", frames, snr));
+        for (int rate : RATES) {
+            for (int k = 0; k < 2; k++) {
+                boolean bResample = k == 1;
+                if (bResample && rate == DECODER_RATE)
+                    continue;
+                double cpuNs = run(rate, bResample, frames, snr);
+                double periodMs = 1000.0 * period / rate;
+                System.out.println(String.format("rate=%5d %-18s ok=%3d/%d wrong=%d latency mean=%5.1fms max=%5.1fms"
+                                + "  %5.1fus/period (%.2f%% CPU)", rate,
+                        bResample ? "resampled to " + DECODER_RATE : "decoded at " + rate, delivered - wrong, frames, wrong,
+                        (latencySamples * 1000.0 / rate + cpuNs / 1e6 * Math.max(1, delivered)) / Math.max(1, delivered),
+                        maxLatencySamples * 1000.0 / rate + cpuNs / 1e6, cpuNs / 1e3, 100 * cpuNs / 1e6 / periodMs));
+            }
+        }
+    }
+
+    // Decodes the replies of one rate; the counters hold the outcome, returns the CPU time per period in ns
+    private static double run(int rate, boolean bResample, int frames, double snr) {
+        period = rate / 100;
+        int bitInterval = Math.round(SignalDecoder.BIT_INTERVAL * rate / (float) DECODER_RATE);
+        ReplyEncoder encoder = new ReplyEncoder(rate, bitInterval, AMPLITUDE);
+        int pool = rate / 40;
+        slotSamples = encoder.getFrameSamples() + 2 * pool;
+
+        Random random = new Random(3);
+        sent = new int[frames];
+        replyEnd = new long[frames];
+        short[] tx = new short[frames * slotSamples];
+        for (int i = 0; i < frames; i++) {
+            sent[i] = random.nextInt(1 << LinkBenchmark.DATA_BITS);
+            int start = i * slotSamples + pool;
+            replyEnd[i] = encoder.encode(sent[i], tx, start);
+        }
+        short[] rx = new ChannelSimulator(rate, 9).setSnrDb(AMPLITUDE, snr).process(tx, tx.length);
+
+        Resampler resampler = null;
+        short[] resampled = null;
+        SignalDecoder decoder;
+        if (bResample) {
+            resampler = new Resampler(rate, DECODER_RATE, period);
+            resampled = new short[resampler.getMaxOutput(period)];
+            decoder = new SignalDecoder(DECODER_RATE, resampled.length, slotListener);
+            scale = (double) rate / DECODER_RATE;
+        } else {
+            decoder = new SignalDecoder(rate, period, slotListener);
+            scale = 1;
+        }
+
+        received = new int[frames];
+        bReceived = new boolean[frames];
+        latencySamples = 0;
+        maxLatencySamples = 0;
+
+        int periods = rx.length / period;
+        long t0 = System.nanoTime();
+        for (int p = 0; p < periods; p++) {
+            periodEnd = (long) (p + 1) * period;
+            if (resampler != null) {
+                int n = resampler.process(rx, p * period, period, resampled);
+                decoder.process(resampled, 0, n);
+            } else {
+                decoder.process(rx, p * period, period);
+            }
+        }
+        long ns = System.nanoTime() - t0;
+
+        delivered = 0;
+        wrong = 0;
+        for (int i = 0; i < frames; i++) {
+            if (bReceived[i]) {
+                delivered++;
+                if (received[i] != sent[i])
+                    wrong++;
+            }
+        }
+        return (double) ns / periods;
+    }
+}
@@ -0,0 +1,185 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.LoopbackTransport;
+
+import java.util.Random;
+
+/**
+ * ChannelSimulator applies the impairments of a phone audio path to a block of PCM samples.
+ * <p/>
+ * Impairments are applied in the order a real link sees them: clock drift (resampling), echo, band-limiting,
+ * gain and DC offset, additive white Gaussian noise, then clipping at the ADC. Every impairment is off by default.
+ * The noise generator is seeded, so a run is reproducible.
+ */
+public class ChannelSimulator implements LoopbackTransport.Impairment {
+    private double gain = 1.0;
+    private double dcOffset;
+    private double noiseRms;
+    private double driftPpm;
+    private int clipLevel = 32767;
+    private double lowCutHz, highCutHz;
+    private int echoDelay;
+    private double echoGain;
+
+    private final int sampleRate;
+    private final Random random;
+
+    // Filter state: first-order high pass and second-order low pass
+    private double hpPrevIn, hpPrevOut;
+    private double lp1, lp2;
+
+    public ChannelSimulator(int sampleRate, long seed) {
+        this.sampleRate = sampleRate;
+        this.random = new Random(seed);
+    }
+
+    public ChannelSimulator setGain(double gain) {
+        this.gain = gain;
+        return this;
+    }
+
+    public ChannelSimulator setDcOffset(double dcOffset) {
+        this.dcOffset = dcOffset;
+        return this;
+    }
+
+    /**
+     * @param <b>double</b> RMS of the added noise in sample units, 0 for none
+     */
+    public ChannelSimulator setNoiseRms(double noiseRms) {
+        this.noiseRms = noiseRms;
+        return this;
+    }
+
+    /**
+     * Set the noise so that a sine of the given peak amplitude has the given SNR.
+     *
+     * @param <b>double</b> peak amplitude of the wanted signal
+     * @param <b>double</b> SNR in dB
+     */
+    public ChannelSimulator setSnrDb(double amplitude, double snrDb) {
+        double signalRms = amplitude / Math.sqrt(2);
+        this.noiseRms = signalRms / Math.pow(10, snrDb / 20);
+        return this;
+    }
+
+    /**
+     * @param <b>double</b> receiver clock error in ppm, positive when the receiver runs fast
+     */
+    public ChannelSimulator setDriftPpm(double driftPpm) {
+        this.driftPpm = driftPpm;
+        return this;
+    }
+
+    public ChannelSimulator setClipLevel(int clipLevel) {
+        this.clipLevel = clipLevel;
+        return this;
+    }
+
+    /**
+     * @param <b>double</b> high pass corner in Hz, 0 for none
+     * @param <b>double</b> low pass corner in Hz, 0 for none
+     */
+    public ChannelSimulator setBand(double lowCutHz, double highCutHz) {
+        this.lowCutHz = lowCutHz;
+        this.highCutHz = highCutHz;
+        return this;
+    }
+
+    /**
+     * @param <b>int</b>    echo delay in samples, 0 for none
+     * @param <b>double</b> echo gain relative to the direct path
+     */
+    public ChannelSimulator setEcho(int delaySamples, double echoGain) {
+        this.echoDelay = delaySamples;
+        this.echoGain = echoGain;
+        return this;
+    }
+
+    /**
+     * Pass a whole signal through the channel.
+     *
+     * @param <b>short[]</b> transmitted samples
+     * @param <b>int</b>     number of samples
+     * @return <b>short[]</b> received samples, longer or shorter than the input when drift is set
+     */
+    public short[] process(short[] in, int length) {
+        double[] x = resample(in, length);
+
+        // Echo, computed backwards so every output uses the direct input
+        if (echoDelay > 0 && echoGain != 0) {
+            for (int i = x.length - 1; i >= echoDelay; i--)
+                x[i] += echoGain * x[i - echoDelay];
+        }
+
+        bandLimit(x);
+
+        short[] out = new short[x.length];
+        for (int i = 0; i < x.length; i++) {
+            double v = x[i] * gain + dcOffset;
+            if (noiseRms > 0)
+                v += random.nextGaussian() * noiseRms;
+
+            if (v > clipLevel)
+                v = clipLevel;
+            else if (v < -clipLevel)
+                v = -clipLevel;
+            out[i] = (short) Math.round(v);
+        }
+
+        return out;
+    }
+
+    @Override
+    public short[] apply(short[] pcm, int length) {
+        return process(pcm, length);
+    }
+
+    private double[] resample(short[] in, int length) {
+        if (driftPpm == 0) {
+            double[] x = new double[length];
+            for (int i = 0; i < length; i++)
+                x[i] = in[i];
+            return x;
+        }
+
+        // Linear interpolation at the receiver clock
+        double ratio = 1.0 + driftPpm / 1e6;
+        int outLength = (int) ((length - 1) * ratio);
+        double[] x = new double[outLength];
+
+        for (int i = 0; i < outLength; i++) {
+            double t = i / ratio;
+            int k = (int) t;
+            double frac = t - k;
+            x[i] = in[k] * (1 - frac) + in[Math.min(k + 1, length - 1)] * frac;
+        }
+
+        return x;
+    }
+
+    private void bandLimit(double[] x) {
+        if (lowCutHz > 0) {
+            double rc = 1.0 / (2 * Math.PI * lowCutHz);
+            double a = rc / (rc + 1.0 / sampleRate);
+
+            for (int i = 0; i < x.length; i++) {
+                double y = a * (hpPrevOut + x[i] - hpPrevIn);
+                hpPrevIn = x[i];
+                hpPrevOut = y;
+                x[i] = y;
+            }
+        }
+
+        if (highCutHz > 0) {
+            // Two cascaded one-pole sections
+            double a = 1 - Math.exp(-2 * Math.PI * highCutHz / sampleRate);
+
+            for (int i = 0; i < x.length; i++) {
+                lp1 += a * (x[i] - lp1);
+                lp2 += a * (lp1 - lp2);
+                x[i] = lp2;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.AccessoryEmulator;
+import com.syntek.BreathoComLib.AudioScheduler;
+import com.syntek.BreathoComLib.BreathometerCommands;
+import com.syntek.BreathoComLib.BreathometerCommands.Command;
+import com.syntek.BreathoComLib.LinkLayer;
+import com.syntek.BreathoComLib.WaveformBank;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommandStormBenchmark fires the commands of a busy UI (LED toggles, a flash interval slider, sensor switching and
+ * voltage polls) at the emulated Breathometer, once as one link command per call and once through
+ * BreathometerCommands, and compares link traffic, time to settle and the state the device ends in.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.CommandStormBenchmark [res/raw dir] [rounds]
+ */
+public class CommandStormBenchmark {
+    private final static int ROUND_GAP_MS = 20;
+    private final static int IC_VOLTAGE = 3300;     // mV
+
+    /**
+     * Emulated Breathometer firmware keeping the state the commands set. A query keeps its value for the chunk reads.
+     */
+    static final class Firmware implements AccessoryEmulator.Responder {
+        volatile int led1, led2, sensor, led1Interval;
+        private int argumentOf = -1;
+        private int queryValue;
+
+        @Override
+        public int respond(int command) {
+            if (argumentOf >= 0) {
+                if (argumentOf == Command.SET_LED1_FLASH_INTERVAL.getOpcode())
+                    led1Interval = command;
+                argumentOf = -1;
+                return 0;
+            }
+
+            int chunk = command - BreathometerCommands.READ_CHUNK_OPCODE + 1;
+            if (chunk >= 1 && chunk < BreathometerCommands.QUERY_FRAMES)
+                return (queryValue >> (chunk * LinkLayer.REPLY_PAYLOAD_BITS)) & 0x1F;
+
+            for (Command c : Command.values()) {
+                if (c.getOpcode() != command)
+                    continue;
+
+                if (c.hasArgument())
+                    argumentOf = command;
+                else if (c == Command.LED1_ON || c == Command.LED1_OFF || c == Command.LED1_FLASH)
+                    led1 = command;
+                else if (c == Command.LED2_ON || c == Command.LED2_OFF || c == Command.LED2_FLASH)
+                    led2 = command;
+                else if (c == Command.SENSOR_ON || c == Command.SENSOR_OFF)
+                    sensor = command;
+                else if (c.isQuery())
+                    queryValue = (c == Command.GET_IC_VOLTAGE) ? IC_VOLTAGE : 0;
+                return c.isQuery() ? queryValue & 0x1F : 0;
+            }
+            return 0x1F;
+        }
+    }
+
+    /**
+     * Where the commands are sent to.
+     */
+    interface Sink {
+        Future<?> send(Command command, int argument);
+    }
+
+    public static void main(String[] args) throws Exception {
+        File rawDir = new File((args.length > 0) ? args[0] : "res/raw");
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        WaveformBank bank = new WaveformBank(LoopbackBenchmark.fileSource(rawDir));
+        bank.preload();
+
+        System.out.println("path       uplinkSnr  requests    frames  bursts  coalesced  skipped  settleMs  stateOk");
+        double[] snrs = {0, 26};
+        for (double snr : snrs) {
+            run(bank, false, snr, rounds);
+            run(bank, true, snr, rounds);
+        }
+    }
+
+    static void run(WaveformBank bank, boolean bBatched, double snrDb, int rounds) throws Exception {
+        Firmware firmware = new Firmware();
+        LinkLayerBenchmark.LoopbackPhy phy = LinkLayerBenchmark.loopbackPhy(bank, firmware, snrDb, 0);
+        AudioScheduler scheduler = new AudioScheduler("CommandStormBenchmark");
+        final LinkLayer link = new LinkLayer(phy, scheduler, LinkLayer.MAX_WINDOW);
+        link.setRtoBounds(5, 500);
+        final BreathometerCommands commands = new BreathometerCommands(link, scheduler);
+
+        Sink sink;
+        if (bBatched) {
+            sink = new Sink() {
+                @Override
+                public Future<?> send(Command command, int argument) {
+                    return command.isQuery() ? commands.get(command) : commands.set(command, argument);
+                }
+            };
+        } else {
+            sink = new Sink() {
+                @Override
+                public Future<?> send(Command command, int argument) {
+                    if (!command.hasArgument())
+                        return link.send(command.getOpcode());
+                    link.send(command.getOpcode());
+                    return link.send(argument);
+                }
+            };
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        List<Future<?>> voltages = new ArrayList<Future<?>>();
+        int requests = 0;
+        Command led1 = Command.LED1_OFF;
+        int interval = 0;
+        long startNs = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < 16; i++) {
+                led1 = (led1 == Command.LED1_ON) ? Command.LED1_OFF : Command.LED1_ON;
+                futures.add(sink.send(led1, 0));
+            }
+            for (int i = 0; i < 8; i++) {
+                interval = (r * 8 + i) & 0xFF;
+                futures.add(sink.send(Command.SET_LED1_FLASH_INTERVAL, interval));
+            }
+            futures.add(sink.send((r % 2 == 0) ? Command.SENSOR_ON : Command.SENSOR_OFF, 0));
+            futures.add(sink.send(Command.LED2_FLASH, 0));
+            for (int i = 0; i < 4; i++) {
+                Future<?> f = sink.send(Command.GET_IC_VOLTAGE, 0);
+                futures.add(f);
+                voltages.add(f);
+            }
+            requests += 30;
+            Thread.sleep(ROUND_GAP_MS);
+        }
+
+        int failed = 0;
+        for (Future<?> f : futures) {
+            try {
+                f.get(60, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                failed++;
+            }
+        }
+        long settleNs = System.nanoTime() - startNs;
+
+        // One link command per call only gets the lowest bits of the value
+        if (bBatched) {
+            for (Future<?> f : voltages) {
+                try {
+                    if (!Integer.valueOf(IC_VOLTAGE).equals(f.get(0, TimeUnit.SECONDS)))
+                        failed++;
+                } catch (Exception e) {
+                    // Counted as failed above
+                }
+            }
+        }
+
+        boolean bStateOk = failed == 0 && firmware.led1 == led1.getOpcode() && firmware.led1Interval == interval
+                && firmware.led2 == Command.LED2_FLASH.getOpcode()
+                && firmware.sensor == (((rounds - 1) % 2 == 0) ? Command.SENSOR_ON : Command.SENSOR_OFF).getOpcode();
+
+        commands.close();
+        link.close();
+        scheduler.shutdown();
+
+        System.out.println(String.format("%-9s  %9s  %8d  %8d  %6d  %9d  %7d  %8.0f  %s",
+                bBatched ? "batched" : "per-call", (snrDb > 0) ? String.format("%.0fdB", snrDb) : "clean",
+                requests, link.getFramesSent(), link.getBurstCount(), commands.getCoalescedCount(), commands.getSkippedCount(),
+                settleNs / 1e6, bStateOk ? "yes" : "NO (" + failed + " failed)"));
+    }
+}
@@ -0,0 +1,268 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.AccessoryEmulator;
+import com.syntek.BreathoComLib.AudioScheduler;
+import com.syntek.BreathoComLib.CaptureEngine;
+import com.syntek.BreathoComLib.DecodedFrame;
+import com.syntek.BreathoComLib.FrameDispatcher;
+import com.syntek.BreathoComLib.LoopbackTransport;
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+import com.syntek.BreathoComLib.SoundEncoder;
+import com.syntek.BreathoComLib.TransmitQueue;
+import com.syntek.BreathoComLib.TransmitResult;
+import com.syntek.BreathoComLib.WaveformBank;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ConcurrencyStress hammers the transmit and receive hand-offs of the library from many threads at once.
+ * <p/>
+ * Sender threads submit requests of one to three frames to a TransmitQueue, cancelling some of them at once. The sink
+ * encodes each batch of requests back to back and sends it through an echoing LoopbackTransport into a SignalDecoder,
+ * which publishes the replies to a FrameDispatcher, as BreathoComLib does with the mic. Meanwhile receiver threads
+ * each drain a session of their own, two threads race for fetch(), and one session is never read until the end. It
+ * checks that:
+ * <ul>
+ * <li>the sink only ever runs on the scheduler thread,</li>
+ * <li>every frame handed to the sink is decoded once, those of one sender in submission order,</li>
+ * <li>the frames of a request are played unless cancelling it succeeded,</li>
+ * <li>every receiver gets every frame in publish order, the unread session only loses the overflow,</li>
+ * <li>no frame is fetched twice and every future finishes.</li>
+ * </ul>
+ * Usage: java com.syntek.BreathoComLib.sim.ConcurrencyStress [res/raw dir] [senders] [requests per sender] [receivers]
+ */
+public class ConcurrencyStress {
+    private final static int SAMPLE_RATE = LoopbackBenchmark.SAMPLE_RATE;
+    private final static int PERIOD_FRAMES = LoopbackBenchmark.PERIOD_FRAMES;
+    private final static int MAX_FRAMES = 3;
+    private final static int SEQ_BITS = 5;            // code = sender << SEQ_BITS | sequence, 8 senders at most
+    private final static int CANCEL_ONE_IN = 16;
+    private final static int SLOW_CAPACITY = 16;
+    private final static long JOIN_TIMEOUT_MS = 120000;
+
+    public static void main(String[] args) throws Exception {
+        File rawDir = new File((args.length > 0) ? args[0] : "res/raw");
+        final int senders = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        final int requests = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+        int receivers = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+        if (senders > (1 << (8 - SEQ_BITS)))
+            throw new IllegalArgumentException("at most " + (1 << (8 - SEQ_BITS)) + " senders");
+
+        WaveformBank bank = new WaveformBank(LoopbackBenchmark.fileSource(rawDir));
+        bank.preload();
+
+        final FrameDispatcher dispatcher = new FrameDispatcher();
+        final SignalDecoder decoder = new SignalDecoder(SAMPLE_RATE, PERIOD_FRAMES, new SignalDecoder.Listener() {
+            @Override
+            public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+                if (bDecoded)
+                    dispatcher.publish(d.getCode(), System.nanoTime(), d.getTriggerSample());
+            }
+        });
+        CaptureEngine.Listener receiver = new CaptureEngine.Listener() {
+            @Override
+            public void onCaptureStart() {
+                decoder.reset();
+            }
+
+            @Override
+            public void onCapture(short[] buffer, int length) {
+                decoder.process(buffer, 0, length);
+            }
+        };
+        AccessoryEmulator emulator = new AccessoryEmulator(new ReplyEncoder(SAMPLE_RATE, SignalDecoder.BIT_INTERVAL, 16000), AccessoryEmulator.ECHO);
+        final LoopbackTransport transport = new LoopbackTransport(emulator, receiver, SAMPLE_RATE, PERIOD_FRAMES);
+
+        final AudioScheduler scheduler = new AudioScheduler("Stress-Tx");
+        final SoundEncoder encoder = new SoundEncoder(bank);
+        final List<Integer> sent = new ArrayList<Integer>();    // scheduler thread only
+        final AtomicInteger foreignThreadCalls = new AtomicInteger();
+        final TransmitQueue[] queue = new TransmitQueue[1];
+        queue[0] = new TransmitQueue(scheduler, new TransmitQueue.Sink() {
+            @Override
+            public void transmit(TransmitQueue.Request[] batch, int count, boolean bContinued) {
+                if (!scheduler.isSchedulerThread())
+                    foreignThreadCalls.incrementAndGet();
+
+                // The whole batch back to back in one transmission, as BreathoComLib plays it
+                encoder.reset();
+                for (int r = 0; r < count; r++) {
+                    for (int i = 0; i < batch[r].getFrameCount(); i++) {
+                        encoder.addCode(batch[r].getFrame(i), batch[r].getBits());
+                        sent.add(batch[r].getFrame(i));
+                    }
+                }
+                long startNs = System.nanoTime();
+                transport.transmit(encoder.getBuffer(), encoder.getLength());
+                long endNs = System.nanoTime();
+                for (int r = 0; r < count; r++)
+                    queue[0].finish(batch[r], startNs, endNs, encoder.getLength(), SAMPLE_RATE, true);
+            }
+        }, senders * requests, TransmitQueue.DEFAULT_MAX_BATCH_FRAMES);
+
+        // Receivers: each drains its own session until told that sending is over
+        final CountDownLatch sendersDone = new CountDownLatch(senders);
+        final List<List<DecodedFrame>> received = new ArrayList<List<DecodedFrame>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < receivers; i++) {
+            final FrameDispatcher.Session session = dispatcher.openSession(senders * requests * MAX_FRAMES);
+            final List<DecodedFrame> got = new ArrayList<DecodedFrame>();
+            received.add(got);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            DecodedFrame f = session.next(10);
+                            if (f != null)
+                                got.add(f);
+                            else if (sendersDone.getCount() == 0 && session.available() == 0)
+                                break;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    session.close();
+                }
+            }, "Stress-Rx-" + i));
+        }
+        FrameDispatcher.Session slow = dispatcher.openSession(SLOW_CAPACITY);
+
+        // Pollers racing for the latest frame, as apps calling fetchResponse() from several threads
+        final AtomicLongArray fetchedTimes = new AtomicLongArray(senders * requests * MAX_FRAMES);
+        final AtomicLong doubleFetches = new AtomicLong();
+        for (int i = 0; i < 2; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (sendersDone.getCount() > 0) {
+                        DecodedFrame f = dispatcher.fetch();
+                        if (f != null && fetchedTimes.getAndIncrement((int) f.getSequence()) > 0)
+                            doubleFetches.incrementAndGet();
+                    }
+                }
+            }, "Stress-Fetch-" + i));
+        }
+
+        final AtomicInteger cancelled = new AtomicInteger();
+        final AtomicInteger keptFrames = new AtomicInteger();
+        final AtomicInteger unfinished = new AtomicInteger();
+        for (int s = 0; s < senders; s++) {
+            final int sender = s;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random rnd = new Random(sender);
+                    List<Future<TransmitResult>> futures = new ArrayList<Future<TransmitResult>>();
+                    int seq = 0;
+                    int[] frames = new int[MAX_FRAMES];
+                    for (int i = 0; i < requests; i++) {
+                        int n = 1 + rnd.nextInt(MAX_FRAMES);
+                        for (int k = 0; k < n; k++)
+                            frames[k] = (sender << SEQ_BITS) | (seq++ & ((1 << SEQ_BITS) - 1));
+                        Future<TransmitResult> f = queue[0].submit(System.nanoTime(), frames, n, 8);
+                        // The frames were copied, reusing the array must not change the request
+                        frames[0] = -1;
+                        if (rnd.nextInt(CANCEL_ONE_IN) == 0 && f.cancel(false))
+                            cancelled.incrementAndGet();
+                        else
+                            keptFrames.addAndGet(n);
+                        futures.add(f);
+                    }
+                    for (Future<TransmitResult> f : futures) {
+                        try {
+                            if (!f.isCancelled() && !f.get().isComplete())
+                                unfinished.incrementAndGet();
+                        } catch (Exception e) {
+                            unfinished.incrementAndGet();
+                        }
+                    }
+                    sendersDone.countDown();
+                }
+            }, "Stress-Tx-" + s));
+        }
+
+        long startNs = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join(JOIN_TIMEOUT_MS);
+        long elapsedNs = System.nanoTime() - startNs;
+
+        // Frames handed to the sink, in the order they were played
+        final List<Integer> played = new ArrayList<Integer>();
+        queue[0].runOnOwner(new Runnable() {
+            @Override
+            public void run() {
+                played.addAll(sent);
+            }
+        });
+        scheduler.shutdown();
+
+        long published = dispatcher.getPublishedCount();
+        boolean bOk = true;
+        System.out.println(String.format("senders=%d requests=%d receivers=%d: submitted=%d transmitted=%d in %d batches cancelled=%d frames=%d decoded=%d in %.0fms",
+                senders, requests, receivers, queue[0].getSubmittedCount(), queue[0].getTransmittedCount(), queue[0].getBatchCount(),
+                cancelled.get(), played.size(), published, elapsedNs / 1e6));
+        System.out.println(String.format("  queue: max depth=%d mean wait=%.2fms max wait=%.2fms", queue[0].getMaxQueuedCount(),
+                queue[0].getMeanWaitNs() / 1e6, queue[0].getMaxWaitNs() / 1e6));
+
+        bOk &= check("sink confined to the scheduler thread", foreignThreadCalls.get() == 0, foreignThreadCalls.get() + " foreign calls");
+        bOk &= check("every future finished", unfinished.get() == 0, unfinished.get() + " unfinished");
+        bOk &= check("played unless cancelled", played.size() == keptFrames.get(),
+                "played=" + played.size() + " not cancelled=" + keptFrames.get());
+
+        // Decoded frames are the played frames, in the same order
+        List<DecodedFrame> first = received.isEmpty() ? new ArrayList<DecodedFrame>() : received.get(0);
+        int mismatches = 0;
+        for (int i = 0; i < Math.min(first.size(), played.size()); i++) {
+            if (first.get(i).getCode() != played.get(i))
+                mismatches++;
+        }
+        bOk &= check("every played frame decoded once, in order", published == played.size() && mismatches == 0,
+                "played=" + played.size() + " decoded=" + published + " mismatches=" + mismatches);
+
+        // Frames of one sender keep their submission order
+        int[] nextSeq = new int[senders];
+        int reordered = 0;
+        for (int code : played) {
+            int sender = code >> SEQ_BITS;
+            int seq = code & ((1 << SEQ_BITS) - 1);
+            if (seq < (nextSeq[sender] & ((1 << SEQ_BITS) - 1)) && nextSeq[sender] - seq < (1 << SEQ_BITS) / 2)
+                reordered++;
+            nextSeq[sender] = seq + 1;
+        }
+        bOk &= check("per-sender order kept", reordered == 0, reordered + " out of order");
+
+        for (int i = 0; i < received.size(); i++) {
+            List<DecodedFrame> got = received.get(i);
+            boolean bInOrder = true;
+            for (int k = 0; k < got.size(); k++)
+                bInOrder &= (got.get(k).getSequence() == k);
+            bOk &= check("receiver " + i + " got every frame in order", got.size() == published && bInOrder,
+                    "got " + got.size() + " of " + published);
+        }
+
+        bOk &= check("unread session kept the newest " + SLOW_CAPACITY, slow.available() == Math.min(published, SLOW_CAPACITY)
+                && slow.getLostCount() + slow.available() == published, "available=" + slow.available() + " lost=" + slow.getLostCount());
+        bOk &= check("no frame fetched twice", doubleFetches.get() == 0, doubleFetches.get() + " double fetches");
+
+        System.out.println(bOk ? "PASS" : "FAIL");
+        if (!bOk)
+            System.exit(1);
+    }
+
+    private static boolean check(String what, boolean bOk, String detail) {
+        System.out.println(String.format("  %-48s %s", what, bOk ? "ok" : "FAILED: " + detail));
+        return bOk;
+    }
+}
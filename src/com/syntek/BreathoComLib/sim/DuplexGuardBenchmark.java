@@ -0,0 +1,136 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.DuplexController;
+import com.syntek.BreathoComLib.LinkLayer;
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * DuplexGuardBenchmark shows which replies of a LinkLayer reply burst survive the duplex guard on handsets of
+ * different round trips, and how much of our own echo reaches the decoder.
+ * <p/>
+ * A burst of commands plays for COMMAND_MS. The capture holds its echo one round trip later, then MAX_WINDOW replies,
+ * each after the accessory's reply delay, as LoopbackTransport models them. The capture is fed in 10ms
+ * periods through a DuplexController and a SignalDecoder the way BreathoComLib does: gated periods are skipped and
+ * the decoder is reset when the gate reopens. Every handset is run with DEFAULT_GUARD_MS, the 150ms default used
+ * before, and the guard a LatencyCalibration sizes for it. For each it prints the replies decoded, the periods gated
+ * past the guard to follow the echo, the echo let through to the decoder and frames decoded that were never sent.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.DuplexGuardBenchmark [bursts] [snr dB]
+ */
+public class DuplexGuardBenchmark {
+    private final static int SAMPLE_RATE = LinkBenchmark.SAMPLE_RATE;
+    private final static int PERIOD = SAMPLE_RATE / 100;
+    private final static int AMPLITUDE = LinkBenchmark.AMPLITUDE;
+    private final static int COMMAND_MS = 50;           // a burst of MAX_WINDOW link commands
+    private final static int ECHO_HZ = 1000;
+    private final static double ECHO_GAIN = 0.3;
+    private final static int OLD_GUARD_MS = 150;
+    private final static int ECHO_TAIL_MS = 2;           // as LatencyCalibration adds to the round trip
+
+    private final static int[] ROUND_TRIPS_MS = {35, 50, 100, 200, 300};
+    private final static int[] REPLY_DELAYS_MS = {10, 20};  // LoopbackTransport, FecBenchmark
+
+    private static int decoded, wrong, leakedEchoSamples;
+    private static long followed;
+
+    public static void main(String[] args) {
+        int bursts = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        double snr = (args.length > 1) ? Double.parseDouble(args[1]) : 30;
+
+        System.out.println(String.format("# %d bursts of %d replies at %.0fdB SNR, command %dms, default guard %dms", bursts,
+                LinkLayer.MAX_WINDOW, snr, COMMAND_MS, DuplexController.DEFAULT_GUARD_MS));
+        for (int delay : REPLY_DELAYS_MS) {
+            for (int rt : ROUND_TRIPS_MS) {
+                int[] guards = {DuplexController.DEFAULT_GUARD_MS, OLD_GUARD_MS, rt + ECHO_TAIL_MS};
+                String[] names = {"default", "old default", "calibrated"};
+                for (int g = 0; g < guards.length; g++) {
+                    run(rt, delay, guards[g], bursts, snr);
+                    int sent = bursts * LinkLayer.MAX_WINDOW;
+                    System.out.println(String.format("rt=%3dms delay=%2dms %-11s guard=%3dms  replies=%3d/%d (%5.1f%%)"
+                                    + "  followed=%4.1f periods  echo to decoder=%5.1fms/burst  false=%d", rt, delay, names[g],
+                            guards[g], decoded - wrong, sent, 100.0 * (decoded - wrong) / sent, (double) followed / bursts,
+                            leakedEchoSamples * 1000.0 / SAMPLE_RATE / bursts, wrong));
+                }
+            }
+        }
+    }
+
+    private static void run(int rtMs, int delayMs, int guardMs, int bursts, double snr) {
+        ReplyEncoder encoder = new ReplyEncoder(SAMPLE_RATE, SignalDecoder.BIT_INTERVAL, AMPLITUDE);
+        int frame = encoder.getFrameSamples();
+        int command = SAMPLE_RATE * COMMAND_MS / 1000;
+        int rt = SAMPLE_RATE * rtMs / 1000;
+        int delay = SAMPLE_RATE * delayMs / 1000;
+
+        // Capture of one burst, from the first played sample on
+        int length = command + rt + LinkLayer.MAX_WINDOW * (delay + frame) + 2 * PERIOD;
+        length = (length + PERIOD - 1) / PERIOD * PERIOD;
+        final List<Integer> codes = new ArrayList<Integer>();
+        SignalDecoder decoder = new SignalDecoder(SAMPLE_RATE, PERIOD, new SignalDecoder.Listener() {
+            @Override
+            public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+                if (bDecoded)
+                    codes.add(d.getCode());
+            }
+        });
+        DuplexController duplex = new DuplexController(SAMPLE_RATE, decoder.getThreshold());
+        duplex.setGuardIntervalMs(guardMs);
+
+        Random random = new Random(7);
+        decoded = 0;
+        wrong = 0;
+        leakedEchoSamples = 0;
+        for (int b = 0; b < bursts; b++) {
+            short[] tx = new short[length];
+            for (int i = rt; i < rt + command; i++)
+                tx[i] = (short) (AMPLITUDE * ECHO_GAIN * Math.sin(2 * Math.PI * ECHO_HZ * i / SAMPLE_RATE));
+            int[] sent = new int[LinkLayer.MAX_WINDOW];
+            int pos = rt + command;
+            for (int k = 0; k < sent.length; k++) {
+                sent[k] = random.nextInt(1 << LinkBenchmark.DATA_BITS);
+                pos = encoder.encode(sent[k], tx, pos + delay);
+            }
+            short[] rx = new ChannelSimulator(SAMPLE_RATE, b).setSnrDb(AMPLITUDE, snr).process(tx, length);
+
+            // Capture times follow the playback clock: the first played sample is now
+            codes.clear();
+            decoder.reset();
+            duplex.beginTransmit();
+            long startNs = System.nanoTime();
+            duplex.endTransmit(startNs + (long) command * 1000000000L / SAMPLE_RATE);
+            short[] period = new short[PERIOD];
+            for (int p = 0; p < length / PERIOD; p++) {
+                System.arraycopy(rx, p * PERIOD, period, 0, PERIOD);
+                long readNs = startNs + (long) (p + 1) * PERIOD * 1000000000L / SAMPLE_RATE;
+                int gate = duplex.admit(period, PERIOD, readNs);
+                if (gate == DuplexController.GATE_CLOSED)
+                    continue;
+                if (gate == DuplexController.GATE_REOPENED)
+                    decoder.reset();
+
+                int echoStart = Math.max(p * PERIOD, rt), echoEnd = Math.min((p + 1) * PERIOD, rt + command);
+                if (echoEnd > echoStart)
+                    leakedEchoSamples += echoEnd - echoStart;
+                decoder.process(period, 0, PERIOD);
+            }
+
+            followed = duplex.getFollowedPeriods();
+            boolean[] bMatched = new boolean[sent.length];
+            for (int code : codes) {
+                decoded++;
+                int k = 0;
+                while (k < sent.length && (bMatched[k] || sent[k] != code))
+                    k++;
+                if (k < sent.length)
+                    bMatched[k] = true;
+                else
+                    wrong++;
+            }
+        }
+    }
+}
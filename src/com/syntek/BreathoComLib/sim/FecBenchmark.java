@@ -0,0 +1,185 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.FecCodec;
+import com.syntek.BreathoComLib.LinkLayer;
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+import com.syntek.BreathoComLib.SoundEncoder;
+import com.syntek.BreathoComLib.WaveformBank;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * FecBenchmark compares the ways of getting a multi-byte payload across a channel that loses frames in bursts: one
+ * LinkLayer command per byte with selective retransmission, or one transmission of the whole payload under each
+ * FecCodec setting, sent again when it cannot be decoded.
+ * <p/>
+ * The channel is a Gilbert-Elliott model at frame level: a good state losing few frames and a bad state, entered
+ * now and then and left after a few frames on average, losing most of them, as when the audio path clips or the
+ * cable moves. A lost frame is an erasure, as a Hamming error would be; a few frames of the bad state arrive with a
+ * wrong byte instead. Frame and reply air times come from the real encoders, so the times are those of the air.
+ * For every channel and scheme it reports the mean and 95th percentile time to deliver a payload, the goodput, the
+ * transmissions per payload, the payloads delivered wrong and the codec CPU time per payload.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.FecBenchmark [res/raw dir] [payload bytes] [payloads]
+ */
+public class FecBenchmark {
+    private final static int SAMPLE_RATE = LoopbackBenchmark.SAMPLE_RATE;
+    private final static int LEAD_MS = 80;              // silence before every transmission, see BreathoComLib
+    private final static int TURNAROUND_MS = 20;        // end of transmission to the first reply
+    private final static int MIN_RTO_MS = 50;           // LinkLayer default lower bound of the retransmit timeout
+    private final static int WINDOW = LinkLayer.MAX_WINDOW;
+    private final static int MAX_TRANSMISSIONS = 50;
+
+    // {parity, depth}; parity -1 is the link layer
+    private final static int[][] SCHEMES = {{-1, 0}, {0, 1}, {4, 1}, {8, 2}, {8, 4}, {16, 4}};
+
+    // {good -> bad, bad -> good, loss in good, loss in bad} per frame
+    private final static double[][] CHANNELS = {
+            {0, 1, 0.001, 0},
+            {0.01, 0.25, 0.002, 0.7},
+            {0.02, 0.125, 0.005, 0.8},
+            {0.05, 0.1, 0.01, 0.9},
+    };
+    private final static double WRONG_BYTE_SHARE = 0.1;    // of the bad state hits, delivered wrong instead of lost
+
+    private static double cmdMs, byteMs, replyMs;
+
+    public static void main(String[] args) {
+        File rawDir = new File((args.length > 0) ? args[0] : "res/raw");
+        int length = (args.length > 1) ? Integer.parseInt(args[1]) : 32;
+        int payloads = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+
+        WaveformBank bank = new WaveformBank(LoopbackBenchmark.fileSource(rawDir));
+        bank.preload();
+        SoundEncoder encoder = new SoundEncoder(bank);
+        encoder.reset();
+        encoder.addCode(0, LinkLayer.COMMAND_BITS);
+        cmdMs = encoder.getLength() * 1000.0 / SAMPLE_RATE;
+        encoder.reset();
+        encoder.addCode(0, 8);
+        byteMs = encoder.getLength() * 1000.0 / SAMPLE_RATE;
+        replyMs = new ReplyEncoder(SAMPLE_RATE, SignalDecoder.BIT_INTERVAL, 16000).getFrameSamples() * 1000.0 / SAMPLE_RATE;
+        System.out.println(String.format("payload=%dB command=%.1fms byte frame=%.1fms reply=%.1fms", length, cmdMs, byteMs, replyMs));
+
+        for (double[] ch : CHANNELS) {
+            System.out.println(String.format("channel: bad state %.1f%% of frames, bursts of %.0f frames, loss %.1f%%/%.0f%%",
+                    100 * ch[0] / (ch[0] + ch[1]), 1 / ch[1], 100 * ch[2], 100 * ch[3]));
+            for (int[] s : SCHEMES)
+                run(s[0], s[1], ch, length, payloads);
+        }
+    }
+
+    /**
+     * Frame-level Gilbert-Elliott channel.
+     */
+    static final class Channel {
+        final static int OK = 0, LOST = 1, WRONG = 2;
+
+        private final double toBad, toGood, lossGood, lossBad;
+        private final Random rnd;
+        private boolean bBad;
+
+        Channel(double[] p, long seed) {
+            toBad = p[0];
+            toGood = p[1];
+            lossGood = p[2];
+            lossBad = p[3];
+            rnd = new Random(seed);
+        }
+
+        int next() {
+            bBad = bBad ? rnd.nextDouble() >= toGood : rnd.nextDouble() < toBad;
+            if (rnd.nextDouble() >= (bBad ? lossBad : lossGood))
+                return OK;
+            return (bBad && rnd.nextDouble() < WRONG_BYTE_SHARE) ? WRONG : LOST;
+        }
+    }
+
+    private static void run(int parity, int depth, double[] ch, int length, int payloads) {
+        Channel channel = new Channel(ch, 11);
+        Random rnd = new Random(7);
+        FecCodec codec = (parity >= 0) ? new FecCodec(parity, depth) : null;
+        double[] times = new double[payloads];
+        long transmissions = 0, wrong = 0, failed = 0, cpuNs = 0;
+        byte[] data = new byte[length];
+
+        for (int p = 0; p < payloads; p++) {
+            rnd.nextBytes(data);
+            double t = 0;
+            boolean bDone = false;
+            int tx = 0;
+
+            if (codec == null) {
+                // One command per byte, window sized bursts, only the frames without a reply again
+                boolean[] acked = new boolean[length];
+                int left = length;
+                while (left > 0 && tx < MAX_TRANSMISSIONS * length / WINDOW) {
+                    int n = 0;
+                    boolean bTimeout = false;
+                    for (int i = 0; i < length && n < WINDOW; i++) {
+                        if (acked[i])
+                            continue;
+                        n++;
+                        // A wrong command fails its parity and is NAKed: answered, but not acknowledged
+                        int cmd = channel.next();
+                        int reply = channel.next();
+                        if (cmd == Channel.OK && reply == Channel.OK) {
+                            acked[i] = true;
+                            left--;
+                        } else if (cmd == Channel.LOST || reply != Channel.OK) {
+                            bTimeout = true;
+                        }
+                    }
+                    tx++;
+                    t += LEAD_MS + n * cmdMs + TURNAROUND_MS + n * replyMs + (bTimeout ? MIN_RTO_MS : 0);
+                }
+                bDone = left == 0;
+            } else {
+                int[] frames = codec.encode(data, 0, length);
+                int[] rx = new int[frames.length];
+                boolean[] erased = new boolean[frames.length];
+                while (!bDone && tx < MAX_TRANSMISSIONS) {
+                    for (int i = 0; i < frames.length; i++) {
+                        int s = channel.next();
+                        rx[i] = (s == Channel.WRONG) ? frames[i] ^ (1 + rnd.nextInt(255)) : frames[i];
+                        erased[i] = s == Channel.LOST;
+                    }
+                    long c0 = System.nanoTime();
+                    byte[] out = codec.decode(rx, erased, length);
+                    cpuNs += System.nanoTime() - c0;
+
+                    // The accessory acknowledges a decoded payload, a lost acknowledgement sends it again
+                    boolean bAck = out != null && channel.next() == Channel.OK;
+                    tx++;
+                    t += LEAD_MS + frames.length * byteMs + TURNAROUND_MS + replyMs + (bAck ? 0 : MIN_RTO_MS);
+                    if (bAck) {
+                        bDone = true;
+                        if (!Arrays.equals(out, data))
+                            wrong++;
+                    }
+                }
+                long c0 = System.nanoTime();
+                codec.encode(data, 0, length);
+                cpuNs += System.nanoTime() - c0;
+            }
+
+            if (!bDone)
+                failed++;
+            transmissions += tx;
+            times[p] = t;
+        }
+
+        double total = 0;
+        for (double v : times)
+            total += v;
+        Arrays.sort(times);
+        String name = (codec == null) ? "link ARQ w=" + WINDOW : (parity == 0) ? "uncoded" : "RS +" + parity + " d=" + depth;
+        double rate = (codec == null) ? (double) 8 / LinkLayer.COMMAND_BITS : codec.getCodeRate(length);
+        System.out.println(String.format("  %-14s rate=%.2f mean=%6.0fms p95=%6.0fms goodput=%5.1fB/s tx/payload=%.2f wrong=%d failed=%d cpu=%.1fus",
+                name, rate, total / payloads, times[(int) (payloads * 0.95)], length * payloads / (total / 1000),
+                (double) transmissions / payloads, wrong, failed, cpuNs / 1e3 / payloads));
+    }
+}
@@ -0,0 +1,143 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+import com.syntek.BreathoComLib.ToneFilterBank;
+
+import java.util.Random;
+
+/**
+ * FilterBankBenchmark compares decoding several tone plans through one ToneFilterBank with running one decoder per
+ * plan, and checks the bank against the direct correlation the decoder used before.
+ * <p/>
+ * A pool of noise loud enough to pass the coherent threshold is analysed over and over by
+ * SignalDecoder.nonCoherentOperation(), so that no plan decodes and every plan is tried: by one decoder holding 1 to N
+ * plans, and by N single-plan decoders. It prints the time per pool, checks that a reply in noise is still decoded by
+ * the decoder holding N plans, and prints the largest envelope difference with the direct correlation.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.FilterBankBenchmark [plans] [noise rms]
+ */
+public class FilterBankBenchmark {
+    private final static int SAMPLE_RATE = LoopbackBenchmark.SAMPLE_RATE;
+    private final static int[][] EXTRA_PLANS = {{3000, 6000}, {2000, 4000}, {3500, 7000}, {1500, 3000}, {4000, 8000}};
+    private final static int WINDOW = 16;
+    private final static int ROUNDS = 5;
+    private final static int POOLS = 4000;
+    private final static int REPLY = 0x15A;
+    private final static double NOISE_ONLY_RMS = 3000;
+
+    public static void main(String[] args) {
+        int plans = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        double noiseRms = (args.length > 1) ? Double.parseDouble(args[1]) : 1000;
+        if (plans < 1 || plans > EXTRA_PLANS.length + 1)
+            throw new IllegalArgumentException("plans must be 1 to " + (EXTRA_PLANS.length + 1));
+
+        SignalDecoder.Listener none = new SignalDecoder.Listener() {
+            @Override
+            public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+            }
+        };
+        SignalDecoder probe = new SignalDecoder(SAMPLE_RATE, SAMPLE_RATE / 100, none);
+        int poolSamples = probe.getPoolSamples();
+
+        // One reply at the start of a pool in noise, and a pool of noise only
+        Random rnd = new Random(5);
+        ReplyEncoder encoder = new ReplyEncoder(SAMPLE_RATE, SignalDecoder.BIT_INTERVAL, 16000);
+        short[] frame = new short[encoder.getFrameSamples()];
+        encoder.encode(REPLY, frame, 0);
+        short[] reply = new short[poolSamples * 2];
+        short[] pool = new short[poolSamples * 2];
+        for (int i = 0; i < poolSamples; i++) {
+            reply[i] = clip(((i < frame.length) ? frame[i] : 0) + rnd.nextGaussian() * noiseRms);
+            pool[i] = clip(rnd.nextGaussian() * NOISE_ONLY_RMS);
+        }
+
+        System.out.println(String.format("envelope error vs direct correlation: %.2e of the peak", envelopeError(reply, poolSamples)));
+
+        // The decoder holding every plan, and one decoder per plan; a plan costs the same whatever its tones
+        SignalDecoder bank = new SignalDecoder(SAMPLE_RATE, SAMPLE_RATE / 100, none);
+        for (int p = 1; p < plans; p++)
+            bank.addTonePlan(EXTRA_PLANS[p - 1][0], EXTRA_PLANS[p - 1][1]);
+        SignalDecoder[] separate = new SignalDecoder[plans];
+        for (int p = 0; p < plans; p++)
+            separate[p] = new SignalDecoder(SAMPLE_RATE, SAMPLE_RATE / 100, none);
+
+        short[] work = new short[pool.length];
+        System.arraycopy(reply, 0, work, 0, reply.length);
+        boolean bDecoded = bank.nonCoherentOperation(work) && bank.getCode() == REPLY && bank.getDecodedPlan() == 0;
+        System.out.println("reply decoded with " + plans + " plans: " + (bDecoded ? "ok" : "FAILED"));
+
+        long bankNs = Long.MAX_VALUE, separateNs = Long.MAX_VALUE, singleNs = Long.MAX_VALUE;
+        for (int r = 0; r <= ROUNDS; r++) {
+            long t = System.nanoTime();
+            for (int i = 0; i < POOLS; i++) {
+                System.arraycopy(pool, 0, work, 0, pool.length);
+                bank.nonCoherentOperation(work);
+            }
+            long bankRound = System.nanoTime() - t;
+
+            t = System.nanoTime();
+            for (int i = 0; i < POOLS; i++) {
+                System.arraycopy(pool, 0, work, 0, pool.length);
+                separate[0].nonCoherentOperation(work);
+            }
+            long singleRound = System.nanoTime() - t;
+
+            t = System.nanoTime();
+            for (int i = 0; i < POOLS; i++) {
+                for (int p = 0; p < plans; p++) {
+                    System.arraycopy(pool, 0, work, 0, pool.length);
+                    separate[p].nonCoherentOperation(work);
+                }
+            }
+            long separateRound = System.nanoTime() - t;
+
+            // First round warms the JIT up
+            if (r > 0) {
+                bankNs = Math.min(bankNs, bankRound);
+                singleNs = Math.min(singleNs, singleRound);
+                separateNs = Math.min(separateNs, separateRound);
+            }
+        }
+
+        System.out.println(String.format("1 plan: %.1fus/pool", singleNs / 1e3 / POOLS));
+        System.out.println(String.format("%d plans, one bank: %.1fus/pool", plans, bankNs / 1e3 / POOLS));
+        System.out.println(String.format("%d plans, %d decoders: %.1fus/pool, bank costs %.0f%% of it",
+                plans, plans, separateNs / 1e3 / POOLS, bankNs * 100.0 / separateNs));
+    }
+
+    private static short clip(double v) {
+        return (short) Math.max(-32768, Math.min(32767, Math.round(v)));
+    }
+
+    // Largest difference between the bank envelopes and the direct correlation and low pass of the FREQ0 tone
+    static double envelopeError(short[] pool, int n) {
+        ToneFilterBank bank = new ToneFilterBank(SAMPLE_RATE, n, WINDOW, WINDOW);
+        int bin = bank.subscribe(SignalDecoder.FREQ0);
+        bank.process(pool);
+        float[] env = bank.getEnvelope(bin);
+
+        double step = 2 * Math.PI * SignalDecoder.FREQ0 / SAMPLE_RATE;
+        float[] raw = new float[n];
+        for (int i = 0; i < n - WINDOW + 1; i++) {
+            float c = 0, s = 0;
+            for (int j = 0; j < WINDOW; j++) {
+                c += pool[i + j] * (float) Math.cos(step * (i + j + 1));
+                s += pool[i + j] * (float) Math.sin(step * (i + j + 1));
+            }
+            c /= WINDOW;
+            s /= WINDOW;
+            raw[i] = (float) Math.sqrt(c * c + s * s);
+        }
+
+        double max = 0, peak = 0;
+        for (int i = 0; i + WINDOW < n - WINDOW + 1; i++) {
+            float sum = 0;
+            for (int j = 0; j < WINDOW; j++)
+                sum += raw[i + j];
+            max = Math.max(max, Math.abs(sum / WINDOW - env[i]));
+            peak = Math.max(peak, env[i]);
+        }
+        return max / peak;
+    }
+}
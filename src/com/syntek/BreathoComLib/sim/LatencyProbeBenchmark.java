@@ -0,0 +1,105 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.LatencyCalibration;
+import com.syntek.BreathoComLib.LatencyProbe;
+
+import java.util.Random;
+
+/**
+ * LatencyProbeBenchmark checks LatencyProbe against simulated handsets whose latencies are known, and shows the
+ * timings sized from them next to the fixed defaults.
+ * <p/>
+ * Every handset delays the probe signal by its round trip plus a random jitter, starts its output path with a linear
+ * ramp-up, scales it and adds noise. The capture window starts at a capture period boundary before the first played
+ * sample, as BreathoComLib's does. For every handset it prints the true and measured round trip and ramp, the
+ * leader, head window and guard sized from them, the air time saved on every command sent after an idle output and
+ * the CPU time per probe. Last, captures of noise only must not be taken for a probe.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.LatencyProbeBenchmark [probes]
+ */
+public class LatencyProbeBenchmark {
+    private final static int SAMPLE_RATE = LinkBenchmark.SAMPLE_RATE;
+    private final static int PERIOD = SAMPLE_RATE / 100;
+    private final static int NOISE_CAPTURES = 200;
+
+    // {round trip ms, jitter ms, ramp ms, gain, noise rms}
+    private final static double[][] HANDSETS = {
+            {35, 2, 0, 0.5, 100},
+            {90, 5, 15, 0.3, 200},
+            {180, 10, 40, 0.2, 300},
+            {320, 20, 60, 0.1, 300},
+            {120, 5, 150, 0.3, 200},
+            {90, 5, 15, 0.02, 400},
+    };
+
+    public static void main(String[] args) {
+        int probes = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        Random rnd = new Random(21);
+
+        // Warm up the JIT so the first row is not penalised
+        measure(HANDSETS[1], probes, rnd);
+
+        System.out.println(String.format("defaults: leader=%dms headWindow=%dms guard=%dms",
+                LatencyCalibration.DEFAULT_LEADER_MS, LatencyCalibration.DEFAULT_HEAD_WINDOW_MS,
+                com.syntek.BreathoComLib.DuplexController.DEFAULT_GUARD_MS));
+        for (double[] h : HANDSETS) {
+            long t0 = System.nanoTime();
+            LatencyCalibration cal = measure(h, probes, rnd);
+            long ns = System.nanoTime() - t0;
+            if (cal == null) {
+                System.out.println(String.format("rt=%3.0fms ramp=%3.0fms snr=%4.1fdB: no probe found", h[0], h[2], snrDb(h)));
+                continue;
+            }
+            System.out.println(String.format("rt=%3.0f+%2.0fms ramp=%3.0fms snr=%4.1fdB -> rt=%6.1fms jitter=%4.1fms ramp=%3.0fms"
+                            + "  leader=%2dms headWindow=%3dms guard=%3dms saved=%2dms/command  %.2fms/probe (%d found)",
+                    h[0], h[1], h[2], snrDb(h), cal.getRoundTripMs(), cal.getJitterMs(), cal.getRampMs(),
+                    cal.getSilenceLeaderMs(), cal.getHeadWindowMs(), cal.getGuardIntervalMs(),
+                    LatencyCalibration.DEFAULT_LEADER_MS - cal.getSilenceLeaderMs(), ns / 1e6 / probes, cal.getProbeCount()));
+        }
+
+        // Noise only, no probe to find
+        LatencyProbe probe = new LatencyProbe(SAMPLE_RATE);
+        short[] capture = new short[probe.getListenSamples() + PERIOD];
+        int found = 0;
+        for (int n = 0; n < NOISE_CAPTURES; n++) {
+            double rms = 100 + rnd.nextDouble() * 8000;
+            for (int i = 0; i < capture.length; i++)
+                capture[i] = clip(rnd.nextGaussian() * rms);
+            if (probe.addProbe(capture, 0, capture.length, 0, 0))
+                found++;
+        }
+        System.out.println(String.format("noise only: %d of %d captures taken for a probe", found, NOISE_CAPTURES));
+    }
+
+    private static LatencyCalibration measure(double[] h, int probes, Random rnd) {
+        LatencyProbe probe = new LatencyProbe(SAMPLE_RATE);
+        short[] signal = probe.getSignal();
+        short[] capture = new short[probe.getListenSamples() + PERIOD];
+        int rampSamples = (int) (h[2] * SAMPLE_RATE / 1000);
+
+        for (int p = 0; p < probes; p++) {
+            long playStartNs = (p + 1) * 1000000000L;
+            long captureStartNs = playStartNs - (long) (rnd.nextDouble() * PERIOD * 1e9 / SAMPLE_RATE);
+            double roundTripMs = h[0] + rnd.nextDouble() * h[1];
+            int at = (int) Math.round(((playStartNs - captureStartNs) / 1e6 + roundTripMs) * SAMPLE_RATE / 1000);
+
+            for (int i = 0; i < capture.length; i++) {
+                double v = rnd.nextGaussian() * h[4];
+                int k = i - at;
+                if (k >= 0 && k < signal.length)
+                    v += signal[k] * h[3] * ((k < rampSamples) ? (double) k / rampSamples : 1);
+                capture[i] = clip(v);
+            }
+            probe.addProbe(capture, 0, capture.length, captureStartNs, playStartNs);
+        }
+        return (probe.getProbeCount() > 0) ? probe.compute() : null;
+    }
+
+    private static double snrDb(double[] h) {
+        return 20 * Math.log10(16000 * h[3] / Math.sqrt(2) / h[4]);
+    }
+
+    private static short clip(double v) {
+        return (short) Math.max(-32768, Math.min(32767, Math.round(v)));
+    }
+}
@@ -0,0 +1,188 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+
+import java.util.Random;
+
+/**
+ * LinkBenchmark measures how the receive path copes with an impaired channel, on a plain JVM.
+ * <p/>
+ * Random replies are modulated by ReplyEncoder, one per slot with silence around it, passed through a
+ * ChannelSimulator and decoded by SignalDecoder in capture-sized blocks. For every channel setting it reports the
+ * frame error rate, the residual bit error rate of the frames that were delivered, the goodput and the decoder CPU
+ * time per delivered frame.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.LinkBenchmark [frames]
+ */
+public class LinkBenchmark {
+    public final static int SAMPLE_RATE = 44100;
+    public final static int BLOCK_FRAMES = SAMPLE_RATE / 100;
+    public final static int AMPLITUDE = 16000;
+    public final static int DATA_BITS = 9;
+
+    /**
+     * Outcome of one channel setting.
+     */
+    public static final class Result {
+        public final String label;
+        public final int framesSent;
+        public final int framesCorrect;
+        public final int framesDelivered;
+        public final int bitErrors;
+        public final int analyses;
+        public final double streamSeconds;
+        public final long decodeNs;
+
+        Result(String label, int framesSent, int framesCorrect, int framesDelivered, int bitErrors, int analyses,
+               double streamSeconds, long decodeNs) {
+            this.label = label;
+            this.framesSent = framesSent;
+            this.framesCorrect = framesCorrect;
+            this.framesDelivered = framesDelivered;
+            this.bitErrors = bitErrors;
+            this.analyses = analyses;
+            this.streamSeconds = streamSeconds;
+            this.decodeNs = decodeNs;
+        }
+
+        public double getFrameErrorRate() {
+            return 1.0 - (double) framesCorrect / framesSent;
+        }
+
+        public double getResidualBitErrorRate() {
+            return framesDelivered == 0 ? 0 : (double) bitErrors / (framesDelivered * DATA_BITS);
+        }
+
+        public double getBytesPerSecond() {
+            return framesCorrect * DATA_BITS / 8.0 / streamSeconds;
+        }
+
+        public double getMicrosPerFrame() {
+            return framesDelivered == 0 ? 0 : decodeNs / 1000.0 / framesDelivered;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-22s FER=%.4f BER=%.5f goodput=%.1fB/s cpu=%.1fus/frame analyses=%d",
+                    label, getFrameErrorRate(), getResidualBitErrorRate(), getBytesPerSecond(), getMicrosPerFrame(), analyses);
+        }
+    }
+
+    /**
+     * Send frames through a channel and decode them.
+     *
+     * @param <b>String</b>           label of the setting
+     * @param <b>ChannelSimulator</b> channel to apply
+     * @param <b>int</b>              number of frames
+     * @param <b>long</b>             seed of the random replies
+     * @return <b>Result</b> counters of the run
+     */
+    public static Result run(String label, ChannelSimulator channel, int frames, long seed) {
+        ReplyEncoder encoder = new ReplyEncoder(SAMPLE_RATE, SignalDecoder.BIT_INTERVAL, AMPLITUDE);
+        final int poolSamples = SAMPLE_RATE / 40;
+        final int slotSamples = encoder.getFrameSamples() + 2 * poolSamples;
+
+        // Transmitted stream, one reply in the middle of every slot
+        Random random = new Random(seed);
+        final int[] sent = new int[frames];
+        short[] tx = new short[frames * slotSamples];
+        for (int i = 0; i < frames; i++) {
+            sent[i] = random.nextInt(1 << DATA_BITS);
+            encoder.encode(sent[i], tx, i * slotSamples + poolSamples);
+        }
+
+        short[] rx = channel.process(tx, tx.length);
+
+        // Decoded replies are matched to the slot they were triggered in
+        final int[] received = new int[frames];
+        final boolean[] bReceived = new boolean[frames];
+        final int[] analyses = new int[1];
+        SignalDecoder decoder = new SignalDecoder(SAMPLE_RATE, BLOCK_FRAMES, new SignalDecoder.Listener() {
+            @Override
+            public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+                analyses[0]++;
+                int slot = (int) (d.getTriggerSample() / slotSamples);
+                if (bDecoded && slot < received.length && !bReceived[slot]) {
+                    bReceived[slot] = true;
+                    received[slot] = d.getCode();
+                }
+            }
+        });
+
+        long startNs = System.nanoTime();
+        for (int off = 0; off < rx.length; off += BLOCK_FRAMES)
+            decoder.process(rx, off, Math.min(BLOCK_FRAMES, rx.length - off));
+        long decodeNs = System.nanoTime() - startNs;
+
+        int correct = 0, delivered = 0, bitErrors = 0;
+        for (int i = 0; i < frames; i++) {
+            if (!bReceived[i])
+                continue;
+            delivered++;
+            int errors = Integer.bitCount((received[i] ^ sent[i]) & ((1 << DATA_BITS) - 1));
+            bitErrors += errors;
+            if (errors == 0)
+                correct++;
+        }
+
+        return new Result(label, frames, correct, delivered, bitErrors, analyses[0], (double) rx.length / SAMPLE_RATE, decodeNs);
+    }
+
+    public static void main(String[] args) {
+        int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        long seed = 1;
+
+        // Warm up the JIT so the first row is not penalised
+        run("warmup", new ChannelSimulator(SAMPLE_RATE, seed), 50, seed);
+
+        System.out.println("# AWGN sweep");
+        double snrs[] = {40, 30, 24, 20, 16, 12, 8};
+        for (int i = 0; i < snrs.length; i++) {
+            ChannelSimulator ch = new ChannelSimulator(SAMPLE_RATE, seed).setSnrDb(AMPLITUDE, snrs[i]);
+            System.out.println(run("snr=" + snrs[i] + "dB", ch, frames, seed));
+        }
+
+        System.out.println("# Gain sweep");
+        double gains[] = {2.0, 1.0, 0.5, 0.25, 0.1, 0.05};
+        for (int i = 0; i < gains.length; i++) {
+            ChannelSimulator ch = new ChannelSimulator(SAMPLE_RATE, seed).setGain(gains[i]).setSnrDb(AMPLITUDE * gains[i], 30);
+            System.out.println(run("gain=" + gains[i], ch, frames, seed));
+        }
+
+        System.out.println("# DC offset sweep");
+        double offsets[] = {0, 1000, 4000, 8000};
+        for (int i = 0; i < offsets.length; i++) {
+            ChannelSimulator ch = new ChannelSimulator(SAMPLE_RATE, seed).setDcOffset(offsets[i]);
+            System.out.println(run("dc=" + offsets[i], ch, frames, seed));
+        }
+
+        System.out.println("# Clock drift sweep");
+        double drifts[] = {0, 1000, 5000, 20000, 40000, 60000};
+        for (int i = 0; i < drifts.length; i++) {
+            ChannelSimulator ch = new ChannelSimulator(SAMPLE_RATE, seed).setDriftPpm(drifts[i]);
+            System.out.println(run("drift=" + drifts[i] + "ppm", ch, frames, seed));
+        }
+
+        System.out.println("# Clipping sweep");
+        int clips[] = {32767, 12000, 6000, 3000};
+        for (int i = 0; i < clips.length; i++) {
+            ChannelSimulator ch = new ChannelSimulator(SAMPLE_RATE, seed).setClipLevel(clips[i]);
+            System.out.println(run("clip=" + clips[i], ch, frames, seed));
+        }
+
+        System.out.println("# Band-limit sweep");
+        double bands[][] = {{0, 0}, {300, 8000}, {300, 5000}, {1000, 3400}};
+        for (int i = 0; i < bands.length; i++) {
+            ChannelSimulator ch = new ChannelSimulator(SAMPLE_RATE, seed).setBand(bands[i][0], bands[i][1]);
+            System.out.println(run("band=" + (int) bands[i][0] + "-" + (int) bands[i][1] + "Hz", ch, frames, seed));
+        }
+
+        System.out.println("# Echo sweep");
+        int delays[] = {0, 20, 100, 400};
+        for (int i = 0; i < delays.length; i++) {
+            ChannelSimulator ch = new ChannelSimulator(SAMPLE_RATE, seed).setEcho(delays[i], 0.5);
+            System.out.println(run("echo=" + delays[i] + "smp", ch, frames, seed));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.AccessoryEmulator;
+import com.syntek.BreathoComLib.AudioScheduler;
+import com.syntek.BreathoComLib.CaptureEngine;
+import com.syntek.BreathoComLib.LinkLayer;
+import com.syntek.BreathoComLib.LinkResponder;
+import com.syntek.BreathoComLib.LoopbackTransport;
+import com.syntek.BreathoComLib.PhyPort;
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+import com.syntek.BreathoComLib.SoundEncoder;
+import com.syntek.BreathoComLib.WaveformBank;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LinkLayerBenchmark runs LinkLayer exchanges over the loopback stack with noise on both directions and reports how
+ * many round trips and retransmissions they took against the ideal of ceil(commands / window) round trips.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.LinkLayerBenchmark [res/raw dir] [exchanges] [commands per exchange]
+ */
+public class LinkLayerBenchmark {
+    private final static int SAMPLE_RATE = LoopbackBenchmark.SAMPLE_RATE;
+    private final static int PERIOD_FRAMES = LoopbackBenchmark.PERIOD_FRAMES;
+    private final static int REPLY_AMPLITUDE = 16000;
+
+    /**
+     * Firmware of the emulated accessory: a fixed 5-bit function of the command, so replies can be checked.
+     */
+    static int firmware(int command) {
+        return (command * 7 + 3) & 0x1F;
+    }
+
+    /**
+     * PhyPort over a LoopbackTransport, running synchronously on the calling thread.
+     */
+    static final class LoopbackPhy implements PhyPort {
+        private final SoundEncoder encoder;
+        private final LoopbackTransport transport;
+        private volatile Receiver receiver;
+
+        LoopbackPhy(SoundEncoder encoder, LoopbackTransport transport) {
+            this.encoder = encoder;
+            this.transport = transport;
+        }
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void transmit(int[] frames, int count, int nBit) {
+            encoder.reset();
+            for (int i = 0; i < count; i++)
+                encoder.addCode(frames[i], nBit);
+            transport.transmit(encoder.getBuffer(), encoder.getLength());
+
+            Receiver r = receiver;
+            if (r != null)
+                r.onTransmitDone();
+        }
+
+        void onReply(int frame) {
+            Receiver r = receiver;
+            if (r != null)
+                r.onFrame(frame);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File rawDir = new File((args.length > 0) ? args[0] : "res/raw");
+        int exchanges = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        int commands = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+
+        WaveformBank bank = new WaveformBank(LoopbackBenchmark.fileSource(rawDir));
+        bank.preload();
+
+        System.out.println("window  uplinkSnr  downlinkNoise  ok/total  failed  roundTrips(ideal)  retx  naks  timeouts  dup  srtt   ms/cmd");
+        double[] snrs = {0, 30, 26, 0};
+        double[] downNoise = {0, 0, 4000, 5000};
+        for (int window = 1; window <= LinkLayer.MAX_WINDOW; window *= 2) {
+            for (int k = 0; k < snrs.length; k++)
+                run(bank, window, snrs[k], downNoise[k], exchanges, commands);
+        }
+    }
+
+    /**
+     * Build the loopback stack: PWM commands through the emulated accessory, its FSK replies through the decoder.
+     *
+     * @param <b>double</b> uplink SNR in dB, 0 for none
+     * @param <b>double</b> RMS of the noise added to the commands, 0 for none
+     */
+    static LoopbackPhy loopbackPhy(WaveformBank bank, AccessoryEmulator.Responder firmware, double snrDb, double downlinkNoise) {
+        AccessoryEmulator emulator = new AccessoryEmulator(new ReplyEncoder(SAMPLE_RATE, SignalDecoder.BIT_INTERVAL, REPLY_AMPLITUDE), new LinkResponder(firmware));
+
+        final LoopbackPhy[] phyRef = new LoopbackPhy[1];
+        final SignalDecoder decoder = new SignalDecoder(SAMPLE_RATE, PERIOD_FRAMES, new SignalDecoder.Listener() {
+            @Override
+            public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+                if (bDecoded)
+                    phyRef[0].onReply(d.getCode());
+            }
+        });
+        LoopbackTransport transport = new LoopbackTransport(emulator, new CaptureEngine.Listener() {
+            @Override
+            public void onCaptureStart() {
+                decoder.reset();
+            }
+
+            @Override
+            public void onCapture(short[] buffer, int length) {
+                decoder.process(buffer, 0, length);
+            }
+        }, SAMPLE_RATE, PERIOD_FRAMES);
+        if (snrDb > 0)
+            transport.setImpairment(new ChannelSimulator(SAMPLE_RATE, 11).setSnrDb(REPLY_AMPLITUDE, snrDb));
+        if (downlinkNoise > 0)
+            transport.setTransmitImpairment(new ChannelSimulator(SAMPLE_RATE, 13).setNoiseRms(downlinkNoise));
+
+        phyRef[0] = new LoopbackPhy(new SoundEncoder(bank), transport);
+        return phyRef[0];
+    }
+
+    static void run(WaveformBank bank, int window, double snrDb, double downlinkNoise, int exchanges, int commands)
+            throws InterruptedException {
+        LoopbackPhy phy = loopbackPhy(bank, new AccessoryEmulator.Responder() {
+            @Override
+            public int respond(int command) {
+                return firmware(command);
+            }
+        }, snrDb, downlinkNoise);
+        AudioScheduler scheduler = new AudioScheduler("LinkLayerBenchmark");
+        LinkLayer link = new LinkLayer(phy, scheduler, window);
+        link.setRtoBounds(5, 500);
+
+        int ok = 0, failed = 0;
+        int[] payloads = new int[commands];
+        long startNs = System.nanoTime();
+        for (int e = 0; e < exchanges; e++) {
+            for (int i = 0; i < commands; i++)
+                payloads[i] = (e * commands + i) & 0xFF;
+
+            try {
+                int[] replies = link.exchange(payloads).get(60, TimeUnit.SECONDS);
+                for (int i = 0; i < commands; i++) {
+                    if (replies[i] == firmware(payloads[i]))
+                        ok++;
+                    else
+                        failed++;
+                }
+            } catch (ExecutionException ex) {
+                failed += commands;
+            } catch (java.util.concurrent.TimeoutException ex) {
+                failed += commands;
+            }
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+
+        link.close();
+        scheduler.shutdown();
+
+        int total = exchanges * commands;
+        int ideal = exchanges * ((commands + window - 1) / window);
+        System.out.println(String.format("%6d  %9s  %13s  %4d/%-4d  %6d  %10d(%5d)  %4d  %4d  %8d  %3d  %4.1fms %6.2f",
+                window, (snrDb > 0) ? String.format("%.0fdB", snrDb) : "clean", (downlinkNoise > 0) ? String.format("%.0f", downlinkNoise) : "none",
+                ok, total, failed, link.getBurstCount(), ideal, link.getRetransmissions(), link.getNakCount(),
+                link.getTimeoutCount(), link.getDuplicateCount(), link.getSmoothedRttNs() / 1e6, elapsedNs / 1e6 / total));
+    }
+}
@@ -0,0 +1,102 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.AccessoryEmulator;
+import com.syntek.BreathoComLib.CaptureEngine;
+import com.syntek.BreathoComLib.LoopbackTransport;
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+import com.syntek.BreathoComLib.SoundEncoder;
+import com.syntek.BreathoComLib.WaveformBank;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * LoopbackBenchmark runs the full encode, accessory, decode round trip on a plain JVM.
+ * <p/>
+ * Commands are encoded from the wav resources in res/raw, answered by an echoing AccessoryEmulator through a
+ * LoopbackTransport and decoded by SignalDecoder. It prints how many replies came back intact and how much faster
+ * than real time the stack runs.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.LoopbackBenchmark [res/raw dir] [commands] [mismatch ppm] [snr dB]
+ */
+public class LoopbackBenchmark {
+    public final static int SAMPLE_RATE = 44100;
+    public final static int PERIOD_FRAMES = SAMPLE_RATE / 100;
+
+    /**
+     * Waveform source reading the wav files of a res/raw directory.
+     */
+    public static WaveformBank.Source fileSource(final File dir) {
+        return new WaveformBank.Source() {
+            @Override
+            public InputStream open(String name) throws IOException {
+                return new FileInputStream(new File(dir, name + ".wav"));
+            }
+        };
+    }
+
+    public static void main(String[] args) {
+        File rawDir = new File((args.length > 0) ? args[0] : "res/raw");
+        int commands = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        double ppm = (args.length > 2) ? Double.parseDouble(args[2]) : 0;
+        double snrDb = (args.length > 3) ? Double.parseDouble(args[3]) : 0;
+
+        WaveformBank bank = new WaveformBank(fileSource(rawDir));
+        bank.preload();
+        SoundEncoder encoder = new SoundEncoder(bank);
+
+        final int[] lastReply = {-1};
+        final int[] replyCnt = {0};
+        final SignalDecoder decoder = new SignalDecoder(SAMPLE_RATE, PERIOD_FRAMES, new SignalDecoder.Listener() {
+            @Override
+            public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+                if (bDecoded) {
+                    lastReply[0] = d.getCode();
+                    replyCnt[0]++;
+                }
+            }
+        });
+        CaptureEngine.Listener receiver = new CaptureEngine.Listener() {
+            @Override
+            public void onCaptureStart() {
+                decoder.reset();
+            }
+
+            @Override
+            public void onCapture(short[] buffer, int length) {
+                decoder.process(buffer, 0, length);
+            }
+        };
+
+        ReplyEncoder replyEncoder = new ReplyEncoder(SAMPLE_RATE, SignalDecoder.BIT_INTERVAL, 16000);
+        AccessoryEmulator emulator = new AccessoryEmulator(replyEncoder, AccessoryEmulator.ECHO);
+        LoopbackTransport transport = new LoopbackTransport(emulator, receiver, SAMPLE_RATE, PERIOD_FRAMES);
+        transport.setRateMismatchPpm(ppm);
+        if (snrDb > 0)
+            transport.setImpairment(new ChannelSimulator(SAMPLE_RATE, 1).setSnrDb(16000, snrDb));
+
+        int correct = 0;
+        long startNs = System.nanoTime();
+        for (int i = 0; i < commands; i++) {
+            int command = i & 0xFF;
+
+            lastReply[0] = -1;
+            encoder.reset();
+            encoder.addCode(command, 8);
+            transport.transmit(encoder.getBuffer(), encoder.getLength());
+
+            if (lastReply[0] == command)
+                correct++;
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+
+        double audioSeconds = (double) transport.getDeliveredSamples() / SAMPLE_RATE;
+        System.out.println(String.format("commands=%d correct=%d decoded=%d badPulses=%d", commands, correct, replyCnt[0],
+                emulator.getBadPulseCount()));
+        System.out.println(String.format("wall=%.1fms audio=%.1fs speedup=%.0fx roundtrip=%.1fus",
+                elapsedNs / 1e6, audioSeconds, audioSeconds * 1e9 / elapsedNs, elapsedNs / 1e3 / commands));
+    }
+}
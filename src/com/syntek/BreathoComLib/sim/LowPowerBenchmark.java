@@ -0,0 +1,107 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.CarrierWatch;
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+
+import java.util.Random;
+
+/**
+ * LowPowerBenchmark compares listening at full rate with listening through a CarrierWatch.
+ * <p/>
+ * A minute of mic noise holding unsolicited replies a few seconds apart (the worst case: no command announces them)
+ * is fed period by period to a SignalDecoder, once directly and once behind a CarrierWatch. It prints the CPU time
+ * per minute of audio, how many replies were decoded, and the time the watch spent in each mode.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.LowPowerBenchmark [seconds] [noise rms] [reply spacing ms]
+ */
+public class LowPowerBenchmark {
+    private final static int SAMPLE_RATE = LoopbackBenchmark.SAMPLE_RATE;
+    private final static int PERIOD_FRAMES = LoopbackBenchmark.PERIOD_FRAMES;
+    private final static int REPLY_AMPLITUDE = 16000;
+    private final static int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 60;
+        double noiseRms = (args.length > 1) ? Double.parseDouble(args[1]) : 300;
+        int spacingMs = (args.length > 2) ? Integer.parseInt(args[2]) : 3000;
+
+        // Noise with replies at random offsets within each spacing
+        Random rnd = new Random(7);
+        short[] stream = new short[seconds * SAMPLE_RATE];
+        for (int i = 0; i < stream.length; i++)
+            stream[i] = (short) Math.max(-32768, Math.min(32767, Math.round(rnd.nextGaussian() * noiseRms)));
+
+        ReplyEncoder encoder = new ReplyEncoder(SAMPLE_RATE, SignalDecoder.BIT_INTERVAL, REPLY_AMPLITUDE);
+        short[] frame = new short[encoder.getFrameSamples()];
+        int spacing = spacingMs * SAMPLE_RATE / 1000;
+        int replies = 0;
+        for (int at = 0; at + spacing <= stream.length; at += spacing) {
+            int n = encoder.encode(replies & 0x1FF, frame, 0);
+            int start = at + rnd.nextInt(spacing - n);
+            for (int i = 0; i < n; i++)
+                stream[start + i] = (short) Math.max(-32768, Math.min(32767, stream[start + i] + frame[i]));
+            replies++;
+        }
+
+        System.out.println(String.format("%ds of noise rms %.0f, %d replies %dms apart", seconds, noiseRms, replies, spacingMs));
+        System.out.println("mode        cpuMs/min  decoded  wakes  lowPower  awake");
+        long fullNs = Long.MAX_VALUE, watchNs = Long.MAX_VALUE;
+        int fullDecoded = 0, watchDecoded = 0;
+        CarrierWatch watch = null;
+        for (int r = 0; r < ROUNDS; r++) {
+            int[] decoded = new int[1];
+            long t = System.nanoTime();
+            run(stream, null, decoded);
+            fullNs = Math.min(fullNs, System.nanoTime() - t);
+            fullDecoded = decoded[0];
+
+            decoded[0] = 0;
+            watch = new CarrierWatch(SAMPLE_RATE, PERIOD_FRAMES);
+            t = System.nanoTime();
+            run(stream, watch, decoded);
+            watchNs = Math.min(watchNs, System.nanoTime() - t);
+            watchDecoded = decoded[0];
+        }
+
+        double minutes = seconds / 60.0;
+        System.out.println(String.format("full rate   %9.1f  %4d/%-3d  %5s  %8s  %5s", fullNs / 1e6 / minutes, fullDecoded, replies, "-", "-", "-"));
+        double total = watch.getLowPowerTimeNs() + watch.getAwakeTimeNs();
+        System.out.println(String.format("low power   %9.1f  %4d/%-3d  %5d  %7.1f%%  %4.1f%%", watchNs / 1e6 / minutes, watchDecoded, replies,
+                watch.getWakeCount(), watch.getLowPowerTimeNs() * 100 / total, watch.getAwakeTimeNs() * 100 / total));
+    }
+
+    // Feed the stream period by period, timestamps follow the sample clock
+    static void run(short[] stream, CarrierWatch watch, final int[] decoded) {
+        final CarrierWatch w = watch;
+        final long[] nowNs = new long[1];
+        SignalDecoder decoder = new SignalDecoder(SAMPLE_RATE, PERIOD_FRAMES, new SignalDecoder.Listener() {
+            @Override
+            public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+                if (w != null)
+                    w.onActivity(nowNs[0]);
+                if (bDecoded)
+                    decoded[0]++;
+            }
+        });
+
+        short[] period = new short[PERIOD_FRAMES];
+        for (int pos = 0; pos + PERIOD_FRAMES <= stream.length; pos += PERIOD_FRAMES) {
+            System.arraycopy(stream, pos, period, 0, PERIOD_FRAMES);
+            nowNs[0] = (long) pos * 1000000000L / SAMPLE_RATE;
+
+            if (watch != null) {
+                if (decoder.isCollecting())
+                    watch.onActivity(nowNs[0]);
+                int action = watch.admit(period, PERIOD_FRAMES, nowNs[0]);
+                if (action == CarrierWatch.SKIP)
+                    continue;
+                if (action == CarrierWatch.WAKE) {
+                    decoder.reset();
+                    decoder.process(watch.getHistory(), 0, watch.getHistoryLength());
+                }
+            }
+            decoder.process(period, 0, PERIOD_FRAMES);
+        }
+    }
+}
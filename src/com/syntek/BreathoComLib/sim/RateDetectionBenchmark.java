@@ -0,0 +1,161 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+
+import java.util.Random;
+
+/**
+ * RateDetectionBenchmark checks that SignalDecoder follows units replying at other bit rates than BIT_INTERVAL.
+ * <p/>
+ * For every bit period of the sweep, random replies are modulated by ReplyEncoder at that period, one per slot with
+ * silence around it, passed through a ChannelSimulator with noise and decoded with rate detection off (the fixed
+ * period) and on. It reports the replies delivered right and wrong, the period the decoder ended on and the decoder
+ * CPU time per analysis. A fleet of two units at different rates taking turns is then decoded with one decoder
+ * relearning on every turn and with the period of each unit restored, as BreathoComLib.setConnectedUnit() does.
+ * Last, pools of noise loud enough to trigger are decoded with rate detection off and on to show it does not let
+ * more noise through as replies.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.RateDetectionBenchmark [frames] [snr dB]
+ */
+public class RateDetectionBenchmark {
+    private final static int SAMPLE_RATE = LinkBenchmark.SAMPLE_RATE;
+    private final static int BLOCK_FRAMES = LinkBenchmark.BLOCK_FRAMES;
+    private final static int AMPLITUDE = LinkBenchmark.AMPLITUDE;
+    private final static int[] PERIODS = {36, 40, 44, 48, 51, 54, 57, 60, 64, 68, 71};
+    private final static int[] FLEET = {46, 62};
+    private final static int FLEET_TURN = 10;     // replies of a unit before the other one answers
+    private final static int NOISE_POOLS = 20000;
+
+    private static int delivered, wrong, analyses;
+
+    // Decoded replies are matched to the slot they were triggered in
+    private static int slotSamples;
+    private static int[] received;
+    private static boolean[] bReceived;
+    private final static SignalDecoder.Listener slotListener = new SignalDecoder.Listener() {
+        @Override
+        public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+            analyses++;
+            int i = (int) (d.getTriggerSample() / slotSamples);
+            if (bDecoded && i < received.length && !bReceived[i]) {
+                bReceived[i] = true;
+                received[i] = d.getCode();
+            }
+        }
+    };
+
+    public static void main(String[] args) {
+        int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 300;
+        double snr = (args.length > 1) ? Double.parseDouble(args[1]) : 30;
+
+        // Warm up the JIT so the first row is not penalised
+        run(SignalDecoder.BIT_INTERVAL, true, 50, snr);
+
+        System.out.println(String.format("# Bit period sweep, %d replies at %.0fdB SNR", frames, snr));
+        for (int period : PERIODS) {
+            StringBuilder line = new StringBuilder(String.format("period=%2d (%+3.0f%%)", period,
+                    100.0 * (period - SignalDecoder.BIT_INTERVAL) / SignalDecoder.BIT_INTERVAL));
+            for (int k = 0; k < 2; k++) {
+                boolean bDetect = k == 1;
+                long t0 = System.nanoTime();
+                SignalDecoder decoder = run(period, bDetect, frames, snr);
+                long ns = System.nanoTime() - t0;
+                line.append(String.format("  %s: ok=%3d wrong=%d learned=%2d %.1fus/analysis", bDetect ? "detect" : "fixed",
+                        delivered - wrong, wrong, decoder.getBitInterval(), ns / 1e3 / Math.max(1, analyses)));
+            }
+            System.out.println(line);
+        }
+
+        System.out.println(String.format("# Fleet of units at %d and %d samples per bit, %d replies per turn", FLEET[0], FLEET[1], FLEET_TURN));
+        fleet(frames, snr, false);
+        fleet(frames, snr, true);
+
+        System.out.println(String.format("# Noise only, %d triggered pools", NOISE_POOLS));
+        noise(false);
+        noise(true);
+    }
+
+    // Replies of one unit at the given period; the counters hold the outcome
+    private static SignalDecoder run(int period, boolean bDetect, int frames, double snr) {
+        SignalDecoder decoder = newDecoder();
+        decoder.setRateDetection(bDetect);
+        decode(decoder, new int[]{period}, frames, frames, snr, false);
+        return decoder;
+    }
+
+    // Units taking turns, with or without the period of every unit restored when its turn starts
+    private static void fleet(int frames, double snr, boolean bCache) {
+        SignalDecoder decoder = newDecoder();
+        long t0 = System.nanoTime();
+        decode(decoder, FLEET, frames, FLEET_TURN, snr, bCache);
+        long ns = System.nanoTime() - t0;
+        System.out.println(String.format("  %-16s ok=%3d/%d wrong=%d rate changes=%3d %.1fus/analysis",
+                bCache ? "period per unit" : "relearn", delivered - wrong, frames, wrong, decoder.getRateChangeCount(),
+                ns / 1e3 / Math.max(1, analyses)));
+    }
+
+    private static void decode(SignalDecoder decoder, int[] periods, int frames, int turn, double snr, boolean bCache) {
+        ReplyEncoder[] encoders = new ReplyEncoder[periods.length];
+        slotSamples = 0;
+        for (int u = 0; u < periods.length; u++) {
+            encoders[u] = new ReplyEncoder(SAMPLE_RATE, periods[u], AMPLITUDE);
+            slotSamples = Math.max(slotSamples, encoders[u].getFrameSamples() + 2 * decoder.getPoolSamples());
+        }
+
+        Random random = new Random(3);
+        int[] sent = new int[frames];
+        short[] tx = new short[frames * slotSamples];
+        for (int i = 0; i < frames; i++) {
+            sent[i] = random.nextInt(1 << LinkBenchmark.DATA_BITS);
+            encoders[(i / turn) % periods.length].encode(sent[i], tx, i * slotSamples + decoder.getPoolSamples());
+        }
+        short[] rx = new ChannelSimulator(SAMPLE_RATE, 9).setSnrDb(AMPLITUDE, snr).process(tx, tx.length);
+
+        received = new int[frames];
+        bReceived = new boolean[frames];
+        analyses = 0;
+
+        for (int i = 0; i < frames; i++) {
+            if (bCache && i % turn == 0)
+                decoder.setBitInterval(periods[(i / turn) % periods.length]);
+            decoder.process(rx, i * slotSamples, slotSamples);
+        }
+
+        delivered = 0;
+        wrong = 0;
+        for (int i = 0; i < frames; i++) {
+            if (bReceived[i]) {
+                delivered++;
+                if (received[i] != sent[i])
+                    wrong++;
+            }
+        }
+    }
+
+    // Triggered pools of noise, counting those taken for a reply
+    private static void noise(boolean bDetect) {
+        SignalDecoder decoder = newDecoder();
+        decoder.setRateDetection(bDetect);
+        Random rnd = new Random(13);
+        short[] pool = new short[decoder.getPoolSamples() * 2];
+        int decoded = 0;
+        long t0 = System.nanoTime();
+        for (int n = 0; n < NOISE_POOLS; n++) {
+            // Noise bursts of random length in silence, as from handling or speech
+            int burst = 200 + rnd.nextInt(decoder.getPoolSamples() - 200);
+            double rms = 2000 + rnd.nextDouble() * 10000;
+            for (int i = 0; i < decoder.getPoolSamples(); i++)
+                pool[i] = (i < burst) ? (short) Math.max(-32768, Math.min(32767, Math.round(rnd.nextGaussian() * rms))) : 0;
+            if (decoder.nonCoherentOperation(pool))
+                decoded++;
+        }
+        long ns = System.nanoTime() - t0;
+        System.out.println(String.format("  %-16s taken for a reply=%d (%.3f%%) %.1fus/pool", bDetect ? "detect" : "fixed",
+                decoded, 100.0 * decoded / NOISE_POOLS, ns / 1e3 / NOISE_POOLS));
+    }
+
+    private static SignalDecoder newDecoder() {
+        return new SignalDecoder(SAMPLE_RATE, BLOCK_FRAMES, slotListener);
+    }
+}
@@ -0,0 +1,170 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.SessionLog;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * SessionLogBenchmark measures what logging costs the audio threads, with a SessionLog and with plain
+ * FileOutputStream writes, and reads the log back to check it.
+ * <p/>
+ * Writer threads log records at a steady pace, as the capture and transmit threads do, and time every call. For the
+ * FileOutputStream case each record is one write() of the same 24 bytes to a file of its own thread. The log is then
+ * read back with SessionLog.Reader: every record kept must be there once, in order per thread. A second run with
+ * small segments and a tight cap checks rotation: only the newest segments are left, their records in
+ * order.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.SessionLogBenchmark [dir] [threads] [records per thread]
+ */
+public class SessionLogBenchmark {
+    private final static int RECORDS_PER_PAUSE = 64;
+    private final static int CAPPED_SEGMENT_BYTES = 16 * 1024;
+    private final static int CAPPED_SEGMENTS = 4;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File((args.length > 0) ? args[0] : System.getProperty("java.io.tmpdir"), "sessionlog-bench");
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+        int records = (args.length > 2) ? Integer.parseInt(args[2]) : 200000;
+
+        boolean bOk = true;
+
+        clear(dir);
+        SessionLog log = new SessionLog(dir, SessionLog.DEFAULT_SEGMENT_BYTES, 1L << 30);
+        long[][] latencies = run(log, null, threads, records);
+        log.close();
+        print("SessionLog", latencies);
+        System.out.println(String.format("  written=%d dropped=%d segments=%d", log.getWrittenCount(), log.getDroppedCount(), log.getSegmentCount()));
+        bOk &= verify(dir, threads, records, log.getDroppedCount(), false);
+
+        clear(dir);
+        dir.mkdirs();
+        latencies = run(null, dir, threads, records);
+        print("FileOutputStream", latencies);
+
+        // Rotation under a cap of 4 small segments
+        clear(dir);
+        log = new SessionLog(dir, CAPPED_SEGMENT_BYTES, CAPPED_SEGMENTS * CAPPED_SEGMENT_BYTES);
+        run(log, null, threads, records);
+        log.close();
+        System.out.println(String.format("capped: written=%d dropped=%d segments created=%d kept=%d",
+                log.getWrittenCount(), log.getDroppedCount(), log.getSegmentCount(), SessionLog.listSegments(dir).length));
+        bOk &= check("cap kept", SessionLog.listSegments(dir).length <= CAPPED_SEGMENTS);
+        bOk &= verify(dir, threads, records, log.getDroppedCount(), true);
+        clear(dir);
+
+        System.out.println(bOk ? "PASS" : "FAIL");
+        if (!bOk)
+            System.exit(1);
+    }
+
+    // Log records from every thread, either into the log or into one file per thread; returns the latencies in ns
+    private static long[][] run(final SessionLog log, final File dir, int threads, final int records) throws Exception {
+        final long[][] latencies = new long[threads][records];
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            t[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        DataOutputStream out = null;
+                        if (dir != null)
+                            out = new DataOutputStream(new FileOutputStream(new File(dir, "plain_" + id)));
+                        byte[] record = new byte[SessionLog.RECORD_BYTES];
+                        for (int k = 0; k < records; k++) {
+                            long t0 = System.nanoTime();
+                            if (log != null) {
+                                log.mark((id << 24) | k, k);
+                            } else {
+                                record[0] = (byte) id;
+                                record[1] = (byte) k;
+                                out.write(record);
+                            }
+                            latencies[id][k] = System.nanoTime() - t0;
+
+                            // Real traffic comes in bursts of a few records per audio period
+                            if (k % RECORDS_PER_PAUSE == RECORDS_PER_PAUSE - 1)
+                                Thread.sleep(1);
+                        }
+                        if (out != null)
+                            out.close();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "Log-Writer-" + i);
+        }
+        for (Thread x : t)
+            x.start();
+        for (Thread x : t)
+            x.join();
+        return latencies;
+    }
+
+    private static void print(String name, long[][] latencies) {
+        int n = 0;
+        for (long[] l : latencies)
+            n += l.length;
+        long[] all = new long[n];
+        long sum = 0;
+        int k = 0;
+        for (long[] l : latencies) {
+            for (long v : l) {
+                all[k++] = v;
+                sum += v;
+            }
+        }
+        Arrays.sort(all);
+        System.out.println(String.format("%s: mean=%.0fns p99=%dns p99.9=%dns max=%.1fus", name, (double) sum / n,
+                all[(int) (n * 0.99)], all[(int) (n * 0.999)], all[n - 1] / 1e3));
+    }
+
+    // Check the records read back: no duplicate, in order per thread, all of them unless capped
+    private static boolean verify(File dir, int threads, int records, long dropped, boolean bCapped) {
+        int[] next = new int[threads];
+        int[] first = new int[threads];
+        Arrays.fill(first, -1);
+        long read = 0, outOfOrder = 0;
+        for (SessionLog.Record r : new SessionLog.Reader(dir)) {
+            int id = r.getValue() >>> 24;
+            int seq = r.getValue() & 0xFFFFFF;
+            if (r.getType() != SessionLog.TYPE_MARK || id >= threads || seq != r.getAux()) {
+                outOfOrder++;
+                continue;
+            }
+            if (first[id] < 0)
+                first[id] = seq;
+            else if (seq < next[id])
+                outOfOrder++;
+            next[id] = seq + 1;
+            read++;
+        }
+
+        boolean bOk = outOfOrder == 0;
+        if (bCapped)
+            bOk &= read > 0 && read <= CAPPED_SEGMENTS * (CAPPED_SEGMENT_BYTES / SessionLog.RECORD_BYTES);
+        else
+            bOk &= read + dropped == (long) threads * records;
+        System.out.println(String.format("  read back %d records, %d out of order or damaged: %s", read, outOfOrder, bOk ? "ok" : "FAILED"));
+        return bOk;
+    }
+
+    private static boolean check(String what, boolean bOk) {
+        System.out.println(String.format("  %s: %s", what, bOk ? "ok" : "FAILED"));
+        return bOk;
+    }
+
+    private static void clear(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+    }
+}
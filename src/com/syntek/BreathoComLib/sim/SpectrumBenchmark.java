@@ -0,0 +1,101 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.RealFft;
+import com.syntek.BreathoComLib.SignalDecoder;
+import com.syntek.BreathoComLib.SpectrumAnalyzer;
+
+import java.util.Random;
+
+/**
+ * SpectrumBenchmark checks RealFft against a direct DFT and measures what SpectrumAnalyzer costs the capture thread.
+ * <p/>
+ * Ten seconds of both reply tones in white noise are fed period by period to an analyser. It prints the time per
+ * update and per second of audio, and the tone SNR estimates next to the values expected for a Hann window: the
+ * estimate is (signal + noise) / noise over the main lobe, 1 + A^2 * N / (20 * rms^2).
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.SpectrumBenchmark [fft size] [update ms] [tone amplitude] [noise rms]
+ */
+public class SpectrumBenchmark {
+    private final static int SAMPLE_RATE = LoopbackBenchmark.SAMPLE_RATE;
+    private final static int PERIOD_FRAMES = LoopbackBenchmark.PERIOD_FRAMES;
+    private final static int SECONDS = 10;
+    private final static int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int fftSize = (args.length > 0) ? Integer.parseInt(args[0]) : SpectrumAnalyzer.DEFAULT_FFT_SIZE;
+        long updateMs = (args.length > 1) ? Long.parseLong(args[1]) : SpectrumAnalyzer.DEFAULT_UPDATE_MS;
+        double amplitude = (args.length > 2) ? Double.parseDouble(args[2]) : 1000;
+        double noiseRms = (args.length > 3) ? Double.parseDouble(args[3]) : 300;
+
+        System.out.println(String.format("fft %d: max error vs DFT %.2e of full scale", fftSize, dftError(fftSize)));
+
+        Random rnd = new Random(3);
+        short[] stream = new short[SECONDS * SAMPLE_RATE];
+        for (int i = 0; i < stream.length; i++) {
+            double v = amplitude * (Math.sin(2 * Math.PI * SignalDecoder.FREQ0 * i / SAMPLE_RATE)
+                    + Math.sin(2 * Math.PI * SignalDecoder.FREQ1 * i / SAMPLE_RATE)) + rnd.nextGaussian() * noiseRms;
+            stream[i] = (short) Math.max(-32768, Math.min(32767, Math.round(v)));
+        }
+
+        // First round warms the JIT up and is not counted
+        long bestNs = Long.MAX_VALUE;
+        SpectrumAnalyzer analyzer = null;
+        for (int r = 0; r <= ROUNDS; r++) {
+            analyzer = new SpectrumAnalyzer(SAMPLE_RATE, fftSize);
+            analyzer.setUpdateInterval(updateMs);
+            short[] period = new short[PERIOD_FRAMES];
+            long t = System.nanoTime();
+            analyzer.onCaptureStart();
+            for (int pos = 0; pos + PERIOD_FRAMES <= stream.length; pos += PERIOD_FRAMES) {
+                System.arraycopy(stream, pos, period, 0, PERIOD_FRAMES);
+                analyzer.onCapture(period, PERIOD_FRAMES);
+            }
+            if (r > 0)
+                bestNs = Math.min(bestNs, System.nanoTime() - t);
+        }
+
+        float[] snr = new float[SpectrumAnalyzer.MAX_TONES];
+        int tones = analyzer.getToneSnrDb(snr);
+        double expected = 10 * Math.log10(1 + amplitude * amplitude * fftSize / (20 * noiseRms * noiseRms));
+        System.out.println(String.format("updates=%d every %dms: %.1fus/update, %.3fms cpu per s of audio (%.3f%%)",
+                analyzer.getUpdateCount(), updateMs, analyzer.getMeanUpdateTimeNs() / 1e3, bestNs / 1e6 / SECONDS,
+                bestNs / 1e7 / SECONDS));
+        int[] freqs = analyzer.getTones();
+        for (int i = 0; i < tones; i++)
+            System.out.println(String.format("tone %dHz: snr %.1fdB, expected %.1fdB", freqs[i], snr[i], expected));
+
+        float[] db = new float[analyzer.getBins()];
+        analyzer.getSpectrumDb(db);
+        int peak = 1;
+        for (int i = 1; i < db.length; i++) {
+            if (db[i] > db[peak])
+                peak = i;
+        }
+        System.out.println(String.format("peak %.0fHz at %.1fdB, expected %.1fdB", analyzer.getBinFrequency(peak), db[peak],
+                20 * Math.log10(amplitude / 32768)));
+    }
+
+    // Largest difference between RealFft and a direct DFT of random full-scale input, relative to the full-scale bin
+    static double dftError(int size) {
+        Random rnd = new Random(1);
+        float[] x = new float[size];
+        for (int i = 0; i < size; i++)
+            x[i] = (float) ((rnd.nextDouble() * 2 - 1) * 32767);
+
+        RealFft fft = new RealFft(size);
+        float[] re = new float[fft.getBins()], im = new float[fft.getBins()];
+        fft.forward(x, re, im);
+
+        double max = 0;
+        for (int k = 0; k < fft.getBins(); k++) {
+            double sr = 0, si = 0;
+            for (int n = 0; n < size; n++) {
+                double a = 2 * Math.PI * k * n / size;
+                sr += x[n] * Math.cos(a);
+                si -= x[n] * Math.sin(a);
+            }
+            max = Math.max(max, Math.hypot(re[k] - sr, im[k] - si));
+        }
+        return max / (32768.0 * size / 2);
+    }
+}
@@ -0,0 +1,86 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.AccessoryEmulator;
+import com.syntek.BreathoComLib.CaptureEngine;
+import com.syntek.BreathoComLib.FrameTracer;
+import com.syntek.BreathoComLib.LoopbackTransport;
+import com.syntek.BreathoComLib.ReplyEncoder;
+import com.syntek.BreathoComLib.SignalDecoder;
+import com.syntek.BreathoComLib.SoundEncoder;
+import com.syntek.BreathoComLib.WaveformBank;
+
+import java.io.File;
+
+/**
+ * TraceOverheadBenchmark measures the CPU cost of FrameTracer on the receive path: the loopback round trip of
+ * LoopbackBenchmark runs alternately with tracing off and on, with the capture and delivery trace points of
+ * BreathoComLib emulated in the receiver. The last traced run is written as Chrome trace JSON.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.TraceOverheadBenchmark [res/raw dir] [commands] [trace file]
+ */
+public class TraceOverheadBenchmark {
+    private final static int ROUNDS = 6;
+
+    public static void main(String[] args) throws Exception {
+        File rawDir = new File((args.length > 0) ? args[0] : "res/raw");
+        int commands = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        File traceFile = new File((args.length > 2) ? args[2] : "trace.json");
+
+        WaveformBank bank = new WaveformBank(LoopbackBenchmark.fileSource(rawDir));
+        bank.preload();
+
+        // First round warms the JIT up and is not counted
+        long offNs = 0, onNs = 0;
+        for (int r = 0; r <= ROUNDS; r++) {
+            FrameTracer.disable();
+            long off = run(bank, commands);
+            FrameTracer.enable(commands * 16);
+            long on = run(bank, commands);
+            FrameTracer.disable();
+            if (r > 0) {
+                offNs += off;
+                onNs += on;
+            }
+        }
+
+        FrameTracer.writeJson(traceFile);
+        System.out.println(String.format("off=%.1fus/cmd on=%.1fus/cmd overhead=%.2f%% trace=%s",
+                offNs / 1e3 / commands / ROUNDS, onNs / 1e3 / commands / ROUNDS, (onNs - offNs) * 100.0 / offNs,
+                traceFile.getPath()));
+    }
+
+    static long run(WaveformBank bank, int commands) {
+        SoundEncoder encoder = new SoundEncoder(bank);
+        final SignalDecoder decoder = new SignalDecoder(LoopbackBenchmark.SAMPLE_RATE, LoopbackBenchmark.PERIOD_FRAMES,
+                new SignalDecoder.Listener() {
+                    @Override
+                    public void onAnalysis(SignalDecoder d, boolean bDecoded) {
+                        if (bDecoded && FrameTracer.isEnabled())
+                            FrameTracer.instant(FrameTracer.DELIVER, d.getCode());
+                    }
+                });
+        CaptureEngine.Listener receiver = new CaptureEngine.Listener() {
+            @Override
+            public void onCaptureStart() {
+                decoder.reset();
+            }
+
+            @Override
+            public void onCapture(short[] buffer, int length) {
+                if (FrameTracer.isEnabled())
+                    FrameTracer.instant(FrameTracer.CAPTURE_READ, length);
+                decoder.process(buffer, 0, length);
+            }
+        };
+        AccessoryEmulator emulator = new AccessoryEmulator(new ReplyEncoder(LoopbackBenchmark.SAMPLE_RATE, SignalDecoder.BIT_INTERVAL, 16000), AccessoryEmulator.ECHO);
+        LoopbackTransport transport = new LoopbackTransport(emulator, receiver, LoopbackBenchmark.SAMPLE_RATE, LoopbackBenchmark.PERIOD_FRAMES);
+
+        long startNs = System.nanoTime();
+        for (int i = 0; i < commands; i++) {
+            encoder.reset();
+            encoder.addCode(i & 0xFF, 8);
+            transport.transmit(encoder.getBuffer(), encoder.getLength());
+        }
+        return System.nanoTime() - startNs;
+    }
+}
@@ -0,0 +1,187 @@
+package com.syntek.BreathoComLib.sim;
+
+import com.syntek.BreathoComLib.AudioScheduler;
+import com.syntek.BreathoComLib.TransmitQueue;
+import com.syntek.BreathoComLib.TransmitResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+/**
+ * TransmitQueueBenchmark compares sending bursts of commands by cutting the transmission playing short, as the library
+ * did, with TransmitQueue playing them back to back.
+ * <p/>
+ * Commands arrive in bursts of one to four a few ms apart, as from a UI and the LinkLayer at once, with random gaps
+ * between the bursts. The preempting player is modelled in virtual time: every command starts at once, with a leader
+ * unless the head window of the previous one is open, and is lost if the next one arrives before it has been played.
+ * The queue is run for real, on an AudioScheduler, with a sink that plays for the time the audio would take and adds
+ * the leader only to batches that do not follow the previous one. For both it prints the commands played whole, the
+ * batches, the time from submit to the last sample and the queue wait. Last, a sink holding its batch shows
+ * priorities, deduplication, cancellation and the capacity bound.
+ * <p/>
+ * Usage: java com.syntek.BreathoComLib.sim.TransmitQueueBenchmark [bursts]
+ */
+public class TransmitQueueBenchmark {
+    private final static int LEADER_MS = 80;
+    private final static int HEAD_WINDOW_MS = 100;
+    private final static int FRAME_MS = 25;          // about one 8-bit command frame with its stop gap
+    private final static int MAX_BURST = 4;
+    private final static int BURST_SPREAD_MS = 5;
+    private final static int MIN_GAP_MS = 50;
+    private final static int MAX_GAP_MS = 400;
+    private final static int HELD_CAPACITY = 8;
+
+    public static void main(String[] args) throws Exception {
+        int bursts = (args.length > 0) ? Integer.parseInt(args[0]) : 30;
+
+        // Arrival times in ms, one frame per command
+        Random rnd = new Random(5);
+        List<Integer> arrivals = new ArrayList<Integer>();
+        int t = 0;
+        for (int b = 0; b < bursts; b++) {
+            int n = 1 + rnd.nextInt(MAX_BURST);
+            for (int k = 0; k < n; k++)
+                arrivals.add(t + rnd.nextInt(BURST_SPREAD_MS + 1) * k);
+            t += MIN_GAP_MS + rnd.nextInt(MAX_GAP_MS - MIN_GAP_MS);
+        }
+
+        System.out.println(String.format("# %d commands in %d bursts, leader=%dms frame=%dms", arrivals.size(), bursts,
+                LEADER_MS, FRAME_MS));
+        preempting(arrivals);
+        queued(arrivals);
+
+        System.out.println("# Held sink");
+        held();
+    }
+
+    private static void preempting(List<Integer> arrivals) {
+        int played = 0;
+        long latencyMs = 0;
+        int lastStart = Integer.MIN_VALUE / 2;
+        for (int i = 0; i < arrivals.size(); i++) {
+            int start = arrivals.get(i);
+            int end = start + ((start - lastStart > HEAD_WINDOW_MS) ? LEADER_MS : 0) + FRAME_MS;
+            lastStart = start;
+            if (i + 1 < arrivals.size() && arrivals.get(i + 1) < end)
+                continue;
+            played++;
+            latencyMs += end - start;
+        }
+        System.out.println(String.format("  %-10s played=%3d/%d lost=%3d transmissions=%3d mean submit-to-end=%5.1fms",
+                "preempt", played, arrivals.size(), arrivals.size() - played, arrivals.size(),
+                (double) latencyMs / Math.max(1, played)));
+    }
+
+    private static void queued(List<Integer> arrivals) throws Exception {
+        final AudioScheduler scheduler = new AudioScheduler("Bench-Tx");
+        final TransmitQueue[] queue = new TransmitQueue[1];
+        queue[0] = new TransmitQueue(scheduler, new TransmitQueue.Sink() {
+            @Override
+            public void transmit(final TransmitQueue.Request[] batch, final int count, boolean bContinued) {
+                final long startNs = System.nanoTime();
+                long atNs = startNs + (bContinued ? 0 : LEADER_MS * 1000000L);
+                for (int r = 0; r < count; r++) {
+                    final TransmitQueue.Request request = batch[r];
+                    final long firstNs = atNs;
+                    final long endNs = atNs + request.getFrameCount() * FRAME_MS * 1000000L;
+                    scheduler.scheduleAtNs(new Runnable() {
+                        @Override
+                        public void run() {
+                            queue[0].finish(request, firstNs, endNs, 0, 44100, true);
+                        }
+                    }, endNs);
+                    atNs = endNs;
+                }
+            }
+        });
+
+        List<Future<TransmitResult>> futures = new ArrayList<Future<TransmitResult>>();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < arrivals.size(); i++) {
+            long dueNs = t0 + arrivals.get(i) * 1000000L;
+            long waitNs = dueNs - System.nanoTime();
+            if (waitNs > 0)
+                Thread.sleep(waitNs / 1000000L, (int) (waitNs % 1000000L));
+            futures.add(queue[0].submit(System.nanoTime(), new int[]{i & 0xFF}, 1, 8));
+        }
+
+        int played = 0;
+        long latencyNs = 0;
+        for (Future<TransmitResult> f : futures) {
+            TransmitResult r = f.get();
+            if (r.isComplete()) {
+                played++;
+                latencyNs += r.getLastSampleTimeNs() - r.getEnqueueTimeNs();
+            }
+        }
+        TransmitQueue q = queue[0];
+        System.out.println(String.format("  %-10s played=%3d/%d lost=%3d transmissions=%3d mean submit-to-end=%5.1fms"
+                        + "  continued=%d max depth=%d mean wait=%.1fms max wait=%.1fms",
+                "queue", played, arrivals.size(), arrivals.size() - played, q.getBatchCount(),
+                latencyNs / 1e6 / Math.max(1, played), q.getContinuedCount(), q.getMaxQueuedCount(), q.getMeanWaitNs() / 1e6,
+                q.getMaxWaitNs() / 1e6));
+        scheduler.shutdown();
+    }
+
+    // Sink keeping every batch until released, so the waiting requests can be looked at
+    private static void held() throws Exception {
+        AudioScheduler scheduler = new AudioScheduler("Bench-Held");
+        final List<TransmitQueue.Request[]> batches = new ArrayList<TransmitQueue.Request[]>();
+        TransmitQueue q = new TransmitQueue(scheduler, new TransmitQueue.Sink() {
+            @Override
+            public void transmit(TransmitQueue.Request[] batch, int count, boolean bContinued) {
+                TransmitQueue.Request[] copy = new TransmitQueue.Request[count];
+                System.arraycopy(batch, 0, copy, 0, count);
+                synchronized (batches) {
+                    batches.add(copy);
+                    batches.notifyAll();
+                }
+            }
+        }, HELD_CAPACITY, TransmitQueue.DEFAULT_MAX_BATCH_FRAMES);
+
+        // Playing: 0, no longer cancellable. Waiting: low 1, normal 2 (asked five times), high 3, low 4 cancelled, low 5
+        Future<TransmitResult> first = q.submit(System.nanoTime(), new int[]{0}, 1, 8);
+        TransmitQueue.Request[] playing = awaitBatch(batches, 1);
+        boolean bPlayingCancelled = first.cancel(false);
+        q.submit(System.nanoTime(), new int[]{1}, 1, 8, TransmitQueue.PRIORITY_LOW, false);
+        Future<TransmitResult> normal = q.submit(System.nanoTime(), new int[]{2}, 1, 8, TransmitQueue.PRIORITY_NORMAL, true);
+        int shared = 0;
+        for (int i = 0; i < 4; i++) {
+            if (q.submit(System.nanoTime(), new int[]{2}, 1, 8, TransmitQueue.PRIORITY_NORMAL, true) == normal)
+                shared++;
+        }
+        q.submit(System.nanoTime(), new int[]{3}, 1, 8, TransmitQueue.PRIORITY_HIGH, false);
+        q.submit(System.nanoTime(), new int[]{4}, 1, 8, TransmitQueue.PRIORITY_LOW, false).cancel(false);
+        q.submit(System.nanoTime(), new int[]{5}, 1, 8, TransmitQueue.PRIORITY_LOW, false);
+        int queuedBefore = q.getQueuedCount();
+
+        // Fill up to the capacity and beyond
+        int rejected = 0;
+        for (int i = 0; i < HELD_CAPACITY; i++) {
+            Future<TransmitResult> f = q.submit(System.nanoTime(), new int[]{6}, 1, 8, TransmitQueue.PRIORITY_LOW, false);
+            if (f.isDone() && !f.isCancelled())
+                rejected++;
+        }
+
+        q.finish(playing[0], 0, 0, 0, 44100, true);
+        TransmitQueue.Request[] next = awaitBatch(batches, 2);
+        StringBuilder order = new StringBuilder();
+        for (TransmitQueue.Request r : next)
+            order.append(' ').append(r.getFrame(0));
+
+        System.out.println(String.format("  waiting=%d shared=%d cancelled=%d rejected=%d (capacity %d) playing cancelled=%s",
+                queuedBefore, shared, q.getCancelledCount(), rejected, HELD_CAPACITY, bPlayingCancelled ? "yes" : "no"));
+        System.out.println("  next batch:" + order + (q.getBatchCount() == 2 && q.getContinuedCount() == 1 ? " (continued)" : ""));
+        scheduler.shutdown();
+    }
+
+    private static TransmitQueue.Request[] awaitBatch(List<TransmitQueue.Request[]> batches, int n) throws InterruptedException {
+        synchronized (batches) {
+            while (batches.size() < n)
+                batches.wait();
+            return batches.get(n - 1);
+        }
+    }
+}